@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Runs workloads with warmup and measured iterations, and collects their throughput. The results can be written to a CSV file
+ * and compared with the CSV file of a previous run, used as the regression baseline.
+ * @author Roberto Fabrizi
+ */
+public final class BenchmarkRunner {
+
+    private final int warmup;
+    private final int iterations;
+    private final Map<String, Double> results = new LinkedHashMap<String, Double>();
+
+    /**
+     * A unit of work to measure.
+     */
+    public interface Workload {
+
+        /**
+         * Runs the workload once.
+         * @return the number of items (files, names, rows) processed
+         * @throws Exception if the workload fails
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Creates a <code>BenchmarkRunner</code>.
+     * @param warmup the number of iterations run before measuring, to let the JIT compile the hot paths
+     * @param iterations the number of measured iterations
+     */
+    public BenchmarkRunner(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Measures a workload and records its median throughput, in items per second.
+     * @param name the name of the benchmark, unique within a run
+     * @param workload the workload
+     * @return the median throughput, in items per second
+     * @throws Exception if the workload fails
+     */
+    public double measure(String name, Workload workload) throws Exception {
+        for(int i=0; i<this.warmup; i++){
+            workload.run();
+        }
+        double[] throughputs = new double[this.iterations];
+        for(int i=0; i<this.iterations; i++){
+            long start = System.nanoTime();
+            long items = workload.run();
+            long elapsed = Math.max(System.nanoTime()-start, 1L);
+            throughputs[i] = items*1e9/elapsed;
+        }
+        Arrays.sort(throughputs);
+        // the median is less sensitive than the mean to the occasional GC pause or page cache miss
+        double median = throughputs[throughputs.length/2];
+        this.results.put(name, median);
+        System.out.println(String.format("%-40s %14.0f items/s (min %.0f, max %.0f)", name, median, throughputs[0], throughputs[throughputs.length-1]));
+        return median;
+    }
+
+    /**
+     * Writes the results of this run as <code>name,items_per_second</code> lines.
+     * @param file the CSV file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("benchmark,items_per_second");
+            writer.newLine();
+            for(Map.Entry<String, Double> result : this.results.entrySet()){
+                writer.write(result.getKey()+","+String.format(Locale.ROOT, "%.0f", result.getValue()));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Compares the results of this run with a baseline written by {@link #write(Path)}, and prints every benchmark whose throughput
+     * dropped by more than the passed tolerance.
+     * @param baseline the CSV file of the baseline run
+     * @param tolerance the accepted relative drop of throughput, i.e. 0.1 for 10%
+     * @return the number of regressions
+     * @throws IOException if the baseline cannot be read
+     */
+    public int compare(Path baseline, double tolerance) throws IOException {
+        int regressions = 0;
+        List<String> lines = Files.readAllLines(baseline, StandardCharsets.UTF_8);
+        for(String line : lines.subList(1, lines.size())){
+            String[] fields = line.split(",");
+            Double current = this.results.get(fields[0]);
+            if(fields.length!=2 || current==null){
+                continue;
+            }
+            double expected = Double.parseDouble(fields[1]);
+            double change = (current-expected)/expected;
+            boolean regression = change < -tolerance;
+            if(regression){
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ROOT, "%-40s %+7.1f%% %s", fields[0], change*100, regression ? "REGRESSION" : ""));
+        }
+        return regressions;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.bench;
+
+import com.rhad.filescanner.filter.FileNameFilter;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the {@link com.rhad.filescanner.filter.FileNameFilter} with the single regular expression alternation the scanner used
+ * to build out of the <code>file_extentions</code>, on a synthetic set of file names. Both must match the same names.
+ * @author Roberto Fabrizi
+ */
+public final class FileNameFilterBenchmark {
+
+    private static final String[] EXTENTIONS = {"xls", "sql", "*sh", "*ar", "properties", "cfg"};
+    private static final String[] NAME_EXTENTIONS = {"sql", "xls", "jar", "war", "ear", "sh", "ksh", "properties", "cfg", "txt",
+        "log", "class", "java", "xml", "Z", "tar", "dat", "xlsx", "bak", ""};
+    private static final int NAMES = 1000000;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 10;
+
+    /**
+     * Runs the comparison and prints the throughput of both approaches.
+     * @param args unused
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        Run(new BenchmarkRunner(WARMUP, ITERATIONS));
+    }
+
+    /**
+     * Measures both approaches with the passed runner, after checking that they match the same names.
+     * @param runner the runner that collects the results
+     * @throws Exception if the benchmark fails
+     */
+    public static void Run(BenchmarkRunner runner) throws Exception {
+        final String[] names = GenerateNames(NAMES, 42L);
+        final Pattern pattern = LegacyPattern(Arrays.asList(EXTENTIONS));
+        final FileNameFilter filter = new FileNameFilter(Arrays.asList(EXTENTIONS));
+        int patternMatches = MatchPattern(pattern, names);
+        int filterMatches = MatchFilter(filter, names);
+        if(patternMatches!=filterMatches){
+            throw new IllegalStateException("The Pattern matched "+patternMatches+" names, the FileNameFilter "+filterMatches);
+        }
+        runner.measure("matching/pattern", new BenchmarkRunner.Workload() {
+            @Override
+            public long run() {
+                MatchPattern(pattern, names);
+                return names.length;
+            }
+        });
+        runner.measure("matching/filter", new BenchmarkRunner.Workload() {
+            @Override
+            public long run() {
+                MatchFilter(filter, names);
+                return names.length;
+            }
+        });
+    }
+
+    /**
+     * Builds the regular expression alternation the scanner used before the <code>FileNameFilter</code>.
+     * @param extentions the wanted file extentions
+     * @return the equivalent <code>Pattern</code>
+     */
+    static Pattern LegacyPattern(List<String> extentions) {
+        StringBuilder patternToUse = new StringBuilder("");
+        for(String extention : extentions){
+            if(patternToUse.length()>0){
+                patternToUse.append("|");
+            }
+            patternToUse.append(".+\\.").append(extention);
+        }
+        return Pattern.compile(patternToUse.toString());
+    }
+
+    /**
+     * Generates random file names, with a mix of wanted and unwanted extentions, names without extention and names with more dots.
+     * @param count the number of names
+     * @param seed the seed of the random generator, so that runs are comparable
+     * @return the generated names
+     */
+    static String[] GenerateNames(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<count; i++){
+            sb.setLength(0);
+            int length = 3+random.nextInt(20);
+            for(int c=0; c<length; c++){
+                sb.append((char) ('a'+random.nextInt(26)));
+            }
+            if(random.nextInt(10)==0){
+                sb.append(".v").append(random.nextInt(10));
+            }
+            String extention = NAME_EXTENTIONS[random.nextInt(NAME_EXTENTIONS.length)];
+            if(extention.length()>0){
+                sb.append('.').append(extention);
+            }
+            names[i] = sb.toString();
+        }
+        return names;
+    }
+
+    private static int MatchPattern(Pattern pattern, String[] names) {
+        int matches = 0;
+        for(String name : names){
+            if(pattern.matcher(name).matches()){
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private static int MatchFilter(FileNameFilter filter, String[] names) {
+        int matches = 0;
+        for(String name : names){
+            if(filter.matches(name)){
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.bench;
+
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.model.Pacchetti;
+import com.rhad.filescanner.persistence.BatchWriter;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link com.rhad.filescanner.persistence.BatchWriter} that stands in for the database: the rows are stored in a map, after a
+ * simulated round trip per batch and a simulated cost per row, so that the whole pipeline can be measured without Oracle.
+ * @author Roberto Fabrizi
+ */
+public final class InMemoryBatchWriter extends BatchWriter {
+
+    private final Map<BigDecimal, Pacchetti> table = new ConcurrentHashMap<BigDecimal, Pacchetti>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final long roundTripNanos;
+    private final long rowNanos;
+
+    /**
+     * Creates an <code>InMemoryBatchWriter</code>.
+     * @param queueSize the maximum number of rows waiting to be persisted
+     * @param batchSize the maximum number of rows persisted in a single transaction
+     * @param flushInterval the maximum number of milliseconds a queued row waits before its batch is persisted
+     * @param roundTripNanos the simulated cost of a transaction
+     * @param rowNanos the simulated cost of every row of a transaction
+     */
+    public InMemoryBatchWriter(int queueSize, int batchSize, long flushInterval, long roundTripNanos, long rowNanos) {
+        super(queueSize, batchSize, flushInterval);
+        this.roundTripNanos = roundTripNanos;
+        this.rowNanos = rowNanos;
+    }
+
+    @Override
+    protected void persist(List<FileRecord> written, List<FileRecord> removed) {
+        Spin(this.roundTripNanos+this.rowNanos*(written.size()+removed.size()));
+        for(FileRecord record : written){
+            // the entity is built here, as the JPA path does
+            Pacchetti pacchetto = record.toPacchetti();
+            pacchetto.setId(BigDecimal.valueOf(this.sequence.incrementAndGet()));
+            this.table.put(pacchetto.getId(), pacchetto);
+        }
+    }
+
+    /**
+     * Returns the number of rows stored so far.
+     * @return the number of rows stored so far
+     */
+    public int size() {
+        return this.table.size();
+    }
+
+    private static void Spin(long nanos) {
+        // sleeping has a granularity far coarser than a fast round trip, so the simulated latency is spent spinning
+        long end = System.nanoTime()+nanos;
+        while(System.nanoTime()<end){
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.bench;
+
+import com.rhad.filescanner.Recurser;
+import com.rhad.filescanner.ScanContext;
+import com.rhad.filescanner.filter.DirectoryFilter;
+import com.rhad.filescanner.filter.FileNameFilter;
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The benchmark suite of the scanner. It generates the synthetic trees of every {@link TreeGenerator.Shape} and measures, in files
+ * per second, the traversal alone, the file name matching, and the whole scan with the rows persisted through an
+ * {@link InMemoryBatchWriter}. The results are written to <code>results.csv</code> in the working directory and, if a baseline
+ * CSV file is passed, compared with it: the exit code is the number of benchmarks that regressed by more than the tolerance.
+ * <p>
+ * Usage: <code>ScanBenchmark &lt;working directory&gt; [baseline.csv]</code>. The system properties <code>files</code> (files per
+ * tree, 100000 by default) and <code>threads</code> (the number of (virtual) cores by default) change the size of the run, while
+ * <code>tolerance</code> (0.1 by default) is the relative drop of throughput reported as a regression.
+ * @author Roberto Fabrizi
+ */
+public final class ScanBenchmark {
+
+    private static final List<String> EXTENTIONS = Arrays.asList("xls", "sql", "*sh", "*ar", "properties", "cfg");
+    // a fast LAN round trip per transaction and a few microseconds of work per row
+    private static final long ROUND_TRIP_NANOS = 500000L;
+    private static final long ROW_NANOS = 5000L;
+
+    private ScanBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark suite.
+     * @param args the working directory, and optionally the baseline CSV file
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length<1){
+            System.err.println("Usage: ScanBenchmark <working directory> [baseline.csv]");
+            System.exit(-1);
+        }
+        Path workDir = Paths.get(args[0]);
+        int files = Integer.getInteger("files", 100000);
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        BenchmarkRunner runner = new BenchmarkRunner(3, 5);
+        FileNameFilterBenchmark.Run(runner);
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for(TreeGenerator.Shape shape : TreeGenerator.Shape.values()){
+                final Path root = workDir.resolve(shape.name().toLowerCase(Locale.ROOT));
+                final int generated = TreeGenerator.Generate(root, shape, files);
+                final ScanContext traversal = Context(new FileNameFilter(Collections.<String>emptyList()), new PacchettiSink() {
+                    @Override
+                    public void write(FileRecord record) {
+                    }
+
+                    @Override
+                    public void remove(FileRecord record) {
+                    }
+
+                    @Override
+                    public void flush() {
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                });
+                runner.measure("traversal/"+root.getFileName(), new BenchmarkRunner.Workload() {
+                    @Override
+                    public long run() throws Exception {
+                        Scan(pool, root, traversal);
+                        return generated;
+                    }
+                });
+                runner.measure("scan+persist/"+root.getFileName(), new BenchmarkRunner.Workload() {
+                    @Override
+                    public long run() throws Exception {
+                        InMemoryBatchWriter writer = new InMemoryBatchWriter(10000, 500, 1000L, ROUND_TRIP_NANOS, ROW_NANOS);
+                        writer.start();
+                        Scan(pool, root, Context(new FileNameFilter(EXTENTIONS), writer));
+                        writer.close();
+                        // the throughput is measured on the files seen, the persisted rows are the matching ones
+                        return generated;
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        runner.write(workDir.resolve("results.csv"));
+        int regressions = 0;
+        if(args.length>1){
+            regressions = runner.compare(Paths.get(args[1]), Double.parseDouble(System.getProperty("tolerance", "0.1")));
+        }
+        System.exit(regressions);
+    }
+
+    private static ScanContext Context(FileNameFilter fileFilter, PacchettiSink sink) {
+        DirectoryFilter directoryFilter = new DirectoryFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+        return new ScanContext(fileFilter, directoryFilter, sink, false, null);
+    }
+
+    /**
+     * Scans a generated tree the way {@link com.rhad.filescanner.Main} scans a path, one task per package directory.
+     */
+    private static void Scan(ForkJoinPool pool, Path root, ScanContext context) throws Exception {
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for(Path f : stream){
+                if(Files.isDirectory(f)){
+                    tasks.add(pool.submit(new Recurser(f.getFileName().toString(), f, context)));
+                }
+            }
+        }
+        for(Future<?> task : tasks){
+            task.get();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.bench;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * Generates synthetic trees of released packages: a root whose immediate children are the package directories, as in the
+ * <code>paths</code> of the config.properties file. Files are empty, only their names and the shape of the tree matter.
+ * @author Roberto Fabrizi
+ */
+public final class TreeGenerator {
+
+    /**
+     * The shapes of the generated trees.
+     */
+    public enum Shape {
+        /** Many packages, each with many directories a single level deep. */
+        WIDE,
+        /** Few packages, each a long chain of nested directories. */
+        DEEP,
+        /** Few packages where the first one holds 90% of the files, the case a task per package parallelizes worst. */
+        SKEWED
+    }
+
+    private TreeGenerator() {
+    }
+
+    /**
+     * Generates a tree, unless the root already contains one.
+     * @param root the root of the tree, which will contain the package directories
+     * @param shape the shape of the tree
+     * @param files the total number of files
+     * @return the number of files in the tree
+     * @throws IOException if the tree cannot be created
+     */
+    public static int Generate(Path root, Shape shape, int files) throws IOException {
+        Path marker = root.resolve(".generated-"+files);
+        if(Files.exists(marker)){
+            return files;
+        }
+        String[] names = FileNameFilterBenchmark.GenerateNames(files, shape.ordinal());
+        int next = 0;
+        switch(shape){
+            case WIDE:
+                // 50 packages of 20 directories each
+                for(int p=0; p<50; p++){
+                    for(int d=0; d<20; d++){
+                        next = Fill(root.resolve("PKG_"+p).resolve("dir"+d), names, next, Share(p*20+d+1, files, 1000));
+                    }
+                }
+                break;
+            case DEEP:
+                // 4 packages, each a chain of 50 nested directories
+                for(int p=0; p<4; p++){
+                    Path dir = root.resolve("PKG_"+p);
+                    for(int d=0; d<50; d++){
+                        dir = dir.resolve("level"+d);
+                        next = Fill(dir, names, next, Share(p*50+d+1, files, 200));
+                    }
+                }
+                break;
+            case SKEWED:
+                // 20 packages, the first one has 90% of the files spread in 8x8 nested directories
+                int big = files*9/10;
+                for(int a=0; a<8; a++){
+                    for(int b=0; b<8; b++){
+                        next = Fill(root.resolve("PKG_0").resolve("dir"+a).resolve("dir"+b), names, next, Share(a*8+b+1, big, 64));
+                    }
+                }
+                for(int p=1; p<20; p++){
+                    next = Fill(root.resolve("PKG_"+p), names, next, big+Share(p, files-big, 19));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape "+shape);
+        }
+        Files.createFile(marker);
+        return next;
+    }
+
+    private static int Share(int part, int total, int parts) {
+        return (int) ((long) part*total/parts);
+    }
+
+    private static int Fill(Path dir, String[] names, int from, int to) throws IOException {
+        Files.createDirectories(dir);
+        for(int i=from; i<to; i++){
+            // names are random, the index keeps them unique within the directory
+            Files.createFile(dir.resolve(i+"_"+names[i]));
+        }
+        return to;
+    }
+}
@@ -0,0 +1,56 @@
+#!/bin/bash
+
+dir=`dirname $0`
+FILE_PATH=`cd  $dir;pwd`
+MON_HOME=${FILE_PATH%/*}
+LIB_PATH=${MON_HOME}/lib
+SRC_PATH=${MON_HOME}/src
+BENCH_PATH=${MON_HOME}/bench
+CLASSES_PATH=${BENCH_PATH}/classes
+
+WORK_PATH=$1
+BASELINE=$2
+
+print_usage()
+{
+	echo "The working folder, where the synthetic trees are generated and results.csv is written, must be specified as the first command line input of this shell"
+	echo "A results.csv of a previous run can be specified as the second command line input of this shell, to compare against it"
+}
+
+if [ $# -lt 1 ]; then
+	echo "No input parameters found"
+	print_usage
+	exit
+elif [ $# -ge 3 ]; then
+	echo "Three or more input parameters found"
+	print_usage
+	exit
+fi
+
+if [ ${JAVA_HOME} ] ; then
+	echo "The variable JAVA_HOME is defined"
+else
+	echo "The variable JAVA_HOME is not defined"
+	exit
+fi
+
+JAVA_BIN=${JAVA_HOME}/bin
+
+classpath()
+{
+        CLASSPATH=${CLASSES_PATH}
+        for i in `ls $LIB_PATH/*.jar`; do
+                CLASSPATH=$CLASSPATH:$i
+        done
+        export CLASSPATH
+}
+
+classpath
+
+# the benchmarks measure the current sources, not the jar in lib
+mkdir -p ${CLASSES_PATH} ${WORK_PATH}
+${JAVA_BIN}/javac -nowarn -d ${CLASSES_PATH} -cp ${CLASSPATH} `find ${SRC_PATH} ${BENCH_PATH} -name "*.java"` || exit
+
+JVM_ARGS="-Xmx1024M -Dlog4j.configuration=file:${MON_HOME}/config/log4j.properties -Dlog_path=${MON_HOME}/log"
+
+${JAVA_BIN}/java -cp ${CLASSPATH} ${JVM_ARGS} ${BENCH_OPTS} com.rhad.filescanner.bench.ScanBenchmark ${WORK_PATH} ${BASELINE}
@@ -0,0 +1,42 @@
+#!/bin/bash
+
+dir=`dirname $0`
+FILE_PATH=`cd  $dir;pwd`
+MON_HOME=${FILE_PATH%/*}
+LIB_PATH=${MON_HOME}/lib
+CONFIG_PATH=${MON_HOME}/config
+
+print_usage()
+{
+	echo "The path index written by the scan (the path_index property of config.properties) must be specified as the first command line input of this shell, followed by the query:"
+	echo "  package <name> | prefix <path> | name <file name> | all, optionally followed by since <yyyy-MM-dd>, until <yyyy-MM-dd> and limit <n>"
+}
+
+if [ $# -lt 2 ]; then
+	echo "Not enough input parameters found"
+	print_usage
+	exit
+fi
+
+if [ ${JAVA_HOME} ] ; then
+	echo "The variable JAVA_HOME is defined" >&2
+else
+	echo "The variable JAVA_HOME is not defined"
+	exit
+fi
+
+JAVA_BIN=${JAVA_HOME}/bin
+
+classpath()
+{
+        CLASSPATH=${CONFIG_PATH}
+        for i in `ls $LIB_PATH/*.jar`; do
+                CLASSPATH=$CLASSPATH:$i
+        done
+        export CLASSPATH
+}
+
+classpath
+
+# the index is memory-mapped, it doesn't need to fit in the heap
+${JAVA_BIN}/java -cp ${CLASSPATH} -Xmx256M com.rhad.filescanner.lookup.PathQuery "$@"
@@ -31,4 +31,5 @@ JVM_ARGS="-XX:+UseParallelGC -XX:+AggressiveOpts -XX:+UseFastAccessorMethods -Xm
 
 classpath
 
-${JAVA_BIN}/java -cp ${CLASSPATH} ${JVM_ARGS} com.rhad.filescanner.Main >> ${LOG_PATH}/out_$DATA_LOG.log 2>&1
+# SCANNER_OPTS can override any key of config.properties with -Dfilescanner.<key>=<value>
+${JAVA_BIN}/java -cp ${CLASSPATH} ${JVM_ARGS} ${SCANNER_OPTS} com.rhad.filescanner.Main >> ${LOG_PATH}/out_$DATA_LOG.log 2>&1
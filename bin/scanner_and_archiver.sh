@@ -25,5 +25,8 @@ elif [ $# -ge 3 ]; then
 	exit
 fi
 
+# the scanner archives every package while it scans it, and deletes the sources once the archive is verified.
+# The files directly under the paths, and the directories the directory filter excludes, are left where they are
+SCAN_PATHS=`echo ${SCAN_PATHS} | tr ' ' ','`
+export SCANNER_OPTS="${SCANNER_OPTS} -Dfilescanner.archive_path=${ARCH_PATH} -Dfilescanner.archive_delete_sources=true -Dfilescanner.paths=${SCAN_PATHS}"
 $BIN_PATH/scanner.sh
-$BIN_PATH/archiver.sh ${ARCH_PATH} ${SCAN_PATHS}
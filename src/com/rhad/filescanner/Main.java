@@ -9,13 +9,33 @@
  */
 package com.rhad.filescanner;
 
+import com.rhad.filescanner.archive.Archiver;
+import com.rhad.filescanner.filter.DirectoryFilter;
+import com.rhad.filescanner.filter.FileNameFilter;
+import com.rhad.filescanner.hash.ContentHasher;
+import com.rhad.filescanner.hash.DigestCache;
+import com.rhad.filescanner.hash.HashingSink;
+import com.rhad.filescanner.index.ScanIndex;
+import com.rhad.filescanner.index.ScanJournal;
+import com.rhad.filescanner.introspect.ArchiveIntrospector;
+import com.rhad.filescanner.lookup.PathIndexSink;
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.persistence.BatchWriter;
 import com.rhad.filescanner.persistence.EntityManagerFactoryUtil;
+import com.rhad.filescanner.persistence.RemovalSweeper;
+import com.rhad.filescanner.persistence.UpsertWriter;
 import com.rhad.filescanner.config.ConfigProperties;
+import com.rhad.filescanner.shard.ShardCoordinator;
+import com.rhad.filescanner.sink.*;
+import com.rhad.filescanner.summary.PackageSummarizer;
+import com.rhad.filescanner.tuning.ConcurrencyController;
+import com.rhad.filescanner.wal.WalSink;
+import com.rhad.filescanner.wal.WriteAheadLog;
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 
 /**
@@ -25,58 +45,184 @@ import org.apache.log4j.Logger;
 public class Main {
 
     private static final Logger LOGGER = Logger.getLogger(Main.class);
+    // the time a terminated watcher gets to emit the last changes, close the sink and save the index
+    private static final long SHUTDOWN_TIMEOUT = 60000L;
     
     /**
-     * Starts the scan of the paths of interest.
+     * Starts the scan of the paths of interest. With the <code>--resume</code> argument, the scan journaled in the
+     * <code>checkpoint_file</code> by an interrupted run is continued rather than started over.
      * @param args the command line arguments
      * @throws InterruptedException 
      */
     public static void main(String[] args) throws InterruptedException {
-        ExecutorService threadPool = null;
+        RootScheduler scheduler = null;
+        PacchettiSink sink = null;
         try {
             ConfigProperties configProperties = LoadConfigurationParameters();
             LOGGER.info("ConfigProperties loaded");
             LOGGER.info(configProperties);
-            EntityManagerFactoryUtil.CreateEntityManagerFactoryUtil();
-            LOGGER.info("EntityManagerFactoryUtil loaded");
-            threadPool = Executors.newFixedThreadPool(configProperties.getThreads());
-            LOGGER.info("ExecutorService created using "+configProperties.getThreads()+" concurrent threads");
-            Collection<Future<?>> tasks = new LinkedList<Future<?>>();
+            boolean resume = Arrays.asList(args).contains("--resume");
+            if(resume){
+                CheckResume(configProperties);
+            }
+            ScanMetrics.Register();
+            if(configProperties.getMetricsInterval()>0){
+                ScanMetrics.GetInstance().startReporting(configProperties.getMetricsInterval());
+            }
+            PacchettiSink base = CreateSink(configProperties);
+            LOGGER.info(base.getClass().getSimpleName()+" created");
+            BatchWriter writer = base instanceof BatchWriter ? (BatchWriter) base : null;
+            if(writer!=null && configProperties.getWalDir()!=null){
+                // the writer retries until the database is back, while the scan goes on appending to the log
+                writer.setRetrying(true);
+                WriteAheadLog log = WriteAheadLog.Open(Paths.get(configProperties.getWalDir()), configProperties.getWalSegmentSize()*1024L*1024L,
+                        WriteAheadLog.Fsync.valueOf(configProperties.getWalFsync().toUpperCase(Locale.ROOT)));
+                base = new WalSink(log, writer, configProperties.getFlushInterval());
+            }
+            sink = base;
+            if(configProperties.isHash()){
+                DigestCache cache = null;
+                if(configProperties.getHashCache()!=null){
+                    // in incremental scans unchanged files aren't emitted, their digests must survive this run
+                    cache = DigestCache.Load(Paths.get(configProperties.getHashCache()), configProperties.getHashAlgorithm(), configProperties.isIncremental());
+                }
+                sink = new HashingSink(base, new ContentHasher(configProperties.getHashAlgorithm()), cache, configProperties.getHashThreads(), writer);
+            }
+            if(configProperties.isIntrospect()){
+                // the entries of the archives go to the database on their own, like the summaries
+                sink = new ArchiveIntrospector(sink, writer!=null, configProperties.getIntrospectThreads(), configProperties.getBatchSize());
+            }
+            PathIndexSink pathIndex = null;
+            if(configProperties.getPathIndex()!=null){
+                // saved once every package has been scanned
+                pathIndex = new PathIndexSink(sink, Paths.get(configProperties.getPathIndex()));
+                sink = pathIndex;
+            }
+            VirtualThreadScanner virtualScanner = null;
+            if(configProperties.getExecution().equals("virtual")){
+                // a thread per directory, so that the latency of the file server is overlapped rather than waited for
+                int fallbackThreads = configProperties.getIoConcurrency()>0 ? configProperties.getIoConcurrency() : configProperties.getThreads();
+                virtualScanner = new VirtualThreadScanner(fallbackThreads);
+            }
             String[] pathsToParse = configProperties.getPathArray();
             if(pathsToParse!=null && pathsToParse.length>0){
-                List<String> fileExtentionToMatchList = new LinkedList<String>();
-                for(String fileExtentionToMatch : configProperties.getWantedFileExtentions()){
-                    fileExtentionToMatchList.add(".+\\."+fileExtentionToMatch);
-                }
-                StringBuilder patternToUse = new StringBuilder("");
-                for(int i=0; i<fileExtentionToMatchList.size();i++){
-                    if(i==fileExtentionToMatchList.size()-1){
-                        patternToUse.append(fileExtentionToMatchList.get(i));
+                FileNameFilter fileFilter = new FileNameFilter(configProperties.getWantedFileExtentions());
+                DirectoryFilter directoryFilter = new DirectoryFilter(configProperties.getIncludedDirs(), configProperties.getExcludedDirs());
+                ScanIndex index = null;
+                if(configProperties.isIncremental()){
+                    // the index is only valid for the settings that decide which files are recorded in it
+                    long signature = ScanIndex.Hash(fileFilter+"|"+directoryFilter+"|"+configProperties.isFollowLinks());
+                    index = ScanIndex.Load(Paths.get(configProperties.getIndexFile()), signature);
+                }
+                ScanContext context = new ScanContext(fileFilter, directoryFilter, sink, configProperties.isFollowLinks(), index, configProperties.getIoConcurrency());
+                List<Path> roots = new ArrayList<Path>();
+                for(int i=0; i<pathsToParse.length; i++){
+                    Path root = Paths.get(pathsToParse[i].trim());
+                    if (Files.isDirectory(root)) {
+                        roots.add(root);
                     } else {
-                        patternToUse.append(fileExtentionToMatchList.get(i)).append("|");
+                        LOGGER.warn("Not a directory: " + root);
                     }
                 }
-                Pattern pattern = null;
-                if(!patternToUse.toString().equalsIgnoreCase("")){
-                    pattern = Pattern.compile(patternToUse.toString());
+                ScanJournal journal = null;
+                if(configProperties.getCheckpointFile()!=null){
+                    // a journal can only be resumed by a scan of the same paths with the same settings
+                    long signature = ScanIndex.Hash(fileFilter+"|"+directoryFilter+"|"+configProperties.isFollowLinks()+"|"+roots);
+                    journal = ScanJournal.Open(Paths.get(configProperties.getCheckpointFile()), signature, resume);
+                    journal.startCheckpoints(sink, writer, configProperties.getCheckpointInterval());
+                    context = context.withJournal(journal);
                 }
-                for(int i=0; i<pathsToParse.length; i++){
-                    File root = new File(pathsToParse[i]);
-                    if (root.isDirectory()) {
-                        File[] fileArray = root.listFiles();
-                        for(File f : fileArray){
-                            if(f.isDirectory()){
-                                Runnable recurser = new Recurser(f.getName(), f, pattern, configProperties.isDebug());
-                                Future<?> future = threadPool.submit(recurser);
-                                tasks.add(future);
-                            }
-                        }
-                        for (Future<?> f : tasks) {
-                            //this method blocks until the async computation is finished
-                            f.get(); 
-                        }
+                Archiver archiver = null;
+                if(configProperties.getArchivePath()!=null){
+                    // the packages are archived while they are scanned, so that every file is read once
+                    Path archiveDir = Files.createDirectories(Paths.get(configProperties.getArchivePath()));
+                    archiver = new Archiver(archiveDir, configProperties.getArchiveCompression(), configProperties.getArchiveLevel(), configProperties.isArchiveDeleteSources(), directoryFilter, sink, writer);
+                    context = context.withArchiver(archiver);
+                }
+                PackageSummarizer summarizer = null;
+                if(configProperties.isSummary()){
+                    // the aggregates are written to PACCHETTI_SUMMARY only when the files go to the database
+                    summarizer = new PackageSummarizer(writer!=null);
+                    context = context.withSummarizer(summarizer);
+                }
+                RemovalSweeper sweeper = null;
+                if(writer instanceof UpsertWriter && index==null){
+                    // full scans emit no removals, the rows a package's scan didn't stamp are marked instead
+                    sweeper = new RemovalSweeper(sink, (UpsertWriter) writer);
+                    context = context.withSweeper(sweeper);
+                }
+                ScanWatcher watcher = null;
+                if(configProperties.isWatch()){
+                    // every directory is watched by the first scan before it is listed, so that no change is missed. Created last, so
+                    // that the changes are scanned with everything the first scan has, and the summaries follow them
+                    watcher = new ScanWatcher(context, roots, configProperties.getThreads(), configProperties.getWatchDebounce(), configProperties.getWatchPollInterval(), writer, summarizer);
+                    context = watcher.getContext();
+                    StopOnShutdown(watcher);
+                }
+                ShardCoordinator coordinator = null;
+                if(configProperties.isShard()){
+                    coordinator = new ShardCoordinator(configProperties.getShardRun(), configProperties.getShardNode(), configProperties.getShardLease(), configProperties.getShardLeases(), sink, writer);
+                }
+                // all the paths are scanned at the same time, each device with its own threads or permits
+                scheduler = new RootScheduler(context, configProperties.getThreads(), configProperties.getDeviceConcurrency(), virtualScanner, archiver, summarizer, sweeper, coordinator);
+                ConcurrencyController controller = null;
+                if(configProperties.isAdaptive()){
+                    // io_concurrency and writer_threads become the upper bounds of what the scan can grow to
+                    int startIo = Math.min(configProperties.getIoConcurrency(), Math.max(configProperties.getIoConcurrencyMin(), configProperties.getThreads()));
+                    controller = new ConcurrencyController(context.getIoPermits(), configProperties.getIoConcurrencyMin(), configProperties.getIoConcurrency(), startIo, writer, configProperties.getAdaptiveInterval());
+                    controller.start();
+                }
+                if(coordinator!=null){
+                    // only the packages leased by this node are submitted, until no package of the run is left
+                    coordinator.run(scheduler, roots);
+                } else {
+                    for(Path root : roots){
+                        scheduler.submit(root);
+                    }
+                }
+                // the scan started while the EntityManagerFactory was being created, the rows waiting in the queue of the writer.
+                // If it could not be created the scan stops here
+                EntityManagerFactoryUtil.AwaitEntityManagerFactory();
+                //this method blocks until the async computation is finished
+                int failedPackages = scheduler.await();
+                if(controller!=null){
+                    controller.stop();
+                }
+                if(failedPackages>0){
+                    LOGGER.error(failedPackages+" packages could not be scanned");
+                }
+                if(journal!=null){
+                    // nothing is left to resume once every directory has been scanned
+                    journal.close(sink, writer, failedPackages==0 && ScanMetrics.GetInstance().getErrors()==0);
+                }
+                if(pathIndex!=null){
+                    // an index missing some packages would answer for the whole scan
+                    if(failedPackages==0 && ScanMetrics.GetInstance().getErrors()==0){
+                        pathIndex.save();
                     } else {
-                        LOGGER.warn("Not a directory: " + root);
+                        LOGGER.error("Some packages or directories could not be scanned, the path index is not updated");
+                    }
+                }
+                if(archiver!=null){
+                    LOGGER.info(archiver.getArchived()+" packages archived, "+archiver.getFailed()+" archives failed");
+                }
+                if(summarizer!=null){
+                    LOGGER.info(summarizer.getSummarized()+" packages summarized, "+summarizer.getDiscarded()+" summaries discarded");
+                }
+                if(sweeper!=null){
+                    LOGGER.info(sweeper.getSwept()+" packages swept of their removed files, "+sweeper.getKept()+" not completely scanned");
+                }
+                if(watcher!=null){
+                    LOGGER.info("First scan finished, watching for changes");
+                    // runs until the process is terminated, saving the index as it goes
+                    watcher.run();
+                } else if(index!=null){
+                    // the index must not get ahead of the sink
+                    sink.close();
+                    if((writer==null || writer.getFailed()==0) && failedPackages==0 && ScanMetrics.GetInstance().getErrors()==0){
+                        index.save();
+                    } else {
+                        LOGGER.error("Some packages, directories or rows could not be scanned or persisted, the scan index is not updated");
                     }
                 }
             } else {
@@ -85,27 +231,117 @@ public class Main {
         } catch (Exception e){
             LOGGER.fatal("A fatal exception has occurred", e);
         } finally {
-            // to avoid issues with c3p0 connection pooling wait a bit before shutting down
-            Thread.sleep(10000L);
-            if(threadPool!=null){
-                threadPool.shutdown();
-                LOGGER.info("No more threads are accepted, waiting 10 seconds before forcibly shutting the thread pool down...");
-                if (!threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                    // Cancel currently executing tasks
-                    threadPool.shutdownNow();
-                }
+            // every stage is drained and stopped in order, each returning once it is done, rather than given a fixed time
+            if(scheduler!=null){
+                // the scans have already finished, unless a fatal exception stopped the main thread
+                LOGGER.info("No more threads are accepted, waiting at most 10 seconds before forcibly shutting the thread pools down...");
+                scheduler.shutdown(10L);
                 LOGGER.info("ExecutorService shutdown finished");
             }   
+            if(sink!=null){
+                // persist whatever is still queued before closing the EntityManagerFactory
+                try {
+                    sink.close();
+                } catch(IOException ioe) {
+                    LOGGER.error("Could not close the sink", ioe);
+                }
+            }
+            ScanMetrics.GetInstance().stopReporting();
+            // closes the c3p0 pool as well, once the writers no longer use it
             EntityManagerFactoryUtil.Close();
-            try {
-            // it is fine to hold the lock for 5 seconds here as this is the shutdown method
-            // reduced even more, shutdown hook should not take long
-            Thread.sleep(2000L);
-            } catch(InterruptedException ie) {}
             LOGGER.info("EntityManagerFactory shut down");        
         }       
     }
     
+    /**
+     * Checks that a scan can be resumed with the passed configuration: the scan must be journaled, and the rows emitted again
+     * after the last checkpoint must not be duplicated.
+     * @param configProperties the configuration of the application
+     * @throws IllegalArgumentException if the scan cannot be resumed
+     */
+    private static void CheckResume(ConfigProperties configProperties) {
+        if(configProperties.getCheckpointFile()==null){
+            throw new IllegalArgumentException("--resume requires the checkpoint_file property.");
+        }
+        if(configProperties.isDebug()){
+            return;
+        }
+        if(!configProperties.getSink().equals("database")){
+            throw new IllegalArgumentException("--resume is not supported by the "+configProperties.getSink()+" sink, whose file is replaced at every run.");
+        }
+        if(!configProperties.getPersistenceMode().equals("upsert")){
+            throw new IllegalArgumentException("--resume requires persistence_mode=upsert, insert would duplicate the rows emitted after the last checkpoint.");
+        }
+    }
+
+    /**
+     * Stops the passed watcher when the process is terminated, and gives the main thread the time to emit the last changes and
+     * save the index.
+     * @param watcher the watcher to stop
+     */
+    private static void StopOnShutdown(final ScanWatcher watcher) {
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread("ScanWatcher-shutdown") {
+            @Override
+            public void run() {
+                watcher.stop();
+                try {
+                    mainThread.join(SHUTDOWN_TIMEOUT);
+                } catch(InterruptedException ie) {
+                    LOGGER.warn("Interrupted while waiting for the scanner to stop");
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the sink the scanned files are emitted to, according to the <code>debug</code>, <code>sink</code>, <code>sink_file</code> and <code>persistence_mode</code> parameters.
+     * The {@link javax.persistence.EntityManagerFactory} is only created when the files are persisted to the database, in the
+     * background so that the scan doesn't wait for it, and the <code>schema_mode</code> parameter and the <code>hibernate.*</code>
+     * system properties override the ones of the <code>persistence.xml</code>.
+     * @param configProperties the configuration of the application
+     * @return the sink the scanned files are emitted to
+     * @throws IOException if the sink file cannot be created
+     */
+    private static PacchettiSink CreateSink(ConfigProperties configProperties) throws IOException {
+        if(configProperties.isDebug()){
+            return new LoggingSink();
+        }
+        switch(configProperties.getSink()){
+            case "csv":
+                return new CsvSink(Paths.get(configProperties.getSinkFile()));
+            case "jsonl":
+                return new JsonLinesSink(Paths.get(configProperties.getSinkFile()));
+            case "binary":
+                return new BinarySink(Paths.get(configProperties.getSinkFile()));
+            default:
+                Map<String, String> persistenceProperties = new HashMap<String, String>();
+                // let hibernate group the inserts of a batch in as few JDBC round trips as possible
+                persistenceProperties.put("hibernate.jdbc.batch_size", String.valueOf(configProperties.getBatchSize()));
+                if(configProperties.getSchemaMode()!=null){
+                    // hibernate ignores the values it doesn't know, "none" included
+                    persistenceProperties.put("hibernate.hbm2ddl.auto", configProperties.getSchemaMode());
+                }
+                // i.e. -Dhibernate.connection.url to point a test node to another database than the one of the persistence.xml
+                for(String name : System.getProperties().stringPropertyNames()){
+                    if(name.startsWith("hibernate.")){
+                        persistenceProperties.put(name, System.getProperty(name));
+                    }
+                }
+                // the rows wait in the queue of the writer until the EntityManagerFactory is created
+                EntityManagerFactoryUtil.StartEntityManagerFactoryUtil(persistenceProperties);
+                LOGGER.info("EntityManagerFactory bootstrap started");
+                BatchWriter writer;
+                if(configProperties.getPersistenceMode().equals("upsert")){
+                    writer = new UpsertWriter(configProperties.getQueueSize(), configProperties.getBatchSize(), configProperties.getFlushInterval(), configProperties.getWriterThreads());
+                } else {
+                    writer = new BatchWriter(configProperties.getQueueSize(), configProperties.getBatchSize(), configProperties.getFlushInterval(), configProperties.getWriterThreads());
+                }
+                writer.start();
+                return writer;
+        }
+    }
+
     /**
      * Loads the content of the classpath-exported <code>config.properties</code> file in a {@link com.rhad.filescanner.ConfigProperties} object and returns it. 
      * If the process fails, the application terminates.
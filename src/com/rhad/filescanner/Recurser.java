@@ -9,119 +9,496 @@
  */
 package com.rhad.filescanner;
 
-import com.rhad.filescanner.model.Pacchetti;
-import com.rhad.filescanner.persistence.EntityManagerFactoryUtil;
-import java.io.File;
-import java.util.Date;
-import java.util.regex.*;
-import javax.persistence.*;
+import com.rhad.filescanner.archive.Archiver;
+import com.rhad.filescanner.index.DirectoryState;
+import com.rhad.filescanner.index.ScanIndex;
+import com.rhad.filescanner.index.ScanJournal;
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.summary.PackageStatistics;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.RecursiveAction;
 import org.apache.log4j.Logger;
-import org.hibernate.HibernateException;
 
 /**
  * This class recursively traverses all the files contained in the passed root folder, creating new 
- * {@link com.rhad.filescanner.model.Pacchetti}s every time a file is found, and prints / merges them to the database.
+ * {@link com.rhad.filescanner.model.FileRecord}s every time a file is found, and hands them over to a {@link com.rhad.filescanner.sink.PacchettiSink}.
+ * Every directory is a {@link java.util.concurrent.RecursiveAction} of its own, so that a {@link java.util.concurrent.ForkJoinPool}
+ * can spread a single big package over all of its threads. Directories are read with a {@link java.nio.file.DirectoryStream}
+ * and every entry costs a single attributes read. In incremental scans only the files that are new or changed since the previous
+ * scan are handed over, the ones that no longer exist are removed, and directories whose entries didn't change aren't listed at all.
+ * <p>
+ * Outside of a <code>ForkJoinPool</code>, {@link #scan(java.util.List)} scans the directory alone, leaving its subdirectories to
+ * the caller: this is how the {@link com.rhad.filescanner.VirtualThreadScanner} runs every directory on a thread of its own.
+ * <p>
+ * When the packages are archived, every entry listed is also added to the archive of its package, whether it matches the file
+ * name filter or not. When the scanner watches the tree, every directory is watched before it is listed, so that no later change
+ * is missed. When the scan is journaled, every directory whose whole subtree has been scanned without errors is recorded in the
+ * {@link com.rhad.filescanner.index.ScanJournal}, and the subtrees it already holds are skipped. When the packages are summarized,
+ * every matching file, changed or not, is added to the {@link com.rhad.filescanner.summary.PackageStatistics} of its package.
  * @author Roberto Fabrizi
  */
-public final class Recurser implements Runnable {
+public final class Recurser extends RecursiveAction {
     
+    private static final long serialVersionUID = 1L;
     private final String root;
-    private final File dir;
-    private final boolean debug;
-    private final Pattern pattern;
+    private final Path dir;
+    private final Path packageDir;
+    // the path of dir inside its package, shared by all the records of its files
+    private final String directory;
+    private final ScanContext context;
+    private final BasicFileAttributes attributes;
+    private Ancestor ancestors;
+    // whether this directory was listed without errors, and whether its whole subtree was
+    private volatile boolean listed = false;
+    private volatile boolean complete = false;
     private static final Logger LOGGER = Logger.getLogger(Recurser.class);
+    private static final ScanMetrics METRICS = ScanMetrics.GetInstance();
         
     /**
      * Creates a <code>Recurser</code>.
-     * @param root the name of the starting root folder
+     * @param root the name of the starting root folder, which every file found under <code>dir</code> is attributed to
      * @param dir the dir for the traversal
-     * @param pattern the Pattern to use
-     * @param debug if the <code>Recurser</code> will merge the {@link com.rhad.filescanner.model.Pacchetti}s or just print them out for debug purposed
+     * @param context the settings and collaborators shared by the whole scan
      */
-    public Recurser(String root, File dir, Pattern pattern, boolean debug){
+    public Recurser(String root, Path dir, ScanContext context){
+        this(root, dir, dir, context);
+    }
+
+    /**
+     * Creates a <code>Recurser</code> of a directory inside a package, whose files are identified by their path from the package directory.
+     * @param root the name of the starting root folder, which every file found under <code>dir</code> is attributed to
+     * @param packageDir the package directory, <code>dir</code> or one of its ancestors
+     * @param dir the dir for the traversal
+     * @param context the settings and collaborators shared by the whole scan
+     */
+    public Recurser(String root, Path packageDir, Path dir, ScanContext context){
+        // interned, so that all the records of a package share the same name, whoever started its scan
+        this(root.intern(), dir, packageDir, Directory(packageDir, dir), context, null, null);
+    }
+
+    private Recurser(String root, Path dir, Path packageDir, String directory, ScanContext context, BasicFileAttributes attributes, Ancestor ancestors){
         this.root=root;
         this.dir=dir;
-        this.pattern=pattern;
-        this.debug=debug;
-    }
-
-    private void listRecursively(String root, File fdir) {
-        // if it's a file it's a leaf, create a Pacchetti with the root name and current file
-        if(fdir.isFile()){
-            if(this.pattern==null || (this.pattern!=null && this.pattern.matcher(fdir.getName()).matches())){
-                Pacchetti pacchetto = new Pacchetti();
-                pacchetto.setPackageName(root);
-                pacchetto.setFileName(fdir.getName());
-                pacchetto.setFileSize(fdir.length());
-                pacchetto.setLastModified(new Date(fdir.lastModified()));
-                //System.out.println("About to merge the Pacchetti: "+pacchetto);
-                if(this.debug==false){
-                    LOGGER.trace("About to merge the Pacchetti: "+pacchetto);
-                    this.merge(pacchetto);
-                }
+        this.packageDir=packageDir;
+        this.directory=directory;
+        this.context=context;
+        this.attributes=attributes;
+        this.ancestors=ancestors;
+    }
+
+    @Override
+    protected void compute() {
+        List<Recurser> subdirectories = new ArrayList<Recurser>();
+        if(this.scan(subdirectories)){
+            // fork the subdirectories, so that idle threads can steal them at any depth of the tree
+            invokeAll(subdirectories);
+            boolean subdirectoriesComplete = true;
+            for(Recurser subdirectory : subdirectories){
+                subdirectoriesComplete &= subdirectory.isComplete();
+            }
+            this.subtreeScanned(subdirectoriesComplete);
+        }
+        LOGGER.trace("Ended "+this.dir);
+    }
+
+    /**
+     * Scans this directory, without descending into its subdirectories.
+     * @param subdirectories the list the <code>Recurser</code>s of the subdirectories to scan are added to
+     * @return false if the scan was interrupted, and the subdirectories must not be scanned
+     */
+    boolean scan(List<Recurser> subdirectories) {
+        LOGGER.trace("Started "+this.dir);
+        ScanJournal journal = this.context.getJournal();
+        if(journal!=null && journal.isCompleted(this.dir)){
+            // emitted by the interrupted scan this one resumes
+            LOGGER.trace("Already scanned "+this.dir);
+            if(this.context.getIndex()!=null){
+                this.context.getIndex().keep(this.dir);
             }
+            this.skip(this.dir+" was scanned by the resumed scan");
+            this.listed = true;
+            return true;
         }
-        // if it's a folder it's not a leaf, keep traversing the file system
-        if (fdir.isDirectory()) {
-            File[] fileArray = fdir.listFiles();
-            if (fileArray!=null && fileArray.length>0){
-                // Go over each file/subdirectory.
-                for (File f : fileArray) {
-                    if (f!=null)
-                        listRecursively(root, f);
+        try {
+            BasicFileAttributes dirAttributes = this.attributes;
+            if(dirAttributes==null){
+                // the starting folder of the traversal, its attributes weren't read while listing its parent
+                this.acquire();
+                try {
+                    dirAttributes = Files.readAttributes(this.dir, BasicFileAttributes.class);
+                } finally {
+                    this.release();
+                }
+                if(this.context.getArchiver()!=null){
+                    this.context.getArchiver().addDirectory(this.packageDir, this.dir, dirAttributes);
                 }
             }
+            if(this.context.getWatcher()!=null){
+                this.context.getWatcher().watch(this.dir);
+            }
+            if(this.context.isFollowLinks() && this.ancestors==null){
+                // the first link of the chain used to detect loops
+                this.ancestors = new Ancestor(this.fileKey(this.dir, dirAttributes), null);
+            }
+            ScanIndex index = this.context.getIndex();
+            DirectoryState previous = index!=null ? index.getPrevious(this.dir) : null;
+            long lastModified = dirAttributes.lastModifiedTime().toMillis();
+            if(previous!=null && previous.getLastModified()==lastModified){
+                // no entry was added, removed or renamed since the previous scan, only the subdirectories need to be visited
+                this.revisit(previous, subdirectories);
+                index.put(this.dir, previous);
+                METRICS.directoryUnchanged();
+            } else {
+                this.list(previous, lastModified, subdirectories);
+            }
+            this.listed = true;
+        } catch(IOException | DirectoryIteratorException e) {
+            LOGGER.warn("Could not list the content of "+this.dir, e);
+            METRICS.error();
+            if(this.context.getIndex()!=null){
+                // the next scan compares the subtree with what the previous one found, rather than taking every file as new
+                this.context.getIndex().keep(this.dir);
+            }
+            this.skip("could not list "+this.dir+": "+e);
+        } catch(InterruptedException ie) {
+            LOGGER.warn("Interrupted while scanning "+this.dir);
+            this.skip("interrupted while scanning "+this.dir);
+            Thread.currentThread().interrupt();
+            return false;
         }
+        return true;
     }
 
-    private void merge(Pacchetti pacchetto) {
-        LOGGER.trace("EntityManager.merge() called");
-        EntityManager entityManager = null;
-        // a transaction object
-        EntityTransaction tx = null;
-        try {
-            // get an EntityManager from the EntityManagerFactory
-            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
-            // get a transaction from the EntityManager
-            tx = entityManager.getTransaction();
-            LOGGER.trace("EntityManager.getTransaction() ended");
-            // open a transaction
-            tx.begin();
-            LOGGER.trace("EntityTransaction opened");
-            entityManager.merge(pacchetto);
-            // commit
-            tx.commit();
-            LOGGER.trace("EntityTransaction.commit() ended successfully");
-        } catch(HibernateException he) {
-            // grab this superclass runtime exception, print the object that caused it
-            LOGGER.error("The Pacchetti that caused the exception is:");
-            LOGGER.error(pacchetto);
-            // and rethrow it
-            throw he;
-        } finally {
-            if (tx != null && tx.isActive()) {
-                LOGGER.trace("Tx is not null and it is active");
+    /**
+     * Lists the directory, emitting the files that are new or changed since the previous scan and removing the ones that no longer exist.
+     */
+    private void list(DirectoryState previous, long lastModified, List<Recurser> subdirectories) throws IOException, InterruptedException {
+        ScanIndex index = this.context.getIndex();
+        DirectoryState.Builder state = index!=null ? new DirectoryState.Builder() : null;
+        Map<String, Integer> previousFiles = previous!=null ? previous.indexFiles() : null;
+        Set<String> subdirectoryNames = new HashSet<String>();
+        PackageStatistics statistics = this.statistics();
+        // a single permit covers the listing and the attributes reads of all the entries
+        this.acquire();
+        long started = System.nanoTime();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir)) {
+            // Go over each file/subdirectory.
+            for (Path entry : stream) {
+                BasicFileAttributes attrs;
                 try {
-                    // Second try catch as the rollback could fail as well
-                    tx.rollback();
-                    LOGGER.trace("Tx rolled back");
-                } catch (Exception e1) {
-                    LOGGER.error("Could not rollback the current transaction",e1);
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, this.context.getLinkOptions());
+                } catch(IOException ioe) {
+                    // i.e. a broken link, or a file deleted while scanning
+                    LOGGER.debug("Could not read the attributes of "+entry+": "+ioe);
+                    this.skip("could not read the attributes of "+entry+": "+ioe);
+                    continue;
+                }
+                Archiver archiver = this.context.getArchiver();
+                if(attrs.isRegularFile()){
+                    if(archiver!=null){
+                        archiver.addFile(this.packageDir, entry, attrs);
+                    }
+                    // if it's a file it's a leaf, create a FileRecord with the root name and current file
+                    String fileName = entry.getFileName().toString();
+                    METRICS.fileSeen(attrs.size());
+                    if(this.context.getFileFilter().matches(fileName)){
+                        METRICS.fileMatched();
+                        long size = attrs.size();
+                        long fileLastModified = attrs.lastModifiedTime().toMillis();
+                        Integer i = previousFiles!=null ? previousFiles.remove(fileName) : null;
+                        if(i==null || previous.getFileSize(i)!=size || previous.getFileLastModified(i)!=fileLastModified){
+                            this.write(entry, fileName, size, fileLastModified);
+                        }
+                        if(state!=null){
+                            state.addFile(fileName, size, fileLastModified);
+                        }
+                        if(statistics!=null){
+                            statistics.add(fileName, size, fileLastModified);
+                        }
+                    }
+                } else if(attrs.isDirectory()){
+                    // if it's a folder it's not a leaf, it becomes a task of its own with the same root
+                    Recurser subdirectory = this.subdirectory(entry, attrs);
+                    if(subdirectory!=null){
+                        if(archiver!=null){
+                            archiver.addDirectory(this.packageDir, entry, attrs);
+                        }
+                        if(!this.watched(entry)){
+                            subdirectories.add(subdirectory);
+                        }
+                        subdirectoryNames.add(entry.getFileName().toString());
+                        if(state!=null){
+                            state.addSubdirectory(entry.getFileName().toString());
+                        }
+                    }
+                } else if(archiver!=null){
+                    if(attrs.isSymbolicLink()){
+                        archiver.addSymbolicLink(this.packageDir, entry, attrs);
+                    } else {
+                        // sockets, pipes and devices aren't archived
+                        archiver.skip(this.packageDir, entry+" is not a regular file, a directory or a link");
+                    }
+                }
+            }
+        } finally {
+            this.release();
+        }
+        // the time spent holding the permit, without the wait for it
+        METRICS.directoryListed(System.nanoTime()-started);
+        if(previous!=null){
+            // whatever the previous scan found and this one didn't no longer exists
+            for(Integer i : previousFiles.values()){
+                this.remove(this.directory, previous.getFileName(i));
+            }
+            for(int i=0; i<previous.getSubdirectoryCount(); i++){
+                if(!subdirectoryNames.contains(previous.getSubdirectory(i))){
+                    this.removeSubtree(this.dir.resolve(previous.getSubdirectory(i)), Child(this.directory, previous.getSubdirectory(i)));
                 }
             }
-            // close the entity manager to not go out of memory
-            if(entityManager!=null && entityManager.isOpen()){
-                entityManager.close();
-                LOGGER.trace("EntityManager.close() called");
+        }
+        if(state!=null){
+            index.put(this.dir, state.build(index.trustedLastModified(lastModified)));
+        }
+    }
+
+    /**
+     * Visits again the subdirectories of a directory whose entries didn't change since the previous scan, without listing it.
+     */
+    private void revisit(DirectoryState previous, List<Recurser> subdirectories) throws IOException, InterruptedException {
+        PackageStatistics statistics = this.statistics();
+        if(statistics!=null){
+            // the files didn't change either
+            for(int i=0; i<previous.getFileCount(); i++){
+                statistics.add(previous.getFileName(i), previous.getFileSize(i), previous.getFileLastModified(i));
+            }
+        }
+        for(int i=0; i<previous.getSubdirectoryCount(); i++){
+            Path entry = this.dir.resolve(previous.getSubdirectory(i));
+            BasicFileAttributes attrs;
+            this.acquire();
+            try {
+                attrs = Files.readAttributes(entry, BasicFileAttributes.class, this.context.getLinkOptions());
+            } catch(NoSuchFileException nsfe) {
+                this.removeSubtree(entry, Child(this.directory, previous.getSubdirectory(i)));
+                continue;
+            } finally {
+                this.release();
+            }
+            if(!attrs.isDirectory()){
+                this.removeSubtree(entry, Child(this.directory, previous.getSubdirectory(i)));
+                continue;
+            }
+            Recurser subdirectory = this.subdirectory(entry, attrs);
+            if(subdirectory!=null && !this.watched(entry)){
+                subdirectories.add(subdirectory);
             }
         }
-        LOGGER.trace("EntityManager.merge() ended");
     }
 
-    @Override
-    public void run() {
-        LOGGER.trace("Started....");
-        this.listRecursively(this.root, this.dir);
-        LOGGER.trace("Ended.");        
+    /**
+     * Returns whether a subdirectory is left to its own watch events rather than scanned again with its parent: a watched
+     * directory that is already in the index is scanned again only when something changes in it.
+     */
+    private boolean watched(Path entry) {
+        return this.context.isShallow() && this.context.getIndex().getPrevious(entry)!=null && this.context.getWatcher().isWatched(entry);
+    }
+
+    /**
+     * Records that the subdirectories of this directory have been scanned, and whether all their subtrees were scanned without errors.
+     * A directory whose whole subtree was scanned is recorded in the journal.
+     * @param subdirectoriesComplete whether the subtrees of all the subdirectories were scanned without errors
+     */
+    void subtreeScanned(boolean subdirectoriesComplete) {
+        this.complete = this.listed && subdirectoriesComplete;
+        ScanJournal journal = this.context.getJournal();
+        if(this.complete && journal!=null){
+            journal.complete(this.dir);
+        }
+    }
+
+    /**
+     * Returns whether the whole subtree of this directory was scanned without errors.
+     * @return whether the whole subtree of this directory was scanned without errors
+     */
+    boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * Removes all the files that the previous scan found under this directory, which no longer exists.
+     * @throws InterruptedException if interrupted while waiting for the sink to accept the removals
+     */
+    void remove() throws InterruptedException {
+        this.removeSubtree(this.dir, this.directory);
+    }
+
+    /**
+     * Returns the <code>Recurser</code> of a subdirectory, or null if it is excluded from the scan or, following links, it turns out to be one of its own ancestors.
+     */
+    private Recurser subdirectory(Path entry, BasicFileAttributes attrs) throws IOException {
+        if(!this.context.getDirectoryFilter().accepts(entry)){
+            // pruned before descending, with all its subtree
+            LOGGER.trace("Excluded "+entry);
+            return null;
+        }
+        Ancestor chain = null;
+        if(this.context.isFollowLinks()){
+            Object key = this.fileKey(entry, attrs);
+            if(this.ancestors.contains(key)){
+                LOGGER.warn("File system loop detected, skipping "+entry);
+                this.skip("file system loop at "+entry);
+                return null;
+            }
+            chain = new Ancestor(key, this.ancestors);
+        }
+        return new Recurser(this.root, entry, this.packageDir, Child(this.directory, entry.getFileName().toString()), this.context, attrs, chain);
+    }
+
+    /**
+     * Removes all the files that the previous scan found under the passed directory, which no longer exists.
+     */
+    private void removeSubtree(Path directory, String path) throws InterruptedException {
+        DirectoryState previous = this.context.getIndex().getPrevious(directory);
+        if(previous==null){
+            return;
+        }
+        this.context.getIndex().remove(directory);
+        for(int i=0; i<previous.getFileCount(); i++){
+            this.remove(path, previous.getFileName(i));
+        }
+        for(int i=0; i<previous.getSubdirectoryCount(); i++){
+            this.removeSubtree(directory.resolve(previous.getSubdirectory(i)), Child(path, previous.getSubdirectory(i)));
+        }
+    }
+
+    private void write(Path entry, String fileName, long size, long lastModified) throws InterruptedException {
+        FileRecord record = new FileRecord(this.root, this.directory, fileName, size, lastModified, entry);
+        if(LOGGER.isTraceEnabled()){
+            LOGGER.trace("About to emit the FileRecord: "+record);
+        }
+        this.context.getSink().write(record);
+        METRICS.fileEmitted();
+    }
+
+    private void remove(String path, String fileName) throws InterruptedException {
+        FileRecord record = FileRecord.Removed(this.root, path, fileName);
+        if(LOGGER.isTraceEnabled()){
+            LOGGER.trace("About to emit the removal of the FileRecord: "+record);
+        }
+        this.context.getSink().remove(record);
+        METRICS.fileRemoved();
+    }
+
+    /**
+     * Records that the package was not completely scanned: its archive misses something, so that its sources are kept, its
+     * summary is not written, and its removed files are not swept.
+     */
+    private void skip(String reason) {
+        if(this.context.getArchiver()!=null){
+            this.context.getArchiver().skip(this.packageDir, reason);
+        }
+        if(this.context.getSweeper()!=null){
+            this.context.getSweeper().skip(this.packageDir);
+        }
+        PackageStatistics statistics = this.statistics();
+        if(statistics!=null){
+            statistics.markIncomplete();
+        }
+    }
+
+    /**
+     * Returns the statistics of the package, or null if the packages aren't summarized or this scan is not the one of the whole package.
+     */
+    private PackageStatistics statistics() {
+        return this.context.getSummarizer()!=null ? this.context.getSummarizer().get(this.packageDir) : null;
+    }
+
+    /**
+     * Waits for a permit to access the device and one to access the file system, if their number is capped. They are always
+     * acquired in this order, so that no two threads wait for each other.
+     */
+    private void acquire() throws InterruptedException {
+        Semaphore devicePermits = this.context.getDevicePermits();
+        if(devicePermits!=null){
+            devicePermits.acquire();
+        }
+        Semaphore ioPermits = this.context.getIoPermits();
+        if(ioPermits!=null){
+            try {
+                ioPermits.acquire();
+            } catch(InterruptedException ie) {
+                if(devicePermits!=null){
+                    devicePermits.release();
+                }
+                throw ie;
+            }
+        }
+    }
+
+    private void release() {
+        Semaphore ioPermits = this.context.getIoPermits();
+        if(ioPermits!=null){
+            ioPermits.release();
+        }
+        Semaphore devicePermits = this.context.getDevicePermits();
+        if(devicePermits!=null){
+            devicePermits.release();
+        }
+    }
+
+    /**
+     * Returns the path of a directory inside its package, with <code>/</code> separators whatever the file system.
+     */
+    private static String Directory(Path packageDir, Path dir) {
+        String path = "";
+        for(Path name : packageDir.relativize(dir)){
+            path = Child(path, name.toString());
+        }
+        return path;
+    }
+
+    /**
+     * Returns the path inside the package of a subdirectory of the directory with the passed path.
+     */
+    private static String Child(String directory, String name) {
+        return directory.isEmpty() ? name : directory+"/"+name;
+    }
+
+    /**
+     * Returns an object that uniquely identifies the passed directory, even when it's reached through different links.
+     */
+    private Object fileKey(Path directory, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        // file systems without inodes don't provide a file key, the real path identifies the directory as well
+        return key!=null ? key : directory.toRealPath();
+    }
+
+    /**
+     * A link in the chain of the directories traversed to reach a <code>Recurser</code>. Following symbolic links, a directory
+     * that is one of its own ancestors is a loop.
+     */
+    private static final class Ancestor {
+
+        private final Object key;
+        private final Ancestor parent;
+
+        private Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        private boolean contains(Object otherKey) {
+            for(Ancestor a = this; a!=null; a = a.parent){
+                if(a.key.equals(otherKey)){
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
\ No newline at end of file
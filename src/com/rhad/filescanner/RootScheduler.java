@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Schedules the packages of all the scanned paths at once, grouped by the device (the {@link java.nio.file.FileStore}) they are
+ * stored on. Every device has its own concurrency limit: with a <code>ForkJoinPool</code> per device the threads blocked on a slow
+ * NFS export never starve the packages of a fast local disk, and with virtual threads every device has its own permits. In both
+ * cases a single filer is never hit by more than the configured number of concurrent operations.
+ * <p>
+ * {@link PackageListener}s are told when every package starts and when it has been completely scanned, subdirectories included.
+ * Packages are submitted a path at a time, or one by one as the {@link com.rhad.filescanner.shard.ShardCoordinator} leases them,
+ * always from the same thread that later calls {@link #await()}.
+ * @author Roberto Fabrizi
+ */
+public final class RootScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(RootScheduler.class);
+    private final ScanContext context;
+    private final int threads;
+    private final int deviceConcurrency;
+    private final VirtualThreadScanner virtualScanner;
+    private final List<PackageListener> listeners = new ArrayList<PackageListener>();
+    private final Map<FileStore, Device> devices = new LinkedHashMap<FileStore, Device>();
+    private final Map<Path, Future<?>> packages = new LinkedHashMap<Path, Future<?>>();
+
+    /**
+     * Creates a <code>RootScheduler</code>.
+     * @param context the settings and collaborators shared by the whole scan
+     * @param threads the number of threads of the <code>ForkJoinPool</code> of every device, when the device has no limit
+     * @param deviceConcurrency the maximum number of concurrent file system operations on a single device, 0 for no limit
+     * @param virtualScanner the scanner to run the directories on virtual threads, or null to run them on a <code>ForkJoinPool</code> per device
+     */
+    public RootScheduler(ScanContext context, int threads, int deviceConcurrency, VirtualThreadScanner virtualScanner) {
+        this(context, threads, deviceConcurrency, virtualScanner, new PackageListener[0]);
+    }
+
+    /**
+     * Creates a <code>RootScheduler</code> that tells the passed listeners when every package starts and ends. The listeners are
+     * told in the order they are passed, one after the other.
+     * @param context the settings and collaborators shared by the whole scan
+     * @param threads the number of threads of the <code>ForkJoinPool</code> of every device, when the device has no limit
+     * @param deviceConcurrency the maximum number of concurrent file system operations on a single device, 0 for no limit
+     * @param virtualScanner the scanner to run the directories on virtual threads, or null to run them on a <code>ForkJoinPool</code> per device
+     * @param listeners the listeners of the packages, the null ones are ignored
+     */
+    public RootScheduler(ScanContext context, int threads, int deviceConcurrency, VirtualThreadScanner virtualScanner, PackageListener... listeners) {
+        this.context = context;
+        this.threads = threads;
+        this.deviceConcurrency = deviceConcurrency;
+        this.virtualScanner = virtualScanner;
+        for(PackageListener listener : listeners){
+            if(listener!=null){
+                this.listeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Submits all the packages (the immediate subdirectories accepted by the directory filter) of the passed path. This method doesn't wait for the scan.
+     * @param root the path to scan
+     * @throws IOException if the path cannot be listed
+     */
+    public void submit(Path root) throws IOException {
+        List<Path> packageDirs = this.list(root);
+        for(Path packageDir : packageDirs){
+            this.submitPackage(packageDir);
+        }
+        LOGGER.info(packageDirs.size()+" packages of "+root+" submitted");
+    }
+
+    /**
+     * Returns the packages (the immediate subdirectories accepted by the directory filter) of the passed path, without submitting them.
+     * @param root the path to scan
+     * @return the package directories of the path
+     * @throws IOException if the path cannot be listed
+     */
+    public List<Path> list(Path root) throws IOException {
+        List<Path> packageDirs = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for(Path f : stream){
+                if(Files.isDirectory(f, this.context.getLinkOptions()) && this.context.getDirectoryFilter().acceptsPackage(f)){
+                    packageDirs.add(f);
+                }
+            }
+        }
+        return packageDirs;
+    }
+
+    /**
+     * Submits a single package. This method doesn't wait for the scan.
+     * @param packageDir the package directory, as returned by {@link #list(java.nio.file.Path)}
+     * @throws IOException if the device of the package cannot be found
+     */
+    public void submitPackage(Path packageDir) throws IOException {
+        // a package can be a mount point of its own
+        Device device = this.device(packageDir);
+        Recurser recurser = new Recurser(packageDir.getFileName().toString(), packageDir, device.context);
+        Future<?> future;
+        if(this.listeners.isEmpty()){
+            future = this.virtualScanner!=null ? this.virtualScanner.submit(recurser) : device.pool.submit(recurser);
+        } else {
+            for(PackageListener listener : this.listeners){
+                listener.packageStarted(packageDir);
+            }
+            future = this.listen(packageDir, this.virtualScanner!=null ? this.virtualScanner.submit(recurser) : Invoke(recurser, device.pool));
+        }
+        this.packages.put(packageDir, future);
+    }
+
+    /**
+     * Waits until all the submitted packages have been scanned. A package whose scan failed is logged, and doesn't stop the others.
+     * @return the number of packages whose scan failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int await() throws InterruptedException {
+        int failed = 0;
+        for(Map.Entry<Path, Future<?>> entry : this.packages.entrySet()){
+            try {
+                entry.getValue().get();
+            } catch(ExecutionException ee) {
+                failed++;
+                LOGGER.error("The scan of "+entry.getKey()+" failed", ee.getCause());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Stops the threads of all the devices, waiting for the running scans at most the passed number of seconds.
+     * @param timeoutSeconds the number of seconds to wait before forcibly stopping the threads
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeoutSeconds) throws InterruptedException {
+        List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        if(this.virtualScanner!=null){
+            executors.add(this.virtualScanner.getExecutor());
+        }
+        for(Device device : this.devices.values()){
+            if(device.pool!=null){
+                executors.add(device.pool);
+            }
+        }
+        for(ExecutorService executor : executors){
+            executor.shutdown();
+        }
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for(ExecutorService executor : executors){
+            if(!executor.awaitTermination(Math.max(deadline-System.nanoTime(), 0L), TimeUnit.NANOSECONDS)){
+                // Cancel currently executing tasks
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Tells the listeners when the scan of a package ends. The returned future is done once the listeners return, so that
+     * {@link #await()} waits for it as well.
+     */
+    private Future<?> listen(final Path packageDir, CompletableFuture<Void> scan) {
+        return scan.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                for(PackageListener listener : RootScheduler.this.listeners){
+                    listener.packageScanned(packageDir, failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Scans a package on a <code>ForkJoinPool</code>, returning a future that can have dependent actions.
+     */
+    private static CompletableFuture<Void> Invoke(final Recurser recurser, ForkJoinPool pool) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                // on a thread of the pool, the subdirectories are forked to the same pool
+                recurser.invoke();
+            }
+        }, pool);
+    }
+
+    private Device device(Path packageDir) throws IOException {
+        FileStore store = Files.getFileStore(packageDir);
+        Device device = this.devices.get(store);
+        if(device==null){
+            ForkJoinPool pool = null;
+            if(this.virtualScanner==null){
+                int parallelism = this.deviceConcurrency>0 ? this.deviceConcurrency : this.threads;
+                pool = new ForkJoinPool(parallelism);
+                LOGGER.info("ForkJoinPool created using "+parallelism+" concurrent threads for "+store);
+            } else {
+                LOGGER.info("Device "+store+" limited to "+(this.deviceConcurrency>0 ? this.deviceConcurrency+" concurrent operations" : "no limit"));
+            }
+            device = new Device(this.context.forDevice(this.deviceConcurrency), pool);
+            this.devices.put(store, device);
+        }
+        return device;
+    }
+
+    /**
+     * Listens to the packages scheduled by a <code>RootScheduler</code>. Both methods may be called concurrently for different packages.
+     */
+    public interface PackageListener {
+
+        /**
+         * Called before a package is submitted, on the thread that calls {@link RootScheduler#submit(java.nio.file.Path)}.
+         * @param packageDir the package directory
+         */
+        void packageStarted(Path packageDir);
+
+        /**
+         * Called once a package and all its subdirectories have been scanned, on one of the threads of the scan.
+         * @param packageDir the package directory
+         * @param failure the exception that stopped the scan of the package, or null
+         */
+        void packageScanned(Path packageDir, Throwable failure);
+    }
+
+    /**
+     * The context and the threads of the packages stored on the same device.
+     */
+    private static final class Device {
+
+        private final ScanContext context;
+        private final ForkJoinPool pool;
+
+        private Device(ScanContext context, ForkJoinPool pool) {
+            this.context = context;
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner;
+
+import com.rhad.filescanner.archive.Archiver;
+import com.rhad.filescanner.filter.DirectoryFilter;
+import com.rhad.filescanner.filter.FileNameFilter;
+import com.rhad.filescanner.index.ScanIndex;
+import com.rhad.filescanner.index.ScanJournal;
+import com.rhad.filescanner.persistence.RemovalSweeper;
+import com.rhad.filescanner.sink.PacchettiSink;
+import com.rhad.filescanner.summary.PackageSummarizer;
+import com.rhad.filescanner.tuning.AdjustableSemaphore;
+import java.nio.file.LinkOption;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The settings and collaborators shared by all the {@link com.rhad.filescanner.Recurser}s of a scan.
+ * @author Roberto Fabrizi
+ */
+public final class ScanContext {
+
+    private static final LinkOption[] FOLLOW_LINKS = new LinkOption[0];
+    private static final LinkOption[] NOFOLLOW_LINKS = new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+    private final FileNameFilter fileFilter;
+    private final DirectoryFilter directoryFilter;
+    private final PacchettiSink sink;
+    private final boolean followLinks;
+    private final ScanIndex index;
+    private final AdjustableSemaphore ioPermits;
+    private final Semaphore devicePermits;
+    private final Archiver archiver;
+    private final ScanWatcher watcher;
+    private final boolean shallow;
+    private final ScanJournal journal;
+    private final PackageSummarizer summarizer;
+    private final RemovalSweeper sweeper;
+
+    /**
+     * Creates a <code>ScanContext</code>.
+     * @param fileFilter the filter the file names must match
+     * @param directoryFilter the filter the traversed directories must match
+     * @param sink the sink the {@link com.rhad.filescanner.model.FileRecord}s are emitted to
+     * @param followLinks whether symbolic links are followed during the traversal
+     * @param index the index of the previous scan for incremental scans, or null to scan everything
+     */
+    public ScanContext(FileNameFilter fileFilter, DirectoryFilter directoryFilter, PacchettiSink sink, boolean followLinks, ScanIndex index) {
+        this(fileFilter, directoryFilter, sink, followLinks, index, 0);
+    }
+
+    /**
+     * Creates a <code>ScanContext</code> that caps the number of concurrent file system operations.
+     * @param fileFilter the filter the file names must match
+     * @param directoryFilter the filter the traversed directories must match
+     * @param sink the sink the {@link com.rhad.filescanner.model.FileRecord}s are emitted to
+     * @param followLinks whether symbolic links are followed during the traversal
+     * @param index the index of the previous scan for incremental scans, or null to scan everything
+     * @param ioConcurrency the maximum number of directories listed (or attributes read) at the same time, 0 for no limit
+     */
+    public ScanContext(FileNameFilter fileFilter, DirectoryFilter directoryFilter, PacchettiSink sink, boolean followLinks, ScanIndex index, int ioConcurrency) {
+        this.fileFilter = fileFilter;
+        this.directoryFilter = directoryFilter;
+        this.sink = sink;
+        this.followLinks = followLinks;
+        this.index = index;
+        this.ioPermits = ioConcurrency>0 ? new AdjustableSemaphore(ioConcurrency) : null;
+        this.devicePermits = null;
+        this.archiver = null;
+        this.watcher = null;
+        this.shallow = false;
+        this.journal = null;
+        this.summarizer = null;
+        this.sweeper = null;
+    }
+
+    private ScanContext(ScanContext context, Semaphore devicePermits, Archiver archiver, ScanWatcher watcher, boolean shallow, ScanJournal journal, PackageSummarizer summarizer, RemovalSweeper sweeper) {
+        this.fileFilter = context.fileFilter;
+        this.directoryFilter = context.directoryFilter;
+        this.sink = context.sink;
+        this.followLinks = context.followLinks;
+        this.index = context.index;
+        this.ioPermits = context.ioPermits;
+        this.devicePermits = devicePermits;
+        this.archiver = archiver;
+        this.watcher = watcher;
+        this.shallow = shallow;
+        this.journal = journal;
+        this.summarizer = summarizer;
+        this.sweeper = sweeper;
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> for the packages of a single device, which also caps the number of concurrent
+     * file system operations on that device. The cap of the whole scan still applies.
+     * @param deviceConcurrency the maximum number of directories of the device listed (or attributes read) at the same time, 0 for no limit
+     * @return a copy of this <code>ScanContext</code> for the packages of a single device
+     */
+    public ScanContext forDevice(int deviceConcurrency) {
+        return new ScanContext(this, deviceConcurrency>0 ? new Semaphore(deviceConcurrency) : null, this.archiver, this.watcher, this.shallow, this.journal, this.summarizer, this.sweeper);
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> that also adds every traversed entry to the archive of its package.
+     * @param archiver the archiver of the packages
+     * @return a copy of this <code>ScanContext</code> that also archives the packages
+     */
+    public ScanContext withArchiver(Archiver archiver) {
+        return new ScanContext(this, this.devicePermits, archiver, this.watcher, this.shallow, this.journal, this.summarizer, this.sweeper);
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> that watches every traversed directory for changes.
+     * @param watcher the watcher of the directories
+     * @param shallow whether the subdirectories that are already watched and indexed are left to their own events, rather than scanned again
+     * @return a copy of this <code>ScanContext</code> that watches the traversed directories
+     */
+    public ScanContext withWatcher(ScanWatcher watcher, boolean shallow) {
+        return new ScanContext(this, this.devicePermits, this.archiver, watcher, shallow, this.journal, this.summarizer, this.sweeper);
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> that records the completed subtrees in the passed journal, and skips the ones already recorded.
+     * @param journal the journal of the scan
+     * @return a copy of this <code>ScanContext</code> that records the completed subtrees
+     */
+    public ScanContext withJournal(ScanJournal journal) {
+        return new ScanContext(this, this.devicePermits, this.archiver, this.watcher, this.shallow, journal, this.summarizer, this.sweeper);
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> that also adds every matching file to the statistics of its package.
+     * @param summarizer the summarizer of the packages
+     * @return a copy of this <code>ScanContext</code> that also summarizes the packages
+     */
+    public ScanContext withSummarizer(PackageSummarizer summarizer) {
+        return new ScanContext(this, this.devicePermits, this.archiver, this.watcher, this.shallow, this.journal, summarizer, this.sweeper);
+    }
+
+    /**
+     * Returns a copy of this <code>ScanContext</code> that records the packages that were not completely scanned, which are not swept.
+     * @param sweeper the sweeper of the removed files
+     * @return a copy of this <code>ScanContext</code> that records the packages not completely scanned
+     */
+    public ScanContext withSweeper(RemovalSweeper sweeper) {
+        return new ScanContext(this, this.devicePermits, this.archiver, this.watcher, this.shallow, this.journal, this.summarizer, sweeper);
+    }
+
+    /**
+     * Returns the filter the file names must match.
+     * @return the filter the file names must match
+     */
+    public FileNameFilter getFileFilter() {
+        return this.fileFilter;
+    }
+
+    /**
+     * Returns the filter the traversed directories must match.
+     * @return the filter the traversed directories must match
+     */
+    public DirectoryFilter getDirectoryFilter() {
+        return this.directoryFilter;
+    }
+
+    /**
+     * Returns the sink the {@link com.rhad.filescanner.model.FileRecord}s are emitted to.
+     * @return the sink the <code>FileRecord</code>s are emitted to
+     */
+    public PacchettiSink getSink() {
+        return this.sink;
+    }
+
+    /**
+     * Returns whether symbolic links are followed during the traversal.
+     * @return whether symbolic links are followed during the traversal
+     */
+    public boolean isFollowLinks() {
+        return this.followLinks;
+    }
+
+    /**
+     * Returns the index of the previous scan, or null if this scan isn't incremental.
+     * @return the index of the previous scan, or null if this scan isn't incremental
+     */
+    public ScanIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Returns the permits to access the file system, or null if the concurrent file system operations aren't capped. Their number
+     * can be changed while the scan runs, by the {@link com.rhad.filescanner.tuning.ConcurrencyController}.
+     * @return the permits to access the file system, or null if the concurrent file system operations aren't capped
+     */
+    public AdjustableSemaphore getIoPermits() {
+        return this.ioPermits;
+    }
+
+    /**
+     * Returns the permits to access the device of the scanned packages, or null if the concurrent operations on the device aren't capped.
+     * These permits are always acquired before the ones of {@link #getIoPermits()}.
+     * @return the permits to access the device of the scanned packages, or null if the concurrent operations on the device aren't capped
+     */
+    public Semaphore getDevicePermits() {
+        return this.devicePermits;
+    }
+
+    /**
+     * Returns the archiver of the packages, or null if the packages aren't archived.
+     * @return the archiver of the packages, or null if the packages aren't archived
+     */
+    public Archiver getArchiver() {
+        return this.archiver;
+    }
+
+    /**
+     * Returns the watcher of the traversed directories, or null if the tree isn't watched.
+     * @return the watcher of the traversed directories, or null if the tree isn't watched
+     */
+    public ScanWatcher getWatcher() {
+        return this.watcher;
+    }
+
+    /**
+     * Returns whether the subdirectories that are already watched and indexed are left to their own events, rather than scanned again.
+     * @return whether the subdirectories that are already watched and indexed are left to their own events
+     */
+    public boolean isShallow() {
+        return this.shallow;
+    }
+
+    /**
+     * Returns the journal of the completed subtrees, or null if the scan isn't journaled.
+     * @return the journal of the completed subtrees, or null if the scan isn't journaled
+     */
+    public ScanJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Returns the summarizer of the packages, or null if the packages aren't summarized.
+     * @return the summarizer of the packages, or null if the packages aren't summarized
+     */
+    public PackageSummarizer getSummarizer() {
+        return this.summarizer;
+    }
+
+    /**
+     * Returns the sweeper of the removed files, or null if the removed files are not swept.
+     * @return the sweeper of the removed files, or null if the removed files are not swept
+     */
+    public RemovalSweeper getSweeper() {
+        return this.sweeper;
+    }
+
+    /**
+     * Returns the {@link java.nio.file.LinkOption}s to read the attributes of the traversed paths with.
+     * @return the <code>LinkOption</code>s to read the attributes of the traversed paths with
+     */
+    public LinkOption[] getLinkOptions() {
+        return this.followLinks ? FOLLOW_LINKS : NOFOLLOW_LINKS;
+    }
+}
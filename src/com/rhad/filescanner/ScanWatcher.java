@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner;
+
+import com.rhad.filescanner.index.DirectoryState;
+import com.rhad.filescanner.index.ScanIndex;
+import com.rhad.filescanner.persistence.BatchWriter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the scan up to date after the first, full one: every scanned directory is watched with a {@link java.nio.file.WatchService},
+ * and the directories where files are created, modified or deleted are scanned again, alone, once the events calm down. Events are
+ * coalesced per directory and debounced, so that a package being copied costs a few scans rather than one per file. Since the
+ * {@link com.rhad.filescanner.index.ScanIndex} knows what every directory contained, only the differences reach the sink.
+ * <p>
+ * The kernel isn't told about the changes made by other hosts on NFS or SMB shares, and the number of watches can be capped by the
+ * operating system: the paths on network file systems, and the ones that can't be watched entirely, are polled instead, with an
+ * incremental scan every poll interval.
+ * <p>
+ * When {@link RootScheduler.PackageListener}s such as the {@link com.rhad.filescanner.summary.PackageSummarizer} are passed, a change
+ * scans again its whole package rather than the changed directory alone, so that the listeners see every package as a whole: the
+ * directories that didn't change are revisited from the index, without being listed.
+ * @author Roberto Fabrizi
+ */
+public final class ScanWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ScanWatcher.class);
+    private static final Set<String> NETWORK_FILE_SYSTEMS = new HashSet<String>(Arrays.asList("nfs", "nfs4", "cifs", "smb2", "smb3", "smbfs", "fuse.sshfs"));
+    // events keep coming while a package is copied, its directories are scanned at least this many debounce intervals apart
+    private static final int MAX_DELAY_FACTOR = 10;
+    private static final long SAVE_INTERVAL = 60000L;
+    private final List<Path> roots;
+    private final ScanContext firstContext;
+    private final ScanContext deepContext;
+    private final ScanContext shallowContext;
+    private final long debounce;
+    private final long pollInterval;
+    private final BatchWriter writer;
+    private final List<RootScheduler.PackageListener> listeners;
+    private final WatchService watchService;
+    private final ForkJoinPool pool;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+    private final Map<Path, WatchKey> watched = new ConcurrentHashMap<Path, WatchKey>();
+    private final Set<Path> polledRoots = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    // only used by the thread that runs the watcher
+    private final Set<Path> dirty = new HashSet<Path>();
+    private final Set<Path> dirtyRoots = new HashSet<Path>();
+    private final Set<Path> overflowedRoots = new HashSet<Path>();
+    private long firstEvent = 0L;
+    private long lastEvent = 0L;
+    private long lastSave = 0L;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a <code>ScanWatcher</code>. Use the context returned by {@link #getContext()} for the first scan, so that every
+     * directory is watched before it is listed.
+     * @param context the settings and collaborators shared by the whole scan, with all of them already added, which must have an index
+     * @param roots the scanned paths, whose immediate subdirectories are the packages
+     * @param threads the number of threads that scan the changed directories
+     * @param debounce the number of milliseconds without events in a directory before it is scanned again
+     * @param pollInterval the number of seconds between two scans of the paths that cannot be watched
+     * @param writer the database writer, whose failed rows keep the index from being saved, or null
+     * @param listeners the listeners told about the packages scanned again, as the ones of the {@link RootScheduler} of the first scan
+     * @throws IOException if the <code>WatchService</code> cannot be created
+     */
+    public ScanWatcher(ScanContext context, List<Path> roots, int threads, long debounce, long pollInterval, BatchWriter writer, RootScheduler.PackageListener... listeners) throws IOException {
+        if(context.getIndex()==null){
+            throw new IllegalArgumentException("Watching requires an incremental scan.");
+        }
+        this.roots = new ArrayList<Path>(roots);
+        this.firstContext = context.withWatcher(this, false);
+        // the journal only holds what the first scan emitted, the changes are never skipped
+        this.deepContext = this.firstContext.withJournal(null);
+        this.shallowContext = context.withJournal(null).withWatcher(this, true);
+        this.debounce = debounce;
+        this.pollInterval = pollInterval*1000L;
+        this.writer = writer;
+        this.listeners = new ArrayList<RootScheduler.PackageListener>();
+        for(RootScheduler.PackageListener listener : listeners){
+            if(listener!=null){
+                this.listeners.add(listener);
+            }
+        }
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.pool = new ForkJoinPool(threads);
+        for(Path root : this.roots){
+            String type = Files.getFileStore(root).type();
+            if(NETWORK_FILE_SYSTEMS.contains(type)){
+                LOGGER.info(root+" is on a "+type+" file system, it will be polled every "+pollInterval+" seconds");
+                this.polledRoots.add(root);
+            }
+        }
+    }
+
+    /**
+     * Returns the context of the first scan, which watches every directory it traverses.
+     * @return the context of the first scan
+     */
+    public ScanContext getContext() {
+        return this.firstContext;
+    }
+
+    /**
+     * Starts watching a directory, unless it is already watched or it belongs to a polled path. If the operating system refuses
+     * the watch, the whole path is polled from now on.
+     * @param directory the directory
+     */
+    void watch(Path directory) {
+        Path root = this.rootOf(directory);
+        if(root==null || this.polledRoots.contains(root) || this.isWatched(directory)){
+            return;
+        }
+        this.register(directory, root);
+    }
+
+    /**
+     * Returns whether the passed directory is watched.
+     * @param directory the directory
+     * @return whether the passed directory is watched
+     */
+    boolean isWatched(Path directory) {
+        WatchKey key = this.watched.get(directory);
+        return key!=null && key.isValid();
+    }
+
+    /**
+     * Watches the scanned paths and scans again the directories that change, until {@link #stop()} is called. The index is saved
+     * regularly, and once more before returning.
+     * @throws IOException if the index cannot be saved
+     * @throws InterruptedException if interrupted while waiting for events or for the sink
+     */
+    public void run() throws IOException, InterruptedException {
+        for(Path root : this.roots){
+            if(!this.polledRoots.contains(root)){
+                this.register(root, root);
+                // packages created while the first scan was running
+                this.dirtyRoots.add(root);
+            }
+        }
+        LOGGER.info(this.watched.size()+" directories watched, "+this.polledRoots.size()+" paths polled");
+        this.update(false);
+        long nextPoll = System.currentTimeMillis()+this.pollInterval;
+        try {
+            while(!this.stopped){
+                long now = System.currentTimeMillis();
+                long wakeUp = this.polledRoots.isEmpty() ? Long.MAX_VALUE : nextPoll;
+                if(this.isPending()){
+                    wakeUp = Math.min(wakeUp, this.due());
+                }
+                WatchKey key = wakeUp==Long.MAX_VALUE ? this.watchService.take() : this.watchService.poll(Math.max(wakeUp-now, 0L), TimeUnit.MILLISECONDS);
+                while(key!=null){
+                    this.collect(key);
+                    key = this.watchService.poll();
+                }
+                now = System.currentTimeMillis();
+                boolean poll = !this.polledRoots.isEmpty() && now>=nextPoll;
+                if(poll || (this.isPending() && now>=this.due())){
+                    this.update(poll);
+                    if(poll){
+                        nextPoll = now+this.pollInterval;
+                    }
+                }
+            }
+        } catch(ClosedWatchServiceException cwse) {
+            LOGGER.info("Stopped watching");
+        } finally {
+            this.pool.shutdown();
+        }
+        this.save(true);
+    }
+
+    /**
+     * Stops watching. {@link #run()} returns once the changes being scanned have been emitted.
+     */
+    public void stop() {
+        this.stopped = true;
+        try {
+            this.watchService.close();
+        } catch(IOException ioe) {
+            LOGGER.warn("Could not close the WatchService", ioe);
+        }
+    }
+
+    private void register(Path directory, Path root) {
+        try {
+            WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            this.keys.put(key, directory);
+            this.watched.put(directory, key);
+        } catch(ClosedWatchServiceException cwse) {
+            // stopping
+        } catch(IOException ioe) {
+            // i.e. the limit of inotify watches is reached
+            if(this.polledRoots.add(root)){
+                LOGGER.warn("Could not watch "+directory+", "+root+" will be polled every "+this.pollInterval/1000L+" seconds: "+ioe);
+            }
+        }
+    }
+
+    /**
+     * Records the directories a key reports events for.
+     */
+    private void collect(WatchKey key) {
+        Path directory = this.keys.get(key);
+        boolean changed = false;
+        for(WatchEvent<?> event : key.pollEvents()){
+            if(directory==null){
+                continue;
+            }
+            changed = true;
+            if(event.kind()==StandardWatchEventKinds.OVERFLOW){
+                // events were lost, the whole path is scanned again
+                this.overflowedRoots.add(this.roots.contains(directory) ? directory : this.rootOf(directory));
+            } else if(this.roots.contains(directory)){
+                this.dirtyRoots.add(directory);
+            } else {
+                this.dirty.add(directory);
+            }
+        }
+        if(!key.reset()){
+            this.keys.remove(key);
+            if(directory!=null){
+                this.watched.remove(directory, key);
+                if(!this.roots.contains(directory)){
+                    // deleted, or replaced by another directory with the same name, which must be scanned and watched
+                    this.dirty.add(directory);
+                    changed = true;
+                }
+            }
+        }
+        if(changed){
+            long now = System.currentTimeMillis();
+            if(this.firstEvent==0L){
+                this.firstEvent = now;
+            }
+            this.lastEvent = now;
+        }
+    }
+
+    private boolean isPending() {
+        return !this.dirty.isEmpty() || !this.dirtyRoots.isEmpty() || !this.overflowedRoots.isEmpty();
+    }
+
+    private long due() {
+        return Math.min(this.lastEvent+this.debounce, this.firstEvent+this.debounce*MAX_DELAY_FACTOR);
+    }
+
+    /**
+     * Scans again the changed directories and packages, and the polled paths if it's time to.
+     */
+    private void update(boolean poll) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        ScanIndex index = this.deepContext.getIndex();
+        index.startScan();
+        Set<Path> fullRoots = new HashSet<Path>(this.overflowedRoots);
+        if(poll){
+            fullRoots.addAll(this.polledRoots);
+        }
+        final List<Recurser> tasks = new ArrayList<Recurser>();
+        List<Recurser> removals = new ArrayList<Recurser>();
+        // the whole packages scanned again, which the listeners are told about
+        Map<Path, Recurser> packages = new LinkedHashMap<Path, Recurser>();
+        for(Path root : this.roots){
+            if(fullRoots.contains(root) || this.dirtyRoots.contains(root)){
+                this.updateRoot(root, fullRoots.contains(root), packages, removals);
+            }
+        }
+        int directories = 0;
+        for(Path directory : this.dirty){
+            Path root = this.rootOf(directory);
+            if(root==null || fullRoots.contains(root) || !Files.isDirectory(directory, this.deepContext.getLinkOptions())){
+                // a deleted directory is removed by the scan of its parent
+                continue;
+            }
+            String name = root.relativize(directory).getName(0).toString();
+            Path packageDir = root.resolve(name);
+            if(!this.listeners.isEmpty()){
+                // listed again, the rest of the package is revisited from the index
+                index.invalidate(directory);
+                if(!packages.containsKey(packageDir)){
+                    packages.put(packageDir, new Recurser(name, packageDir, this.deepContext));
+                }
+                directories++;
+            } else if(!this.reachedFromDirtyAncestor(directory, root, index)){
+                index.invalidate(directory);
+                tasks.add(new Recurser(name, packageDir, directory, this.shallowContext));
+                directories++;
+            }
+        }
+        tasks.addAll(packages.values());
+        for(Path packageDir : packages.keySet()){
+            for(RootScheduler.PackageListener listener : this.listeners){
+                listener.packageStarted(packageDir);
+            }
+        }
+        this.dirty.clear();
+        this.dirtyRoots.clear();
+        this.overflowedRoots.clear();
+        this.firstEvent = 0L;
+        for(Recurser removal : removals){
+            removal.remove();
+        }
+        Throwable failure = null;
+        try {
+            this.pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch(RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            for(Path packageDir : packages.keySet()){
+                for(RootScheduler.PackageListener listener : this.listeners){
+                    listener.packageScanned(packageDir, failure);
+                }
+            }
+        }
+        this.deepContext.getSink().flush();
+        this.save(false);
+        LOGGER.info(directories+" changed directories, "+packages.size()+" packages and "+removals.size()+" removed packages scanned in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
+    /**
+     * Lists the packages of a path, scanning the new ones (or all of them, if <code>full</code>) and removing the ones that no
+     * longer exist. The packages of every path are recorded in the index as if the path were a directory.
+     */
+    private void updateRoot(Path root, boolean full, Map<Path, Recurser> packages, List<Recurser> removals) {
+        ScanIndex index = this.deepContext.getIndex();
+        DirectoryState previous = index.getPrevious(root);
+        DirectoryState.Builder state = new DirectoryState.Builder();
+        Set<String> names = new HashSet<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for(Path f : stream){
+                if(Files.isDirectory(f, this.deepContext.getLinkOptions()) && this.deepContext.getDirectoryFilter().acceptsPackage(f)){
+                    String name = f.getFileName().toString();
+                    names.add(name);
+                    state.addSubdirectory(name);
+                    if(full || index.getPrevious(f)==null){
+                        packages.put(f, new Recurser(name, f, full ? this.deepContext : this.shallowContext));
+                    }
+                }
+            }
+        } catch(IOException | DirectoryIteratorException e) {
+            LOGGER.warn("Could not list the packages of "+root, e);
+            return;
+        }
+        if(previous!=null){
+            for(int i=0; i<previous.getSubdirectoryCount(); i++){
+                if(!names.contains(previous.getSubdirectory(i))){
+                    removals.add(new Recurser(previous.getSubdirectory(i), root.resolve(previous.getSubdirectory(i)), this.deepContext));
+                }
+            }
+        }
+        index.put(root, state.build(DirectoryState.UNKNOWN));
+    }
+
+    /**
+     * Returns whether a changed directory is scanned anyway by the scan of one of its changed ancestors, which descends into
+     * every subdirectory that isn't both indexed and watched.
+     */
+    private boolean reachedFromDirtyAncestor(Path directory, Path root, ScanIndex index) {
+        for(Path d = directory; ; d = d.getParent()){
+            if(index.getPrevious(d)!=null && this.isWatched(d)){
+                // left to its own events by the scan of its parent
+                return false;
+            }
+            Path parent = d.getParent();
+            if(parent.equals(root)){
+                // new packages are scanned when their path changes
+                return this.dirtyRoots.contains(root);
+            }
+            if(this.dirty.contains(parent)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the scanned path the passed directory belongs to, or null if it's a scanned path itself or outside of them.
+     */
+    private Path rootOf(Path directory) {
+        Path result = null;
+        for(Path root : this.roots){
+            if(directory.startsWith(root) && !directory.equals(root) && (result==null || root.getNameCount()>result.getNameCount())){
+                result = root;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Saves the index if the sink has persisted everything, at most once every <code>SAVE_INTERVAL</code> unless forced.
+     */
+    private void save(boolean force) throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        if(!force && now-this.lastSave<SAVE_INTERVAL){
+            return;
+        }
+        this.deepContext.getSink().flush();
+        if(this.writer==null || this.writer.getFailed()==0){
+            this.deepContext.getIndex().save();
+            this.lastSave = now;
+        } else {
+            LOGGER.error("Some rows could not be persisted, the scan index is not updated");
+        }
+    }
+}
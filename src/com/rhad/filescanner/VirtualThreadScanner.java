@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Scans every directory on a virtual thread of its own, for file systems (i.e. NFS) where the traversal is bound by the latency of
+ * the metadata calls rather than by the CPU: thousands of directories can be listed at the same time without thousands of platform
+ * threads. The number of concurrent file system operations is capped by the permits of the {@link ScanContext}.
+ * <p>
+ * Virtual threads are looked up at runtime, so that the application still compiles and runs on older JVMs: there the directories
+ * are scanned by a fixed pool of platform threads instead.
+ * @author Roberto Fabrizi
+ */
+public final class VirtualThreadScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreadScanner.class);
+    private final ExecutorService executor;
+
+    /**
+     * Creates a <code>VirtualThreadScanner</code>.
+     * @param fallbackThreads the number of platform threads to use if virtual threads aren't available
+     */
+    public VirtualThreadScanner(int fallbackThreads) {
+        this.executor = NewExecutor(fallbackThreads);
+    }
+
+    /**
+     * Returns the executor the directories are scanned on, to shut it down.
+     * @return the executor the directories are scanned on
+     */
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Starts scanning the passed directory and all of its subdirectories. This method doesn't wait for the scan.
+     * @param recurser the <code>Recurser</code> of the directory
+     * @return a <code>Future</code> that is done when the whole subtree has been scanned
+     */
+    public CompletableFuture<Void> submit(Recurser recurser) {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        this.submit(new Node(recurser, null, done));
+        return done;
+    }
+
+    private void submit(final Node node) {
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<Recurser> subdirectories = new ArrayList<Recurser>();
+                        if(node.recurser.scan(subdirectories)){
+                            for(Recurser subdirectory : subdirectories){
+                                // counted before the node can complete
+                                node.pending.incrementAndGet();
+                                submit(new Node(subdirectory, node, node.done));
+                            }
+                        } else {
+                            node.subdirectoriesComplete = false;
+                        }
+                    } catch(RuntimeException e) {
+                        node.subdirectoriesComplete = false;
+                        node.done.completeExceptionally(e);
+                    } finally {
+                        node.completed();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            node.subdirectoriesComplete = false;
+            node.done.completeExceptionally(ree);
+            node.completed();
+        }
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task or, if they aren't available, a fixed thread pool.
+     */
+    private static ExecutorService NewExecutor(int fallbackThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            LOGGER.info("Directories are scanned on virtual threads");
+            return executor;
+        } catch(ReflectiveOperationException e) {
+            // before Java 21, or Java 19 and 20 without --enable-preview
+            LOGGER.warn("Virtual threads are not available on this JVM, directories are scanned by "+fallbackThreads+" platform threads");
+            return Executors.newFixedThreadPool(fallbackThreads);
+        }
+    }
+
+    /**
+     * A directory whose subtree is being scanned. A node completes when it and all of its subdirectories have been scanned, which
+     * in turn may complete its parent: the subtree of the package is done when its root node completes.
+     */
+    private static final class Node {
+
+        private final Recurser recurser;
+        private final Node parent;
+        private final CompletableFuture<Void> done;
+        // the node itself, and the subdirectories not yet completed
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean subdirectoriesComplete = true;
+
+        private Node(Recurser recurser, Node parent, CompletableFuture<Void> done) {
+            this.recurser = recurser;
+            this.parent = parent;
+            this.done = done;
+        }
+
+        private void completed() {
+            // subdirectories are counted before their parent completes, so the count only drops to 0 once
+            if(this.pending.decrementAndGet()==0){
+                this.recurser.subtreeScanned(this.subdirectoriesComplete);
+                if(this.parent!=null){
+                    if(!this.recurser.isComplete()){
+                        this.parent.subdirectoriesComplete = false;
+                    }
+                    this.parent.completed();
+                } else {
+                    this.done.complete(null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.archive;
+
+import com.rhad.filescanner.RootScheduler;
+import com.rhad.filescanner.filter.DirectoryFilter;
+import com.rhad.filescanner.persistence.BatchWriter;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Archives every scanned package in a <code>tar</code> file of its own, optionally compressed, while it is traversed: the
+ * {@link com.rhad.filescanner.Recurser}s add every entry they list to the archive of its package, so the files are read once and
+ * all the packages are archived in parallel. When a package has been scanned its archive is verified and, if nothing went wrong,
+ * its sources can be deleted, after the rows of the package have reached the sink. This is what <code>bin/archiver.sh</code> used
+ * to do with <code>tar</code>, <code>compress</code> and <code>rm</code> once the scan was over, except that only the packages are
+ * archived: unlike the script, the files directly under the scanned paths, and the directories the directory filter excludes, are
+ * left where they are.
+ * @author Roberto Fabrizi
+ */
+public final class Archiver implements RootScheduler.PackageListener {
+
+    private static final Logger LOGGER = Logger.getLogger(Archiver.class);
+    private final Path archiveDir;
+    private final String compression;
+    private final int level;
+    private final boolean deleteSources;
+    private final DirectoryFilter directoryFilter;
+    private final PacchettiSink sink;
+    private final BatchWriter writer;
+    private final ConcurrentMap<Path, PackageArchive> archives = new ConcurrentHashMap<Path, PackageArchive>();
+    private final AtomicInteger archived = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Creates an <code>Archiver</code>.
+     * @param archiveDir the directory the archives are written to
+     * @param compression the compression of the archives, <code>gzip</code> or <code>none</code>
+     * @param level the gzip compression level, from 1 (fastest) to 9 (smallest)
+     * @param deleteSources whether the sources of a verified archive are deleted
+     * @param directoryFilter the filter the traversed directories must match, whose pruned subtrees are never deleted
+     * @param sink the sink the rows of the packages are emitted to, flushed before the sources are deleted
+     * @param writer the database writer, whose failed rows keep the sources of their packages, or null
+     */
+    public Archiver(Path archiveDir, String compression, int level, boolean deleteSources, DirectoryFilter directoryFilter, PacchettiSink sink, BatchWriter writer) {
+        this.archiveDir = archiveDir;
+        this.compression = compression;
+        this.level = level;
+        this.deleteSources = deleteSources;
+        this.directoryFilter = directoryFilter;
+        this.sink = sink;
+        this.writer = writer;
+    }
+
+    @Override
+    public void packageStarted(Path packageDir) {
+        this.archives.put(packageDir, new PackageArchive(packageDir, this.archiveDir, this.compression, this.level));
+    }
+
+    @Override
+    public void packageScanned(Path packageDir, Throwable failure) {
+        PackageArchive archive = this.archives.remove(packageDir);
+        if(archive==null){
+            return;
+        }
+        if(failure!=null){
+            archive.fail("the scan failed: "+failure);
+        }
+        if(!archive.finish()){
+            this.failed.incrementAndGet();
+            return;
+        }
+        this.archived.incrementAndGet();
+        if(!this.deleteSources || !archive.isComplete()){
+            return;
+        }
+        try {
+            // the sources go only once their rows are safe
+            this.sink.flush();
+            if(this.writer!=null && this.writer.getFailed(packageDir.getFileName().toString())>0){
+                LOGGER.warn("The sources of "+packageDir+" are kept, some of its rows could not be persisted");
+                return;
+            }
+            long deleted = archive.deleteSources(this.directoryFilter);
+            LOGGER.info(deleted+" files of "+packageDir+" deleted");
+        } catch(IOException ioe) {
+            LOGGER.error("Could not delete the sources of "+packageDir, ioe);
+        } catch(InterruptedException ie) {
+            LOGGER.warn("Interrupted before deleting the sources of "+packageDir);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a regular file to the archive of its package.
+     * @param packageDir the package directory
+     * @param file the file
+     * @param attrs its attributes
+     */
+    public void addFile(Path packageDir, Path file, BasicFileAttributes attrs) {
+        PackageArchive archive = this.archives.get(packageDir);
+        if(archive!=null){
+            archive.addFile(file, attrs);
+        }
+    }
+
+    /**
+     * Adds a directory to the archive of its package.
+     * @param packageDir the package directory
+     * @param directory the directory, which may be the package directory itself
+     * @param attrs its attributes
+     */
+    public void addDirectory(Path packageDir, Path directory, BasicFileAttributes attrs) {
+        PackageArchive archive = this.archives.get(packageDir);
+        if(archive!=null){
+            archive.addDirectory(directory, attrs);
+        }
+    }
+
+    /**
+     * Adds a symbolic link to the archive of its package.
+     * @param packageDir the package directory
+     * @param link the link
+     * @param attrs its attributes
+     */
+    public void addSymbolicLink(Path packageDir, Path link, BasicFileAttributes attrs) {
+        PackageArchive archive = this.archives.get(packageDir);
+        if(archive!=null){
+            archive.addSymbolicLink(link, attrs);
+        }
+    }
+
+    /**
+     * Records that something in a package couldn't be archived: the archive is still written, but the sources are kept.
+     * @param packageDir the package directory
+     * @param reason what couldn't be archived, and why
+     */
+    public void skip(Path packageDir, String reason) {
+        PackageArchive archive = this.archives.get(packageDir);
+        if(archive!=null){
+            archive.skip(reason);
+        }
+    }
+
+    /**
+     * Returns the number of packages archived.
+     * @return the number of packages archived
+     */
+    public int getArchived() {
+        return this.archived.get();
+    }
+
+    /**
+     * Returns the number of packages whose archive failed, and whose sources were kept.
+     * @return the number of packages whose archive failed
+     */
+    public int getFailed() {
+        return this.failed.get();
+    }
+}
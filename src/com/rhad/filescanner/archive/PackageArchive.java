@@ -0,0 +1,513 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.archive;
+
+import com.rhad.filescanner.filter.DirectoryFilter;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * The archive of a single package directory, filled while the package is traversed. The threads that scan the package only queue
+ * its entries, which are copied and compressed by a thread of the archive's own, so that they never wait for each other's copies.
+ * The archive is written to a temporary file, which only gets its final name once it has been read back and verified: a package is
+ * either archived completely or not at all. The sources of a verified archive can then be deleted.
+ * @author Roberto Fabrizi
+ */
+final class PackageArchive {
+
+    private static final Logger LOGGER = Logger.getLogger(PackageArchive.class);
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    // the entries waiting to be archived, beyond which the scanner threads wait
+    private static final int QUEUED_ENTRIES = 256;
+    private final Path packageDir;
+    private final Path target;
+    private final Path temporary;
+    private final String compression;
+    private final int level;
+    // the files changed after this time may not be the ones in the archive
+    private final long started = System.currentTimeMillis();
+    // the only thread that writes the archive until it is finished, started with the first entry
+    private final ExecutorService archiving;
+    private final Semaphore queued = new Semaphore(QUEUED_ENTRIES);
+    private FileChannel channel;
+    private GZIPOutputStream gzip;
+    private TarWriter writer;
+    private final AtomicReference<String> incomplete = new AtomicReference<String>();
+    private final AtomicReference<String> failure = new AtomicReference<String>();
+
+    /**
+     * Creates a <code>PackageArchive</code>. Nothing is written until the first entry is added.
+     * @param packageDir the package directory
+     * @param archiveDir the directory the archive is written to
+     * @param compression the compression of the archive, <code>gzip</code> or <code>none</code>
+     * @param level the gzip compression level, from 1 (fastest) to 9 (smallest)
+     */
+    PackageArchive(Path packageDir, Path archiveDir, String compression, int level) {
+        this.packageDir = packageDir;
+        String name = packageDir.getFileName()+(compression.equals("gzip") ? ".tar.gz" : ".tar");
+        this.target = archiveDir.resolve(name);
+        this.temporary = archiveDir.resolve("."+name+".part");
+        this.compression = compression;
+        this.level = level;
+        final String threadName = "Archiver-"+packageDir.getFileName();
+        this.archiving = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a directory.
+     * @param directory the directory, in the package
+     * @param attrs its attributes
+     */
+    void addDirectory(final Path directory, final BasicFileAttributes attrs) {
+        this.queue(directory, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(open()){
+                        writer.putDirectory(entryName(directory), attrs.lastModifiedTime().toMillis());
+                    }
+                } catch(IOException ioe) {
+                    fail("could not write "+directory+": "+ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a symbolic link, which is archived as a link rather than as its target.
+     * @param link the link, in the package
+     * @param attrs its attributes
+     */
+    void addSymbolicLink(final Path link, final BasicFileAttributes attrs) {
+        this.queue(link, new Runnable() {
+            @Override
+            public void run() {
+                String target;
+                try {
+                    target = Files.readSymbolicLink(link).toString();
+                } catch(IOException ioe) {
+                    skip(link+" could not be read: "+ioe);
+                    return;
+                }
+                try {
+                    if(open()){
+                        writer.putSymbolicLink(entryName(link), target, attrs.lastModifiedTime().toMillis());
+                    }
+                } catch(IOException ioe) {
+                    fail("could not write "+link+": "+ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a regular file, copying its content in the archive.
+     * @param file the file, in the package
+     * @param attrs its attributes
+     */
+    void addFile(final Path file, final BasicFileAttributes attrs) {
+        this.queue(file, new Runnable() {
+            @Override
+            public void run() {
+                copy(file, attrs);
+            }
+        });
+    }
+
+    /**
+     * Queues an entry to be written by the thread of the archive, waiting if too many entries are already queued.
+     */
+    private void queue(final Path entry, final Runnable task) {
+        try {
+            this.queued.acquire();
+        } catch(InterruptedException ie) {
+            this.skip(entry+" was not archived, the scan was interrupted");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            this.archiving.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch(RuntimeException e) {
+                        fail("could not archive "+entry+": "+e);
+                    } finally {
+                        queued.release();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            this.queued.release();
+            this.skip(entry+" was found after the archive was finished");
+        }
+    }
+
+    /**
+     * Copies the content of a regular file in the archive, on the thread of the archive.
+     */
+    private void copy(Path file, BasicFileAttributes attrs) {
+        FileChannel content;
+        try {
+            content = FileChannel.open(file, StandardOpenOption.READ);
+        } catch(IOException ioe) {
+            // nothing has been written yet, the archive is still valid without this file
+            this.skip(file+" could not be read: "+ioe);
+            return;
+        }
+        try {
+            if(!this.open()){
+                return;
+            }
+            long size = attrs.size();
+            boolean complete;
+            try {
+                complete = this.writer.putFile(this.entryName(file), size, attrs.lastModifiedTime().toMillis(), content);
+            } catch(IOException ioe) {
+                // the error may come from the file as well as from the archive, in both cases the entry is half written
+                this.fail("could not archive "+file+": "+ioe);
+                return;
+            }
+            if(!complete || content.size()!=size){
+                this.skip(file+" changed while it was archived");
+            }
+        } catch(IOException ioe) {
+            this.skip(file+" changed while it was archived: "+ioe);
+        } finally {
+            try {
+                content.close();
+            } catch(IOException ioe) {
+                LOGGER.debug("Could not close "+file+": "+ioe);
+            }
+        }
+    }
+
+    /**
+     * Marks the archive as incomplete: it is still written, but the sources are kept.
+     * @param reason why the archive is incomplete
+     */
+    void skip(String reason) {
+        this.incomplete.compareAndSet(null, reason);
+        LOGGER.warn("The archive of "+this.packageDir+" is incomplete, its sources will be kept: "+reason);
+    }
+
+    /**
+     * Marks the archive as failed: it is discarded, and the sources are kept.
+     * @param reason why the archive failed
+     */
+    void fail(String reason) {
+        if(this.failure.compareAndSet(null, reason)){
+            LOGGER.error("The archive of "+this.packageDir+" failed, its sources will be kept: "+reason);
+        }
+    }
+
+    /**
+     * Waits for the queued entries, then ends the archive, verifies it and gives it its final name. The archive is discarded if it
+     * failed or cannot be verified. An existing archive with the same name is never replaced. Must be called once.
+     * @return whether the archive has been verified and given its final name
+     */
+    boolean finish() {
+        this.archiving.shutdown();
+        boolean interrupted = false;
+        while(true){
+            try {
+                if(this.archiving.awaitTermination(1L, TimeUnit.MINUTES)){
+                    break;
+                }
+                LOGGER.debug("Waiting for the queued entries of "+this.packageDir);
+            } catch(InterruptedException ie) {
+                // the copy in progress is interrupted too, and the queued entries dropped
+                this.fail("interrupted while finishing");
+                this.archiving.shutdownNow();
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        if(this.writer==null && this.failure.get()==null){
+            this.fail("nothing was archived");
+        }
+        if(this.failure.get()==null){
+            try {
+                this.writer.finish();
+                if(this.gzip!=null){
+                    this.gzip.finish();
+                    this.gzip.flush();
+                }
+                // durable before it gets its final name and the sources are deleted
+                this.channel.force(true);
+            } catch(IOException ioe) {
+                this.fail("could not be written: "+ioe);
+            }
+        }
+        this.closeQuietly();
+        if(this.failure.get()==null){
+            try {
+                this.verify();
+                if(Files.exists(this.target, LinkOption.NOFOLLOW_LINKS)){
+                    throw new FileAlreadyExistsException(this.target.toString());
+                }
+                Files.move(this.temporary, this.target, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException ioe) {
+                this.fail("could not be verified or renamed: "+ioe);
+            }
+        }
+        if(this.failure.get()!=null){
+            this.discard();
+            return false;
+        }
+        LOGGER.info(this.packageDir+" archived to "+this.target+": "+this.writer.getEntries()+" entries, "+this.writer.getBytes()+" bytes");
+        return true;
+    }
+
+    /**
+     * Returns whether nothing was skipped, so that the archive holds the whole package and its sources can be deleted.
+     * @return whether the archive holds the whole package
+     */
+    boolean isComplete() {
+        return this.incomplete.get()==null;
+    }
+
+    /**
+     * Deletes the sources of the archive: every file and symbolic link that hasn't changed since the archive was started, and the
+     * directories left empty. The subtrees the directory filter excludes were not archived, and aren't deleted either.
+     * @param directoryFilter the filter the traversed directories had to match
+     * @return the number of files deleted
+     * @throws IOException if the package cannot be traversed
+     */
+    long deleteSources(final DirectoryFilter directoryFilter) throws IOException {
+        final long[] deleted = new long[1];
+        Files.walkFileTree(this.packageDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.equals(PackageArchive.this.packageDir) || directoryFilter.accepts(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if((attrs.isRegularFile() || attrs.isSymbolicLink()) && PackageArchive.this.unchanged(file, attrs)){
+                    Files.delete(file);
+                    deleted[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                LOGGER.warn("Could not delete "+file+": "+exc);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                try {
+                    Files.delete(dir);
+                } catch(DirectoryNotEmptyException dnee) {
+                    // what's left in it wasn't archived
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted[0];
+    }
+
+    /**
+     * Returns whether a source has neither been modified nor, where the file system tells, replaced or renamed since the archive
+     * was started. A file moved in with <code>mv</code> keeps its modification time, but not its change time.
+     */
+    private boolean unchanged(Path file, BasicFileAttributes attrs) throws IOException {
+        if(attrs.lastModifiedTime().toMillis()>=this.started){
+            return false;
+        }
+        try {
+            FileTime changed = (FileTime) Files.getAttribute(file, "unix:ctime", LinkOption.NOFOLLOW_LINKS);
+            return changed.toMillis()<this.started;
+        } catch(UnsupportedOperationException | IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Opens the temporary file on the first call. Returns false if the archive already failed.
+     */
+    private boolean open() {
+        if(this.failure.get()!=null){
+            return false;
+        }
+        if(this.writer==null){
+            try {
+                this.channel = FileChannel.open(this.temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                WritableByteChannel out;
+                if(this.compression.equals("gzip")){
+                    final int gzipLevel = this.level;
+                    this.gzip = new GZIPOutputStream(Channels.newOutputStream(this.channel), STREAM_BUFFER_SIZE) {
+                        {
+                            this.def.setLevel(gzipLevel);
+                        }
+                    };
+                    out = Channels.newChannel(this.gzip);
+                } else {
+                    // the content of the files is copied from channel to channel, without going through the heap
+                    out = this.channel;
+                }
+                this.writer = new TarWriter(out);
+            } catch(IOException ioe) {
+                this.fail("could not create "+this.temporary+": "+ioe);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the archive back, checking the checksum of every header and that it holds what was written.
+     */
+    private void verify() throws IOException {
+        long entries = 0L;
+        long bytes = 0L;
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(this.temporary), STREAM_BUFFER_SIZE);
+                InputStream in = this.compression.equals("gzip") ? new GZIPInputStream(raw, STREAM_BUFFER_SIZE) : raw) {
+            byte[] block = new byte[TarWriter.BLOCK];
+            while(true){
+                ReadBlock(in, block);
+                ByteBuffer header = ByteBuffer.wrap(block);
+                if(IsZero(block)){
+                    ReadBlock(in, block);
+                    if(!IsZero(block) || in.read()!=-1){
+                        throw new IOException("Unexpected data after the end of the archive");
+                    }
+                    break;
+                }
+                String checksum = new String(block, 148, 8, StandardCharsets.US_ASCII);
+                if(!TarWriter.Checksum(WithBlankChecksum(header)).equals(checksum)){
+                    throw new IOException("Bad checksum in entry "+entries);
+                }
+                long size = ReadSize(block);
+                byte type = block[156];
+                if(type!='L' && type!='K'){
+                    entries++;
+                }
+                if(type=='0'){
+                    bytes+=size;
+                }
+                Skip(in, (size+TarWriter.BLOCK-1)/TarWriter.BLOCK*TarWriter.BLOCK);
+            }
+        }
+        if(entries!=this.writer.getEntries() || bytes!=this.writer.getBytes()){
+            throw new IOException("The archive holds "+entries+" entries and "+bytes+" bytes, "+this.writer.getEntries()+" entries and "+this.writer.getBytes()+" bytes were written");
+        }
+    }
+
+    private static ByteBuffer WithBlankChecksum(ByteBuffer header) {
+        ByteBuffer copy = ByteBuffer.allocate(TarWriter.BLOCK);
+        copy.put(header.duplicate());
+        for(int i=148; i<156; i++){
+            copy.put(i, (byte) ' ');
+        }
+        return copy;
+    }
+
+    private static long ReadSize(byte[] block) {
+        if((block[124]&0x80)!=0){
+            return ByteBuffer.wrap(block, 128, 8).getLong();
+        }
+        String octal = new String(block, 124, 11, StandardCharsets.US_ASCII).trim();
+        return Long.parseLong(octal, 8);
+    }
+
+    private static boolean IsZero(byte[] block) {
+        for(byte b : block){
+            if(b!=0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void ReadBlock(InputStream in, byte[] block) throws IOException {
+        int read = 0;
+        while(read<block.length){
+            int n = in.read(block, read, block.length-read);
+            if(n<0){
+                throw new EOFException("The archive is truncated");
+            }
+            read+=n;
+        }
+    }
+
+    private static void Skip(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        while(length>0){
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if(n<0){
+                throw new EOFException("The archive is truncated");
+            }
+            length-=n;
+        }
+    }
+
+    /**
+     * Returns the name of an entry: its path relative to the parent of the package, as <code>tar</code> would write it from there.
+     */
+    private String entryName(Path path) {
+        Path base = this.packageDir.getParent();
+        Path relative = base!=null ? base.relativize(path) : path;
+        StringBuilder sb = new StringBuilder();
+        for(Path element : relative){
+            if(sb.length()>0){
+                sb.append('/');
+            }
+            sb.append(element);
+        }
+        return sb.toString();
+    }
+
+    private void closeQuietly() {
+        try {
+            if(this.gzip!=null){
+                // also releases the native memory of the compressor
+                this.gzip.close();
+            } else if(this.channel!=null){
+                this.channel.close();
+            }
+        } catch(IOException ioe) {
+            LOGGER.debug("Could not close "+this.temporary+": "+ioe);
+        }
+    }
+
+    private void discard() {
+        try {
+            Files.deleteIfExists(this.temporary);
+        } catch(IOException ioe) {
+            LOGGER.warn("Could not delete "+this.temporary+": "+ioe);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a tar archive, in the ustar format that <code>tar</code> reads on every platform. Names and link targets longer than
+ * 100 bytes are written as GNU long names, and sizes that don't fit the 11 octal digits of ustar in the GNU base-256 encoding.
+ * The content of the files is copied straight from their {@link java.nio.channels.FileChannel}.
+ * @author Roberto Fabrizi
+ */
+public final class TarWriter {
+
+    static final int BLOCK = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final String LONG_LINK = "././@LongLink";
+    private final WritableByteChannel out;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+    private final ByteBuffer padding = ByteBuffer.allocate(BLOCK);
+    private long entries = 0L;
+    private long bytes = 0L;
+
+    /**
+     * Creates a <code>TarWriter</code>.
+     * @param out the channel the archive is written to
+     */
+    public TarWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the entry of a directory.
+     * @param name the name of the directory in the archive
+     * @param lastModified its last modification time
+     * @throws IOException if the archive cannot be written
+     */
+    public void putDirectory(String name, long lastModified) throws IOException {
+        this.putHeader(name.endsWith("/") ? name : name+"/", '5', 0755, 0L, lastModified, "");
+        this.entries++;
+    }
+
+    /**
+     * Writes the entry of a symbolic link.
+     * @param name the name of the link in the archive
+     * @param target the target of the link
+     * @param lastModified its last modification time
+     * @throws IOException if the archive cannot be written
+     */
+    public void putSymbolicLink(String name, String target, long lastModified) throws IOException {
+        this.putHeader(name, '2', 0777, 0L, lastModified, target);
+        this.entries++;
+    }
+
+    /**
+     * Writes the entry of a file, copying its content from the passed channel.
+     * @param name the name of the file in the archive
+     * @param size the size of the file, as recorded in the entry
+     * @param lastModified its last modification time
+     * @param content the channel to read the content from
+     * @return false if the file was shorter than <code>size</code> and the entry was padded with zeros
+     * @throws IOException if the file cannot be read or the archive cannot be written
+     */
+    public boolean putFile(String name, long size, long lastModified, FileChannel content) throws IOException {
+        this.putHeader(name, '0', 0644, size, lastModified, "");
+        long position = 0L;
+        while(position<size){
+            long transferred = content.transferTo(position, size-position, this.out);
+            if(transferred<=0){
+                break;
+            }
+            position+=transferred;
+        }
+        boolean complete = position==size;
+        // the entry must have the size of its header, whatever happened to the file
+        for(long missing=size-position; missing>0; missing-=BLOCK){
+            this.writePadding((int) Math.min(missing, BLOCK));
+        }
+        this.writePadding((int) ((BLOCK-size%BLOCK)%BLOCK));
+        this.entries++;
+        this.bytes+=size;
+        return complete;
+    }
+
+    /**
+     * Writes the two empty blocks that end the archive. The underlying channel is not closed.
+     * @throws IOException if the archive cannot be written
+     */
+    public void finish() throws IOException {
+        this.writePadding(BLOCK);
+        this.writePadding(BLOCK);
+    }
+
+    /**
+     * Returns the number of entries written.
+     * @return the number of entries written
+     */
+    public long getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Returns the total size of the files written.
+     * @return the total size of the files written
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    private void putHeader(String name, char type, int mode, long size, long lastModified, String linkName) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] linkBytes = linkName.getBytes(StandardCharsets.UTF_8);
+        if(nameBytes.length>100){
+            this.putLongName('L', nameBytes);
+        }
+        if(linkBytes.length>100){
+            this.putLongName('K', linkBytes);
+        }
+        this.writeHeader(nameBytes, type, mode, size, lastModified/1000L, linkBytes);
+    }
+
+    private void putLongName(char type, byte[] name) throws IOException {
+        // the name, NUL terminated, is the content of a pseudo entry that precedes the real one
+        this.writeHeader(LONG_LINK.getBytes(StandardCharsets.US_ASCII), type, 0644, name.length+1, 0L, new byte[0]);
+        this.writeFully(ByteBuffer.wrap(name));
+        this.writePadding(1+(BLOCK-(name.length+1)%BLOCK)%BLOCK);
+    }
+
+    private void writeHeader(byte[] name, char type, int mode, long size, long mtime, byte[] linkName) throws IOException {
+        ByteBuffer h = this.header;
+        h.clear();
+        h.put(new byte[BLOCK]);
+        PutBytes(h, 0, name, 100);
+        PutOctal(h, 100, mode, 8);
+        PutOctal(h, 108, 0, 8);
+        PutOctal(h, 116, 0, 8);
+        if(size<=MAX_OCTAL_SIZE){
+            PutOctal(h, 124, size, 12);
+        } else {
+            // GNU base-256: the first byte flags the encoding, the size is big-endian in the others
+            h.put(124, (byte) 0x80);
+            h.putLong(128, size);
+        }
+        PutOctal(h, 136, Math.max(mtime, 0L), 12);
+        h.put(156, (byte) type);
+        PutBytes(h, 157, linkName, 100);
+        PutBytes(h, 257, "ustar".getBytes(StandardCharsets.US_ASCII), 6);
+        PutBytes(h, 263, "00".getBytes(StandardCharsets.US_ASCII), 2);
+        // the checksum is computed with its own field filled with spaces
+        for(int i=148; i<156; i++){
+            h.put(i, (byte) ' ');
+        }
+        h.put(148, Checksum(h).getBytes(StandardCharsets.US_ASCII));
+        h.position(0).limit(BLOCK);
+        this.writeFully(h);
+    }
+
+    static String Checksum(ByteBuffer h) {
+        long sum = 0L;
+        for(int i=0; i<BLOCK; i++){
+            sum+=h.get(i)&0xFF;
+        }
+        StringBuilder sb = new StringBuilder(Long.toOctalString(sum));
+        while(sb.length()<6){
+            sb.insert(0, '0');
+        }
+        return sb.append('\0').append(' ').toString();
+    }
+
+    private static void PutBytes(ByteBuffer h, int offset, byte[] value, int length) {
+        for(int i=0; i<Math.min(value.length, length); i++){
+            h.put(offset+i, value[i]);
+        }
+    }
+
+    private static void PutOctal(ByteBuffer h, int offset, long value, int length) {
+        // length-1 octal digits, zero padded, NUL terminated
+        String octal = Long.toOctalString(value);
+        int pad = length-1-octal.length();
+        for(int i=0; i<pad; i++){
+            h.put(offset+i, (byte) '0');
+        }
+        PutBytes(h, offset+Math.max(pad, 0), octal.getBytes(StandardCharsets.US_ASCII), length-1);
+    }
+
+    private void writePadding(int length) throws IOException {
+        if(length>0){
+            this.padding.clear().limit(length);
+            this.writeFully(this.padding);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            this.out.write(buffer);
+        }
+    }
+}
@@ -10,18 +10,68 @@
 package com.rhad.filescanner.config;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 
 /**
- * This class is a mapping of the <code>config.properties</code> file.
+ * This class is a mapping of the <code>config.properties</code> file. Any key can be overridden with a <code>filescanner.&lt;key&gt;</code>
+ * system property, i.e. <code>-Dfilescanner.paths=/sw/installations</code>.
  * @author Roberto Fabrizi
  */
 public final class ConfigProperties {
 
+    private static final String SYSTEM_PREFIX = "filescanner.";
+
     private final Boolean debug;
+    private boolean followLinks = true;
+    private boolean incremental = false;
+    private String indexFile;
+    private String checkpointFile;
+    private long checkpointInterval = 60L;
+    private boolean watch = false;
+    private long watchDebounce = 2000L;
+    private long watchPollInterval = 300L;
+    private boolean shard = false;
+    private String shardRun;
+    private String shardNode;
+    private long shardLease = 300L;
+    private int shardLeases = 8;
+    private String sink = "database";
+    private String sinkFile;
+    private String persistenceMode = "insert";
+    private String schemaMode;
+    private boolean hash = false;
+    private String hashAlgorithm = "SHA-256";
+    private int hashThreads = 4;
+    private String hashCache;
+    private String archivePath;
+    private String archiveCompression = "gzip";
+    private int archiveLevel = 6;
+    private boolean archiveDeleteSources = false;
+    private boolean summary = false;
+    private boolean introspect = false;
+    private int introspectThreads = 2;
+    private String pathIndex;
     private int threads = Runtime.getRuntime().availableProcessors();
+    private String execution = "forkjoin";
+    private int ioConcurrency = -1;
+    private int deviceConcurrency = 0;
+    private boolean adaptive = false;
+    private int ioConcurrencyMin = 1;
+    private long adaptiveInterval = 10L;
+    private int batchSize = 500;
+    private long flushInterval = 1000L;
+    private int queueSize = 10000;
+    private int writerThreads = 1;
+    private String walDir;
+    private long walSegmentSize = 64L;
+    private String walFsync = "flush";
+    private long metricsInterval = 60L;
     private String[] pathArray;
     private String[] fileExtentionArray;
+    private String[] includeDirArray;
+    private String[] excludeDirArray;
 
     /**
      * Creates a <code>ConfigProperties</code>, which is in charge of parsing the config.properties file and extract the
@@ -37,11 +87,250 @@ public final class ConfigProperties {
             Properties defaultProps = new Properties();
             propertiesFile = new FileInputStream(configFile);
             defaultProps.load(propertiesFile);
+            for(String name : System.getProperties().stringPropertyNames()){
+                if(name.startsWith(SYSTEM_PREFIX)){
+                    defaultProps.setProperty(name.substring(SYSTEM_PREFIX.length()), System.getProperty(name));
+                }
+            }
             try {
                 this.threads=Integer.parseInt(defaultProps.getProperty("threads"));
             } catch(NumberFormatException e) {
             }
+            if(defaultProps.getProperty("execution")!=null && !defaultProps.getProperty("execution").trim().equalsIgnoreCase("")){
+                this.execution = defaultProps.getProperty("execution").trim().toLowerCase(Locale.ROOT);
+            }
+            if(!Arrays.asList("forkjoin", "virtual").contains(this.execution)){
+                throw new IllegalArgumentException("The execution property must be one of forkjoin and virtual.");
+            }
+            this.adaptive = Boolean.valueOf(defaultProps.getProperty("adaptive"));
+            try {
+                this.ioConcurrency=Integer.parseInt(defaultProps.getProperty("io_concurrency"));
+                if(this.ioConcurrency<0){
+                    throw new IllegalArgumentException("The io_concurrency property cannot be negative.");
+                }
+            } catch(NumberFormatException e) {
+                // no limit with a thread per core, a limit to protect the file server with a thread per directory, or to adapt
+                this.ioConcurrency = this.execution.equals("virtual") ? 256 : this.adaptive ? this.threads : 0;
+            }
+            try {
+                this.deviceConcurrency=Integer.parseInt(defaultProps.getProperty("device_concurrency"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.deviceConcurrency<0){
+                throw new IllegalArgumentException("The device_concurrency property cannot be negative.");
+            }
+            try {
+                this.ioConcurrencyMin=Integer.parseInt(defaultProps.getProperty("io_concurrency_min"));
+            } catch(NumberFormatException e) {
+            }
+            try {
+                this.adaptiveInterval=Long.parseLong(defaultProps.getProperty("adaptive_interval"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.adaptive){
+                if(this.ioConcurrency==0){
+                    throw new IllegalArgumentException("The io_concurrency property must be positive when adaptive is \"true\".");
+                }
+                if(this.ioConcurrencyMin<1 || this.ioConcurrencyMin>this.ioConcurrency){
+                    throw new IllegalArgumentException("The io_concurrency_min property must be between 1 and io_concurrency.");
+                }
+                if(this.adaptiveInterval<1){
+                    throw new IllegalArgumentException("The adaptive_interval property must be positive.");
+                }
+            }
+            try {
+                this.batchSize=Integer.parseInt(defaultProps.getProperty("batch_size"));
+            } catch(NumberFormatException e) {
+            }
+            try {
+                this.flushInterval=Long.parseLong(defaultProps.getProperty("flush_interval"));
+            } catch(NumberFormatException e) {
+            }
+            try {
+                this.queueSize=Integer.parseInt(defaultProps.getProperty("queue_size"));
+            } catch(NumberFormatException e) {
+            }
+            try {
+                this.writerThreads=Integer.parseInt(defaultProps.getProperty("writer_threads"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.writerThreads<1){
+                throw new IllegalArgumentException("The writer_threads property must be positive.");
+            }
+            this.walDir = defaultProps.getProperty("wal_dir");
+            try {
+                this.walSegmentSize=Long.parseLong(defaultProps.getProperty("wal_segment_size"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.walSegmentSize<1){
+                throw new IllegalArgumentException("The wal_segment_size property must be positive.");
+            }
+            if(defaultProps.getProperty("wal_fsync")!=null && !defaultProps.getProperty("wal_fsync").trim().equalsIgnoreCase("")){
+                this.walFsync = defaultProps.getProperty("wal_fsync").trim().toLowerCase(Locale.ROOT);
+            }
+            if(!Arrays.asList("always", "flush", "never").contains(this.walFsync)){
+                throw new IllegalArgumentException("The wal_fsync property must be one of always, flush and never.");
+            }
+            try {
+                this.metricsInterval=Long.parseLong(defaultProps.getProperty("metrics_interval"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.metricsInterval<0){
+                throw new IllegalArgumentException("The metrics_interval property cannot be negative.");
+            }
+            if(this.batchSize<1 || this.flushInterval<1 || this.queueSize<1){
+                throw new IllegalArgumentException("The batch_size, flush_interval and queue_size properties must be positive.");
+            }
             this.debug = Boolean.valueOf(defaultProps.getProperty("debug"));
+            if(defaultProps.getProperty("follow_links")!=null){
+                this.followLinks = Boolean.valueOf(defaultProps.getProperty("follow_links").trim());
+            }
+            this.incremental = Boolean.valueOf(defaultProps.getProperty("incremental"));
+            this.indexFile = defaultProps.getProperty("index_file");
+            if(this.incremental && (this.indexFile==null || this.indexFile.trim().equalsIgnoreCase(""))){
+                throw new IllegalArgumentException("The index_file property cannot be null when incremental is true.");
+            }
+            if(defaultProps.getProperty("sink")!=null && !defaultProps.getProperty("sink").trim().equalsIgnoreCase("")){
+                this.sink = defaultProps.getProperty("sink").trim().toLowerCase(Locale.ROOT);
+            }
+            if(!Arrays.asList("database", "csv", "jsonl", "binary").contains(this.sink)){
+                throw new IllegalArgumentException("The sink property must be one of database, csv, jsonl and binary.");
+            }
+            this.sinkFile = defaultProps.getProperty("sink_file");
+            if(!this.sink.equals("database") && (this.sinkFile==null || this.sinkFile.trim().equalsIgnoreCase(""))){
+                throw new IllegalArgumentException("The sink_file property cannot be null when sink is not database.");
+            }
+            if(defaultProps.getProperty("persistence_mode")!=null && !defaultProps.getProperty("persistence_mode").trim().equalsIgnoreCase("")){
+                this.persistenceMode = defaultProps.getProperty("persistence_mode").trim().toLowerCase(Locale.ROOT);
+            }
+            if(!Arrays.asList("insert", "upsert").contains(this.persistenceMode)){
+                throw new IllegalArgumentException("The persistence_mode property must be one of insert and upsert.");
+            }
+            if(defaultProps.getProperty("schema_mode")!=null && !defaultProps.getProperty("schema_mode").trim().equalsIgnoreCase("")){
+                this.schemaMode = defaultProps.getProperty("schema_mode").trim().toLowerCase(Locale.ROOT);
+                if(!Arrays.asList("update", "validate", "none").contains(this.schemaMode)){
+                    throw new IllegalArgumentException("The schema_mode property must be one of update, validate and none.");
+                }
+            }
+            this.hash = Boolean.valueOf(defaultProps.getProperty("hash"));
+            if(defaultProps.getProperty("hash_algorithm")!=null && !defaultProps.getProperty("hash_algorithm").trim().equalsIgnoreCase("")){
+                this.hashAlgorithm = defaultProps.getProperty("hash_algorithm").trim();
+            }
+            try {
+                this.hashThreads=Integer.parseInt(defaultProps.getProperty("hash_threads"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.hashThreads<1){
+                throw new IllegalArgumentException("The hash_threads property must be positive.");
+            }
+            this.hashCache = defaultProps.getProperty("hash_cache");
+            this.archivePath = defaultProps.getProperty("archive_path");
+            if(defaultProps.getProperty("archive_compression")!=null && !defaultProps.getProperty("archive_compression").trim().equalsIgnoreCase("")){
+                this.archiveCompression = defaultProps.getProperty("archive_compression").trim().toLowerCase(Locale.ROOT);
+            }
+            if(!Arrays.asList("gzip", "none").contains(this.archiveCompression)){
+                throw new IllegalArgumentException("The archive_compression property must be one of gzip and none.");
+            }
+            try {
+                this.archiveLevel=Integer.parseInt(defaultProps.getProperty("archive_level"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.archiveLevel<1 || this.archiveLevel>9){
+                throw new IllegalArgumentException("The archive_level property must be between 1 and 9.");
+            }
+            if(defaultProps.getProperty("archive_delete_sources")!=null){
+                this.archiveDeleteSources = Boolean.valueOf(defaultProps.getProperty("archive_delete_sources").trim());
+            }
+            this.summary = Boolean.valueOf(defaultProps.getProperty("summary"));
+            this.introspect = Boolean.valueOf(defaultProps.getProperty("introspect"));
+            try {
+                this.introspectThreads=Integer.parseInt(defaultProps.getProperty("introspect_threads"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.introspectThreads<1){
+                throw new IllegalArgumentException("The introspect_threads property must be positive.");
+            }
+            this.pathIndex = defaultProps.getProperty("path_index");
+            this.checkpointFile = defaultProps.getProperty("checkpoint_file");
+            try {
+                this.checkpointInterval=Long.parseLong(defaultProps.getProperty("checkpoint_interval"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.checkpointInterval<1){
+                throw new IllegalArgumentException("The checkpoint_interval property must be positive.");
+            }
+            this.watch = Boolean.valueOf(defaultProps.getProperty("watch"));
+            try {
+                this.watchDebounce=Long.parseLong(defaultProps.getProperty("watch_debounce"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.watchDebounce<0){
+                throw new IllegalArgumentException("The watch_debounce property cannot be negative.");
+            }
+            try {
+                this.watchPollInterval=Long.parseLong(defaultProps.getProperty("watch_poll_interval"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.watchPollInterval<1){
+                throw new IllegalArgumentException("The watch_poll_interval property must be positive.");
+            }
+            this.shard = Boolean.valueOf(defaultProps.getProperty("shard"));
+            this.shardRun = defaultProps.getProperty("shard_run");
+            if(this.shardRun!=null && !this.shardRun.trim().equalsIgnoreCase("")){
+                this.shardRun = this.shardRun.trim();
+            } else if(this.shard){
+                // a date would split the nodes started around midnight into two runs, and merge the runs started on the same day
+                throw new IllegalArgumentException("The shard_run property cannot be null when shard is true.");
+            } else {
+                this.shardRun = null;
+            }
+            this.shardNode = defaultProps.getProperty("shard_node");
+            if(this.shardNode==null || this.shardNode.trim().equalsIgnoreCase("")){
+                this.shardNode = LocalHostName()+":"+ProcessHandle.current().pid();
+            }
+            this.shardNode = this.shardNode.trim();
+            try {
+                this.shardLease=Long.parseLong(defaultProps.getProperty("shard_lease"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.shardLease<3){
+                throw new IllegalArgumentException("The shard_lease property must be at least 3.");
+            }
+            try {
+                this.shardLeases=Integer.parseInt(defaultProps.getProperty("shard_leases"));
+            } catch(NumberFormatException e) {
+            }
+            if(this.shardLeases<1){
+                throw new IllegalArgumentException("The shard_leases property must be positive.");
+            }
+            if(this.shard && (this.debug || !this.sink.equals("database") || !this.persistenceMode.equals("upsert"))){
+                // the packages of a dead node are scanned again, their rows must be merged rather than inserted twice
+                throw new IllegalArgumentException("The shard property requires the database sink with persistence_mode=upsert, and cannot be used in debug mode.");
+            }
+            if(this.shard && (this.incremental || this.checkpointFile!=null)){
+                // every node scans different packages at every run, and the leases already tell what is left of an interrupted run
+                throw new IllegalArgumentException("The shard property cannot be used with incremental or checkpoint_file.");
+            }
+            if(this.getWalDir()!=null && (this.debug || !this.sink.equals("database") || !this.persistenceMode.equals("upsert"))){
+                // the log stands in for the database while it is slow or can't be reached, and what it replays twice must be merged
+                throw new IllegalArgumentException("The wal_dir property requires the database sink with persistence_mode=upsert, and cannot be used in debug mode.");
+            }
+            if(this.incremental && !this.debug && this.sink.equals("database") && !this.persistenceMode.equals("upsert")){
+                // a changed file is emitted again, insert would keep its stale row next to the new one
+                throw new IllegalArgumentException("The incremental property requires persistence_mode=upsert with the database sink.");
+            }
+            if(this.watch && !this.incremental){
+                // the index is what tells the changes of a directory apart
+                throw new IllegalArgumentException("The watch property requires incremental to be true.");
+            }
+            if(this.getPathIndex()!=null && (this.incremental || this.checkpointFile!=null || this.shard)){
+                // only the files of the directories listed by this run, or of the packages leased by this node, would be in the index
+                throw new IllegalArgumentException("The path_index property cannot be used with incremental, checkpoint_file or shard.");
+            }
+            if(this.getArchivePath()!=null && this.incremental){
+                // the directories that didn't change aren't listed, their files would be missing from the archives
+                throw new IllegalArgumentException("The archive_path property cannot be used when incremental is true.");
+            }
             String paths=defaultProps.getProperty("paths");
             if(paths==null || paths.equalsIgnoreCase("")){
                 throw new IllegalArgumentException("The paths property cannot be null.");
@@ -63,8 +352,10 @@ public final class ConfigProperties {
             } else if(!fileExtentions.contains(",")){
                 // if it isnt null but doesnt contain any , use it as is
                 this.fileExtentionArray = new String[1];
-                this.fileExtentionArray[0] = paths;
+                this.fileExtentionArray[0] = fileExtentions;
             }
+            this.includeDirArray = Split(defaultProps.getProperty("include_dirs"));
+            this.excludeDirArray = Split(defaultProps.getProperty("exclude_dirs"));
         } finally {
             if(propertiesFile!=null){
                 propertiesFile.close();
@@ -86,7 +377,7 @@ public final class ConfigProperties {
                 sb2.append(this.fileExtentionArray[i]).append(",");
             }
         }
-        return "ConfigProperties{" + "debug=" + this.debug + ", threads=" + this.threads + ", pathArray=" + sb.toString() + ", fileExtentionArray=" + sb2.toString() + '}';
+        return "ConfigProperties{" + "debug=" + this.debug + ", followLinks=" + this.followLinks + ", incremental=" + this.incremental + ", indexFile=" + this.indexFile + ", checkpointFile=" + this.checkpointFile + ", checkpointInterval=" + this.checkpointInterval + ", watch=" + this.watch + ", watchDebounce=" + this.watchDebounce + ", watchPollInterval=" + this.watchPollInterval + ", shard=" + this.shard + ", shardRun=" + this.shardRun + ", shardNode=" + this.shardNode + ", shardLease=" + this.shardLease + ", shardLeases=" + this.shardLeases + ", sink=" + this.sink + ", sinkFile=" + this.sinkFile + ", persistenceMode=" + this.persistenceMode + ", schemaMode=" + this.schemaMode + ", hash=" + this.hash + ", hashAlgorithm=" + this.hashAlgorithm + ", hashThreads=" + this.hashThreads + ", hashCache=" + this.hashCache + ", archivePath=" + this.archivePath + ", archiveCompression=" + this.archiveCompression + ", archiveLevel=" + this.archiveLevel + ", archiveDeleteSources=" + this.archiveDeleteSources + ", summary=" + this.summary + ", introspect=" + this.introspect + ", introspectThreads=" + this.introspectThreads + ", pathIndex=" + this.pathIndex + ", threads=" + this.threads + ", execution=" + this.execution + ", ioConcurrency=" + this.ioConcurrency + ", deviceConcurrency=" + this.deviceConcurrency + ", adaptive=" + this.adaptive + ", ioConcurrencyMin=" + this.ioConcurrencyMin + ", adaptiveInterval=" + this.adaptiveInterval + ", batchSize=" + this.batchSize + ", flushInterval=" + this.flushInterval + ", queueSize=" + this.queueSize + ", writerThreads=" + this.writerThreads + ", walDir=" + this.walDir + ", walSegmentSize=" + this.walSegmentSize + ", walFsync=" + this.walFsync + ", metricsInterval=" + this.metricsInterval + ", pathArray=" + sb.toString() + ", fileExtentionArray=" + sb2.toString() + ", includeDirs=" + this.getIncludedDirs() + ", excludeDirs=" + this.getExcludedDirs() + '}';
     }
     
     /**
@@ -97,6 +388,238 @@ public final class ConfigProperties {
         return this.debug;
     }
     
+    /**
+     * Returns whether symbolic links are followed during the scan. If this parameter isn't specified in the config.properties file, it returns true.
+     * @return whether symbolic links are followed during the scan. If this parameter isn't specified in the config.properties file, it returns true
+     */
+    public Boolean isFollowLinks() {
+        return this.followLinks;
+    }
+    
+    /**
+     * Returns whether only the changes since the previous scan are persisted. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether only the changes since the previous scan are persisted. If this parameter isn't specified in the config.properties file, it returns false
+     */
+    public Boolean isIncremental() {
+        return this.incremental;
+    }
+    
+    /**
+     * Returns the path of the file the index of the scanned directories is stored in, or null if none was specified in the config.properties file.
+     * @return the path of the file the index of the scanned directories is stored in, or null if none was specified
+     */
+    public String getIndexFile() {
+        return this.indexFile==null ? null : this.indexFile.trim();
+    }
+
+    /**
+     * Returns the file where the subtrees completely scanned are journaled, to resume an interrupted scan, or null if the scan isn't journaled.
+     * @return the file where the subtrees completely scanned are journaled, or null
+     */
+    public String getCheckpointFile() {
+        return this.checkpointFile==null || this.checkpointFile.trim().equalsIgnoreCase("") ? null : this.checkpointFile.trim();
+    }
+
+    /**
+     * Returns the number of seconds between two checkpoints of the journal. If this parameter isn't specified in the config.properties file, it returns 60.
+     * @return the number of seconds between two checkpoints of the journal
+     */
+    public long getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    /**
+     * Returns whether the scanner keeps running after the first scan, watching the paths for changes. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the scanner keeps running after the first scan, watching the paths for changes
+     */
+    public boolean isWatch() {
+        return this.watch;
+    }
+
+    /**
+     * Returns the number of milliseconds without events in a directory before it is scanned again. If this parameter isn't specified in the config.properties file, it returns 2000.
+     * @return the number of milliseconds without events in a directory before it is scanned again
+     */
+    public long getWatchDebounce() {
+        return this.watchDebounce;
+    }
+
+    /**
+     * Returns the number of seconds between two scans of the paths that cannot be watched. If this parameter isn't specified in the config.properties file, it returns 300.
+     * @return the number of seconds between two scans of the paths that cannot be watched
+     */
+    public long getWatchPollInterval() {
+        return this.watchPollInterval;
+    }
+
+    /**
+     * Returns whether the packages are shared out among several nodes through the database. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the packages are shared out among several nodes through the database
+     */
+    public boolean isShard() {
+        return this.shard;
+    }
+
+    /**
+     * Returns the name of the run the packages are shared out in, which must be specified when <code>shard</code> is true, or null.
+     * @return the name of the run the packages are shared out in
+     */
+    public String getShardRun() {
+        return this.shardRun;
+    }
+
+    /**
+     * Returns the name of this node among the nodes of a run. If this parameter isn't specified in the config.properties file, it returns the host name and the process id.
+     * @return the name of this node among the nodes of a run
+     */
+    public String getShardNode() {
+        return this.shardNode;
+    }
+
+    /**
+     * Returns the number of seconds the lease of a package lasts unless it is renewed. If this parameter isn't specified in the config.properties file, it returns 300.
+     * @return the number of seconds the lease of a package lasts unless it is renewed
+     */
+    public long getShardLease() {
+        return this.shardLease;
+    }
+
+    /**
+     * Returns the maximum number of packages leased by this node at once. If this parameter isn't specified in the config.properties file, it returns 8.
+     * @return the maximum number of packages leased by this node at once
+     */
+    public int getShardLeases() {
+        return this.shardLeases;
+    }
+
+    /**
+     * Returns where the scanned files are emitted: <code>database</code>, <code>csv</code>, <code>jsonl</code> or <code>binary</code>. If this parameter isn't specified in the config.properties file, it returns <code>database</code>.
+     * @return where the scanned files are emitted
+     */
+    public String getSink() {
+        return this.sink;
+    }
+
+    /**
+     * Returns the file the scanned files are written to when the sink isn't the database, or null.
+     * @return the file the scanned files are written to when the sink isn't the database, or null
+     */
+    public String getSinkFile() {
+        return this.sinkFile==null ? null : this.sinkFile.trim();
+    }
+
+    /**
+     * Returns how the scanned files are persisted in the database: <code>insert</code> or <code>upsert</code>. If this parameter isn't specified in the config.properties file, it returns <code>insert</code>.
+     * @return how the scanned files are persisted in the database
+     */
+    public String getPersistenceMode() {
+        return this.persistenceMode;
+    }
+
+    /**
+     * Returns what is done to the database schema when the application starts: <code>update</code>, <code>validate</code> or <code>none</code>. If this parameter isn't specified in the config.properties file, it returns null, and the <code>hibernate.hbm2ddl.auto</code> property of the persistence.xml applies.
+     * @return what is done to the database schema when the application starts, or null
+     */
+    public String getSchemaMode() {
+        return this.schemaMode;
+    }
+
+    /**
+     * Returns whether the digest of the content of the matched files is computed. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the digest of the content of the matched files is computed
+     */
+    public boolean isHash() {
+        return this.hash;
+    }
+
+    /**
+     * Returns the name of the digest algorithm. If this parameter isn't specified in the config.properties file, it returns SHA-256.
+     * @return the name of the digest algorithm
+     */
+    public String getHashAlgorithm() {
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Returns the number of threads reading the content of the files to hash. If this parameter isn't specified in the config.properties file, it returns 4.
+     * @return the number of threads reading the content of the files to hash
+     */
+    public int getHashThreads() {
+        return this.hashThreads;
+    }
+
+    /**
+     * Returns the file where the digests are kept between runs, or null if every file is hashed at every run.
+     * @return the file where the digests are kept between runs, or null
+     */
+    public String getHashCache() {
+        return this.hashCache==null || this.hashCache.trim().equalsIgnoreCase("") ? null : this.hashCache.trim();
+    }
+
+    /**
+     * Returns the directory the packages are archived to, or null if the packages aren't archived.
+     * @return the directory the packages are archived to, or null
+     */
+    public String getArchivePath() {
+        return this.archivePath==null || this.archivePath.trim().equalsIgnoreCase("") ? null : this.archivePath.trim();
+    }
+
+    /**
+     * Returns the compression of the archives, <code>gzip</code> or <code>none</code>. If this parameter isn't specified in the config.properties file, it returns gzip.
+     * @return the compression of the archives
+     */
+    public String getArchiveCompression() {
+        return this.archiveCompression;
+    }
+
+    /**
+     * Returns the gzip compression level of the archives, from 1 to 9. If this parameter isn't specified in the config.properties file, it returns 6.
+     * @return the gzip compression level of the archives
+     */
+    public int getArchiveLevel() {
+        return this.archiveLevel;
+    }
+
+    /**
+     * Returns whether the sources of a verified archive are deleted. If this parameter isn't specified in the config.properties file, it returns true.
+     * @return whether the sources of a verified archive are deleted
+     */
+    public boolean isArchiveDeleteSources() {
+        return this.archiveDeleteSources;
+    }
+
+    /**
+     * Returns whether the per package aggregates are computed during the scan. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the per package aggregates are computed during the scan
+     */
+    public boolean isSummary() {
+        return this.summary;
+    }
+
+    /**
+     * Returns whether the entries of the matched archives are read. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the entries of the matched archives are read
+     */
+    public boolean isIntrospect() {
+        return this.introspect;
+    }
+
+    /**
+     * Returns the number of threads reading the entries of the archives. If this parameter isn't specified in the config.properties file, it returns 2.
+     * @return the number of threads reading the entries of the archives
+     */
+    public int getIntrospectThreads() {
+        return this.introspectThreads;
+    }
+
+    /**
+     * Returns the file the path index of the scan is written to, or null if no index is written.
+     * @return the file the path index of the scan is written to, or null
+     */
+    public String getPathIndex() {
+        return this.pathIndex==null || this.pathIndex.trim().equalsIgnoreCase("") ? null : this.pathIndex.trim();
+    }
+    
     /**
      * Returns the number of parallel threads to use for the scan process. If none where specified in the config.properties file, the number of CPUs is returned.
      * @return the number of parallel threads to use for the scan process. If none where specified in the config.properties file, the number of CPUs is returned
@@ -105,6 +628,118 @@ public final class ConfigProperties {
         return this.threads;
     }
 
+    /**
+     * Returns the maximum number of rows persisted in a single transaction. If none was specified in the config.properties file, 500 is returned.
+     * @return the maximum number of rows persisted in a single transaction
+     */
+    public Integer getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Returns the maximum number of milliseconds a row waits before being persisted. If none was specified in the config.properties file, 1000 is returned.
+     * @return the maximum number of milliseconds a row waits before being persisted
+     */
+    public Long getFlushInterval() {
+        return this.flushInterval;
+    }
+
+    /**
+     * Returns the maximum number of rows waiting to be persisted. If none was specified in the config.properties file, 10000 is returned.
+     * @return the maximum number of rows waiting to be persisted
+     */
+    public Integer getQueueSize() {
+        return this.queueSize;
+    }
+
+    /**
+     * Returns the number of threads persisting the rows, or their maximum when the concurrency is adaptive. If this parameter isn't specified in the config.properties file, it returns 1.
+     * @return the number of threads persisting the rows
+     */
+    public int getWriterThreads() {
+        return this.writerThreads;
+    }
+
+    /**
+     * Returns the directory of the write-ahead log the files go through on their way to the database, or null if they are queued in memory only.
+     * @return the directory of the write-ahead log, or null
+     */
+    public String getWalDir() {
+        return this.walDir==null || this.walDir.trim().equalsIgnoreCase("") ? null : this.walDir.trim();
+    }
+
+    /**
+     * Returns the size in megabytes of the segments of the write-ahead log. If this parameter isn't specified in the config.properties file, it returns 64.
+     * @return the size in megabytes of the segments of the write-ahead log
+     */
+    public long getWalSegmentSize() {
+        return this.walSegmentSize;
+    }
+
+    /**
+     * Returns when the write-ahead log is forced to the disk: <code>always</code>, <code>flush</code> or <code>never</code>. If this parameter isn't specified in the config.properties file, it returns <code>flush</code>.
+     * @return when the write-ahead log is forced to the disk
+     */
+    public String getWalFsync() {
+        return this.walFsync;
+    }
+
+    /**
+     * Returns how the directories are scanned: <code>forkjoin</code>, by a pool of <code>threads</code> threads, or <code>virtual</code>, each on a virtual thread of its own. If this parameter isn't specified in the config.properties file, it returns <code>forkjoin</code>.
+     * @return how the directories are scanned
+     */
+    public String getExecution() {
+        return this.execution;
+    }
+
+    /**
+     * Returns the maximum number of directories listed (or attributes read) at the same time, 0 for no limit. If this parameter isn't specified in the config.properties file, it returns 256 with virtual threads, the number of threads when the concurrency is adaptive and 0 otherwise.
+     * @return the maximum number of concurrent file system operations, 0 for no limit
+     */
+    public int getIoConcurrency() {
+        return this.ioConcurrency;
+    }
+
+    /**
+     * Returns the maximum number of directories of a single device (mount point) listed at the same time, 0 for no limit. If this parameter isn't specified in the config.properties file, it returns 0.
+     * @return the maximum number of concurrent file system operations on a single device, 0 for no limit
+     */
+    public int getDeviceConcurrency() {
+        return this.deviceConcurrency;
+    }
+
+    /**
+     * Returns whether the file system permits and the writers are resized while the scan runs, between io_concurrency_min and io_concurrency and between 1 and writer_threads. If this parameter isn't specified in the config.properties file, it returns false.
+     * @return whether the concurrency is adapted while the scan runs
+     */
+    public boolean isAdaptive() {
+        return this.adaptive;
+    }
+
+    /**
+     * Returns the minimum number of directories listed at the same time when the concurrency is adaptive. If this parameter isn't specified in the config.properties file, it returns 1.
+     * @return the minimum number of concurrent file system operations when the concurrency is adaptive
+     */
+    public int getIoConcurrencyMin() {
+        return this.ioConcurrencyMin;
+    }
+
+    /**
+     * Returns the number of seconds between two adjustments of the concurrency. If this parameter isn't specified in the config.properties file, it returns 10.
+     * @return the number of seconds between two adjustments of the concurrency
+     */
+    public long getAdaptiveInterval() {
+        return this.adaptiveInterval;
+    }
+
+    /**
+     * Returns the number of seconds between two progress summaries in the log, 0 if they are disabled. If this parameter isn't specified in the config.properties file, it returns 60.
+     * @return the number of seconds between two progress summaries in the log
+     */
+    public long getMetricsInterval() {
+        return this.metricsInterval;
+    }
+
     /**
      * Returns the array of absolute paths to scan.
      * @return the array of absolute paths to scan
@@ -127,4 +762,46 @@ public final class ConfigProperties {
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns a List of glob patterns the package directories must match to be scanned.
+     * @return a List of glob patterns the package directories must match to be scanned, empty to scan every package
+     */
+    public List<String> getIncludedDirs() {
+        return AsList(this.includeDirArray);
+    }
+
+    /**
+     * Returns a List of glob patterns of the directories to exclude from the scan, at any depth.
+     * @return a List of glob patterns of the directories to exclude from the scan
+     */
+    public List<String> getExcludedDirs() {
+        return AsList(this.excludeDirArray);
+    }
+
+    private static String[] Split(String value) {
+        if(value==null || value.trim().equalsIgnoreCase("")){
+            return null;
+        }
+        String[] result = value.split(",");
+        for(int i=0; i<result.length; i++){
+            result[i] = result[i].trim();
+        }
+        return result;
+    }
+
+    private static List<String> AsList(String[] values) {
+        if(values==null){
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    private static String LocalHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch(UnknownHostException uhe) {
+            return "localhost";
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.filter;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Decides which directories are traversed, according to the <code>include_dirs</code> and <code>exclude_dirs</code> glob patterns of
+ * the config.properties file, matched against the directory name. Excluded directories are pruned, with all their subtree, at any
+ * depth. The include patterns select the package directories, the immediate children of the scanned paths: if there are any,
+ * packages that don't match one of them are skipped. Instances are immutable and thread safe.
+ * @author Roberto Fabrizi
+ */
+public final class DirectoryFilter {
+
+    private final List<PathMatcher> includes = new ArrayList<PathMatcher>();
+    private final List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+    private final String description;
+
+    /**
+     * Creates a <code>DirectoryFilter</code>.
+     * @param includes the glob patterns the package directories must match, or an empty list to include every package
+     * @param excludes the glob patterns of the directories to prune
+     * @throws IllegalArgumentException if a pattern isn't a valid glob
+     */
+    public DirectoryFilter(List<String> includes, List<String> excludes) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        for(String include : includes){
+            this.includes.add(fileSystem.getPathMatcher("glob:"+include.trim()));
+        }
+        for(String exclude : excludes){
+            this.excludes.add(fileSystem.getPathMatcher("glob:"+exclude.trim()));
+        }
+        this.description = "DirectoryFilter{" + "includes=" + includes + ", excludes=" + excludes + '}';
+    }
+
+    /**
+     * Returns whether the passed package directory, an immediate child of a scanned path, is scanned.
+     * @param directory the package directory
+     * @return whether the passed package directory is scanned
+     */
+    public boolean acceptsPackage(Path directory) {
+        if(!this.accepts(directory)){
+            return false;
+        }
+        if(this.includes.isEmpty()){
+            return true;
+        }
+        Path name = directory.getFileName();
+        for(PathMatcher include : this.includes){
+            if(include.matches(name)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the passed directory is traversed, or pruned with all its subtree.
+     * @param directory the directory
+     * @return whether the passed directory is traversed
+     */
+    public boolean accepts(Path directory) {
+        if(this.excludes.isEmpty()){
+            return true;
+        }
+        Path name = directory.getFileName();
+        for(PathMatcher exclude : this.excludes){
+            if(exclude.matches(name)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.description;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.filter;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files are recorded, according to the <code>file_extentions</code> of the config.properties file. Every entry
+ * <code>e</code> matches the same names as the java regular expression <code>.+\.e</code>, but plain extentions (i.e. <code>sql</code>)
+ * are looked up in a hash table keyed on the extention of the file name, and wildcard entries like <code>*ar</code> (which as
+ * <code>.+\.*ar</code> match any name ending with <code>ar</code>) are suffix checks, without any regular expression or allocation.
+ * Only the entries that are other regular expressions fall back to a compiled <code>Pattern</code>.
+ * An empty list of extentions matches every file. Instances are immutable and thread safe.
+ * @author Roberto Fabrizi
+ */
+public final class FileNameFilter {
+
+    private static final Pattern PLAIN_EXTENTION = Pattern.compile("[\\w\\-]+");
+    private static final Pattern WILDCARD_EXTENTION = Pattern.compile("\\*[\\w\\-]+");
+    private final String[][] table;
+    private final String[] suffixes;
+    private final int mask;
+    private final Pattern fallback;
+    private final boolean matchAll;
+    private final String description;
+
+    /**
+     * Creates a <code>FileNameFilter</code>.
+     * @param extentions the wanted file extentions, as specified in the config.properties file
+     * @throws java.util.regex.PatternSyntaxException if an extention that isn't plain is not a valid regular expression
+     */
+    public FileNameFilter(List<String> extentions) {
+        List<String> plain = new ArrayList<String>();
+        List<String> suffixes = new ArrayList<String>();
+        StringBuilder regex = new StringBuilder("");
+        StringBuilder description = new StringBuilder("");
+        for(String extention : extentions){
+            String e = extention.trim();
+            if(PLAIN_EXTENTION.matcher(e).matches()){
+                plain.add(e);
+            } else if(WILDCARD_EXTENTION.matcher(e).matches()){
+                suffixes.add(e.substring(1));
+            } else {
+                if(regex.length()>0){
+                    regex.append("|");
+                }
+                regex.append(".+\\.").append(e);
+            }
+            description.append(e).append(",");
+        }
+        this.suffixes = suffixes.toArray(new String[suffixes.size()]);
+        this.matchAll = extentions.isEmpty();
+        this.fallback = regex.length()>0 ? Pattern.compile(regex.toString()) : null;
+        this.description = description.toString();
+        // a power of two at least twice as big as the number of plain extentions keeps the buckets short
+        int size = Integer.highestOneBit(Math.max(plain.size(), 1)*2)*2;
+        this.mask = size-1;
+        this.table = new String[size][];
+        for(String e : plain){
+            int bucket = Bucket(e, 0, e.length()) & this.mask;
+            String[] candidates = this.table[bucket];
+            if(candidates==null){
+                this.table[bucket] = new String[]{e};
+            } else {
+                candidates = Arrays.copyOf(candidates, candidates.length+1);
+                candidates[candidates.length-1] = e;
+                this.table[bucket] = candidates;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the passed file name has one of the wanted extentions.
+     * @param name the file name
+     * @return whether the passed file name has one of the wanted extentions
+     */
+    public boolean matches(String name) {
+        if(this.matchAll){
+            return true;
+        }
+        // plain extentions don't contain dots, so only the text after the last dot can match them
+        int dot = name.lastIndexOf('.');
+        if(dot>0){
+            int start = dot+1;
+            int length = name.length()-start;
+            String[] candidates = this.table[Bucket(name, start, length) & this.mask];
+            if(candidates!=null){
+                for(String candidate : candidates){
+                    if(candidate.length()==length && name.regionMatches(start, candidate, 0, length)){
+                        return true;
+                    }
+                }
+            }
+        }
+        for(String suffix : this.suffixes){
+            if(name.length()>suffix.length() && name.endsWith(suffix)){
+                return true;
+            }
+        }
+        return this.fallback!=null && this.fallback.matcher(name).matches();
+    }
+
+    /**
+     * Returns a description of the matched extentions, which changes whenever the matched file names change.
+     * @return a description of the matched extentions
+     */
+    @Override
+    public String toString() {
+        return "FileNameFilter{" + "extentions=" + this.description + '}';
+    }
+
+    private static int Bucket(String value, int start, int length) {
+        return length==0 ? 0 : length*31+value.charAt(start+length-1);
+    }
+}
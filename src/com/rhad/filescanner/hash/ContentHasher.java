@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the digest of the content of files. Big files are memory-mapped a chunk at a time, so that their pages go straight from
+ * the page cache to the digest, while small ones are read in a direct buffer, as mapping them costs more than reading them. Every
+ * thread has its own digest and buffer, so a single <code>ContentHasher</code> can be shared by all the threads of a pool.
+ * @author Roberto Fabrizi
+ */
+public final class ContentHasher {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAP_THRESHOLD = 4L << 20;
+    private static final long MAP_CHUNK = 64L << 20;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final String algorithm;
+    private final ThreadLocal<MessageDigest> digests;
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Creates a <code>ContentHasher</code>.
+     * @param algorithm the name of the {@link java.security.MessageDigest} algorithm, i.e. SHA-256
+     * @throws IllegalArgumentException if the algorithm isn't supported by this JVM
+     */
+    public ContentHasher(final String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: "+algorithm, nsae);
+        }
+        this.algorithm = algorithm;
+        this.digests = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch(NoSuchAlgorithmException nsae) {
+                    // checked by the constructor
+                    throw new IllegalStateException(nsae);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the name of the digest algorithm.
+     * @return the name of the digest algorithm
+     */
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Computes the digest of the content of the passed file.
+     * @param file the file
+     * @return the digest
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] digest(Path file) throws IOException {
+        MessageDigest digest = this.digests.get();
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size>=MAP_THRESHOLD){
+                for(long position=0; position<size; position+=MAP_CHUNK){
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, size-position));
+                    digest.update(chunk);
+                }
+            } else {
+                ByteBuffer buffer = this.buffers.get();
+                buffer.clear();
+                while(channel.read(buffer)>=0){
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the hexadecimal representation of a digest.
+     * @param digest the digest
+     * @return the lowercase hexadecimal representation of the digest
+     */
+    public static String Hex(byte[] digest) {
+        char[] chars = new char[digest.length*2];
+        for(int i=0; i<digest.length; i++){
+            chars[i*2] = HEX[(digest[i]>>4)&0xF];
+            chars[i*2+1] = HEX[digest[i]&0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.hash;
+
+import com.rhad.filescanner.index.ScanIndex;
+import java.io.*;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The local, on-disk cache of the digests computed by the previous runs, so that files whose size and date didn't change aren't
+ * read again. It maps the 64 bit hash of the path of every hashed file to its size, date and digest. As in the
+ * {@link com.rhad.filescanner.index.ScanIndex}, the entries of the previous runs are read-only, and the ones used by the current
+ * run replace them on {@link #save()}.
+ * @author Roberto Fabrizi
+ */
+public final class DigestCache {
+
+    private static final Logger LOGGER = Logger.getLogger(DigestCache.class);
+    private static final int MAGIC = 0x46534443;
+    private static final int VERSION = 1;
+    private final Path file;
+    private final String algorithm;
+    private final boolean keepUnseen;
+    private final Map<Long, Entry> previous;
+    private final Map<Long, Entry> current = new ConcurrentHashMap<Long, Entry>();
+
+    private DigestCache(Path file, String algorithm, boolean keepUnseen, Map<Long, Entry> previous) {
+        this.file = file;
+        this.algorithm = algorithm;
+        this.keepUnseen = keepUnseen;
+        this.previous = previous;
+    }
+
+    /**
+     * Loads the cache stored in the passed file. If the file doesn't exist, or it was written with a different algorithm, an empty
+     * cache is returned and every file is hashed again.
+     * @param file the file the cache is stored in
+     * @param algorithm the name of the digest algorithm
+     * @param keepUnseen whether the entries of the files not hashed by this run are kept, as in incremental scans, where unchanged files aren't even emitted
+     * @return the loaded <code>DigestCache</code>
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static DigestCache Load(Path file, String algorithm, boolean keepUnseen) throws IOException {
+        Map<Long, Entry> previous = new ConcurrentHashMap<Long, Entry>();
+        if(!Files.exists(file)){
+            LOGGER.info("No digest cache found in "+file+", every file will be hashed");
+            return new DigestCache(file, algorithm, keepUnseen, previous);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION){
+                throw new IOException("Not a digest cache: "+file);
+            }
+            if(!in.readUTF().equals(algorithm)){
+                LOGGER.warn("The digest cache in "+file+" was written with a different algorithm, every file will be hashed");
+                return new DigestCache(file, algorithm, keepUnseen, previous);
+            }
+            int entries = in.readInt();
+            for(int e=0; e<entries; e++){
+                long key = in.readLong();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                previous.put(key, new Entry(size, lastModified, digest));
+            }
+        }
+        LOGGER.info("Digest cache loaded from "+file+" with "+previous.size()+" files");
+        return new DigestCache(file, algorithm, keepUnseen, previous);
+    }
+
+    /**
+     * Returns the digest computed by a previous run for the passed file, if its size and date didn't change since.
+     * @param path the file
+     * @param size its current size
+     * @param lastModified its current last modification time
+     * @return the digest, or null if the file must be hashed
+     */
+    public byte[] get(Path path, long size, long lastModified) {
+        long key = ScanIndex.Hash(path.toString());
+        Entry entry = this.previous.get(key);
+        if(entry==null || entry.size!=size || entry.lastModified!=lastModified){
+            return null;
+        }
+        this.current.put(key, entry);
+        return entry.digest;
+    }
+
+    /**
+     * Records the digest of a file computed by this run.
+     * @param path the file
+     * @param size its size
+     * @param lastModified its last modification time
+     * @param digest its digest
+     */
+    public void put(Path path, long size, long lastModified, byte[] digest) {
+        this.current.put(ScanIndex.Hash(path.toString()), new Entry(size, lastModified, digest));
+    }
+
+    /**
+     * Atomically replaces the stored cache with the entries used by this run.
+     * @throws IOException if the cache cannot be written
+     */
+    public void save() throws IOException {
+        if(this.keepUnseen){
+            for(Map.Entry<Long, Entry> entry : this.previous.entrySet()){
+                if(!this.current.containsKey(entry.getKey())){
+                    this.current.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Path temp = this.file.resolveSibling(this.file.getFileName()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.algorithm);
+            out.writeInt(this.current.size());
+            for(Map.Entry<Long, Entry> entry : this.current.entrySet()){
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeByte(entry.getValue().digest.length);
+                out.write(entry.getValue().digest);
+            }
+        }
+        Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Digest cache saved to "+this.file+" with "+this.current.size()+" files");
+    }
+
+    /**
+     * The size, date and digest of a hashed file.
+     */
+    private static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final byte[] digest;
+
+        private Entry(long size, long lastModified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
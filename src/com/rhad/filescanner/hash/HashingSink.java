@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.hash;
+
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.persistence.BatchWriter;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that computes the digest of the content of every written file before handing it over to another sink. Files are hashed
+ * on a bounded pool of their own, so that the scanner threads keep listing directories while the content is read, and wait only
+ * when too many files are waiting to be hashed. Files whose size and date didn't change since a previous run take their digest
+ * from the {@link DigestCache}. A file that cannot be read is handed over without digest.
+ * <p>
+ * Every hashing thread has its own queue, and all the writes and removals of a file go through the queue of the same thread, so
+ * that they are handed over in the order they were emitted: a file removed while it was being hashed is never found again. A file
+ * that cannot be handed over is counted as an error and, with the database sink, as a row that could not be persisted.
+ * @author Roberto Fabrizi
+ */
+public class HashingSink implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(HashingSink.class);
+    // the files waiting to be hashed per hashing thread
+    private static final int QUEUED_PER_THREAD = 64;
+    private final PacchettiSink delegate;
+    private final ContentHasher hasher;
+    private final DigestCache cache;
+    private final BatchWriter writer;
+    // a thread per queue, each file always going to the same one
+    private final ExecutorService[] queues;
+    private final Semaphore pending;
+    private final int maxPending;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a <code>HashingSink</code>.
+     * @param delegate the sink the hashed files are handed over to
+     * @param hasher the hasher of the content of the files
+     * @param cache the digests of the previous runs, or null to hash every file
+     * @param threads the number of threads reading the files
+     * @param writer the database writer the files that cannot be handed over are counted by, or null
+     */
+    public HashingSink(PacchettiSink delegate, ContentHasher hasher, DigestCache cache, int threads, BatchWriter writer) {
+        if(threads<1){
+            throw new IllegalArgumentException("threads must be positive.");
+        }
+        this.delegate = delegate;
+        this.hasher = hasher;
+        this.cache = cache;
+        this.writer = writer;
+        this.maxPending = threads*QUEUED_PER_THREAD;
+        // fair, so that a flush waiting for all the permits isn't overtaken by the scanner threads
+        this.pending = new Semaphore(this.maxPending, true);
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ContentHasher-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.queues = new ExecutorService[threads];
+        for(int i=0; i<threads; i++){
+            this.queues[i] = Executors.newSingleThreadExecutor(factory);
+        }
+        LOGGER.info("HashingSink started with "+threads+" threads and the "+hasher.getAlgorithm()+" algorithm");
+    }
+
+    /**
+     * Returns the sink the hashed files are handed over to.
+     * @return the sink the hashed files are handed over to
+     */
+    public PacchettiSink getDelegate() {
+        return this.delegate;
+    }
+
+    /**
+     * Queues the file to be hashed, waiting if too many files are already queued. Files without a path, or whose digest is cached,
+     * are queued to be handed over as they are.
+     * @param record the file, whose {@link com.rhad.filescanner.model.FileRecord#getPath()} is read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void write(final FileRecord record) throws InterruptedException {
+        if(this.closed){
+            throw new IllegalStateException("The HashingSink has already been closed.");
+        }
+        boolean hash = record.getPath()!=null;
+        if(hash && this.cache!=null){
+            byte[] digest = this.cache.get(record.getPath(), record.getFileSize(), record.getLastModified());
+            if(digest!=null){
+                record.setContentHash(ContentHasher.Hex(digest));
+                hash = false;
+            }
+        }
+        final boolean read = hash;
+        this.queue(record, new Runnable() {
+            @Override
+            public void run() {
+                if(read){
+                    hash(record);
+                }
+                handOver(record, true);
+            }
+        });
+    }
+
+    /**
+     * Queues the removal of the file behind its writes, waiting if too many files are already queued.
+     * @param record the removed file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void remove(final FileRecord record) throws InterruptedException {
+        if(this.closed){
+            throw new IllegalStateException("The HashingSink has already been closed.");
+        }
+        this.queue(record, new Runnable() {
+            @Override
+            public void run() {
+                handOver(record, false);
+            }
+        });
+    }
+
+    /**
+     * Runs the passed task on the queue of the file, the same for all its writes and removals.
+     */
+    private void queue(FileRecord record, final Runnable task) throws InterruptedException {
+        int hash = 31*(31*record.getPackageName().hashCode()+record.getDirectory().hashCode())+record.getFileName().hashCode();
+        ExecutorService queue = this.queues[(hash & Integer.MAX_VALUE) % this.queues.length];
+        this.pending.acquire();
+        try {
+            queue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            this.pending.release();
+            throw ree;
+        }
+    }
+
+    private void hash(FileRecord record) {
+        try {
+            byte[] digest = this.hasher.digest(record.getPath());
+            record.setContentHash(ContentHasher.Hex(digest));
+            if(this.cache!=null){
+                this.cache.put(record.getPath(), record.getFileSize(), record.getLastModified(), digest);
+            }
+        } catch(IOException ioe) {
+            // i.e. no read permission, or a file deleted while scanning
+            LOGGER.warn("Could not hash "+record.getPath()+": "+ioe);
+        }
+    }
+
+    private void handOver(FileRecord record, boolean written) {
+        try {
+            if(written){
+                this.delegate.write(record);
+            } else {
+                this.delegate.remove(record);
+            }
+            return;
+        } catch(InterruptedException ie) {
+            LOGGER.error("Interrupted while handing over "+record);
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException e) {
+            LOGGER.error("Could not hand over "+record, e);
+        }
+        // lost, as a row the writer could not persist
+        ScanMetrics.GetInstance().error();
+        if(this.writer!=null){
+            this.writer.lost(record);
+        }
+    }
+
+    /**
+     * Waits until all the queued files have been hashed, then flushes the other sink.
+     * @throws IOException if the other sink cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        this.awaitHashed();
+        this.delegate.flush();
+    }
+
+    /**
+     * Waits until all the queued files have been hashed, stops the hashing threads, saves the digest cache and closes the other sink.
+     * Closing an already closed sink has no effect.
+     * @throws IOException if the other sink or the digest cache cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public synchronized void close() throws IOException, InterruptedException {
+        if(this.closed){
+            return;
+        }
+        this.closed = true;
+        try {
+            this.awaitHashed();
+            for(ExecutorService queue : this.queues){
+                queue.shutdown();
+            }
+            if(this.cache!=null){
+                this.cache.save();
+            }
+        } finally {
+            this.delegate.close();
+        }
+    }
+
+    private void awaitHashed() throws InterruptedException {
+        // all the permits are back once every queued file has been hashed
+        this.pending.acquire(this.maxPending);
+        this.pending.release(this.maxPending);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.index;
+
+import java.util.*;
+
+/**
+ * The state of a directory as it was seen by a scan: its last modification time, the matching files it contained with their
+ * size and last modification time, and the names of its subdirectories. Instances are immutable.
+ * @author Roberto Fabrizi
+ */
+public final class DirectoryState {
+
+    /**
+     * The last modification time recorded for directories that must be listed again by the next scan.
+     */
+    public static final long UNKNOWN = Long.MIN_VALUE;
+    private final long lastModified;
+    private final String[] fileNames;
+    private final long[] fileSizes;
+    private final long[] fileLastModified;
+    private final String[] subdirectories;
+
+    /**
+     * Creates a <code>DirectoryState</code>. The file arrays must have the same length.
+     * @param lastModified the last modification time of the directory, or {@link #UNKNOWN}
+     * @param fileNames the names of the matching files contained in the directory
+     * @param fileSizes the sizes of the matching files contained in the directory
+     * @param fileLastModified the last modification times of the matching files contained in the directory
+     * @param subdirectories the names of the subdirectories of the directory
+     */
+    public DirectoryState(long lastModified, String[] fileNames, long[] fileSizes, long[] fileLastModified, String[] subdirectories) {
+        if(fileNames.length!=fileSizes.length || fileNames.length!=fileLastModified.length){
+            throw new IllegalArgumentException("The file arrays must have the same length.");
+        }
+        this.lastModified = lastModified;
+        this.fileNames = fileNames;
+        this.fileSizes = fileSizes;
+        this.fileLastModified = fileLastModified;
+        this.subdirectories = subdirectories;
+    }
+
+    /**
+     * Returns the last modification time of the directory, or {@link #UNKNOWN} if it must be listed again.
+     * @return the last modification time of the directory, or <code>UNKNOWN</code> if it must be listed again
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns a copy of this state with an {@link #UNKNOWN} last modification time, so that the directory is listed again.
+     * @return a copy of this state that forces the directory to be listed again
+     */
+    public DirectoryState untrusted() {
+        return new DirectoryState(UNKNOWN, this.fileNames, this.fileSizes, this.fileLastModified, this.subdirectories);
+    }
+
+    /**
+     * Returns the number of matching files contained in the directory.
+     * @return the number of matching files contained in the directory
+     */
+    public int getFileCount() {
+        return this.fileNames.length;
+    }
+
+    /**
+     * Returns the name of the i-th file.
+     * @param i the index of the file
+     * @return the name of the i-th file
+     */
+    public String getFileName(int i) {
+        return this.fileNames[i];
+    }
+
+    /**
+     * Returns the size of the i-th file.
+     * @param i the index of the file
+     * @return the size of the i-th file
+     */
+    public long getFileSize(int i) {
+        return this.fileSizes[i];
+    }
+
+    /**
+     * Returns the last modification time of the i-th file.
+     * @param i the index of the file
+     * @return the last modification time of the i-th file
+     */
+    public long getFileLastModified(int i) {
+        return this.fileLastModified[i];
+    }
+
+    /**
+     * Returns the number of subdirectories of the directory.
+     * @return the number of subdirectories of the directory
+     */
+    public int getSubdirectoryCount() {
+        return this.subdirectories.length;
+    }
+
+    /**
+     * Returns the name of the i-th subdirectory.
+     * @param i the index of the subdirectory
+     * @return the name of the i-th subdirectory
+     */
+    public String getSubdirectory(int i) {
+        return this.subdirectories[i];
+    }
+
+    /**
+     * Returns a map from the name of every file to its index, to compare large directories without quadratic lookups.
+     * @return a map from the name of every file to its index
+     */
+    public Map<String, Integer> indexFiles() {
+        Map<String, Integer> result = new HashMap<String, Integer>(this.fileNames.length*2);
+        for(int i=0; i<this.fileNames.length; i++){
+            result.put(this.fileNames[i], i);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the content of a directory while it is being listed, and creates its <code>DirectoryState</code>.
+     */
+    public static final class Builder {
+
+        private final List<String> fileNames = new ArrayList<String>();
+        private long[] fileSizes = new long[16];
+        private long[] fileLastModified = new long[16];
+        private final List<String> subdirectories = new ArrayList<String>();
+
+        /**
+         * Adds a matching file.
+         * @param name the name of the file
+         * @param size the size of the file
+         * @param lastModified the last modification time of the file
+         */
+        public void addFile(String name, long size, long lastModified) {
+            int i = this.fileNames.size();
+            if(i==this.fileSizes.length){
+                this.fileSizes = Arrays.copyOf(this.fileSizes, i*2);
+                this.fileLastModified = Arrays.copyOf(this.fileLastModified, i*2);
+            }
+            this.fileNames.add(name);
+            this.fileSizes[i] = size;
+            this.fileLastModified[i] = lastModified;
+        }
+
+        /**
+         * Adds a subdirectory.
+         * @param name the name of the subdirectory
+         */
+        public void addSubdirectory(String name) {
+            this.subdirectories.add(name);
+        }
+
+        /**
+         * Creates the <code>DirectoryState</code> of the collected content.
+         * @param lastModified the last modification time of the directory, or {@link DirectoryState#UNKNOWN}
+         * @return the <code>DirectoryState</code> of the collected content
+         */
+        public DirectoryState build(long lastModified) {
+            int count = this.fileNames.size();
+            return new DirectoryState(lastModified, this.fileNames.toArray(new String[count]), Arrays.copyOf(this.fileSizes, count),
+                    Arrays.copyOf(this.fileLastModified, count), this.subdirectories.toArray(new String[this.subdirectories.size()]));
+        }
+    }
+}
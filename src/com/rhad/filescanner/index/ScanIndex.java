@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.index;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The local, on-disk index of what the previous scan has seen, used for incremental scans. It maps the 64 bit hash of the path of
+ * every scanned directory to its {@link com.rhad.filescanner.index.DirectoryState}. The index of the previous scan is read-only,
+ * while the states recorded by the current scan are collected separately and replace the previous ones on {@link #save()}, so
+ * that directories that no longer exist are dropped from the index.
+ * <p>
+ * A long running scanner can scan again parts of the tree with the same index: {@link #startScan()} makes what was recorded so far
+ * the previous state of the next scan.
+ * @author Roberto Fabrizi
+ */
+public final class ScanIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ScanIndex.class);
+    private static final int MAGIC = 0x46534958;
+    private static final int VERSION = 1;
+    // directories modified this close to the start of the scan may change again within the same timestamp tick, they are not trusted
+    private static final long RACY_MARGIN = 5000L;
+    private final Path file;
+    private final long signature;
+    private volatile long scanStart;
+    private final Map<Long, DirectoryState> previous;
+    private final Map<Long, DirectoryState> current = new ConcurrentHashMap<Long, DirectoryState>();
+
+    private ScanIndex(Path file, long signature, Map<Long, DirectoryState> previous) {
+        this.file = file;
+        this.signature = signature;
+        this.scanStart = System.currentTimeMillis();
+        this.previous = previous;
+    }
+
+    /**
+     * Loads the index stored in the passed file. If the file doesn't exist, or it was written by a scan with a different signature
+     * (i.e. different file extentions), an empty index is returned and every directory is listed again.
+     * @param file the file the index is stored in
+     * @param signature the signature of the settings that affect what is recorded in the index
+     * @return the loaded <code>ScanIndex</code>
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static ScanIndex Load(Path file, long signature) throws IOException {
+        Map<Long, DirectoryState> previous = new ConcurrentHashMap<Long, DirectoryState>();
+        if(!Files.exists(file)){
+            LOGGER.info("No scan index found in "+file+", every directory will be scanned");
+            return new ScanIndex(file, signature, previous);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION){
+                throw new IOException("Not a scan index: "+file);
+            }
+            if(in.readLong()!=signature){
+                LOGGER.warn("The scan index in "+file+" was written with different settings, every directory will be scanned");
+                return new ScanIndex(file, signature, previous);
+            }
+            int directories = in.readInt();
+            for(int d=0; d<directories; d++){
+                long key = in.readLong();
+                long lastModified = in.readLong();
+                int fileCount = in.readInt();
+                String[] fileNames = new String[fileCount];
+                long[] fileSizes = new long[fileCount];
+                long[] fileLastModified = new long[fileCount];
+                for(int i=0; i<fileCount; i++){
+                    fileNames[i] = ReadName(in);
+                    fileSizes[i] = in.readLong();
+                    fileLastModified[i] = in.readLong();
+                }
+                String[] subdirectories = new String[in.readInt()];
+                for(int i=0; i<subdirectories.length; i++){
+                    subdirectories[i] = ReadName(in);
+                }
+                previous.put(key, new DirectoryState(lastModified, fileNames, fileSizes, fileLastModified, subdirectories));
+            }
+        }
+        LOGGER.info("Scan index loaded from "+file+" with "+previous.size()+" directories");
+        return new ScanIndex(file, signature, previous);
+    }
+
+    /**
+     * Returns the state the previous scan recorded for the passed directory.
+     * @param directory the directory
+     * @return the state the previous scan recorded, or null if the directory wasn't scanned
+     */
+    public DirectoryState getPrevious(Path directory) {
+        return this.previous.get(Hash(directory.toString()));
+    }
+
+    /**
+     * Records the state of the passed directory as seen by the current scan.
+     * @param directory the directory
+     * @param state its state
+     */
+    public void put(Path directory, DirectoryState state) {
+        this.current.put(Hash(directory.toString()), state);
+    }
+
+    /**
+     * Records again, for the passed directory and all its subtree, the states of the previous scan, i.e. for a subtree that a
+     * resumed scan doesn't traverse.
+     * @param directory the directory
+     */
+    public void keep(Path directory) {
+        DirectoryState state = this.previous.get(Hash(directory.toString()));
+        if(state==null){
+            return;
+        }
+        this.put(directory, state);
+        for(int i=0; i<state.getSubdirectoryCount(); i++){
+            this.keep(directory.resolve(state.getSubdirectory(i)));
+        }
+    }
+
+    /**
+     * Forgets the state recorded for the passed directory, which no longer exists.
+     * @param directory the directory
+     */
+    public void remove(Path directory) {
+        this.current.remove(Hash(directory.toString()));
+    }
+
+    /**
+     * Starts a new scan: the states recorded so far become the previous ones, and are still saved unless they are replaced or removed.
+     * Must not be called while a scan is running.
+     */
+    public void startScan() {
+        this.scanStart = System.currentTimeMillis();
+        this.previous.clear();
+        this.previous.putAll(this.current);
+    }
+
+    /**
+     * Makes the next scan list the passed directory again, even if its last modification time didn't change, i.e. because one
+     * of its files was modified in place.
+     * @param directory the directory
+     */
+    public void invalidate(Path directory) {
+        Long key = Hash(directory.toString());
+        DirectoryState state = this.previous.get(key);
+        if(state!=null){
+            this.previous.put(key, state.untrusted());
+        }
+    }
+
+    /**
+     * Returns the last modification time to record for a directory: directories modified right before or during the scan
+     * could change again without their timestamp changing, so {@link com.rhad.filescanner.index.DirectoryState#UNKNOWN} is
+     * returned for them and the next scan lists them again.
+     * @param lastModified the last modification time of the directory
+     * @return the last modification time to record
+     */
+    public long trustedLastModified(long lastModified) {
+        return lastModified>=this.scanStart-RACY_MARGIN ? DirectoryState.UNKNOWN : lastModified;
+    }
+
+    /**
+     * Atomically replaces the stored index with the states recorded by the current scan.
+     * @throws IOException if the index cannot be written
+     */
+    public void save() throws IOException {
+        Path temp = this.file.resolveSibling(this.file.getFileName()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.signature);
+            out.writeInt(this.current.size());
+            for(Map.Entry<Long, DirectoryState> entry : this.current.entrySet()){
+                DirectoryState state = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeLong(state.getLastModified());
+                out.writeInt(state.getFileCount());
+                for(int i=0; i<state.getFileCount(); i++){
+                    WriteName(out, state.getFileName(i));
+                    out.writeLong(state.getFileSize(i));
+                    out.writeLong(state.getFileLastModified(i));
+                }
+                out.writeInt(state.getSubdirectoryCount());
+                for(int i=0; i<state.getSubdirectoryCount(); i++){
+                    WriteName(out, state.getSubdirectory(i));
+                }
+            }
+        }
+        Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Scan index saved to "+this.file+" with "+this.current.size()+" directories");
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the passed string.
+     * @param value the string to hash
+     * @return the 64 bit FNV-1a hash of the passed string
+     */
+    public static long Hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i=0; i<value.length(); i++){
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String ReadName(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void WriteName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
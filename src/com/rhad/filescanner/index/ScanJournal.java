@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.index;
+
+import com.rhad.filescanner.persistence.BatchWriter;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+/**
+ * The journal of the subtrees a scan has completely emitted, so that a scan that dies halfway can be resumed where it stopped.
+ * The {@link com.rhad.filescanner.Recurser}s record every directory whose whole subtree has been scanned; at every checkpoint the
+ * sink is flushed and only then are the recorded directories appended to the journal file, 8 bytes each, and synced. A directory
+ * in the journal has therefore reached its destination, while the ones scanned after the last checkpoint are emitted again by the
+ * resumed scan: delivery is at least once, and the upsert persistence mode merges the repeated rows instead of duplicating them.
+ * @author Roberto Fabrizi
+ */
+public final class ScanJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(ScanJournal.class);
+    private static final int MAGIC = 0x46534a4e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private final Path file;
+    private final FileChannel channel;
+    private final Set<Long> completed;
+    private final Queue<Long> pending = new ConcurrentLinkedQueue<Long>();
+    private final int resumed;
+    private ScheduledExecutorService checkpointer;
+    private boolean healthy = true;
+
+    private ScanJournal(Path file, FileChannel channel, Set<Long> completed) {
+        this.file = file;
+        this.channel = channel;
+        this.completed = completed;
+        this.resumed = completed.size();
+    }
+
+    /**
+     * Opens the journal stored in the passed file. When resuming, the subtrees recorded by the interrupted scan are loaded and
+     * the journal is appended to; otherwise, or if the journal was written with different settings, a new one is started.
+     * @param file the file the journal is stored in
+     * @param signature the signature of the settings and paths of the scan
+     * @param resume whether the interrupted scan recorded in the file is resumed
+     * @return the opened <code>ScanJournal</code>
+     * @throws IOException if the file cannot be read or written
+     */
+    public static ScanJournal Open(Path file, long signature, boolean resume) throws IOException {
+        Set<Long> completed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if(resume && Load(channel, signature, completed)){
+                LOGGER.info("Resuming the scan journaled in "+file+", "+completed.size()+" directories already scanned");
+            } else {
+                if(resume){
+                    LOGGER.warn("No scan to resume in "+file+", every directory will be scanned");
+                }
+                completed.clear();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(signature).flip();
+                channel.truncate(0L);
+                while(header.hasRemaining()){
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            channel.position(channel.size());
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new ScanJournal(file, channel, completed);
+    }
+
+    /**
+     * Reads the directories recorded in the journal. A record cut by the interrupted scan is dropped. Returns false if the journal
+     * is empty or was written with different settings.
+     */
+    private static boolean Load(FileChannel channel, long signature, Set<Long> completed) throws IOException {
+        long size = channel.size();
+        if(size<HEADER_SIZE){
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.limit(HEADER_SIZE);
+        channel.read(buffer, 0L);
+        buffer.flip();
+        if(buffer.getInt()!=MAGIC || buffer.getInt()!=VERSION){
+            throw new IOException("Not a scan journal");
+        }
+        if(buffer.getLong()!=signature){
+            LOGGER.warn("The scan journal was written with different settings or paths");
+            return false;
+        }
+        long end = HEADER_SIZE+(size-HEADER_SIZE)/8*8;
+        for(long position=HEADER_SIZE; position<end; ){
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end-position));
+            int read = channel.read(buffer, position);
+            if(read<=0){
+                break;
+            }
+            position+=read;
+            buffer.flip();
+            while(buffer.remaining()>=8){
+                completed.add(buffer.getLong());
+            }
+            // a read can end in the middle of a record
+            position-=buffer.remaining();
+        }
+        channel.truncate(end);
+        return true;
+    }
+
+    /**
+     * Returns whether the subtree of the passed directory was completely scanned by the resumed scan, or by this one.
+     * @param directory the directory
+     * @return whether the subtree of the passed directory was completely scanned
+     */
+    public boolean isCompleted(Path directory) {
+        return this.completed.contains(ScanIndex.Hash(directory.toString()));
+    }
+
+    /**
+     * Records that the whole subtree of the passed directory has been emitted to the sink. It is written to the journal by the next checkpoint.
+     * @param directory the directory
+     */
+    public void complete(Path directory) {
+        Long key = ScanIndex.Hash(directory.toString());
+        if(this.completed.add(key)){
+            this.pending.add(key);
+        }
+    }
+
+    /**
+     * Returns the number of directories the resumed scan had already scanned.
+     * @return the number of directories the resumed scan had already scanned
+     */
+    public int getResumed() {
+        return this.resumed;
+    }
+
+    /**
+     * Starts writing a checkpoint every <code>intervalSeconds</code> seconds, on a thread of its own.
+     * @param sink the sink flushed before every checkpoint
+     * @param writer the database writer, whose failed rows stop the checkpoints, or null
+     * @param intervalSeconds the number of seconds between two checkpoints
+     */
+    public synchronized void startCheckpoints(final PacchettiSink sink, final BatchWriter writer, long intervalSeconds) {
+        if(this.checkpointer!=null){
+            return;
+        }
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ScanJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint(sink, writer);
+                } catch(IOException ioe) {
+                    LOGGER.error("Could not write a checkpoint to "+file, ioe);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic checkpoints, waiting for the running one.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stopCheckpoints() throws InterruptedException {
+        ScheduledExecutorService executor;
+        synchronized(this) {
+            executor = this.checkpointer;
+            this.checkpointer = null;
+        }
+        if(executor!=null){
+            executor.shutdown();
+            executor.awaitTermination(1L, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Flushes the sink and writes to the journal the directories recorded since the previous checkpoint. Once the database
+     * writer failed to persist some rows no more checkpoints are written, as the rows may belong to any of the recorded directories.
+     * @param sink the sink to flush
+     * @param writer the database writer, or null
+     * @throws IOException if the sink or the journal cannot be written
+     * @throws InterruptedException if interrupted while flushing the sink
+     */
+    public synchronized void checkpoint(PacchettiSink sink, BatchWriter writer) throws IOException, InterruptedException {
+        if(!this.healthy){
+            return;
+        }
+        // only what was recorded before the flush is known to have reached the sink
+        List<Long> keys = new ArrayList<Long>();
+        for(Long key = this.pending.poll(); key!=null; key = this.pending.poll()){
+            keys.add(key);
+        }
+        sink.flush();
+        if(writer!=null && writer.getFailed()>0){
+            this.healthy = false;
+            LOGGER.error("Some rows could not be persisted, no more checkpoints are written to "+this.file);
+            return;
+        }
+        if(keys.isEmpty()){
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(keys.size()*8);
+        for(Long key : keys){
+            buffer.putLong(key);
+        }
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+        LOGGER.debug("Checkpoint of "+keys.size()+" directories written to "+this.file);
+    }
+
+    /**
+     * Closes the journal. If the scan ended without errors the journal is deleted, as there is nothing to resume; otherwise a
+     * last checkpoint is written.
+     * @param sink the sink to flush
+     * @param writer the database writer, or null
+     * @param succeeded whether every package was scanned without errors
+     * @throws IOException if the sink or the journal cannot be written
+     * @throws InterruptedException if interrupted while flushing the sink
+     */
+    public void close(PacchettiSink sink, BatchWriter writer, boolean succeeded) throws IOException, InterruptedException {
+        this.stopCheckpoints();
+        try {
+            this.checkpoint(sink, writer);
+        } finally {
+            this.channel.close();
+        }
+        if(succeeded && this.healthy){
+            Files.deleteIfExists(this.file);
+            LOGGER.info("Scan completed, "+this.file+" deleted");
+        } else {
+            LOGGER.warn("The scan is incomplete, run it again with --resume to continue from "+this.file);
+        }
+    }
+}
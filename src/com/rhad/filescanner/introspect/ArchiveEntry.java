@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.introspect;
+
+import java.io.IOException;
+
+/**
+ * A file found inside an archive, as recorded by the archive itself: nothing is extracted to read it.
+ * @author Roberto Fabrizi
+ */
+public final class ArchiveEntry {
+
+    /** The size or CRC-32 of an entry that the archive doesn't record. */
+    public static final long UNKNOWN = -1L;
+    private final String name;
+    private final long size;
+    private final long compressedSize;
+    private final long lastModified;
+    private final long crc;
+
+    /**
+     * Receives the entries of an archive, in the order they are read.
+     */
+    public interface Handler {
+
+        /**
+         * Receives an entry.
+         * @param entry the entry
+         * @throws IOException to stop reading the archive
+         */
+        void entry(ArchiveEntry entry) throws IOException;
+    }
+
+    /**
+     * Creates an <code>ArchiveEntry</code>.
+     * @param name the name of the entry, with its path inside the archive
+     * @param size the size of the entry once extracted, in bytes
+     * @param compressedSize the size of the entry inside the archive, in bytes, or {@link #UNKNOWN} if it isn't compressed on its own
+     * @param lastModified the last modification date of the entry, in milliseconds since the epoch
+     * @param crc the CRC-32 of the content, or {@link #UNKNOWN}
+     */
+    public ArchiveEntry(String name, long size, long compressedSize, long lastModified, long crc) {
+        this.name = name;
+        this.size = size;
+        this.compressedSize = compressedSize;
+        this.lastModified = lastModified;
+        this.crc = crc;
+    }
+
+    /**
+     * Returns the name of the entry, with its path inside the archive.
+     * @return the name of the entry
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns the size of the entry once extracted, in bytes.
+     * @return the size of the entry once extracted
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the size of the entry inside the archive, in bytes, or {@link #UNKNOWN} if it isn't compressed on its own.
+     * @return the size of the entry inside the archive, or {@link #UNKNOWN}
+     */
+    public long getCompressedSize() {
+        return this.compressedSize;
+    }
+
+    /**
+     * Returns the last modification date of the entry, in milliseconds since the epoch.
+     * @return the last modification date of the entry
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns the CRC-32 of the content, or {@link #UNKNOWN} if the archive doesn't record it.
+     * @return the CRC-32 of the content, or {@link #UNKNOWN}
+     */
+    public long getCrc() {
+        return this.crc;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveEntry{" + "name=" + this.name + ", size=" + this.size + ", compressedSize=" + this.compressedSize + ", lastModified=" + this.lastModified + ", crc=" + this.crc + '}';
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.introspect;
+
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.model.PacchettiEntry;
+import com.rhad.filescanner.persistence.EntityManagerFactoryUtil;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that hands every file over to another sink and, if it is an archive, reads its entries on a bounded pool of its own: the
+ * central directory of the zip files (jar, war, ear, zip), the headers of the tar files (plain, <code>.tar.gz</code>, <code>.tgz</code>,
+ * <code>.tar.Z</code>). Nothing is extracted. The entries go to the PACCHETTI_ENTRIES table (see {@link com.rhad.filescanner.model.PacchettiEntry}),
+ * replacing those of the previous scan of the same archive in a single transaction, or to the log when the files aren't persisted
+ * to the database. The scanner threads only wait when too many archives are waiting to be read. An archive that cannot be read
+ * keeps its previous entries.
+ * @author Roberto Fabrizi
+ */
+public class ArchiveIntrospector implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveIntrospector.class);
+    // the archives waiting to be read per thread
+    private static final int QUEUED_PER_THREAD = 16;
+    private static final String[] ZIP_EXTENTIONS = {".jar", ".war", ".ear", ".zip"};
+    private static final String[] TAR_EXTENTIONS = {".tar", ".tar.gz", ".tgz", ".tar.z", ".taz"};
+    private final PacchettiSink delegate;
+    private final boolean database;
+    private final int batchSize;
+    private final ExecutorService pool;
+    private final Semaphore pending;
+    private final int maxPending;
+    private final AtomicInteger introspected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong entries = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates an <code>ArchiveIntrospector</code>.
+     * @param delegate the sink every file is handed over to
+     * @param database whether the entries are written to the database, whose {@link com.rhad.filescanner.persistence.EntityManagerFactoryUtil} must have been created, or to the log
+     * @param threads the number of threads reading the archives
+     * @param batchSize the number of entries persisted between two flushes of the persistence context
+     */
+    public ArchiveIntrospector(PacchettiSink delegate, boolean database, int threads, int batchSize) {
+        if(threads<1){
+            throw new IllegalArgumentException("threads must be positive.");
+        }
+        this.delegate = delegate;
+        this.database = database;
+        this.batchSize = batchSize;
+        this.maxPending = threads*QUEUED_PER_THREAD;
+        // fair, so that a flush waiting for all the permits isn't overtaken by the scanner threads
+        this.pending = new Semaphore(this.maxPending, true);
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ArchiveIntrospector-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        LOGGER.info("ArchiveIntrospector started with "+threads+" threads");
+    }
+
+    /**
+     * Hands the file over to the other sink and, if it is an archive, queues it to be read, waiting if too many archives are already queued.
+     * @param record the file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void write(final FileRecord record) throws InterruptedException {
+        if(this.closed){
+            throw new IllegalStateException("The ArchiveIntrospector has already been closed.");
+        }
+        this.delegate.write(record);
+        final Boolean zip = Kind(record.getFileName());
+        if(zip==null || record.getPath()==null){
+            return;
+        }
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                introspect(record, zip);
+            }
+        });
+    }
+
+    /**
+     * Hands the removal over to the other sink and, if the file is an archive, queues the removal of its entries.
+     * @param record the file, identified by its package name and file path
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void remove(final FileRecord record) throws InterruptedException {
+        this.delegate.remove(record);
+        if(!this.database || Kind(record.getFileName())==null){
+            return;
+        }
+        this.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replace(record, null);
+                } catch(RuntimeException | IOException e) {
+                    LOGGER.error("Could not remove the entries of "+record.getPackageName()+"/"+record.getFilePath(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all the queued archives have been read, then flushes the other sink.
+     * @throws IOException if the other sink cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        this.awaitIntrospected();
+        this.delegate.flush();
+    }
+
+    /**
+     * Waits until all the queued archives have been read, stops the threads and closes the other sink. Closing an already closed
+     * sink has no effect.
+     * @throws IOException if the other sink cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public synchronized void close() throws IOException, InterruptedException {
+        if(this.closed){
+            return;
+        }
+        this.closed = true;
+        try {
+            this.awaitIntrospected();
+            this.pool.shutdown();
+            LOGGER.info(this.introspected+" archives read, "+this.entries+" entries found, "+this.failed+" archives could not be read");
+        } finally {
+            this.delegate.close();
+        }
+    }
+
+    /**
+     * Returns the number of archives read so far.
+     * @return the number of archives read so far
+     */
+    public int getIntrospected() {
+        return this.introspected.get();
+    }
+
+    /**
+     * Returns the number of archives that could not be read so far.
+     * @return the number of archives that could not be read so far
+     */
+    public int getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Returns whether a file name is the one of a zip file, of a tar file, or of neither.
+     * @param fileName the file name
+     * @return true for a zip file, false for a tar file, null if it isn't an archive
+     */
+    static Boolean Kind(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for(String extention : ZIP_EXTENTIONS){
+            if(name.endsWith(extention)){
+                return Boolean.TRUE;
+            }
+        }
+        for(String extention : TAR_EXTENTIONS){
+            if(name.endsWith(extention)){
+                return Boolean.FALSE;
+            }
+        }
+        return null;
+    }
+
+    private void submit(final Runnable task) throws InterruptedException {
+        this.pending.acquire();
+        try {
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            this.pending.release();
+            throw ree;
+        }
+    }
+
+    private void introspect(FileRecord record, boolean zip) {
+        try {
+            long found = this.replace(record, zip);
+            this.introspected.incrementAndGet();
+            this.entries.addAndGet(found);
+        } catch(IOException | RuntimeException e) {
+            // i.e. no read permission, a file deleted while scanning, or not really an archive
+            this.failed.incrementAndGet();
+            LOGGER.warn("Could not read the entries of "+record.getPath()+": "+e);
+        }
+    }
+
+    /**
+     * Reads the entries of an archive and replaces those of its previous scan, or only deletes them if the archive is null.
+     */
+    private long replace(final FileRecord record, final Boolean zip) throws IOException {
+        final Path file = record.getPath();
+        if(!this.database){
+            long found = Read(file, zip, new ArchiveEntry.Handler() {
+                @Override
+                public void entry(ArchiveEntry entry) {
+                    LOGGER.debug(record.getPackageName()+"/"+record.getFilePath()+"!"+entry.getName()+" "+entry.getSize()+" bytes");
+                }
+            });
+            LOGGER.info(found+" entries in "+record.getPackageName()+"/"+record.getFilePath());
+            return found;
+        }
+        EntityManager entityManager = null;
+        EntityTransaction tx = null;
+        try {
+            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
+            tx = entityManager.getTransaction();
+            tx.begin();
+            entityManager.createQuery("delete from PacchettiEntry e where e.key.packageName = :packageName and e.key.filePath = :filePath")
+                    .setParameter("packageName", record.getPackageName())
+                    .setParameter("filePath", record.getFilePath())
+                    .executeUpdate();
+            long found = 0L;
+            if(zip!=null){
+                final EntityManager batch = entityManager;
+                final Date scanned = new Date();
+                // an archive may hold the same name twice, the first one is recorded
+                final Set<String> names = new HashSet<String>();
+                final long[] persisted = {0L};
+                found = Read(file, zip, new ArchiveEntry.Handler() {
+                    @Override
+                    public void entry(ArchiveEntry entry) {
+                        if(entry.getName().length()>PacchettiEntry.MAX_ENTRY_NAME || !names.add(entry.getName())){
+                            LOGGER.debug("Entry name too long or repeated in "+file+": "+entry.getName());
+                            return;
+                        }
+                        batch.persist(Row(record, entry, scanned));
+                        if(++persisted[0]%batchSize==0){
+                            batch.flush();
+                            batch.clear();
+                        }
+                    }
+                });
+            }
+            tx.commit();
+            return found;
+        } finally {
+            if(tx!=null && tx.isActive()){
+                try {
+                    tx.rollback();
+                } catch(Exception e) {
+                    LOGGER.error("Could not rollback the current transaction", e);
+                }
+            }
+            if(entityManager!=null && entityManager.isOpen()){
+                entityManager.close();
+            }
+        }
+    }
+
+    private static long Read(Path file, boolean zip, ArchiveEntry.Handler handler) throws IOException {
+        return zip ? ZipDirectory.Read(file, handler) : TarEntries.Read(file, handler);
+    }
+
+    private static PacchettiEntry Row(FileRecord record, ArchiveEntry entry, Date scanned) {
+        PacchettiEntry row = new PacchettiEntry(record.getPackageName(), record.getFilePath(), entry.getName());
+        row.setEntrySize(entry.getSize());
+        row.setCompressedSize(entry.getCompressedSize()==ArchiveEntry.UNKNOWN ? null : entry.getCompressedSize());
+        row.setLastModified(entry.getLastModified()==ArchiveEntry.UNKNOWN ? null : new Date(entry.getLastModified()));
+        row.setCrc(entry.getCrc()==ArchiveEntry.UNKNOWN ? null : entry.getCrc());
+        row.setScanned(scanned);
+        return row;
+    }
+
+    private void awaitIntrospected() throws InterruptedException {
+        // all the permits are back once every queued archive has been read
+        this.pending.acquire(this.maxPending);
+        this.pending.release(this.maxPending);
+    }
+}
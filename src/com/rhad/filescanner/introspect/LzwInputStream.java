@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.introspect;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the <code>.Z</code> format of the Unix <code>compress</code> command, which <code>bin/archiver.sh</code> used for
+ * the archives of the packages: an adaptive LZW whose codes grow from 9 bits up to the maximum recorded in the header, 16 at most.
+ * Like <code>compress</code>, codes are written in groups of 8, and the rest of a group is padding whenever their width changes.
+ * @author Roberto Fabrizi
+ */
+public final class LzwInputStream extends FilterInputStream {
+
+    private static final int MAGIC_1 = 0x1F;
+    private static final int MAGIC_2 = 0x9D;
+    private static final int BITS_MASK = 0x1F;
+    private static final int BLOCK_MODE = 0x80;
+    private static final int INIT_BITS = 9;
+    private static final int MAX_BITS = 16;
+    private static final int CLEAR = 256;
+    private final int maxBits;
+    private final boolean blockMode;
+    private final int[] prefixes;
+    private final byte[] suffixes;
+    // the bytes of a code, last to first
+    private final byte[] stack;
+    private final byte[] single = new byte[1];
+    private int stackSize = 0;
+    private int bits = INIT_BITS;
+    private int free;
+    private int previous = -1;
+    private byte first;
+    private int bitBuffer = 0;
+    private int bitCount = 0;
+    private long codes = 0L;
+    private boolean eof = false;
+
+    /**
+     * Creates an <code>LzwInputStream</code>, reading the header of the compressed stream.
+     * @param in the compressed stream, better if buffered
+     * @throws IOException if the stream cannot be read or is not in the <code>.Z</code> format
+     */
+    public LzwInputStream(InputStream in) throws IOException {
+        super(in);
+        if(in.read()!=MAGIC_1 || in.read()!=MAGIC_2){
+            throw new IOException("Not in the .Z format");
+        }
+        int flags = in.read();
+        if(flags<0){
+            throw new IOException("Truncated .Z header");
+        }
+        this.maxBits = flags&BITS_MASK;
+        if(this.maxBits<INIT_BITS || this.maxBits>MAX_BITS){
+            throw new IOException("Unsupported .Z code width: "+this.maxBits+" bits");
+        }
+        this.blockMode = (flags&BLOCK_MODE)!=0;
+        this.prefixes = new int[1 << this.maxBits];
+        this.suffixes = new byte[1 << this.maxBits];
+        this.stack = new byte[1 << this.maxBits];
+        for(int i=0; i<256; i++){
+            this.suffixes[i] = (byte) i;
+        }
+        this.free = this.blockMode ? CLEAR+1 : CLEAR;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return this.read(this.single, 0, 1)<0 ? -1 : this.single[0]&0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len==0){
+            return 0;
+        }
+        int read = 0;
+        while(read<len){
+            if(this.stackSize==0 && !this.decode()){
+                break;
+            }
+            while(this.stackSize>0 && read<len){
+                b[off+read++] = this.stack[--this.stackSize];
+            }
+        }
+        return read==0 ? -1 : read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] skipped = new byte[(int) Math.min(n, 8192)];
+        long total = 0L;
+        while(total<n){
+            int read = this.read(skipped, 0, (int) Math.min(n-total, skipped.length));
+            if(read<0){
+                break;
+            }
+            total+=read;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() {
+        return this.stackSize;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Decodes the next code, pushing its bytes on the stack.
+     * @return false at the end of the stream
+     */
+    private boolean decode() throws IOException {
+        while(true){
+            int code = this.readCode();
+            if(code<0){
+                return false;
+            }
+            if(this.blockMode && code==CLEAR){
+                this.align();
+                this.bits = INIT_BITS;
+                this.free = CLEAR+1;
+                this.previous = -1;
+                continue;
+            }
+            if(this.previous==-1){
+                if(code>=CLEAR){
+                    throw new IOException("Corrupt .Z stream: code "+code+" after a reset");
+                }
+                this.first = (byte) code;
+                this.previous = code;
+                this.stack[this.stackSize++] = this.first;
+                return true;
+            }
+            int current = code;
+            if(code>=this.free){
+                if(code>this.free){
+                    throw new IOException("Corrupt .Z stream: code "+code+" beyond "+this.free);
+                }
+                // the code being defined: the previous one followed by its own first byte
+                this.stack[this.stackSize++] = this.first;
+                code = this.previous;
+            }
+            while(code>=CLEAR){
+                this.stack[this.stackSize++] = this.suffixes[code];
+                code = this.prefixes[code];
+            }
+            this.first = this.suffixes[code];
+            this.stack[this.stackSize++] = this.first;
+            if(this.free<this.prefixes.length){
+                this.prefixes[this.free] = this.previous;
+                this.suffixes[this.free] = this.first;
+                this.free++;
+                if(this.free>=(1 << this.bits) && this.bits<this.maxBits){
+                    this.align();
+                    this.bits++;
+                }
+            }
+            this.previous = current;
+            return true;
+        }
+    }
+
+    private int readCode() throws IOException {
+        if(this.eof){
+            return -1;
+        }
+        while(this.bitCount<this.bits){
+            int b = this.in.read();
+            if(b<0){
+                // the last group may end with a partial code
+                this.eof = true;
+                return -1;
+            }
+            this.bitBuffer|=b << this.bitCount;
+            this.bitCount+=8;
+        }
+        int code = this.bitBuffer&((1 << this.bits)-1);
+        this.bitBuffer>>>=this.bits;
+        this.bitCount-=this.bits;
+        this.codes++;
+        return code;
+    }
+
+    /**
+     * Skips the padding up to the end of the current group of 8 codes, written before the width of the codes changes.
+     */
+    private void align() throws IOException {
+        while(this.codes%8!=0 && this.readCode()>=0){
+        }
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+    }
+}
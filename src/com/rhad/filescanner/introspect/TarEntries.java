@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.introspect;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the entries of a tar file, plain, gzipped or compressed (<code>.Z</code>), as the {@link com.rhad.filescanner.archive.Archiver}
+ * and <code>bin/archiver.sh</code> write them. The archive is streamed a header at a time: the content of the files is skipped,
+ * with a seek when the tar isn't compressed. The ustar, GNU (long names, base-256 sizes) and pax formats are supported. Only regular
+ * files are reported.
+ * @author Roberto Fabrizi
+ */
+public final class TarEntries {
+
+    private static final int BLOCK = 512;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // the longest GNU long name or pax header that is read
+    private static final int MAX_EXTENDED_HEADER = 1 << 20;
+
+    private TarEntries() {
+    }
+
+    /**
+     * Reads the headers of a tar file, detecting its compression from its first bytes.
+     * @param file the tar file
+     * @param handler receives every regular file
+     * @return the number of entries read
+     * @throws IOException if the file cannot be read or is not a tar file
+     */
+    public static long Read(Path file, ArchiveEntry.Handler handler) throws IOException {
+        try (InputStream in = Open(file)) {
+            return Read(in, file, handler);
+        }
+    }
+
+    private static InputStream Open(Path file) throws IOException {
+        BufferedInputStream raw = new BufferedInputStream(Files.newInputStream(file));
+        try {
+            raw.mark(2);
+            int first = raw.read();
+            int second = raw.read();
+            raw.reset();
+            if(first==0x1F && second==0x8B){
+                return new GZIPInputStream(raw, BUFFER_SIZE);
+            } else if(first==0x1F && second==0x9D){
+                return new LzwInputStream(new BufferedInputStream(raw, BUFFER_SIZE));
+            }
+            return raw;
+        } catch(IOException ioe) {
+            raw.close();
+            throw ioe;
+        }
+    }
+
+    private static long Read(InputStream in, Path file, ArchiveEntry.Handler handler) throws IOException {
+        byte[] header = new byte[BLOCK];
+        String longName = null;
+        String paxName = null;
+        long paxSize = -1L;
+        long paxTime = -1L;
+        long read = 0L;
+        while(true){
+            int length = ReadBlock(in, header);
+            if(length==0){
+                // an archive without its end blocks
+                return read;
+            }
+            if(length<BLOCK){
+                throw new IOException("Not a tar file, or a truncated one: "+file);
+            }
+            if(IsZero(header)){
+                return read;
+            }
+            if(!Checksum(header)){
+                throw new IOException("Not a tar file, or a corrupt header after "+read+" entries: "+file);
+            }
+            char type = (char) header[156];
+            long size = Number(header, 124, 12);
+            switch(type){
+                case 'L':
+                    longName = CString(ReadData(in, size, file), 0, (int) size);
+                    continue;
+                case 'K':
+                case 'g':
+                    // the long target of a link, and the pax headers of the whole archive
+                    Skip(in, Padded(size), file);
+                    continue;
+                case 'x':
+                    byte[] pax = ReadData(in, size, file);
+                    // records of "length key=value\n", the length counting the bytes of the whole record: only the values are decoded, as
+                    // a multi-byte path would otherwise shift the records that follow it
+                    int position = 0;
+                    while(position<pax.length){
+                        int space = position;
+                        int recordLength = 0;
+                        while(space<pax.length && pax[space]>='0' && pax[space]<='9' && recordLength<=MAX_EXTENDED_HEADER){
+                            recordLength = recordLength*10+(pax[space]-'0');
+                            space++;
+                        }
+                        int end = position+recordLength;
+                        if(space==position || space>=pax.length || pax[space]!=' ' || end>pax.length || end<=space+1
+                                || pax[end-1]!='\n'){
+                            throw new IOException("Corrupt pax header after "+read+" entries: "+file);
+                        }
+                        int equals = space+1;
+                        while(equals<end-1 && pax[equals]!='='){
+                            equals++;
+                        }
+                        if(equals>space+1 && equals<end-1){
+                            String key = new String(pax, space+1, equals-space-1, StandardCharsets.US_ASCII);
+                            String value = new String(pax, equals+1, end-equals-2, StandardCharsets.UTF_8);
+                            // an empty value removes the keyword
+                            try {
+                                if(key.equals("path")){
+                                    paxName = value.isEmpty() ? null : value;
+                                } else if(key.equals("size")){
+                                    paxSize = value.isEmpty() ? -1L : Long.parseLong(value);
+                                } else if(key.equals("mtime")){
+                                    paxTime = value.isEmpty() ? -1L : (long) (Double.parseDouble(value)*1000d);
+                                }
+                            } catch(NumberFormatException nfe) {
+                                throw new IOException("Corrupt pax header after "+read+" entries: "+file, nfe);
+                            }
+                        }
+                        position = end;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+            String name = CString(header, 0, 100);
+            if("ustar".equals(CString(header, 257, 6).trim())){
+                String prefix = CString(header, 345, 155);
+                if(!prefix.isEmpty()){
+                    name = prefix+"/"+name;
+                }
+            }
+            if(longName!=null){
+                name = longName;
+            }
+            if(paxName!=null){
+                name = paxName;
+            }
+            if(paxSize>=0){
+                size = paxSize;
+            }
+            long lastModified = paxTime>=0 ? paxTime : Number(header, 136, 12)*1000L;
+            longName = null;
+            paxName = null;
+            paxSize = -1L;
+            paxTime = -1L;
+            if(type=='0' || type=='\0' || type=='7'){
+                handler.entry(new ArchiveEntry(name, size, ArchiveEntry.UNKNOWN, lastModified, ArchiveEntry.UNKNOWN));
+                read++;
+            } else if(type=='1' || type=='2' || type=='3' || type=='4' || type=='5' || type=='6'){
+                // links, devices, directories and fifos have no content, whatever their header says
+                size = 0L;
+            }
+            Skip(in, Padded(size), file);
+        }
+    }
+
+    private static int ReadBlock(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        while(length<block.length){
+            int read = in.read(block, length, block.length-length);
+            if(read<0){
+                break;
+            }
+            length+=read;
+        }
+        return length;
+    }
+
+    private static byte[] ReadData(InputStream in, long size, Path file) throws IOException {
+        if(size<0 || size>MAX_EXTENDED_HEADER){
+            throw new IOException("Extended tar header of "+size+" bytes: "+file);
+        }
+        byte[] data = new byte[(int) size];
+        if(ReadBlock(in, data)<data.length){
+            throw new IOException("Truncated tar file: "+file);
+        }
+        Skip(in, Padded(size)-size, file);
+        return data;
+    }
+
+    private static void Skip(InputStream in, long bytes, Path file) throws IOException {
+        while(bytes>0){
+            long skipped = in.skip(bytes);
+            if(skipped<=0){
+                // skip() may give up before the end of the stream
+                if(in.read()<0){
+                    throw new EOFException("Truncated tar file: "+file);
+                }
+                skipped = 1;
+            }
+            bytes-=skipped;
+        }
+    }
+
+    private static long Padded(long size) {
+        return (size+BLOCK-1)/BLOCK*BLOCK;
+    }
+
+    private static boolean IsZero(byte[] block) {
+        for(byte b : block){
+            if(b!=0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the sum of the bytes of the header, computed with the checksum field itself filled with spaces.
+     */
+    private static boolean Checksum(byte[] header) {
+        long unsigned = 0L;
+        long signed = 0L;
+        for(int i=0; i<BLOCK; i++){
+            int b = i>=148 && i<156 ? ' ' : header[i];
+            unsigned+=b&0xFF;
+            signed+=b;
+        }
+        long recorded = Number(header, 148, 8);
+        // some old tars summed signed bytes
+        return recorded==unsigned || recorded==signed;
+    }
+
+    /**
+     * Parses a numeric field: octal digits, or big-endian base-256 when the first bit is set (GNU).
+     */
+    private static long Number(byte[] header, int offset, int length) {
+        if((header[offset]&0x80)!=0){
+            long value = header[offset]&0x7F;
+            for(int i=1; i<length; i++){
+                value = (value << 8)|(header[offset+i]&0xFF);
+            }
+            return value;
+        }
+        long value = 0L;
+        for(int i=offset; i<offset+length; i++){
+            byte b = header[i];
+            if(b>='0' && b<='7'){
+                value = (value << 3)+(b-'0');
+            } else if(b==0 || (b==' ' && value>0)){
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String CString(byte[] data, int offset, int length) {
+        int end = offset;
+        while(end<offset+length && data[end]!=0){
+            end++;
+        }
+        return new String(data, offset, end-offset, StandardCharsets.UTF_8);
+    }
+}
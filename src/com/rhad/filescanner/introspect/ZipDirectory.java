@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.introspect;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Reads the entries of a zip file (a jar, war, ear or zip) from its central directory, which is memory-mapped: only the end of the
+ * file is read, however big the archive is, and nothing is decompressed. Archives bigger than 4 GiB or with more than 65535 entries
+ * (zip64), and archives with data before the first entry (i.e. self-extracting ones) are supported. Directories are not reported.
+ * @author Roberto Fabrizi
+ */
+public final class ZipDirectory {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int ENTRY_SIZE = 46;
+    // the archive comment, after the end record, is at most 65535 bytes long
+    private static final int MAX_TAIL = END_SIZE+0xFFFF;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int TIMESTAMP_EXTRA = 0x5455;
+    private static final long MASK_32 = 0xFFFFFFFFL;
+
+    private ZipDirectory() {
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     * @param file the zip file
+     * @param handler receives every entry that isn't a directory
+     * @return the number of entries read
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static long Read(Path file, ArchiveEntry.Handler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size<END_SIZE){
+                throw new IOException("Not a zip file: "+file);
+            }
+            int tailSize = (int) Math.min(size, MAX_TAIL);
+            long tailStart = size-tailSize;
+            MappedByteBuffer tail = Map(channel, tailStart, tailSize);
+            int end = -1;
+            for(int i=tailSize-END_SIZE; i>=0; i--){
+                if(tail.getInt(i)==END_SIGNATURE && i+END_SIZE+(tail.getShort(i+20)&0xFFFF)<=tailSize){
+                    end = i;
+                    break;
+                }
+            }
+            if(end<0){
+                throw new IOException("Not a zip file, or a truncated one: "+file);
+            }
+            long entries = tail.getShort(end+10)&0xFFFF;
+            long directorySize = tail.getInt(end+12)&MASK_32;
+            long directoryOffset = tail.getInt(end+16)&MASK_32;
+            long endOffset = tailStart+end;
+            if(entries==0xFFFF || directorySize==MASK_32 || directoryOffset==MASK_32){
+                // the real values are in the zip64 end record, pointed to by the locator right before the end record
+                int locator = end-ZIP64_LOCATOR_SIZE;
+                if(locator<0 || tail.getInt(locator)!=ZIP64_LOCATOR_SIGNATURE){
+                    throw new IOException("The zip64 end of central directory locator is missing: "+file);
+                }
+                long zip64End = tail.getLong(locator+8);
+                MappedByteBuffer record = Map(channel, zip64End, 56);
+                if(record.getInt(0)!=ZIP64_END_SIGNATURE){
+                    throw new IOException("The zip64 end of central directory record is missing: "+file);
+                }
+                entries = record.getLong(32);
+                directorySize = record.getLong(40);
+                directoryOffset = record.getLong(48);
+                endOffset = zip64End;
+            }
+            // data before the first entry shifts the whole archive, but not the offsets it records
+            long shift = endOffset-directorySize-directoryOffset;
+            if(shift<0 || directorySize>Integer.MAX_VALUE){
+                throw new IOException("Corrupt central directory: "+file);
+            }
+            MappedByteBuffer directory = Map(channel, directoryOffset+shift, (int) directorySize);
+            long read = 0L;
+            int position = 0;
+            for(long e=0; e<entries; e++){
+                if(position+ENTRY_SIZE>directorySize || directory.getInt(position)!=ENTRY_SIGNATURE){
+                    throw new IOException("Corrupt central directory entry "+e+": "+file);
+                }
+                int time = directory.getShort(position+12)&0xFFFF;
+                int date = directory.getShort(position+14)&0xFFFF;
+                long crc = directory.getInt(position+16)&MASK_32;
+                long compressedSize = directory.getInt(position+20)&MASK_32;
+                long entrySize = directory.getInt(position+24)&MASK_32;
+                int nameLength = directory.getShort(position+28)&0xFFFF;
+                int extraLength = directory.getShort(position+30)&0xFFFF;
+                int commentLength = directory.getShort(position+32)&0xFFFF;
+                int next = position+ENTRY_SIZE+nameLength+extraLength+commentLength;
+                if(next>directorySize){
+                    throw new IOException("Corrupt central directory entry "+e+": "+file);
+                }
+                byte[] nameBytes = new byte[nameLength];
+                directory.position(position+ENTRY_SIZE);
+                directory.get(nameBytes);
+                // the names that aren't flagged as UTF-8 are in the code page of the platform that wrote them: UTF-8, as java.util.zip reads them
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                long lastModified = DosTime(date, time);
+                int extra = position+ENTRY_SIZE+nameLength;
+                int extraEnd = extra+extraLength;
+                while(extra+4<=extraEnd){
+                    int id = directory.getShort(extra)&0xFFFF;
+                    int length = directory.getShort(extra+2)&0xFFFF;
+                    int data = extra+4;
+                    if(data+length>extraEnd){
+                        break;
+                    }
+                    if(id==ZIP64_EXTRA){
+                        // only the values that didn't fit are there, in this order
+                        if(entrySize==MASK_32 && length>=8){
+                            entrySize = directory.getLong(data);
+                            data+=8;
+                            length-=8;
+                        }
+                        if(compressedSize==MASK_32 && length>=8){
+                            compressedSize = directory.getLong(data);
+                        }
+                    } else if(id==TIMESTAMP_EXTRA && length>=5 && (directory.get(data)&1)!=0){
+                        // the last modification time in UTC seconds, more precise than the local date and time of DOS
+                        lastModified = (directory.getInt(data+1)&MASK_32)*1000L;
+                    }
+                    extra = extra+4+(directory.getShort(extra+2)&0xFFFF);
+                }
+                if(!name.endsWith("/")){
+                    handler.entry(new ArchiveEntry(name, entrySize, compressedSize, lastModified, crc));
+                    read++;
+                }
+                position = next;
+            }
+            return read;
+        }
+    }
+
+    private static MappedByteBuffer Map(FileChannel channel, long position, int size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Converts the local date and time of MS-DOS, to the 2 seconds, to milliseconds since the epoch.
+     */
+    private static long DosTime(int date, int time) {
+        if(date==0){
+            return ArchiveEntry.UNKNOWN;
+        }
+        try {
+            LocalDateTime local = LocalDateTime.of(1980+(date>>9), (date>>5)&0x0F, date&0x1F, time>>11, (time>>5)&0x3F, (time&0x1F)*2);
+            return local.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch(RuntimeException e) {
+            // i.e. month 0, written by some tools
+            return ArchiveEntry.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.lookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * The compact, immutable index of the files found by a scan, written by the {@link PathIndexSink} and memory-mapped to be queried
+ * without the database. Every file is identified by its path relative to the root it was found in, which starts with the name of
+ * its package: the paths are sorted and front coded in blocks of {@value #BLOCK} (each path only stores what differs from the
+ * previous one), so the files of a package, or of any directory, are a contiguous range found with a binary search. Sizes and
+ * dates are stored in columns, in the order of the paths, and a permutation sorted by file name answers the lookups by name.
+ * <p>
+ * The index is read straight from the page cache: opening it costs nothing, and a query only touches the pages it needs. An
+ * instance can be shared by several threads.
+ * @author Roberto Fabrizi
+ */
+public final class PathIndex implements Closeable {
+
+    static final int MAGIC = 0x50494458;
+    static final int VERSION = 1;
+    /** The number of paths per front coded block. */
+    static final int BLOCK = 16;
+    // magic, version, count, created, and the offsets of the blocks, the dictionary, the sizes, the dates and the permutation by name
+    static final int HEADER_SIZE = 4+4+4+8+5*8;
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer dictionary;
+    private final IntBuffer blocks;
+    private final LongBuffer sizes;
+    private final LongBuffer lastModified;
+    private final IntBuffer byName;
+    private final int count;
+    private final long created;
+
+    private PathIndex(Path file, FileChannel channel, ByteBuffer mapped) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        if(mapped.getInt(0)!=MAGIC || mapped.getInt(4)!=VERSION){
+            throw new IOException("Not a path index, or written by another version: "+file);
+        }
+        this.count = mapped.getInt(8);
+        this.created = mapped.getLong(12);
+        long blocksOffset = mapped.getLong(20);
+        long dictionaryOffset = mapped.getLong(28);
+        long sizesOffset = mapped.getLong(36);
+        long datesOffset = mapped.getLong(44);
+        long byNameOffset = mapped.getLong(52);
+        int blockCount = (this.count+BLOCK-1)/BLOCK;
+        this.blocks = Slice(mapped, blocksOffset, blockCount*4L).asIntBuffer();
+        this.dictionary = Slice(mapped, dictionaryOffset, blocksOffset-dictionaryOffset);
+        this.sizes = Slice(mapped, sizesOffset, this.count*8L).asLongBuffer();
+        this.lastModified = Slice(mapped, datesOffset, this.count*8L).asLongBuffer();
+        this.byName = Slice(mapped, byNameOffset, this.count*4L).asIntBuffer();
+    }
+
+    /**
+     * Opens an index, mapping it in memory.
+     * @param file the file of the index
+     * @return the opened index
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static PathIndex Open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if(size<HEADER_SIZE || size>Integer.MAX_VALUE){
+                throw new IOException("Not a path index, or too big to be mapped: "+file);
+            }
+            return new PathIndex(file, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0L, size));
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of files in the index.
+     * @return the number of files in the index
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns when the index was written, in milliseconds since the epoch.
+     * @return when the index was written
+     */
+    public long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * Returns the path of a file, relative to the root it was found in: the name of its package, then the path inside the package.
+     * @param ordinal the position of the file in the index, from 0
+     * @return the path of the file
+     */
+    public String getPath(int ordinal) {
+        return new String(this.key(ordinal), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the name of the package of a file.
+     * @param ordinal the position of the file in the index, from 0
+     * @return the name of the package of the file
+     */
+    public String getPackageName(int ordinal) {
+        String path = this.getPath(ordinal);
+        int slash = path.indexOf('/');
+        return slash<0 ? path : path.substring(0, slash);
+    }
+
+    /**
+     * Returns the size of a file, in bytes.
+     * @param ordinal the position of the file in the index, from 0
+     * @return the size of the file
+     */
+    public long getFileSize(int ordinal) {
+        return this.sizes.get(ordinal);
+    }
+
+    /**
+     * Returns the last modification date of a file, in milliseconds since the epoch.
+     * @param ordinal the position of the file in the index, from 0
+     * @return the last modification date of the file
+     */
+    public long getLastModified(int ordinal) {
+        return this.lastModified.get(ordinal);
+    }
+
+    /**
+     * Returns the range of the files whose path starts with the passed prefix, i.e. <code>PACKAGE/</code> for the files of a package.
+     * @param prefix the beginning of the paths, the empty string for all the files
+     * @return the first position of the range and the one after the last, equal if no path matches
+     */
+    public int[] findPrefix(String prefix) {
+        byte[] from = prefix.getBytes(StandardCharsets.UTF_8);
+        int start = this.lowerBound(from);
+        // the smallest key greater than all those with the prefix: the prefix with its last byte incremented, carrying over 0xFF
+        int length = from.length;
+        while(length>0 && from[length-1]==(byte) 0xFF){
+            length--;
+        }
+        if(length==0){
+            return new int[]{start, this.count};
+        }
+        byte[] to = Arrays.copyOf(from, length);
+        to[length-1]++;
+        return new int[]{start, this.lowerBound(to)};
+    }
+
+    /**
+     * Returns the files with the passed name, whatever their package and directory.
+     * @param fileName the name of the file, without its directory
+     * @return the positions of the files in the index, in the order of their paths
+     */
+    public int[] findName(String fileName) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = this.count;
+        while(low<high){
+            int middle = (low+high)>>>1;
+            if(CompareName(this.key(this.byName.get(middle)), name)<0){
+                low = middle+1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = low;
+        while(end<this.count && CompareName(this.key(this.byName.get(end)), name)==0){
+            end++;
+        }
+        int[] ordinals = new int[end-low];
+        for(int i=low; i<end; i++){
+            ordinals[i-low] = this.byName.get(i);
+        }
+        // the permutation is sorted by name, then by path
+        return ordinals;
+    }
+
+    /**
+     * Returns the files of a range modified within the passed dates, scanning only the column of the dates.
+     * @param range the first position of the range and the one after the last, as returned by {@link #findPrefix(String)}
+     * @param from the earliest date, in milliseconds since the epoch, inclusive
+     * @param to the latest date, in milliseconds since the epoch, exclusive
+     * @return the positions of the files in the index, in the order of their paths
+     */
+    public int[] findModified(int[] range, long from, long to) {
+        int[] ordinals = new int[Math.max(0, range[1]-range[0])];
+        int found = 0;
+        for(int i=range[0]; i<range[1]; i++){
+            long date = this.lastModified.get(i);
+            if(date>=from && date<to){
+                ordinals[found++] = i;
+            }
+        }
+        return Arrays.copyOf(ordinals, found);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping is released by the garbage collector, closing the channel only gives the file descriptor back
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "PathIndex{" + "file=" + this.file + ", count=" + this.count + ", created=" + this.created + '}';
+    }
+
+    /**
+     * Returns the position of the first path not smaller than the passed one.
+     */
+    private int lowerBound(byte[] key) {
+        int blockCount = this.blocks.limit();
+        // the last block whose first path is smaller than the key
+        int low = 0;
+        int high = blockCount;
+        while(low<high){
+            int middle = (low+high)>>>1;
+            if(this.compareFirst(middle, key)<0){
+                low = middle+1;
+            } else {
+                high = middle;
+            }
+        }
+        if(low==0){
+            return 0;
+        }
+        int block = low-1;
+        int ordinal = block*BLOCK;
+        int end = Math.min(this.count, ordinal+BLOCK);
+        Decoder decoder = new Decoder(this.blocks.get(block));
+        for(; ordinal<end; ordinal++){
+            if(Compare(decoder.next(), decoder.length, key)>=0){
+                return ordinal;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Compares the first path of a block, which is stored whole, with the passed one, without copying it.
+     */
+    private int compareFirst(int block, byte[] key) {
+        int position = this.blocks.get(block);
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.dictionary.get(position++);
+            length|=(b&0x7F) << shift;
+            shift+=7;
+        } while(b<0);
+        int common = Math.min(length, key.length);
+        for(int i=0; i<common; i++){
+            int difference = (this.dictionary.get(position+i)&0xFF)-(key[i]&0xFF);
+            if(difference!=0){
+                return difference;
+            }
+        }
+        return length-key.length;
+    }
+
+    private byte[] key(int ordinal) {
+        if(ordinal<0 || ordinal>=this.count){
+            throw new IndexOutOfBoundsException("No file "+ordinal+" in an index of "+this.count);
+        }
+        Decoder decoder = new Decoder(this.blocks.get(ordinal/BLOCK));
+        for(int i=ordinal%BLOCK; i>0; i--){
+            decoder.next();
+        }
+        return Arrays.copyOf(decoder.next(), decoder.length);
+    }
+
+    private static int Compare(byte[] a, int length, byte[] b) {
+        return Arrays.compareUnsigned(a, 0, length, b, 0, b.length);
+    }
+
+    /**
+     * Compares the file name of a path, after its last slash, with the passed name.
+     */
+    static int CompareName(byte[] path, byte[] name) {
+        int start = NameStart(path, path.length);
+        return Arrays.compareUnsigned(path, start, path.length, name, 0, name.length);
+    }
+
+    static int NameStart(byte[] path, int length) {
+        for(int i=length-1; i>=0; i--){
+            if(path[i]=='/'){
+                return i+1;
+            }
+        }
+        return 0;
+    }
+
+    private static ByteBuffer Slice(ByteBuffer mapped, long offset, long length) throws IOException {
+        if(offset<HEADER_SIZE || length<0 || offset+length>mapped.capacity()){
+            throw new IOException("Corrupt path index");
+        }
+        ByteBuffer slice = mapped.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset+length));
+        return slice.slice();
+    }
+
+    /**
+     * Decodes the paths of a block one after the other, in a buffer reused from one path to the next.
+     */
+    private final class Decoder {
+
+        private int position;
+        private byte[] path = new byte[256];
+        private int length = 0;
+        private boolean first = true;
+
+        private Decoder(int position) {
+            this.position = position;
+        }
+
+        private byte[] next() {
+            // the first path of a block has no common prefix, and its length is all that's stored
+            int shared = this.first ? 0 : this.varint();
+            this.first = false;
+            int suffix = this.varint();
+            int total = shared+suffix;
+            if(total>this.path.length){
+                this.path = Arrays.copyOf(this.path, Math.max(total, this.path.length*2));
+            }
+            ByteBuffer source = dictionary.duplicate();
+            source.position(this.position);
+            source.get(this.path, shared, suffix);
+            this.position+=suffix;
+            this.length = total;
+            return this.path;
+        }
+
+        private int varint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = dictionary.get(this.position++);
+                value|=(b&0x7F) << shift;
+                shift+=7;
+            } while(b<0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.lookup;
+
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that hands every file over to another sink and collects its path, size and date, to write the {@link PathIndex} of the
+ * whole scan when {@link #save()} is called. The index replaces the one of the previous scan only once it is written, and is only
+ * meant to be saved after a scan that found every package: otherwise the previous one is kept.
+ * @author Roberto Fabrizi
+ */
+public class PathIndexSink implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(PathIndexSink.class);
+    private static final int BUFFER_SIZE = 1 << 20;
+    private final PacchettiSink delegate;
+    private final Path file;
+    // not synchronized, which would pin the virtual threads to their carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private boolean closed = false;
+    private boolean saved = false;
+
+    /**
+     * Creates a <code>PathIndexSink</code>.
+     * @param delegate the sink every file is handed over to
+     * @param file the file the index is written to
+     */
+    public PathIndexSink(PacchettiSink delegate, Path file) {
+        this.delegate = delegate;
+        this.file = file;
+    }
+
+    @Override
+    public void write(FileRecord record) throws InterruptedException {
+        this.delegate.write(record);
+        Entry entry = new Entry(Key(record), record.getFileSize(), record.getLastModified());
+        this.lock.lock();
+        try {
+            if(this.closed){
+                throw new IllegalStateException("The PathIndexSink has already been closed.");
+            }
+            if(!this.saved){
+                this.entries.add(entry);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the removal over to the other sink: a removed file is simply not in the index of this scan.
+     * @param record the file, identified by its package name and path
+     * @throws InterruptedException if interrupted while waiting for the other sink
+     */
+    @Override
+    public void remove(FileRecord record) throws InterruptedException {
+        this.delegate.remove(record);
+    }
+
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        this.delegate.flush();
+    }
+
+    /**
+     * Writes the index of the files collected so far, replacing the one of the previous scan, and stops collecting. Meant to be
+     * called once, after the whole scan has been handed over and every package has been scanned.
+     * @throws IOException if the index cannot be written, in which case the previous one is kept
+     */
+    public void save() throws IOException {
+        Entry[] sorted;
+        this.lock.lock();
+        try {
+            if(this.saved){
+                throw new IllegalStateException("The path index has already been saved.");
+            }
+            this.saved = true;
+            sorted = this.entries.toArray(new Entry[0]);
+            this.entries.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        long start = System.nanoTime();
+        long size = this.write(sorted);
+        LOGGER.info("Path index of "+sorted.length+" files written to "+this.file+" in "+(System.nanoTime()-start)/1000000L+"ms, "+size+" bytes");
+    }
+
+    /**
+     * Closes the other sink. The index is not written, unless it was saved before: the index of the previous scan is kept.
+     * Closing an already closed sink has no effect.
+     * @throws IOException if the other sink cannot be written
+     * @throws InterruptedException if interrupted while waiting for the other sink
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        boolean saved;
+        this.lock.lock();
+        try {
+            if(this.closed){
+                return;
+            }
+            this.closed = true;
+            saved = this.saved;
+            this.entries.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            this.delegate.close();
+        } finally {
+            // left by a save that failed
+            Files.deleteIfExists(this.temporary());
+        }
+        if(!saved){
+            LOGGER.warn("The path index was not saved, "+this.file+" still holds the one of the previous scan");
+        }
+    }
+
+    /**
+     * Returns the path of a file relative to the root it was found in: the name of its package directory, followed by the path of
+     * the file inside the package, with / as separator.
+     */
+    static byte[] Key(FileRecord record) {
+        return (record.getPackageName()+"/"+record.getFilePath()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path temporary() {
+        return this.file.resolveSibling(this.file.getFileName()+".tmp");
+    }
+
+    private long write(Entry[] sorted) throws IOException {
+        Arrays.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Arrays.compareUnsigned(a.key, b.key);
+            }
+        });
+        int count = sorted.length;
+        for(int i=0; i<count; i++){
+            sorted[i].ordinal = i;
+        }
+        // stable, so the files with the same name stay in the order of their paths
+        Entry[] byName = sorted.clone();
+        Arrays.sort(byName, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Arrays.compareUnsigned(a.key, PathIndex.NameStart(a.key, a.key.length), a.key.length, b.key, PathIndex.NameStart(b.key, b.key.length), b.key.length);
+            }
+        });
+        Path temp = this.temporary();
+        long size;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            // the header is written last, once the offsets of the sections are known
+            out.position = PathIndex.HEADER_SIZE;
+            channel.position(PathIndex.HEADER_SIZE);
+            long dictionaryOffset = out.position;
+            int[] blocks = new int[(count+PathIndex.BLOCK-1)/PathIndex.BLOCK];
+            byte[] previous = null;
+            for(int i=0; i<count; i++){
+                byte[] key = sorted[i].key;
+                if(i%PathIndex.BLOCK==0){
+                    long offset = out.position-dictionaryOffset;
+                    if(offset>Integer.MAX_VALUE){
+                        throw new IOException("Too many paths for a path index: "+count);
+                    }
+                    blocks[i/PathIndex.BLOCK] = (int) offset;
+                    out.varint(key.length);
+                    out.bytes(key, 0, key.length);
+                } else {
+                    int shared = Arrays.mismatch(previous, key);
+                    if(shared<0){
+                        // the same path twice, found under two roots
+                        shared = key.length;
+                    }
+                    out.varint(shared);
+                    out.varint(key.length-shared);
+                    out.bytes(key, shared, key.length-shared);
+                }
+                previous = key;
+            }
+            long blocksOffset = out.position;
+            for(int block : blocks){
+                out.putInt(block);
+            }
+            long sizesOffset = out.position;
+            for(Entry entry : sorted){
+                out.putLong(entry.size);
+            }
+            long datesOffset = out.position;
+            for(Entry entry : sorted){
+                out.putLong(entry.lastModified);
+            }
+            long byNameOffset = out.position;
+            for(Entry entry : byName){
+                out.putInt(entry.ordinal);
+            }
+            out.flush();
+            size = out.position;
+            ByteBuffer header = ByteBuffer.allocate(PathIndex.HEADER_SIZE);
+            header.putInt(PathIndex.MAGIC).putInt(PathIndex.VERSION).putInt(count).putLong(System.currentTimeMillis());
+            header.putLong(blocksOffset).putLong(dictionaryOffset).putLong(sizesOffset).putLong(datesOffset).putLong(byNameOffset);
+            header.flip();
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        if(size>Integer.MAX_VALUE){
+            Files.delete(temp);
+            throw new IOException("The path index of "+count+" files is too big to be mapped");
+        }
+        Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * A file of the index.
+     */
+    private static final class Entry {
+
+        private final byte[] key;
+        private final long size;
+        private final long lastModified;
+        private int ordinal;
+
+        private Entry(byte[] key, long size, long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Writes the sections of the index sequentially through a large buffer.
+     */
+    private static final class Output {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long position = 0L;
+
+        private Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void varint(int value) throws IOException {
+            this.ensure(5);
+            while((value&~0x7F)!=0){
+                this.buffer.put((byte) ((value&0x7F)|0x80));
+                value>>>=7;
+                this.position++;
+            }
+            this.buffer.put((byte) value);
+            this.position++;
+        }
+
+        private void bytes(byte[] value, int offset, int length) throws IOException {
+            while(length>0){
+                this.ensure(1);
+                int chunk = Math.min(length, this.buffer.remaining());
+                this.buffer.put(value, offset, chunk);
+                offset+=chunk;
+                length-=chunk;
+                this.position+=chunk;
+            }
+        }
+
+        private void putInt(int value) throws IOException {
+            this.ensure(4);
+            this.buffer.putInt(value);
+            this.position+=4;
+        }
+
+        private void putLong(long value) throws IOException {
+            this.ensure(8);
+            this.buffer.putLong(value);
+            this.position+=8;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(this.buffer.remaining()<bytes){
+                this.flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            while(this.buffer.hasRemaining()){
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.lookup;
+
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Answers questions on the files of the last scan from its {@link PathIndex}, without the database: the files of a package or of a
+ * directory, the packages that contain a file name, the files modified between two dates. Matching files are printed one per line,
+ * with their path, size and date separated by tabs, and their number and the time taken on the standard error.
+ * <p>
+ * Usage: <code>PathQuery &lt;index file&gt; (package &lt;name&gt; | prefix &lt;path&gt; | name &lt;file name&gt; | all) [since &lt;yyyy-MM-dd&gt;] [until &lt;yyyy-MM-dd&gt;] [limit &lt;n&gt;]</code>,
+ * where <code>until</code> is exclusive.
+ * @author Roberto Fabrizi
+ */
+public final class PathQuery {
+
+    private static final String USAGE = "Usage: PathQuery <index file> (package <name> | prefix <path> | name <file name> | all) [since <yyyy-MM-dd>] [until <yyyy-MM-dd>] [limit <n>]";
+
+    private PathQuery() {
+    }
+
+    /**
+     * Runs a query.
+     * @param args the index file, the query and its filters
+     * @throws Exception if the index cannot be read
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length<2){
+            Exit(USAGE);
+        }
+        String kind = args[1];
+        String value = null;
+        int next = 2;
+        if(!kind.equals("all")){
+            if(args.length<3){
+                Exit(USAGE);
+            }
+            value = args[2];
+            next = 3;
+        }
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        int limit = Integer.MAX_VALUE;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setLenient(false);
+        try {
+            for(; next<args.length; next+=2){
+                if(next+1>=args.length){
+                    Exit(USAGE);
+                }
+                if(args[next].equals("since")){
+                    since = dateFormat.parse(args[next+1]).getTime();
+                } else if(args[next].equals("until")){
+                    until = dateFormat.parse(args[next+1]).getTime();
+                } else if(args[next].equals("limit")){
+                    limit = Integer.parseInt(args[next+1]);
+                } else {
+                    Exit(USAGE);
+                }
+            }
+        } catch(ParseException | NumberFormatException e) {
+            Exit("Invalid filter: "+e.getMessage()+"\n"+USAGE);
+        }
+        long start = System.nanoTime();
+        try (PathIndex index = PathIndex.Open(Paths.get(args[0]))) {
+            int[] found;
+            if(kind.equals("name")){
+                found = index.findName(value);
+                int matching = 0;
+                for(int ordinal : found){
+                    long date = index.getLastModified(ordinal);
+                    if(date>=since && date<until){
+                        found[matching++] = ordinal;
+                    }
+                }
+                found = Arrays.copyOf(found, matching);
+            } else {
+                String prefix;
+                if(kind.equals("package")){
+                    prefix = value+"/";
+                } else if(kind.equals("prefix")){
+                    prefix = value;
+                } else if(kind.equals("all")){
+                    prefix = "";
+                } else {
+                    Exit(USAGE);
+                    return;
+                }
+                found = index.findModified(index.findPrefix(prefix), since, until);
+            }
+            long elapsed = System.nanoTime()-start;
+            SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            StringBuilder sb = new StringBuilder();
+            int printed = Math.min(found.length, limit);
+            for(int i=0; i<printed; i++){
+                int ordinal = found[i];
+                sb.setLength(0);
+                sb.append(index.getPath(ordinal)).append('\t').append(index.getFileSize(ordinal)).append('\t').append(timestampFormat.format(new Date(index.getLastModified(ordinal))));
+                System.out.println(sb);
+            }
+            System.err.println(found.length+" files found in "+elapsed/1000000L+"ms, in an index of "+index.size()+" files written on "+timestampFormat.format(new Date(index.getCreated())));
+        }
+    }
+
+    private static void Exit(String message) {
+        System.err.println(message);
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A lock-free histogram of latencies, with a bucket per power of two of microseconds. Percentiles are approximated by the upper
+ * bound of the bucket they fall in, which is precise enough to tell a 2 ms commit from a 200 ms one.
+ * @author Roberto Fabrizi
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0L);
+
+    /**
+     * Creates an empty <code>LatencyHistogram</code>.
+     */
+    public LatencyHistogram() {
+        for(int i=0; i<BUCKETS; i++){
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos/1000L, 1L);
+        // bucket i holds the latencies in [2^(i-1), 2^i) microseconds
+        int bucket = Math.min(64-Long.numberOfLeadingZeros(micros), BUCKETS-1);
+        this.buckets[bucket].increment();
+        this.count.increment();
+        this.totalNanos.add(nanos);
+        this.maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded latencies, in nanoseconds.
+     * @return the sum of the recorded latencies, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return this.totalNanos.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded latencies in milliseconds, or 0 if none was recorded.
+     * @return the mean of the recorded latencies in milliseconds
+     */
+    public double getMeanMillis() {
+        long n = this.count.sum();
+        return n==0 ? 0d : this.totalNanos.sum()/1e6/n;
+    }
+
+    /**
+     * Returns the maximum recorded latency in milliseconds.
+     * @return the maximum recorded latency in milliseconds
+     */
+    public double getMaxMillis() {
+        return this.maxNanos.get()/1e6;
+    }
+
+    /**
+     * Returns an upper bound of the passed percentile of the recorded latencies in milliseconds, or 0 if none was recorded.
+     * @param percentile the percentile, between 0 and 100
+     * @return an upper bound of the percentile in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0L;
+        for(int i=0; i<BUCKETS; i++){
+            snapshot[i] = this.buckets[i].sum();
+            n+=snapshot[i];
+        }
+        if(n==0){
+            return 0d;
+        }
+        long rank = (long) Math.ceil(n*percentile/100d);
+        long seen = 0L;
+        for(int i=0; i<BUCKETS; i++){
+            seen+=snapshot[i];
+            if(seen>=rank && snapshot[i]>0){
+                return Math.min((1L<<i)/1000d, this.getMaxMillis());
+            }
+        }
+        return this.getMaxMillis();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+import org.apache.log4j.Logger;
+
+/**
+ * The counters of the running scan, updated without locks by the scanner threads and the sinks. They are exposed through JMX as
+ * <code>com.rhad.filescanner:type=ScanMetrics</code> and, optionally, summarized in the log at a fixed interval, with the rates
+ * since the previous summary: a queue that stays full means that the database is the bottleneck, an empty one that the file system is.
+ * @author Roberto Fabrizi
+ */
+public final class ScanMetrics implements ScanMetricsMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(ScanMetrics.class);
+    private static final String OBJECT_NAME = "com.rhad.filescanner:type=ScanMetrics";
+    private static final ScanMetrics INSTANCE = new ScanMetrics();
+    private final long started = System.currentTimeMillis();
+    private final LongAdder directoriesListed = new LongAdder();
+    private final LongAdder directoriesUnchanged = new LongAdder();
+    private final LongAdder filesSeen = new LongAdder();
+    private final LongAdder filesMatched = new LongAdder();
+    private final LongAdder bytesSeen = new LongAdder();
+    private final LongAdder filesEmitted = new LongAdder();
+    private final LongAdder filesRemoved = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rowsPersisted = new LongAdder();
+    private final LongAdder rowsFailed = new LongAdder();
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+    private final LatencyHistogram listingLatency = new LatencyHistogram();
+    private final LatencyHistogram connectionWait = new LatencyHistogram();
+    private volatile BlockingQueue<?>[] queues = new BlockingQueue<?>[0];
+    private ScheduledExecutorService reporter;
+    // the totals of the previous summary, to log the rates
+    private long lastReport = this.started;
+    private long lastDirectories;
+    private long lastFiles;
+    private long lastRows;
+
+    private ScanMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the scan.
+     * @return the <code>ScanMetrics</code> singleton instance
+     */
+    public static ScanMetrics GetInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server. A failure is logged and otherwise ignored, as the scan can go on without JMX.
+     */
+    public static synchronized void Register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name)){
+                server.registerMBean(INSTANCE, name);
+                LOGGER.info("ScanMetrics registered as "+OBJECT_NAME);
+            }
+        } catch(JMException jme) {
+            LOGGER.warn("Could not register the ScanMetrics MBean", jme);
+        }
+    }
+
+    /**
+     * Starts logging a summary of the metrics at a fixed interval.
+     * @param intervalSeconds the number of seconds between two summaries
+     */
+    public synchronized void startReporting(long intervalSeconds) {
+        if(this.reporter!=null){
+            return;
+        }
+        this.lastReport = System.currentTimeMillis();
+        this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ScanMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops logging the summaries, if started, and logs the final one.
+     */
+    public synchronized void stopReporting() {
+        if(this.reporter!=null){
+            this.reporter.shutdownNow();
+            this.reporter = null;
+        }
+        this.report();
+    }
+
+    private synchronized void report() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(now-this.lastReport, 1L)/1000d;
+        long directories = this.getDirectoriesListed()+this.getDirectoriesUnchanged();
+        long files = this.getFilesSeen();
+        long rows = this.getRowsPersisted();
+        LOGGER.info(String.format(Locale.ROOT, "Scan progress after %ds: %d directories (%.0f/s, %d unchanged, %d errors), %d files (%.0f/s, %d matched, %d MB), "
+                + "%d emitted, %d removed, %d rows persisted (%.0f/s, %d failed), queue %d/%d, batch latency mean %.1fms p50 %.1fms p99 %.1fms max %.1fms, "
+                + "listing latency mean %.1fms, connection wait mean %.1fms",
+                this.getElapsedSeconds(), directories, (directories-this.lastDirectories)/seconds, this.getDirectoriesUnchanged(), this.getErrors(),
+                files, (files-this.lastFiles)/seconds, this.getFilesMatched(), this.getBytesSeen()>>20,
+                this.getFilesEmitted(), this.getFilesRemoved(), rows, (rows-this.lastRows)/seconds, this.getRowsFailed(),
+                this.getQueueDepth(), this.getQueueCapacity(), this.getPersistLatencyMeanMillis(), this.getPersistLatencyP50Millis(),
+                this.getPersistLatencyP99Millis(), this.getPersistLatencyMaxMillis(), this.getListingLatencyMeanMillis(), this.getConnectionWaitMeanMillis()));
+        this.lastReport = now;
+        this.lastDirectories = directories;
+        this.lastFiles = files;
+        this.lastRows = rows;
+    }
+
+    /**
+     * Records a listed directory.
+     * @param nanos the time it took to list the directory and read the attributes of its entries, in nanoseconds
+     */
+    public void directoryListed(long nanos) {
+        this.directoriesListed.increment();
+        this.listingLatency.record(nanos);
+    }
+
+    /**
+     * Records a directory that wasn't listed because unchanged since the previous scan.
+     */
+    public void directoryUnchanged() {
+        this.directoriesUnchanged.increment();
+    }
+
+    /**
+     * Records a regular file found.
+     * @param size the size of the file
+     */
+    public void fileSeen(long size) {
+        this.filesSeen.increment();
+        this.bytesSeen.add(size);
+    }
+
+    /**
+     * Records a file that matched the wanted file extentions.
+     */
+    public void fileMatched() {
+        this.filesMatched.increment();
+    }
+
+    /**
+     * Records a file handed over to the sink as new or changed.
+     */
+    public void fileEmitted() {
+        this.filesEmitted.increment();
+    }
+
+    /**
+     * Records a file handed over to the sink as removed.
+     */
+    public void fileRemoved() {
+        this.filesRemoved.increment();
+    }
+
+    /**
+     * Records a directory that could not be read.
+     */
+    public void error() {
+        this.errors.increment();
+    }
+
+    /**
+     * Records a batch of rows persisted.
+     * @param rows the number of rows in the batch
+     * @param nanos the time it took to persist the batch, in nanoseconds
+     */
+    public void batchPersisted(int rows, long nanos) {
+        this.rowsPersisted.add(rows);
+        this.persistLatency.record(nanos);
+    }
+
+    /**
+     * Records the time a batch waited for a connection of the pool.
+     * @param nanos the time it took to get the connection, in nanoseconds
+     */
+    public void connectionAcquired(long nanos) {
+        this.connectionWait.record(nanos);
+    }
+
+    /**
+     * Records a batch of rows that could not be persisted.
+     * @param rows the number of rows in the batch
+     */
+    public void batchFailed(int rows) {
+        this.rowsFailed.add(rows);
+    }
+
+    /**
+     * Sets the queues of the rows waiting to be persisted, whose total depth is reported.
+     * @param queues the queues of the rows waiting to be persisted
+     */
+    public void watchQueue(BlockingQueue<?>... queues) {
+        this.queues = queues.clone();
+    }
+
+    /**
+     * Returns the latencies of the directory listings, for the {@link com.rhad.filescanner.tuning.ConcurrencyController}.
+     * @return the latencies of the directory listings
+     */
+    public LatencyHistogram getListingLatency() {
+        return this.listingLatency;
+    }
+
+    /**
+     * Returns the latencies of the persisted batches, for the {@link com.rhad.filescanner.tuning.ConcurrencyController}.
+     * @return the latencies of the persisted batches
+     */
+    public LatencyHistogram getPersistLatency() {
+        return this.persistLatency;
+    }
+
+    /**
+     * Returns the times the batches waited for a connection of the pool, for the {@link com.rhad.filescanner.tuning.ConcurrencyController}.
+     * @return the times the batches waited for a connection of the pool
+     */
+    public LatencyHistogram getConnectionWait() {
+        return this.connectionWait;
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return (System.currentTimeMillis()-this.started)/1000L;
+    }
+
+    @Override
+    public long getDirectoriesListed() {
+        return this.directoriesListed.sum();
+    }
+
+    @Override
+    public long getDirectoriesUnchanged() {
+        return this.directoriesUnchanged.sum();
+    }
+
+    @Override
+    public long getFilesSeen() {
+        return this.filesSeen.sum();
+    }
+
+    @Override
+    public long getFilesMatched() {
+        return this.filesMatched.sum();
+    }
+
+    @Override
+    public long getBytesSeen() {
+        return this.bytesSeen.sum();
+    }
+
+    @Override
+    public long getFilesEmitted() {
+        return this.filesEmitted.sum();
+    }
+
+    @Override
+    public long getFilesRemoved() {
+        return this.filesRemoved.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return this.errors.sum();
+    }
+
+    @Override
+    public long getRowsPersisted() {
+        return this.rowsPersisted.sum();
+    }
+
+    @Override
+    public long getRowsFailed() {
+        return this.rowsFailed.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for(BlockingQueue<?> watched : this.queues){
+            depth+=watched.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for(BlockingQueue<?> watched : this.queues){
+            capacity+=watched.size()+watched.remainingCapacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public long getBatches() {
+        return this.persistLatency.getCount();
+    }
+
+    @Override
+    public double getPersistLatencyMeanMillis() {
+        return this.persistLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getPersistLatencyP50Millis() {
+        return this.persistLatency.getPercentileMillis(50d);
+    }
+
+    @Override
+    public double getPersistLatencyP99Millis() {
+        return this.persistLatency.getPercentileMillis(99d);
+    }
+
+    @Override
+    public double getPersistLatencyMaxMillis() {
+        return this.persistLatency.getMaxMillis();
+    }
+
+    @Override
+    public double getListingLatencyMeanMillis() {
+        return this.listingLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getConnectionWaitMeanMillis() {
+        return this.connectionWait.getMeanMillis();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.metrics;
+
+/**
+ * The JMX management interface of {@link ScanMetrics}, registered as <code>com.rhad.filescanner:type=ScanMetrics</code>.
+ * @author Roberto Fabrizi
+ */
+public interface ScanMetricsMBean {
+
+    /**
+     * Returns the number of seconds since the scan started.
+     * @return the number of seconds since the scan started
+     */
+    long getElapsedSeconds();
+
+    /**
+     * Returns the number of directories listed.
+     * @return the number of directories listed
+     */
+    long getDirectoriesListed();
+
+    /**
+     * Returns the number of directories not listed because unchanged since the previous incremental scan.
+     * @return the number of directories not listed because unchanged since the previous incremental scan
+     */
+    long getDirectoriesUnchanged();
+
+    /**
+     * Returns the number of regular files found.
+     * @return the number of regular files found
+     */
+    long getFilesSeen();
+
+    /**
+     * Returns the number of files that matched the wanted file extentions.
+     * @return the number of files that matched the wanted file extentions
+     */
+    long getFilesMatched();
+
+    /**
+     * Returns the total size of the regular files found.
+     * @return the total size of the regular files found
+     */
+    long getBytesSeen();
+
+    /**
+     * Returns the number of files handed over to the sink, as new or changed.
+     * @return the number of files handed over to the sink, as new or changed
+     */
+    long getFilesEmitted();
+
+    /**
+     * Returns the number of files handed over to the sink, as removed.
+     * @return the number of files handed over to the sink, as removed
+     */
+    long getFilesRemoved();
+
+    /**
+     * Returns the number of directories that could not be read.
+     * @return the number of directories that could not be read
+     */
+    long getErrors();
+
+    /**
+     * Returns the number of rows (or records) the sink has persisted.
+     * @return the number of rows (or records) the sink has persisted
+     */
+    long getRowsPersisted();
+
+    /**
+     * Returns the number of rows the sink could not persist.
+     * @return the number of rows the sink could not persist
+     */
+    long getRowsFailed();
+
+    /**
+     * Returns the number of rows waiting to be persisted.
+     * @return the number of rows waiting to be persisted
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the maximum number of rows that can wait to be persisted, or 0 if the sink has no queue.
+     * @return the maximum number of rows that can wait to be persisted
+     */
+    int getQueueCapacity();
+
+    /**
+     * Returns the number of batches persisted.
+     * @return the number of batches persisted
+     */
+    long getBatches();
+
+    /**
+     * Returns the mean time to persist a batch, in milliseconds.
+     * @return the mean time to persist a batch, in milliseconds
+     */
+    double getPersistLatencyMeanMillis();
+
+    /**
+     * Returns the median time to persist a batch, in milliseconds.
+     * @return the median time to persist a batch, in milliseconds
+     */
+    double getPersistLatencyP50Millis();
+
+    /**
+     * Returns the 99th percentile of the time to persist a batch, in milliseconds.
+     * @return the 99th percentile of the time to persist a batch, in milliseconds
+     */
+    double getPersistLatencyP99Millis();
+
+    /**
+     * Returns the longest time to persist a batch, in milliseconds.
+     * @return the longest time to persist a batch, in milliseconds
+     */
+    double getPersistLatencyMaxMillis();
+
+    /**
+     * Returns the mean time to list a directory, in milliseconds, once allowed to access the file system.
+     * @return the mean time to list a directory, in milliseconds
+     */
+    double getListingLatencyMeanMillis();
+
+    /**
+     * Returns the mean time a batch waited for a connection of the pool, in milliseconds.
+     * @return the mean time a batch waited for a connection of the pool, in milliseconds
+     */
+    double getConnectionWaitMeanMillis();
+}
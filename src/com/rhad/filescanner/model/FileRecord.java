@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.model;
+
+import java.nio.file.Path;
+import java.util.Date;
+
+/**
+ * A file emitted by the scan, as it travels from the scanner threads to the {@link com.rhad.filescanner.sink.PacchettiSink}. Unlike
+ * a {@link Pacchetti}, it holds the size and the date as primitives and shares the package name with all the other files of its
+ * package, and the directory with all the other files of its directory, so that a file costs a single small object until it
+ * reaches the sink. Within its package, a file is identified by its path, the directory followed by the file name. Sinks that need the entity convert it with
+ * {@link #toPacchetti()}, the others write the fields straight to their destination.
+ * @author Roberto Fabrizi
+ */
+public final class FileRecord {
+
+    /** The size or date of a file that is not known, as for the files that no longer exist. */
+    public static final long UNKNOWN = -1L;
+    private final String packageName;
+    private final String directory;
+    private final String fileName;
+    private final long fileSize;
+    private final long lastModified;
+    private final Path path;
+    // only set by the thread that hashed the file, before handing it over
+    private String contentHash;
+
+    /**
+     * Creates a <code>FileRecord</code> of a file that was found.
+     * @param packageName the name of the package the file belongs to
+     * @param directory the path of the directory of the file inside its package, with <code>/</code> separators, empty for the package directory itself
+     * @param fileName the name of the file
+     * @param fileSize the size of the file, in bytes
+     * @param lastModified the last modification date of the file, in milliseconds since the epoch
+     * @param path where the file was found, or null if it is not known
+     */
+    public FileRecord(String packageName, String directory, String fileName, long fileSize, long lastModified, Path path) {
+        this.packageName = packageName;
+        this.directory = directory;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.path = path;
+    }
+
+    /**
+     * Returns a <code>FileRecord</code> of a file that no longer exists, whose size and date are unknown.
+     * @param packageName the name of the package the file belonged to
+     * @param directory the path of the directory of the file inside its package, with <code>/</code> separators, empty for the package directory itself
+     * @param fileName the name of the file
+     * @return the <code>FileRecord</code> of the removed file
+     */
+    public static FileRecord Removed(String packageName, String directory, String fileName) {
+        return new FileRecord(packageName, directory, fileName, UNKNOWN, UNKNOWN, null);
+    }
+
+    /**
+     * Returns the path of a file inside its package, the directory followed by the file name.
+     * @param directory the path of the directory of the file inside its package, empty for the package directory itself
+     * @param fileName the name of the file
+     * @return the path of the file inside its package, with <code>/</code> separators
+     */
+    public static String FilePath(String directory, String fileName) {
+        return directory.isEmpty() ? fileName : directory+"/"+fileName;
+    }
+
+    /**
+     * Returns the name of the package the file belongs to.
+     * @return the name of the package the file belongs to
+     */
+    public String getPackageName() {
+        return this.packageName;
+    }
+
+    /**
+     * Returns the path of the directory of the file inside its package, empty for the package directory itself.
+     * @return the path of the directory of the file inside its package, with <code>/</code> separators
+     */
+    public String getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns the name of the file.
+     * @return the name of the file
+     */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * Returns the path of the file inside its package, which identifies it among the files of the package.
+     * @return the path of the file inside its package, with <code>/</code> separators
+     */
+    public String getFilePath() {
+        return FilePath(this.directory, this.fileName);
+    }
+
+    /**
+     * Returns the size of the file in bytes, or {@link #UNKNOWN}.
+     * @return the size of the file in bytes, or <code>UNKNOWN</code>
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /**
+     * Returns the last modification date of the file in milliseconds since the epoch, or {@link #UNKNOWN}.
+     * @return the last modification date of the file in milliseconds since the epoch, or <code>UNKNOWN</code>
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns where the file was found, or null.
+     * @return where the file was found, or null
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Returns the hexadecimal digest of the content of the file, or null if it wasn't hashed.
+     * @return the hexadecimal digest of the content of the file, or null if it wasn't hashed
+     */
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    /**
+     * Sets the hexadecimal digest of the content of the file.
+     * @param contentHash the hexadecimal digest of the content of the file
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns a new <code>Pacchetti</code> with the fields of this file, and no id.
+     * @return a new <code>Pacchetti</code> with the fields of this file
+     */
+    public Pacchetti toPacchetti() {
+        Pacchetti pacchetto = new Pacchetti();
+        pacchetto.setPackageName(this.packageName);
+        pacchetto.setFileName(this.fileName);
+        pacchetto.setFilePath(this.getFilePath());
+        if(this.fileSize!=UNKNOWN){
+            pacchetto.setFileSize(this.fileSize);
+        }
+        if(this.lastModified!=UNKNOWN){
+            pacchetto.setLastModified(new Date(this.lastModified));
+        }
+        pacchetto.setContentHash(this.contentHash);
+        return pacchetto;
+    }
+
+    @Override
+    public String toString() {
+        return "FileRecord{" + "packageName=" + this.packageName + ", directory=" + this.directory + ", fileName=" + this.fileName + ", fileSize=" + this.fileSize + ", lastModified=" + this.lastModified + ", contentHash=" + this.contentHash + '}';
+    }
+}
@@ -10,32 +10,79 @@
 package com.rhad.filescanner.model;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import javax.persistence.*;
 import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
 
 /**
- * This class maps the PACCHETTI table on the database. If the table doesn't exist it is automatically generated.
+ * This class maps the PACCHETTI table on the database. If the table doesn't exist it is automatically generated, together with the
+ * PACCHETTI_SEQ sequence its ids are allocated from. Files are identified by their package name and their path inside the
+ * package, which are indexed for the removals and the upserts of {@link com.rhad.filescanner.persistence.UpsertWriter}.
  * @author Roberto Fabrizi
  */
 @Entity
 @Table(name="PACCHETTI" ,schema="ORAP8")
+// not unique, as the tables populated in insert mode contain duplicates: UpsertWriter replaces it with a unique one
+@org.hibernate.annotations.Table(appliesTo="PACCHETTI", indexes={
+    @Index(name="PACCHETTI_NATURAL_KEY", columnNames={"PACKAGE_NAME", "FILE_PATH"}),
+    @Index(name="PACCHETTI_CONTENT_HASH", columnNames={"CONTENT_HASH"})
+})
 public class Pacchetti implements java.io.Serializable {
 
+    /** The longest package and file name, in bytes, the columns hold. */
+    public static final int MAX_NAME = 255;
+    /** The longest path inside a package, in bytes, the column holds. */
+    public static final int MAX_FILE_PATH = 1024;
+    // ids are allocated in blocks of 1000 from the PACCHETTI_SEQ sequence, so that concurrent writers and scanner instances never collide
     @Id
-    @GenericGenerator(name="kaugen" , strategy="increment")
+    @GenericGenerator(name="kaugen" , strategy="org.hibernate.id.enhanced.SequenceStyleGenerator", parameters={
+        @Parameter(name="schema", value="ORAP8"),
+        @Parameter(name="sequence_name", value="PACCHETTI_SEQ"),
+        @Parameter(name="increment_size", value="1000"),
+        @Parameter(name="optimizer", value="pooled")
+    })
     @GeneratedValue(generator="kaugen")
     @Column(name="ID", precision=22, scale=0)
     private BigDecimal id;
-    @Column(name="PACKAGE_NAME")
+    @Column(name="PACKAGE_NAME", length=MAX_NAME)
     private String packageName;
-    @Column(name="FILE_NAME")
+    @Column(name="FILE_NAME", length=MAX_NAME)
     private String fileName;
+    // the path inside the package, with / separators, as FILE_NAME is not unique within a package
+    @Column(name="FILE_PATH", length=MAX_FILE_PATH)
+    private String filePath;
     @Column(name="FILE_SIZE", precision=16, scale=0)
     private Long fileSize;
     @Temporal(TemporalType.DATE)
     @Column(name="LAST_MODIFIED", length=7)
     private Date lastModified;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="REMOVED")
+    private Date removed;
+    // the start of the upsert run that last found the file, null in insert mode
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="SCANNED")
+    private Date scanned;
+    // the hexadecimal digest of the content, null unless hashing is enabled
+    @Column(name="CONTENT_HASH", length=128)
+    private String contentHash;
+
+    /**
+     * Returns whether the names and the path of a file fit their columns, which a database with byte length semantics measures in
+     * bytes: a row that doesn't fit fails the whole batch it is persisted with.
+     * @param record the file
+     * @return whether the row of the file can be persisted
+     */
+    public static boolean Fits(FileRecord record) {
+        return Bytes(record.getPackageName())<=MAX_NAME && Bytes(record.getFileName())<=MAX_NAME && Bytes(record.getFilePath())<=MAX_FILE_PATH;
+    }
+
+    private static int Bytes(String value) {
+        return value==null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
 
     /**
      * Create an empty <code>Pacchetti</code>.
@@ -69,7 +116,7 @@ public class Pacchetti implements java.io.Serializable {
    
     @Override
     public String toString() {
-        return "Pacchetti{" + "id=" + this.id + ", packageName=" + this.packageName + ", fileName=" + this.fileName + ", fileSize=" + this.fileSize + ", lastModified=" + this.lastModified + '}';
+        return "Pacchetti{" + "id=" + this.id + ", packageName=" + this.packageName + ", fileName=" + this.fileName + ", filePath=" + this.filePath + ", fileSize=" + this.fileSize + ", lastModified=" + this.lastModified + ", removed=" + this.removed + ", scanned=" + this.scanned + ", contentHash=" + this.contentHash + '}';
     }
 
     /**
@@ -120,6 +167,22 @@ public class Pacchetti implements java.io.Serializable {
         this.fileName = fileName;
     }
     
+    /**
+     * Returns the path inside the package of the file contained in this Pacchetti.
+     * @return the path inside the package of the file contained in this Pacchetti, with <code>/</code> separators
+     */
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    /**
+     * Sets the path inside the package of the file contained in this Pacchetti.
+     * @param filePath the path inside the package of the file contained in this Pacchetti, with <code>/</code> separators
+     */
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+    
     /**
      * Returns the file size of this object.
      * @return the file size of this object
@@ -151,4 +214,52 @@ public class Pacchetti implements java.io.Serializable {
     public void setLastModified(Date lastModified) {
         this.lastModified = lastModified;
     }
+
+    /**
+     * Returns when the file contained in this Pacchetti was found to no longer exist, or null if it still exists.
+     * @return when the file contained in this Pacchetti was found to no longer exist, or null if it still exists
+     */
+    public Date getRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Sets when the file contained in this Pacchetti was found to no longer exist.
+     * @param removed when the file contained in this Pacchetti was found to no longer exist, or null if it still exists
+     */
+    public void setRemoved(Date removed) {
+        this.removed = removed;
+    }
+
+    /**
+     * Returns the start of the upsert run that last found the file contained in this Pacchetti, or null if it was inserted.
+     * @return the start of the upsert run that last found the file contained in this Pacchetti, or null if it was inserted
+     */
+    public Date getScanned() {
+        return this.scanned;
+    }
+
+    /**
+     * Sets the start of the upsert run that last found the file contained in this Pacchetti.
+     * @param scanned the start of the upsert run that last found the file contained in this Pacchetti
+     */
+    public void setScanned(Date scanned) {
+        this.scanned = scanned;
+    }
+
+    /**
+     * Returns the hexadecimal digest of the content of the file contained in this Pacchetti, or null if it wasn't hashed.
+     * @return the hexadecimal digest of the content of the file contained in this Pacchetti, or null if it wasn't hashed
+     */
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    /**
+     * Sets the hexadecimal digest of the content of the file contained in this Pacchetti.
+     * @param contentHash the hexadecimal digest of the content of the file contained in this Pacchetti
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
 }
\ No newline at end of file
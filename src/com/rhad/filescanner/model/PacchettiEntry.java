@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.model;
+
+import java.util.Date;
+import javax.persistence.*;
+import org.hibernate.annotations.Index;
+
+/**
+ * This class maps the PACCHETTI_ENTRIES table on the database. If the table doesn't exist it is automatically generated. Every
+ * file found inside an archive (a jar, war, ear or zip, or a tar, optionally gzipped or compressed) has a row, linked to the row of
+ * the archive in the PACCHETTI table by its package name and file path. The rows of an archive are replaced every time the
+ * archive is emitted, and deleted when it no longer exists.
+ * @author Roberto Fabrizi
+ */
+@Entity
+@Table(name="PACCHETTI_ENTRIES", schema="ORAP8")
+@org.hibernate.annotations.Table(appliesTo="PACCHETTI_ENTRIES", indexes={
+    @Index(name="PACCHETTI_ENTRIES_NAME", columnNames={"ENTRY_NAME"})
+})
+public class PacchettiEntry implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /** The longest entry name that is recorded. */
+    public static final int MAX_ENTRY_NAME = 1024;
+    @EmbeddedId
+    private Key key;
+    @Column(name="ENTRY_SIZE", precision=20, scale=0)
+    private Long entrySize;
+    // null for the entries of a tar, which aren't compressed one by one
+    @Column(name="COMPRESSED_SIZE", precision=20, scale=0)
+    private Long compressedSize;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="LAST_MODIFIED")
+    private Date lastModified;
+    // the CRC-32 of the content, as recorded by a zip, null for the entries of a tar
+    @Column(name="CRC", precision=10, scale=0)
+    private Long crc;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="SCANNED")
+    private Date scanned;
+
+    /**
+     * Create an empty <code>PacchettiEntry</code>.
+     */
+    public PacchettiEntry() {
+    }
+
+    /**
+     * Create a <code>PacchettiEntry</code> of the passed archive and entry.
+     * @param packageName the name of the package of the archive
+     * @param filePath the path of the archive inside its package
+     * @param entryName the name of the entry, with its path inside the archive
+     */
+    public PacchettiEntry(String packageName, String filePath, String entryName) {
+        this.key = new Key(packageName, filePath, entryName);
+    }
+
+    @Override
+    public String toString() {
+        return "PacchettiEntry{" + "key=" + this.key + ", entrySize=" + this.entrySize + ", compressedSize=" + this.compressedSize + ", lastModified=" + this.lastModified + ", crc=" + this.crc + ", scanned=" + this.scanned + '}';
+    }
+
+    /**
+     * Returns the archive and the name of this entry.
+     * @return the archive and the name of this entry
+     */
+    public Key getKey() {
+        return this.key;
+    }
+
+    /**
+     * Sets the archive and the name of this entry.
+     * @param key the archive and the name of this entry
+     */
+    public void setKey(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the size of the entry, in bytes, once extracted.
+     * @return the size of the entry, in bytes, once extracted
+     */
+    public Long getEntrySize() {
+        return this.entrySize;
+    }
+
+    /**
+     * Sets the size of the entry, in bytes, once extracted.
+     * @param entrySize the size of the entry, in bytes, once extracted
+     */
+    public void setEntrySize(Long entrySize) {
+        this.entrySize = entrySize;
+    }
+
+    /**
+     * Returns the size of the entry, in bytes, inside the archive, or null if it isn't compressed on its own.
+     * @return the size of the entry, in bytes, inside the archive, or null
+     */
+    public Long getCompressedSize() {
+        return this.compressedSize;
+    }
+
+    /**
+     * Sets the size of the entry, in bytes, inside the archive.
+     * @param compressedSize the size of the entry, in bytes, inside the archive, or null if it isn't compressed on its own
+     */
+    public void setCompressedSize(Long compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Returns the last modification date of the entry.
+     * @return the last modification date of the entry
+     */
+    public Date getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Sets the last modification date of the entry.
+     * @param lastModified the last modification date of the entry
+     */
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the CRC-32 of the content of the entry, or null if the archive doesn't record it.
+     * @return the CRC-32 of the content of the entry, or null
+     */
+    public Long getCrc() {
+        return this.crc;
+    }
+
+    /**
+     * Sets the CRC-32 of the content of the entry.
+     * @param crc the CRC-32 of the content of the entry, or null if the archive doesn't record it
+     */
+    public void setCrc(Long crc) {
+        this.crc = crc;
+    }
+
+    /**
+     * Returns when the archive was read.
+     * @return when the archive was read
+     */
+    public Date getScanned() {
+        return this.scanned;
+    }
+
+    /**
+     * Sets when the archive was read.
+     * @param scanned when the archive was read
+     */
+    public void setScanned(Date scanned) {
+        this.scanned = scanned;
+    }
+
+    /**
+     * The primary key of an entry: the package and the path of the archive, as archives of the same name may sit in different
+     * directories of a package, and the name of the entry.
+     */
+    @Embeddable
+    public static class Key implements java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+        @Column(name="PACKAGE_NAME")
+        private String packageName;
+        @Column(name="FILE_PATH", length=1024)
+        private String filePath;
+        @Column(name="ENTRY_NAME", length=MAX_ENTRY_NAME)
+        private String entryName;
+
+        /**
+         * Create an empty <code>Key</code>.
+         */
+        public Key() {
+        }
+
+        /**
+         * Create a <code>Key</code> with the passed parameters.
+         * @param packageName the name of the package of the archive
+         * @param filePath the path of the archive inside its package
+         * @param entryName the name of the entry
+         */
+        public Key(String packageName, String filePath, String entryName) {
+            this.packageName = packageName;
+            this.filePath = filePath;
+            this.entryName = entryName;
+        }
+
+        /**
+         * Returns the name of the package of the archive.
+         * @return the name of the package of the archive
+         */
+        public String getPackageName() {
+            return this.packageName;
+        }
+
+        /**
+         * Sets the name of the package of the archive.
+         * @param packageName the name of the package of the archive
+         */
+        public void setPackageName(String packageName) {
+            this.packageName = packageName;
+        }
+
+        /**
+         * Returns the path of the archive inside its package.
+         * @return the path of the archive inside its package
+         */
+        public String getFilePath() {
+            return this.filePath;
+        }
+
+        /**
+         * Sets the path of the archive inside its package.
+         * @param filePath the path of the archive inside its package
+         */
+        public void setFilePath(String filePath) {
+            this.filePath = filePath;
+        }
+
+        /**
+         * Returns the name of the entry, with its path inside the archive.
+         * @return the name of the entry
+         */
+        public String getEntryName() {
+            return this.entryName;
+        }
+
+        /**
+         * Sets the name of the entry, with its path inside the archive.
+         * @param entryName the name of the entry
+         */
+        public void setEntryName(String entryName) {
+            this.entryName = entryName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key other = (Key) o;
+            return (this.packageName==null ? other.packageName==null : this.packageName.equals(other.packageName))
+                    && (this.filePath==null ? other.filePath==null : this.filePath.equals(other.filePath))
+                    && (this.entryName==null ? other.entryName==null : this.entryName.equals(other.entryName));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = this.packageName==null ? 0 : this.packageName.hashCode();
+            hash = 31*hash+(this.filePath==null ? 0 : this.filePath.hashCode());
+            return 31*hash+(this.entryName==null ? 0 : this.entryName.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.packageName+"/"+this.filePath+"!"+this.entryName;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.model;
+
+import java.util.Date;
+import javax.persistence.*;
+
+/**
+ * This class maps the PACCHETTI_SUMMARY table on the database. If the table doesn't exist it is automatically generated. Every
+ * package has a row with the totals of its files, whose EXTENTION is <code>*</code>, and a row per file extention (<code>.</code> for
+ * the files without one). The rows of a package are replaced every time the package is completely scanned, so that reports read
+ * them instead of grouping the PACCHETTI table.
+ * @author Roberto Fabrizi
+ */
+@Entity
+@Table(name="PACCHETTI_SUMMARY", schema="ORAP8")
+public class PacchettiSummary implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /** The extention of the row with the totals of a package. */
+    public static final String ALL_EXTENTIONS = "*";
+    /** The extention of the row of the files without extention. */
+    public static final String NO_EXTENTION = ".";
+    @EmbeddedId
+    private Key key;
+    @Column(name="FILE_COUNT", precision=16, scale=0)
+    private long fileCount;
+    @Column(name="TOTAL_SIZE", precision=20, scale=0)
+    private long totalSize;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="OLDEST_MODIFIED")
+    private Date oldestModified;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="NEWEST_MODIFIED")
+    private Date newestModified;
+    // the distribution of the sizes: below 1 KiB, below 1 MiB, below 1 GiB, and 1 GiB or more
+    @Column(name="FILES_UNDER_1K", precision=16, scale=0)
+    private long filesUnder1K;
+    @Column(name="FILES_UNDER_1M", precision=16, scale=0)
+    private long filesUnder1M;
+    @Column(name="FILES_UNDER_1G", precision=16, scale=0)
+    private long filesUnder1G;
+    @Column(name="FILES_OVER_1G", precision=16, scale=0)
+    private long filesOver1G;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="SCANNED")
+    private Date scanned;
+
+    /**
+     * Create an empty <code>PacchettiSummary</code>.
+     */
+    public PacchettiSummary() {
+    }
+
+    /**
+     * Create a <code>PacchettiSummary</code> of the passed package and extention.
+     * @param packageName the name of the package
+     * @param extention the file extention, {@link #ALL_EXTENTIONS} or {@link #NO_EXTENTION}
+     */
+    public PacchettiSummary(String packageName, String extention) {
+        this.key = new Key(packageName, extention);
+    }
+
+    @Override
+    public String toString() {
+        return "PacchettiSummary{" + "key=" + this.key + ", fileCount=" + this.fileCount + ", totalSize=" + this.totalSize + ", oldestModified=" + this.oldestModified + ", newestModified=" + this.newestModified + ", filesUnder1K=" + this.filesUnder1K + ", filesUnder1M=" + this.filesUnder1M + ", filesUnder1G=" + this.filesUnder1G + ", filesOver1G=" + this.filesOver1G + ", scanned=" + this.scanned + '}';
+    }
+
+    /**
+     * Returns the package and the extention of this row.
+     * @return the package and the extention of this row
+     */
+    public Key getKey() {
+        return this.key;
+    }
+
+    /**
+     * Sets the package and the extention of this row.
+     * @param key the package and the extention of this row
+     */
+    public void setKey(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the number of files.
+     * @return the number of files
+     */
+    public long getFileCount() {
+        return this.fileCount;
+    }
+
+    /**
+     * Sets the number of files.
+     * @param fileCount the number of files
+     */
+    public void setFileCount(long fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * Returns the total size of the files, in bytes.
+     * @return the total size of the files, in bytes
+     */
+    public long getTotalSize() {
+        return this.totalSize;
+    }
+
+    /**
+     * Sets the total size of the files, in bytes.
+     * @param totalSize the total size of the files, in bytes
+     */
+    public void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * Returns the last modification date of the oldest file, or null if there are no files.
+     * @return the last modification date of the oldest file, or null if there are no files
+     */
+    public Date getOldestModified() {
+        return this.oldestModified;
+    }
+
+    /**
+     * Sets the last modification date of the oldest file.
+     * @param oldestModified the last modification date of the oldest file, or null if there are no files
+     */
+    public void setOldestModified(Date oldestModified) {
+        this.oldestModified = oldestModified;
+    }
+
+    /**
+     * Returns the last modification date of the newest file, or null if there are no files.
+     * @return the last modification date of the newest file, or null if there are no files
+     */
+    public Date getNewestModified() {
+        return this.newestModified;
+    }
+
+    /**
+     * Sets the last modification date of the newest file.
+     * @param newestModified the last modification date of the newest file, or null if there are no files
+     */
+    public void setNewestModified(Date newestModified) {
+        this.newestModified = newestModified;
+    }
+
+    /**
+     * Returns the number of files smaller than 1 KiB.
+     * @return the number of files smaller than 1 KiB
+     */
+    public long getFilesUnder1K() {
+        return this.filesUnder1K;
+    }
+
+    /**
+     * Sets the number of files smaller than 1 KiB.
+     * @param filesUnder1K the number of files smaller than 1 KiB
+     */
+    public void setFilesUnder1K(long filesUnder1K) {
+        this.filesUnder1K = filesUnder1K;
+    }
+
+    /**
+     * Returns the number of files of at least 1 KiB and smaller than 1 MiB.
+     * @return the number of files of at least 1 KiB and smaller than 1 MiB
+     */
+    public long getFilesUnder1M() {
+        return this.filesUnder1M;
+    }
+
+    /**
+     * Sets the number of files of at least 1 KiB and smaller than 1 MiB.
+     * @param filesUnder1M the number of files of at least 1 KiB and smaller than 1 MiB
+     */
+    public void setFilesUnder1M(long filesUnder1M) {
+        this.filesUnder1M = filesUnder1M;
+    }
+
+    /**
+     * Returns the number of files of at least 1 MiB and smaller than 1 GiB.
+     * @return the number of files of at least 1 MiB and smaller than 1 GiB
+     */
+    public long getFilesUnder1G() {
+        return this.filesUnder1G;
+    }
+
+    /**
+     * Sets the number of files of at least 1 MiB and smaller than 1 GiB.
+     * @param filesUnder1G the number of files of at least 1 MiB and smaller than 1 GiB
+     */
+    public void setFilesUnder1G(long filesUnder1G) {
+        this.filesUnder1G = filesUnder1G;
+    }
+
+    /**
+     * Returns the number of files of 1 GiB or more.
+     * @return the number of files of 1 GiB or more
+     */
+    public long getFilesOver1G() {
+        return this.filesOver1G;
+    }
+
+    /**
+     * Sets the number of files of 1 GiB or more.
+     * @param filesOver1G the number of files of 1 GiB or more
+     */
+    public void setFilesOver1G(long filesOver1G) {
+        this.filesOver1G = filesOver1G;
+    }
+
+    /**
+     * Returns when the package was scanned.
+     * @return when the package was scanned
+     */
+    public Date getScanned() {
+        return this.scanned;
+    }
+
+    /**
+     * Sets when the package was scanned.
+     * @param scanned when the package was scanned
+     */
+    public void setScanned(Date scanned) {
+        this.scanned = scanned;
+    }
+
+    /**
+     * The primary key of a summary: the package and the extention.
+     */
+    @Embeddable
+    public static class Key implements java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+        @Column(name="PACKAGE_NAME")
+        private String packageName;
+        @Column(name="EXTENTION", length=64)
+        private String extention;
+
+        /**
+         * Create an empty <code>Key</code>.
+         */
+        public Key() {
+        }
+
+        /**
+         * Create a <code>Key</code> with the passed parameters.
+         * @param packageName the name of the package
+         * @param extention the file extention
+         */
+        public Key(String packageName, String extention) {
+            this.packageName = packageName;
+            this.extention = extention;
+        }
+
+        /**
+         * Returns the name of the package.
+         * @return the name of the package
+         */
+        public String getPackageName() {
+            return this.packageName;
+        }
+
+        /**
+         * Sets the name of the package.
+         * @param packageName the name of the package
+         */
+        public void setPackageName(String packageName) {
+            this.packageName = packageName;
+        }
+
+        /**
+         * Returns the file extention.
+         * @return the file extention
+         */
+        public String getExtention() {
+            return this.extention;
+        }
+
+        /**
+         * Sets the file extention.
+         * @param extention the file extention
+         */
+        public void setExtention(String extention) {
+            this.extention = extention;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key other = (Key) o;
+            return (this.packageName==null ? other.packageName==null : this.packageName.equals(other.packageName))
+                    && (this.extention==null ? other.extention==null : this.extention.equals(other.extention));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*(this.packageName==null ? 0 : this.packageName.hashCode())+(this.extention==null ? 0 : this.extention.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.packageName+"/"+this.extention;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.model;
+
+import java.util.Date;
+import javax.persistence.*;
+
+/**
+ * This class maps the SCAN_LEASES table on the database, through which the nodes of a distributed scan share out the packages. If
+ * the table doesn't exist it is automatically generated. Every row is the lease of a package (the shard) within a run: the node that
+ * holds it, until when, and when the package was completely scanned. The rows are read and written with plain JDBC by the
+ * {@link com.rhad.filescanner.shard.ShardCoordinator}, the mapping only describes the table.
+ * @author Roberto Fabrizi
+ */
+@Entity
+@Table(name="SCAN_LEASES", schema="ORAP8")
+public class ScanLease implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    private Key key;
+    @Column(name="OWNER", length=255)
+    private String owner;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="EXPIRES")
+    private Date expires;
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="COMPLETED")
+    private Date completed;
+
+    /**
+     * Create an empty <code>ScanLease</code>.
+     */
+    public ScanLease() {
+    }
+
+    @Override
+    public String toString() {
+        return "ScanLease{" + "key=" + this.key + ", owner=" + this.owner + ", expires=" + this.expires + ", completed=" + this.completed + '}';
+    }
+
+    /**
+     * Returns the run and the package of this lease.
+     * @return the run and the package of this lease
+     */
+    public Key getKey() {
+        return this.key;
+    }
+
+    /**
+     * Sets the run and the package of this lease.
+     * @param key the run and the package of this lease
+     */
+    public void setKey(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the node that holds this lease.
+     * @return the node that holds this lease
+     */
+    public String getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * Sets the node that holds this lease.
+     * @param owner the node that holds this lease
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Returns when this lease expires, unless it is renewed.
+     * @return when this lease expires, unless it is renewed
+     */
+    public Date getExpires() {
+        return this.expires;
+    }
+
+    /**
+     * Sets when this lease expires, unless it is renewed.
+     * @param expires when this lease expires, unless it is renewed
+     */
+    public void setExpires(Date expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * Returns when the package was completely scanned, or null if it wasn't yet.
+     * @return when the package was completely scanned, or null if it wasn't yet
+     */
+    public Date getCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * Sets when the package was completely scanned.
+     * @param completed when the package was completely scanned, or null if it wasn't yet
+     */
+    public void setCompleted(Date completed) {
+        this.completed = completed;
+    }
+
+    /**
+     * The primary key of a lease: the run and the package.
+     */
+    @Embeddable
+    public static class Key implements java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+        @Column(name="RUN_ID", length=64)
+        private String runId;
+        @Column(name="SHARD", length=1024)
+        private String shard;
+
+        /**
+         * Create an empty <code>Key</code>.
+         */
+        public Key() {
+        }
+
+        /**
+         * Create a <code>Key</code> with the passed parameters.
+         * @param runId the run the lease belongs to
+         * @param shard the package directory
+         */
+        public Key(String runId, String shard) {
+            this.runId = runId;
+            this.shard = shard;
+        }
+
+        /**
+         * Returns the run the lease belongs to.
+         * @return the run the lease belongs to
+         */
+        public String getRunId() {
+            return this.runId;
+        }
+
+        /**
+         * Sets the run the lease belongs to.
+         * @param runId the run the lease belongs to
+         */
+        public void setRunId(String runId) {
+            this.runId = runId;
+        }
+
+        /**
+         * Returns the package directory.
+         * @return the package directory
+         */
+        public String getShard() {
+            return this.shard;
+        }
+
+        /**
+         * Sets the package directory.
+         * @param shard the package directory
+         */
+        public void setShard(String shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key other = (Key) o;
+            return (this.runId==null ? other.runId==null : this.runId.equals(other.runId))
+                    && (this.shard==null ? other.shard==null : this.shard.equals(other.shard));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*(this.runId==null ? 0 : this.runId.hashCode())+(this.shard==null ? 0 : this.shard.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.runId+"/"+this.shard;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.persistence;
+
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.sink.PacchettiSink;
+import com.rhad.filescanner.tuning.AdjustableSemaphore;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.*;
+import org.apache.log4j.Logger;
+import org.hibernate.exception.JDBCConnectionException;
+
+/**
+ * The persistence stage of the scan. Scanner threads hand their {@link com.rhad.filescanner.model.FileRecord}s over to a bounded
+ * queue, and a dedicated writer thread drains it and persists the rows in batches, using a single transaction per batch.
+ * A batch is written as soon as it is full, or when the flush interval has elapsed since its first row was queued. Rows of files
+ * that no longer exist can be queued as well, and are deleted in the same transaction. Files only become
+ * {@link com.rhad.filescanner.model.Pacchetti}s in the writer thread, right before being persisted.
+ * <p>
+ * With more than one writer, every writer thread has a queue of its own and the rows are spread among them by package name and
+ * path, so that the changes of the same file are still applied in order. The number of writers persisting at the same time,
+ * and so of the connections taken from the pool, can be lowered and raised again while the scan runs.
+ * <p>
+ * A failed batch is counted as failed and dropped, unless the writer is retrying: then a batch that fails because the database
+ * can't be reached is retried until it succeeds, with a growing pause, and any other failure is retried a few times. The rows of
+ * a dropped batch are logged one by one by the <code>com.rhad.filescanner.persistence.BatchWriter.dropped</code> logger.
+ * @author Roberto Fabrizi
+ */
+public class BatchWriter implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchWriter.class);
+    private static final Logger DROPPED = Logger.getLogger(BatchWriter.class.getName()+".dropped");
+    // the attempts of a batch that fails for other reasons than an unreachable database, when retrying
+    private static final int ATTEMPTS = 3;
+    private static final long FIRST_PAUSE = 1000L;
+    private static final long MAX_PAUSE = 60000L;
+    // the Oracle errors of a lost or refused connection, and of a database that is down or shutting down
+    private static final Set<Integer> UNREACHABLE_ERRORS = new HashSet<Integer>(Arrays.asList(17002, 17008, 17410, 1033, 1034, 1089, 3113, 3114, 12514, 12528, 12537, 12541));
+    // queued by close() after the last row of every writer
+    private static final Change CLOSE = new Change(null, false, null);
+    private final Lane[] lanes;
+    private final int batchSize;
+    private final long flushInterval;
+    // the writers allowed to persist at the same time
+    private final AdjustableSemaphore connections;
+    private volatile boolean closed = false;
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // the failed rows dropped because the database couldn't be reached
+    private final AtomicLong failedUnreachable = new AtomicLong();
+    // only the packages with failed rows have an entry
+    private final ConcurrentMap<String, AtomicLong> failedPackages = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile boolean retrying = false;
+    // the writers pausing because the database can't be reached
+    private final AtomicLong unreachable = new AtomicLong();
+
+    /**
+     * Creates a <code>BatchWriter</code>. The writer thread is not started until {@link #start()} is called.
+     * @param queueSize the maximum number of rows waiting to be persisted
+     * @param batchSize the maximum number of rows persisted in a single transaction
+     * @param flushInterval the maximum number of milliseconds a queued row waits before its batch is persisted
+     */
+    public BatchWriter(int queueSize, int batchSize, long flushInterval) {
+        this(queueSize, batchSize, flushInterval, 1);
+    }
+
+    /**
+     * Creates a <code>BatchWriter</code> with several writer threads, sharing the passed queue size. The writer threads are not
+     * started until {@link #start()} is called.
+     * @param queueSize the maximum number of rows waiting to be persisted
+     * @param batchSize the maximum number of rows persisted in a single transaction
+     * @param flushInterval the maximum number of milliseconds a queued row waits before its batch is persisted
+     * @param writers the number of writer threads, each with a connection of its own while it persists a batch
+     */
+    public BatchWriter(int queueSize, int batchSize, long flushInterval, int writers) {
+        if(queueSize<1 || batchSize<1 || flushInterval<1 || writers<1){
+            throw new IllegalArgumentException("queueSize, batchSize, flushInterval and writers must be positive.");
+        }
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.connections = new AdjustableSemaphore(writers);
+        this.lanes = new Lane[writers];
+        BlockingQueue<?>[] queues = new BlockingQueue<?>[writers];
+        for(int i=0; i<writers; i++){
+            this.lanes[i] = new Lane(Math.max(queueSize/writers, 1), writers==1 ? "BatchWriter" : "BatchWriter-"+i);
+            queues[i] = this.lanes[i].queue;
+        }
+        ScanMetrics.GetInstance().watchQueue(queues);
+    }
+
+    /**
+     * Starts the writer threads.
+     */
+    public void start() {
+        for(Lane lane : this.lanes){
+            lane.thread.start();
+        }
+        LOGGER.info("BatchWriter started with batchSize="+this.batchSize+", flushInterval="+this.flushInterval+"ms and "+this.lanes.length+" writers");
+    }
+
+    /**
+     * Queues a file to be persisted. This method never touches the database: it only waits if the queue is full.
+     * @param record the file to persist
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     * @throws IllegalStateException if this writer has already been closed
+     */
+    @Override
+    public void write(FileRecord record) throws InterruptedException {
+        if(this.closed){
+            throw new IllegalStateException("The BatchWriter has already been closed.");
+        }
+        this.lane(record).queue.put(new Change(record, false, null));
+    }
+
+    /**
+     * Queues the removal of a file that no longer exists. This method never touches the database: it only waits if the queue is full.
+     * @param record the file to remove, identified by its package name and path
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     * @throws IllegalStateException if this writer has already been closed
+     */
+    @Override
+    public void remove(FileRecord record) throws InterruptedException {
+        if(this.closed){
+            throw new IllegalStateException("The BatchWriter has already been closed.");
+        }
+        this.lane(record).queue.put(new Change(record, true, null));
+    }
+
+    /**
+     * Waits until all the rows queued so far have been persisted (or have failed), without waiting for their batch to fill up.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void flush() throws InterruptedException {
+        if(!this.lanes[0].thread.isAlive()){
+            return;
+        }
+        // every writer counts the barrier down once it has persisted what was queued before it
+        CountDownLatch barrier = new CountDownLatch(this.lanes.length);
+        for(Lane lane : this.lanes){
+            lane.queue.put(new Change(null, false, barrier));
+        }
+        barrier.await();
+    }
+
+    /**
+     * Returns the number of rows that could not be persisted so far.
+     * @return the number of rows that could not be persisted so far
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Returns the number of rows of the passed package that could not be persisted so far.
+     * @param packageName the name of the package
+     * @return the number of rows of the package that could not be persisted so far
+     */
+    public long getFailed(String packageName) {
+        AtomicLong packageFailed = this.failedPackages.get(packageName);
+        return packageFailed!=null ? packageFailed.get() : 0L;
+    }
+
+    /**
+     * Returns the number of rows that could not be persisted because the database couldn't be reached, which only a writer that
+     * is not retrying drops.
+     * @return the number of rows dropped because the database couldn't be reached
+     */
+    public long getFailedUnreachable() {
+        return this.failedUnreachable.get();
+    }
+
+    /**
+     * Sets whether the failed batches are retried rather than dropped: until they succeed if the database can't be reached, a few
+     * times otherwise. Meant for rows that are safe elsewhere until persisted, as a writer that retries makes the scan wait for
+     * the database once its queue is full.
+     * @param retrying whether the failed batches are retried
+     */
+    public void setRetrying(boolean retrying) {
+        this.retrying = retrying;
+    }
+
+    /**
+     * Returns whether any writer is waiting to retry a batch because the database can't be reached.
+     * @return whether any writer is waiting for the database to be reachable again
+     */
+    public boolean isUnreachable() {
+        return this.unreachable.get()>0;
+    }
+
+    /**
+     * Returns the number of writer threads.
+     * @return the number of writer threads
+     */
+    public int getWriters() {
+        return this.lanes.length;
+    }
+
+    /**
+     * Returns the number of writers allowed to persist a batch at the same time.
+     * @return the number of writers allowed to persist a batch at the same time
+     */
+    public int getActiveWriters() {
+        return this.connections.getLimit();
+    }
+
+    /**
+     * Changes the number of writers allowed to persist a batch at the same time. The others keep batching their rows, and wait
+     * for their turn to persist them. Only one thread at a time may call this method.
+     * @param activeWriters the number of writers allowed to persist at the same time, between 1 and {@link #getWriters()}
+     */
+    public void setActiveWriters(int activeWriters) {
+        if(activeWriters<1 || activeWriters>this.lanes.length){
+            throw new IllegalArgumentException("activeWriters must be between 1 and "+this.lanes.length+".");
+        }
+        this.connections.setLimit(activeWriters);
+    }
+
+    /**
+     * Stops accepting new rows, persists all the queued ones and waits for the writer threads to terminate. Closing an already closed writer has no effect.
+     * @throws InterruptedException if interrupted while waiting for the writer threads
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+        if(!this.lanes[0].thread.isAlive()){
+            this.closed = true;
+            return;
+        }
+        this.closed = true;
+        // wakes every writer up at once rather than after its next flush interval
+        for(Lane lane : this.lanes){
+            lane.queue.put(CLOSE);
+        }
+        for(Lane lane : this.lanes){
+            lane.thread.join();
+        }
+        LOGGER.info("BatchWriter closed: "+this.persisted+" rows persisted, "+this.failed+" rows failed");
+    }
+
+    /**
+     * Stops accepting new rows and stops the writer threads at once, dropping the queued rows and the batches being retried.
+     * Meant for rows that are safe elsewhere, when the database can't be reached at shutdown.
+     * @throws InterruptedException if interrupted while waiting for the writer threads
+     */
+    public synchronized void abort() throws InterruptedException {
+        this.closed = true;
+        for(Lane lane : this.lanes){
+            lane.thread.interrupt();
+        }
+        for(Lane lane : this.lanes){
+            lane.thread.join();
+        }
+        LOGGER.info("BatchWriter aborted: "+this.persisted+" rows persisted, "+this.failed+" rows failed");
+    }
+
+    /**
+     * Returns the writer of a file: always the same one, so that the changes of a file are persisted in the order they were queued.
+     */
+    private Lane lane(FileRecord record) {
+        if(this.lanes.length==1){
+            return this.lanes[0];
+        }
+        // the hashes of the strings are cached
+        int hash = 31*(31*record.getPackageName().hashCode()+record.getDirectory().hashCode())+record.getFileName().hashCode();
+        return this.lanes[Math.floorMod(hash, this.lanes.length)];
+    }
+
+    private void drain(BlockingQueue<Change> queue) {
+        List<Change> batch = new ArrayList<Change>(this.batchSize);
+        try {
+            boolean closing = false;
+            while(!closing){
+                Change first = queue.take();
+                batch.add(first);
+                // fill the batch until it is full, its first row has waited for flushInterval milliseconds, a flush is requested or the writer is closed
+                long deadline = System.currentTimeMillis()+this.flushInterval;
+                boolean flush = first.barrier!=null;
+                closing = first==CLOSE;
+                while(!flush && !closing && batch.size()<this.batchSize){
+                    int drained = batch.size();
+                    queue.drainTo(batch, this.batchSize-batch.size());
+                    for(int i=drained; i<batch.size() && !flush && !closing; i++){
+                        flush = batch.get(i).barrier!=null;
+                        closing = batch.get(i)==CLOSE;
+                    }
+                    long remaining = deadline-System.currentTimeMillis();
+                    if(flush || closing || batch.size()>=this.batchSize || remaining<=0){
+                        break;
+                    }
+                    Change next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if(next==null){
+                        break;
+                    }
+                    batch.add(next);
+                    flush = next.barrier!=null;
+                    closing = next==CLOSE;
+                }
+                if(closing){
+                    // whatever was queued by a write racing with close() goes with the last batch
+                    queue.drainTo(batch);
+                }
+                this.persistBatch(batch);
+                batch.clear();
+            }
+        } catch(InterruptedException ie) {
+            LOGGER.error("BatchWriter interrupted, "+(batch.size()+queue.size())+" rows were not persisted");
+            // release whoever is waiting for a flush, the rows will never be persisted anyway
+            queue.drainTo(batch);
+            for(Change change : batch){
+                if(change.barrier!=null){
+                    change.barrier.countDown();
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void persistBatch(List<Change> batch) throws InterruptedException {
+        List<FileRecord> written = new ArrayList<FileRecord>(batch.size());
+        List<FileRecord> removed = new ArrayList<FileRecord>();
+        List<CountDownLatch> barriers = new ArrayList<CountDownLatch>(1);
+        for(Change change : batch){
+            if(change==CLOSE){
+                continue;
+            } else if(change.barrier!=null){
+                barriers.add(change.barrier);
+            } else if(change.removal){
+                removed.add(change.record);
+            } else {
+                written.add(change.record);
+            }
+        }
+        int rows = written.size()+removed.size();
+        try {
+            long pause = FIRST_PAUSE;
+            for(int attempt=1; rows>0; attempt++){
+                try {
+                    this.connections.acquire();
+                    try {
+                        long start = System.nanoTime();
+                        this.persist(written, removed);
+                        ScanMetrics.GetInstance().batchPersisted(rows, System.nanoTime()-start);
+                        this.persisted.addAndGet(rows);
+                    } finally {
+                        this.connections.release();
+                    }
+                    break;
+                } catch(RuntimeException e) {
+                    boolean unreachable = Unreachable(e);
+                    if(!this.retrying || (!unreachable && attempt>=ATTEMPTS)){
+                        // the writer thread must survive a failed batch, or the scanner threads would wait on a full queue forever
+                        this.failed.addAndGet(rows);
+                        if(unreachable){
+                            this.failedUnreachable.addAndGet(rows);
+                        }
+                        this.countFailed(written);
+                        this.countFailed(removed);
+                        ScanMetrics.GetInstance().batchFailed(rows);
+                        LOGGER.error("Could not persist a batch of "+rows+" rows, the first one is: "+(written.isEmpty() ? removed.get(0) : written.get(0)), e);
+                        for(FileRecord record : written){
+                            DROPPED.warn("Not written: "+record);
+                        }
+                        for(FileRecord record : removed){
+                            DROPPED.warn("Not removed: "+record);
+                        }
+                        break;
+                    }
+                    LOGGER.warn("Could not persist a batch of "+rows+" rows"+(unreachable ? ", the database can't be reached" : "")+", attempt "+attempt+", retrying in "+pause+"ms: "+e);
+                    if(unreachable){
+                        this.unreachable.incrementAndGet();
+                    }
+                    try {
+                        Thread.sleep(pause);
+                    } finally {
+                        if(unreachable){
+                            this.unreachable.decrementAndGet();
+                        }
+                    }
+                    pause = Math.min(pause*2, MAX_PAUSE);
+                }
+            }
+        } finally {
+            // every row queued before a flush request is in this batch or in an earlier one
+            for(CountDownLatch barrier : barriers){
+                barrier.countDown();
+            }
+        }
+    }
+
+    /**
+     * Counts a row that was lost by a sink in front of this writer before reaching it, as one that could not be persisted.
+     * @param record the lost row
+     */
+    public void lost(FileRecord record) {
+        this.failed.incrementAndGet();
+        this.countFailed(Collections.singletonList(record));
+        ScanMetrics.GetInstance().batchFailed(1);
+    }
+
+    private void countFailed(List<FileRecord> records) {
+        for(FileRecord record : records){
+            AtomicLong packageFailed = this.failedPackages.get(record.getPackageName());
+            if(packageFailed==null){
+                AtomicLong created = new AtomicLong();
+                packageFailed = this.failedPackages.putIfAbsent(record.getPackageName(), created);
+                if(packageFailed==null){
+                    packageFailed = created;
+                }
+            }
+            packageFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Persists and removes the passed rows in a single transaction. Removals are applied first, so that a file that was removed and
+     * then found again within the same batch keeps its row. The JDBC statements are grouped according to <code>hibernate.jdbc.batch_size</code>.
+     * @param written the rows to persist
+     * @param removed the rows to remove, identified by their package name and path
+     */
+    protected void persist(List<FileRecord> written, List<FileRecord> removed) {
+        LOGGER.trace("BatchWriter.persist() called with "+written.size()+" rows to persist and "+removed.size()+" to remove");
+        EntityManager entityManager = null;
+        // a transaction object
+        EntityTransaction tx = null;
+        try {
+            // get an EntityManager from the EntityManagerFactory
+            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
+            // get a transaction from the EntityManager and open it
+            tx = entityManager.getTransaction();
+            // the connection is taken from the pool when the transaction begins
+            long start = System.nanoTime();
+            tx.begin();
+            ScanMetrics.GetInstance().connectionAcquired(System.nanoTime()-start);
+            LOGGER.trace("EntityTransaction opened");
+            this.apply(entityManager, written, removed);
+            // commit
+            tx.commit();
+            LOGGER.trace("EntityTransaction.commit() ended successfully");
+        } finally {
+            if (tx != null && tx.isActive()) {
+                LOGGER.trace("Tx is not null and it is active");
+                try {
+                    // Second try catch as the rollback could fail as well
+                    tx.rollback();
+                    LOGGER.trace("Tx rolled back");
+                } catch (Exception e1) {
+                    LOGGER.error("Could not rollback the current transaction",e1);
+                }
+            }
+            // close the entity manager to not go out of memory
+            if(entityManager!=null && entityManager.isOpen()){
+                entityManager.close();
+                LOGGER.trace("EntityManager.close() called");
+            }
+        }
+        LOGGER.trace("BatchWriter.persist() ended");
+    }
+
+    /**
+     * Applies the passed rows within the open transaction of the passed <code>EntityManager</code>. This implementation deletes the
+     * removed rows, then inserts the written ones.
+     * @param entityManager the <code>EntityManager</code> of the batch, whose transaction is committed afterwards
+     * @param written the rows to persist
+     * @param removed the rows to remove, identified by their package name and path
+     */
+    protected void apply(EntityManager entityManager, List<FileRecord> written, List<FileRecord> removed) {
+        if(!removed.isEmpty()){
+            // the name alone would match the files with the same name in the other directories of the package
+            Query delete = entityManager.createQuery("delete from Pacchetti p where p.packageName = :packageName and p.filePath = :filePath");
+            for(FileRecord record : removed){
+                delete.setParameter("packageName", record.getPackageName());
+                delete.setParameter("filePath", record.getFilePath());
+                delete.executeUpdate();
+            }
+        }
+        // the rows are always new, persist() avoids the copy and the select that merge() would do
+        for(FileRecord record : written){
+            entityManager.persist(record.toPacchetti());
+        }
+    }
+
+    /**
+     * Returns whether a failure was caused by a database that can't be reached, rather than by the rows or the statements.
+     */
+    private static boolean Unreachable(Throwable failure) {
+        for(Throwable cause=failure; cause!=null; cause=cause.getCause()==cause ? null : cause.getCause()){
+            if(cause instanceof JDBCConnectionException || cause instanceof SQLRecoverableException || cause instanceof SQLTransientConnectionException
+                    || cause instanceof SQLNonTransientConnectionException || cause instanceof IOException){
+                return true;
+            }
+            if(cause instanceof SQLException){
+                SQLException sqle = (SQLException) cause;
+                // class 08 is a connection exception
+                if((sqle.getSQLState()!=null && sqle.getSQLState().startsWith("08")) || UNREACHABLE_ERRORS.contains(sqle.getErrorCode())){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A writer thread and the queue of the rows it persists.
+     */
+    private final class Lane {
+
+        private final BlockingQueue<Change> queue;
+        private final Thread thread;
+
+        private Lane(int queueSize, String name) {
+            this.queue = new ArrayBlockingQueue<Change>(queueSize);
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(Lane.this.queue);
+                }
+            }, name);
+        }
+    }
+
+    /**
+     * A row queued to be persisted or removed, a flush request, or the {@link #CLOSE} of the writer.
+     */
+    private static final class Change {
+
+        private final FileRecord record;
+        private final boolean removal;
+        private final CountDownLatch barrier;
+
+        private Change(FileRecord record, boolean removal, CountDownLatch barrier) {
+            this.record = record;
+            this.removal = removal;
+            this.barrier = barrier;
+        }
+    }
+}
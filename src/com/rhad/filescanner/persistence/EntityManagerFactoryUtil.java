@@ -9,6 +9,10 @@
  */
 package com.rhad.filescanner.persistence;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
 import javax.persistence.*;
 import org.apache.log4j.Logger;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
@@ -18,12 +22,18 @@ import org.jasypt.hibernate.encryptor.HibernatePBEEncryptorRegistry;
  * A factory that manages and returns an {@link javax.persistence.EntityManagerFactory} object (an <code>EntityManagerFactory</code> is an expensive-to-create,
  * threadsafe object intended to be shared by all application threads). It is created once, usually on application startup,
  * and failing to create it usually means that the application should terminate.
+ * <p>
+ * Creating it takes seconds (the pool connects to the database, and the schema may be checked or updated), so it can be created
+ * in the background with {@link #StartEntityManagerFactoryUtil(java.util.Map)} while the scan starts: {@link #GetEntityManagerFactory()}
+ * waits until it is ready.
  * @author Roberto Fabrizi
  */
 public final class EntityManagerFactoryUtil {
     
     // the EntityManagerFactory used to retrieve EntityManager objects
-    private static EntityManagerFactory FACTORY;
+    private static volatile EntityManagerFactory FACTORY;
+    // completed once the EntityManagerFactory is created, or could not be
+    private static volatile CompletableFuture<EntityManagerFactoryUtil> BOOTSTRAP;
     private static EntityManagerFactoryUtil EntityManagerFactoryUtil = null;
     private static final Logger LOGGER = Logger.getLogger(EntityManagerFactoryUtil.class);
     private static final String STRONG_ENCRYPTOR_PASSWORD="3Kp24zesgV7uHVZkWvxB";
@@ -33,19 +43,94 @@ public final class EntityManagerFactoryUtil {
      * @return the <code>EntityManagerFactoryUtil</code> singleton instance
      */
     public synchronized static EntityManagerFactoryUtil CreateEntityManagerFactoryUtil() {
+        return CreateEntityManagerFactoryUtil(Collections.<String, String>emptyMap());
+    }
+    
+    /**
+     * Creates this factory, overriding the properties of the <code>persistence.xml</code> with the passed ones. This method is thread safe to avoid initializing two factories.
+     * @param properties the persistence-unit properties to override (i.e. <code>hibernate.jdbc.batch_size</code>)
+     * @return the <code>EntityManagerFactoryUtil</code> singleton instance
+     */
+    public synchronized static EntityManagerFactoryUtil CreateEntityManagerFactoryUtil(Map<String, String> properties) {
         LOGGER.trace("CreateEntityManagerFactoryUtil called");
         if (EntityManagerFactoryUtil == null) {
-            EntityManagerFactoryUtil = new EntityManagerFactoryUtil("fileScanner");
+            if(BOOTSTRAP!=null){
+                // already being created in the background
+                Await();
+            } else {
+                EntityManagerFactoryUtil = new EntityManagerFactoryUtil("fileScanner", properties);
+            }
         }
         LOGGER.trace("CreateEntityManagerFactoryUtil ended");
         return EntityManagerFactoryUtil;
     }
+
+    /**
+     * Starts creating this factory on a background thread, overriding the properties of the <code>persistence.xml</code> with the
+     * passed ones, and returns at once. {@link #GetEntityManagerFactory()} waits until the factory is created. Calling this method
+     * again has no effect.
+     * @param properties the persistence-unit properties to override (i.e. <code>hibernate.jdbc.batch_size</code>)
+     */
+    public synchronized static void StartEntityManagerFactoryUtil(Map<String, String> properties) {
+        if(EntityManagerFactoryUtil!=null || BOOTSTRAP!=null){
+            return;
+        }
+        final Map<String, String> overrides = new HashMap<String, String>(properties);
+        final CompletableFuture<EntityManagerFactoryUtil> bootstrap = new CompletableFuture<EntityManagerFactoryUtil>();
+        BOOTSTRAP = bootstrap;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    EntityManagerFactoryUtil util = new EntityManagerFactoryUtil("fileScanner", overrides);
+                    LOGGER.info("EntityManagerFactory created in "+(System.currentTimeMillis()-start)+"ms");
+                    bootstrap.complete(util);
+                } catch(RuntimeException | Error e) {
+                    LOGGER.fatal("Could not create the EntityManagerFactory", e);
+                    bootstrap.completeExceptionally(e);
+                }
+            }
+        }, "EntityManagerFactory-bootstrap");
+        // the process must not wait for a bootstrap nobody needs any more
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the factory started by {@link #StartEntityManagerFactoryUtil(java.util.Map)} is created. Returns at once if it
+     * was created synchronously, or not at all.
+     * @throws PersistenceException if the factory could not be created, or the wait was interrupted
+     */
+    public static void AwaitEntityManagerFactory() {
+        Await();
+    }
+
+    private static EntityManagerFactoryUtil Await() {
+        CompletableFuture<EntityManagerFactoryUtil> bootstrap = BOOTSTRAP;
+        if(bootstrap==null){
+            return EntityManagerFactoryUtil;
+        }
+        try {
+            EntityManagerFactoryUtil util = bootstrap.get();
+            synchronized(EntityManagerFactoryUtil.class){
+                EntityManagerFactoryUtil = util;
+            }
+            return util;
+        } catch(ExecutionException ee) {
+            throw new PersistenceException("The EntityManagerFactory could not be created", ee.getCause());
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for the EntityManagerFactory to be created", ie);
+        }
+    }
     
     /**
      * The private ctor, which means that it can't be instantiated directly, as requested by the Singleton design pattern.
      * @param entityManagerFactory the name of the <code>persistence-unit</code> to use
+     * @param properties the persistence-unit properties to override
      */
-    private EntityManagerFactoryUtil(String entityManagerFactory) {
+    private EntityManagerFactoryUtil(String entityManagerFactory, Map<String, String> properties) {
         // the default behaviour is to lookup a file persistence.xml into the meta-inf of the current jar. If
         // it isn't there, the meta-inf folder of the other jars in the classpath are looked up
         // an encryptor, to put encrypted passwords in the persistence.xml
@@ -58,23 +143,39 @@ public final class EntityManagerFactoryUtil {
         registry.registerPBEStringEncryptor("configurationHibernateEncryptor", strongEncryptor);
         // create the EntityManagerFactory
         //this.factory=Persistence.createEntityManagerFactory(entityManagerFactory);
-        FACTORY=Persistence.createEntityManagerFactory(entityManagerFactory);
+        FACTORY=Persistence.createEntityManagerFactory(entityManagerFactory, properties);
     }
     
     /**
-     * Returns the {@link javax.persistence.EntityManagerFactory} managed by this class.
+     * Returns the {@link javax.persistence.EntityManagerFactory} managed by this class, waiting for it if it is still being created in the background.
      * @return a <code>EntityManagerFactory</code> to acquire {@link javax.persistence.EntityManager} instances from
+     * @throws PersistenceException if the factory could not be created, or the wait was interrupted
      */
     public static EntityManagerFactory GetEntityManagerFactory() {
-        return FACTORY;
+        EntityManagerFactory factory = FACTORY;
+        if(factory==null){
+            Await();
+            factory = FACTORY;
+        }
+        return factory;
     }
     
     /**
-     * Closes the {@link javax.persistence.EntityManagerFactory} managed by this class.
+     * Closes the {@link javax.persistence.EntityManagerFactory} managed by this class, and its pool of connections. A factory still
+     * being created is waited for, so that no connection is left open.
      */
-    public static synchronized void Close() {
-        if(FACTORY!=null && FACTORY.isOpen()){
-            FACTORY.close();
+    public static void Close() {
+        try {
+            Await();
+        } catch(PersistenceException pe) {
+            // nothing to close
+            return;
+        }
+        synchronized(EntityManagerFactoryUtil.class){
+            if(FACTORY!=null && FACTORY.isOpen()){
+                FACTORY.close();
+                LOGGER.info("EntityManagerFactory closed");
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.persistence;
+
+import com.rhad.filescanner.RootScheduler;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Marks as removed, once a package has been completely scanned, the rows of its files that the scan didn't find (see
+ * {@link UpsertWriter#sweep(java.lang.String)}). Full scans emit no removals, so without it the rows of the files deleted between
+ * two upsert runs would never be marked. A package is only swept if every directory of it was listed, not resumed from the
+ * journal, and all its rows reached the database: otherwise the rows the scan missed may well belong to existing files.
+ * @author Roberto Fabrizi
+ */
+public final class RemovalSweeper implements RootScheduler.PackageListener {
+
+    private static final Logger LOGGER = Logger.getLogger(RemovalSweeper.class);
+    private final PacchettiSink sink;
+    private final UpsertWriter writer;
+    // the packages being scanned, and whether they were skipped in part
+    private final ConcurrentMap<Path, AtomicBoolean> packages = new ConcurrentHashMap<Path, AtomicBoolean>();
+    private final AtomicInteger swept = new AtomicInteger();
+    private final AtomicInteger kept = new AtomicInteger();
+
+    /**
+     * Creates a <code>RemovalSweeper</code>.
+     * @param sink the sink the rows of the packages are emitted to, flushed before a package is swept
+     * @param writer the database writer, which the sink ends in
+     */
+    public RemovalSweeper(PacchettiSink sink, UpsertWriter writer) {
+        this.sink = sink;
+        this.writer = writer;
+    }
+
+    @Override
+    public void packageStarted(Path packageDir) {
+        this.packages.put(packageDir, new AtomicBoolean());
+    }
+
+    @Override
+    public void packageScanned(Path packageDir, Throwable failure) {
+        AtomicBoolean skipped = this.packages.remove(packageDir);
+        if(skipped==null){
+            return;
+        }
+        String packageName = packageDir.getFileName().toString();
+        if(failure!=null || skipped.get()){
+            LOGGER.warn("The removed files of "+packageDir+" are not marked, the package was not completely scanned");
+            this.kept.incrementAndGet();
+            return;
+        }
+        try {
+            // the rows of the package must all be stamped first
+            this.sink.flush();
+            if(this.writer.getFailed(packageName)>0){
+                LOGGER.warn("The removed files of "+packageDir+" are not marked, some of its rows could not be persisted");
+                this.kept.incrementAndGet();
+                return;
+            }
+            int rows = this.writer.sweep(packageName);
+            LOGGER.debug(rows+" files of "+packageDir+" marked as removed");
+            this.swept.incrementAndGet();
+        } catch(IOException ioe) {
+            this.kept.incrementAndGet();
+            LOGGER.error("Could not flush the rows of "+packageDir, ioe);
+        } catch(InterruptedException ie) {
+            this.kept.incrementAndGet();
+            LOGGER.warn("Interrupted before marking the removed files of "+packageDir);
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException e) {
+            this.kept.incrementAndGet();
+            LOGGER.error("Could not mark the removed files of "+packageDir, e);
+        }
+    }
+
+    /**
+     * Records that part of a package was not scanned, so that the rows of the package are not swept.
+     * @param packageDir the package directory
+     */
+    public void skip(Path packageDir) {
+        AtomicBoolean skipped = this.packages.get(packageDir);
+        if(skipped!=null){
+            skipped.set(true);
+        }
+    }
+
+    /**
+     * Returns the number of packages swept so far.
+     * @return the number of packages swept so far
+     */
+    public int getSwept() {
+        return this.swept.get();
+    }
+
+    /**
+     * Returns the number of packages not swept so far, as they were not completely scanned or persisted.
+     * @return the number of packages not swept so far
+     */
+    public int getKept() {
+        return this.kept.get();
+    }
+}
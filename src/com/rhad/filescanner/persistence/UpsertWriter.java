@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.persistence;
+
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.model.Pacchetti;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link BatchWriter} that keeps a single row per file, identified by its package name and its path inside the package, instead
+ * of inserting a new row at every scan. Written files are upserted with a batched Oracle MERGE, and the rows of the files that no
+ * longer exist are marked with the date of their removal instead of being deleted. Together with incremental scans, every run
+ * costs work proportional to the changes rather than to the number of files.
+ * <p>
+ * Every merged row is stamped with the start of the run, so that after a full scan of a package {@link #sweep(java.lang.String)}
+ * marks as removed the rows the scan didn't find. The rows are kept unique by a unique index on (PACKAGE_NAME, FILE_PATH), which
+ * the first batch creates if it is missing and the schema is updated, so that concurrent writers and scanner instances never
+ * insert the same file twice.
+ * @author Roberto Fabrizi
+ */
+public class UpsertWriter extends BatchWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(UpsertWriter.class);
+    private static final String MERGE = "MERGE INTO ORAP8.PACCHETTI p"
+            + " USING (SELECT ? ID, ? PACKAGE_NAME, ? FILE_NAME, ? FILE_PATH, ? FILE_SIZE, ? LAST_MODIFIED, ? CONTENT_HASH, ? SCANNED FROM DUAL) s"
+            + " ON (p.PACKAGE_NAME = s.PACKAGE_NAME AND p.FILE_PATH = s.FILE_PATH)"
+            // every row found is stamped. Without hashing the digest of an unchanged file is kept, the one of a changed file is stale
+            // and cleared: DECODE compares nulls as equal, unlike =
+            + " WHEN MATCHED THEN UPDATE SET p.FILE_SIZE = s.FILE_SIZE, p.LAST_MODIFIED = s.LAST_MODIFIED, p.SCANNED = s.SCANNED, p.REMOVED = NULL,"
+            + "  p.CONTENT_HASH = CASE WHEN s.CONTENT_HASH IS NOT NULL THEN s.CONTENT_HASH"
+            + "  WHEN DECODE(p.FILE_SIZE, s.FILE_SIZE, 0, 1) = 0 AND DECODE(p.LAST_MODIFIED, s.LAST_MODIFIED, 0, 1) = 0 THEN p.CONTENT_HASH END"
+            + " WHEN NOT MATCHED THEN INSERT (ID, PACKAGE_NAME, FILE_NAME, FILE_PATH, FILE_SIZE, LAST_MODIFIED, CONTENT_HASH, SCANNED)"
+            + "  VALUES (s.ID, s.PACKAGE_NAME, s.FILE_NAME, s.FILE_PATH, s.FILE_SIZE, s.LAST_MODIFIED, s.CONTENT_HASH, s.SCANNED)";
+    private static final String MARK_REMOVED = "UPDATE ORAP8.PACCHETTI SET REMOVED = ? WHERE PACKAGE_NAME = ? AND FILE_PATH = ? AND REMOVED IS NULL";
+    // the rows not stamped by this run, the ones of the rows written by older versions included
+    private static final String SWEEP = "UPDATE ORAP8.PACCHETTI SET REMOVED = ? WHERE PACKAGE_NAME = ? AND REMOVED IS NULL AND (SCANNED IS NULL OR SCANNED <> ?)";
+    private static final String DUPLICATES = "SELECT COUNT(*) FROM (SELECT PACKAGE_NAME FROM ORAP8.PACCHETTI GROUP BY PACKAGE_NAME, FILE_PATH HAVING COUNT(*) > 1) d";
+    private static final String KEY = "PACCHETTI_NATURAL_KEY";
+    private static final List<String> KEY_COLUMNS = Arrays.asList("PACKAGE_NAME", "FILE_PATH");
+    // the start of the run, which every merged row is stamped with
+    private final Timestamp scanned = new Timestamp(System.currentTimeMillis());
+    private final Object keyLock = new Object();
+    private volatile boolean keyChecked = false;
+
+    /**
+     * Creates an <code>UpsertWriter</code>. The writer thread is not started until {@link #start()} is called.
+     * @param queueSize the maximum number of rows waiting to be persisted
+     * @param batchSize the maximum number of rows persisted in a single transaction
+     * @param flushInterval the maximum number of milliseconds a queued row waits before its batch is persisted
+     */
+    public UpsertWriter(int queueSize, int batchSize, long flushInterval) {
+        super(queueSize, batchSize, flushInterval);
+    }
+
+    /**
+     * Creates an <code>UpsertWriter</code> with several writer threads, sharing the passed queue size. The writer threads are not
+     * started until {@link #start()} is called.
+     * @param queueSize the maximum number of rows waiting to be persisted
+     * @param batchSize the maximum number of rows persisted in a single transaction
+     * @param flushInterval the maximum number of milliseconds a queued row waits before its batch is persisted
+     * @param writers the number of writer threads, each with a connection of its own while it persists a batch
+     */
+    public UpsertWriter(int queueSize, int batchSize, long flushInterval, int writers) {
+        super(queueSize, batchSize, flushInterval, writers);
+    }
+
+    /**
+     * Marks the removed rows, then upserts the written ones, each with a single JDBC batch.
+     * @param entityManager the <code>EntityManager</code> of the batch, whose transaction is committed afterwards
+     * @param written the rows to upsert
+     * @param removed the rows to mark as removed, identified by their package name and path
+     */
+    @Override
+    protected void apply(EntityManager entityManager, final List<FileRecord> written, final List<FileRecord> removed) {
+        Session session = (Session) entityManager.getDelegate();
+        final BigDecimal[] ids = new BigDecimal[written.size()];
+        if(!written.isEmpty()){
+            // every row gets an id from the pooled generator, which only costs a round trip every increment_size ids. The ids of the
+            // rows that turn out to exist already are wasted
+            IdentifierGenerator generator = ((SessionFactoryImplementor) session.getSessionFactory()).getIdentifierGenerator(Pacchetti.class.getName());
+            for(int i=0; i<ids.length; i++){
+                // the sequence generator ignores the entity, the rows are bound straight from the records
+                ids[i] = (BigDecimal) generator.generate((SessionImplementor) session, written.get(i));
+            }
+        }
+        final boolean updateSchema = ((SessionFactoryImplementor) session.getSessionFactory()).getSettings().isAutoUpdateSchema()
+                || ((SessionFactoryImplementor) session.getSessionFactory()).getSettings().isAutoCreateSchema();
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                if(!keyChecked){
+                    checkKey(connection, updateSchema);
+                }
+                if(!removed.isEmpty()){
+                    MarkRemoved(connection, removed);
+                }
+                if(!written.isEmpty()){
+                    Merge(connection, written, ids, scanned);
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks as removed the rows of a package that were not merged by this run, in a transaction of its own. Meant to be called once
+     * a package has been completely scanned, not incrementally, and all its rows have been persisted: the rows it didn't stamp belong
+     * to files that no longer exist.
+     * @param packageName the name of the package
+     * @return the number of rows marked as removed
+     */
+    public int sweep(final String packageName) {
+        final int[] swept = new int[1];
+        EntityManager entityManager = null;
+        EntityTransaction tx = null;
+        try {
+            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
+            tx = entityManager.getTransaction();
+            tx.begin();
+            ((Session) entityManager.getDelegate()).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(SWEEP)) {
+                        statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                        statement.setString(2, packageName);
+                        statement.setTimestamp(3, scanned);
+                        swept[0] = statement.executeUpdate();
+                    }
+                }
+            });
+            tx.commit();
+        } finally {
+            if(tx!=null && tx.isActive()){
+                try {
+                    tx.rollback();
+                } catch(Exception e) {
+                    LOGGER.error("Could not rollback the current transaction", e);
+                }
+            }
+            if(entityManager!=null && entityManager.isOpen()){
+                entityManager.close();
+            }
+        }
+        return swept[0];
+    }
+
+    /**
+     * Checks, once, that the rows are kept unique by a unique index on (PACKAGE_NAME, FILE_PATH), creating it in place of the
+     * non-unique index of the insert mode if the schema is updated. The index isn't created over duplicated rows, which must be removed first.
+     */
+    private void checkKey(Connection connection, boolean updateSchema) throws SQLException {
+        synchronized(this.keyLock){
+            if(this.keyChecked){
+                return;
+            }
+            Map<String, List<String>> unique = Indexes(connection, true);
+            if(!unique.containsValue(KEY_COLUMNS)){
+                if(!updateSchema){
+                    throw new IllegalStateException("persistence_mode=upsert requires a unique index on ORAP8.PACCHETTI (PACKAGE_NAME, FILE_PATH), see the README.");
+                }
+                try (Statement statement = connection.createStatement()) {
+                    try (ResultSet rs = statement.executeQuery(DUPLICATES)) {
+                        if(rs.next() && rs.getLong(1)>0){
+                            throw new IllegalStateException(rs.getLong(1)+" files have more than one row in ORAP8.PACCHETTI, remove the duplicates before using persistence_mode=upsert, see the README.");
+                        }
+                    }
+                    if(Indexes(connection, false).containsKey(KEY)){
+                        // the same columns cannot be indexed twice
+                        statement.execute("DROP INDEX ORAP8."+KEY);
+                    }
+                    statement.execute("CREATE UNIQUE INDEX ORAP8."+KEY+" ON ORAP8.PACCHETTI (PACKAGE_NAME, FILE_PATH)");
+                }
+                LOGGER.info("Unique index "+KEY+" created on ORAP8.PACCHETTI (PACKAGE_NAME, FILE_PATH)");
+            }
+            this.keyChecked = true;
+        }
+    }
+
+    /**
+     * Returns the columns of the indexes of the PACCHETTI table, by index name.
+     */
+    private static Map<String, List<String>> Indexes(Connection connection, boolean unique) throws SQLException {
+        Map<String, List<String>> indexes = new HashMap<String, List<String>>();
+        try (ResultSet rs = connection.getMetaData().getIndexInfo(null, "ORAP8", "PACCHETTI", unique, false)) {
+            while(rs.next()){
+                String name = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if(name==null || column==null){
+                    // the statistics of the table
+                    continue;
+                }
+                List<String> columns = indexes.get(name);
+                if(columns==null){
+                    columns = new ArrayList<String>();
+                    indexes.put(name, columns);
+                }
+                int position = rs.getInt("ORDINAL_POSITION");
+                while(columns.size()<position){
+                    columns.add(null);
+                }
+                columns.set(position-1, column.toUpperCase(Locale.ROOT));
+            }
+        }
+        return indexes;
+    }
+
+    private static void MarkRemoved(Connection connection, List<FileRecord> removed) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement statement = connection.prepareStatement(MARK_REMOVED)) {
+            for(FileRecord record : removed){
+                statement.setTimestamp(1, now);
+                statement.setString(2, record.getPackageName());
+                statement.setString(3, record.getFilePath());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        LOGGER.trace(removed.size()+" rows marked as removed");
+    }
+
+    private static void Merge(Connection connection, List<FileRecord> written, BigDecimal[] ids, Timestamp scanned) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(MERGE)) {
+            for(int i=0; i<ids.length; i++){
+                FileRecord record = written.get(i);
+                statement.setBigDecimal(1, ids[i]);
+                statement.setString(2, record.getPackageName());
+                statement.setString(3, record.getFileName());
+                statement.setString(4, record.getFilePath());
+                statement.setLong(5, record.getFileSize());
+                // bound as the mapping of Pacchetti.lastModified does, so that unchanged files compare equal
+                statement.setDate(6, new java.sql.Date(record.getLastModified()));
+                statement.setString(7, record.getContentHash());
+                statement.setTimestamp(8, scanned);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        LOGGER.trace(written.size()+" rows merged");
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.shard;
+
+import com.rhad.filescanner.RootScheduler;
+import com.rhad.filescanner.persistence.BatchWriter;
+import com.rhad.filescanner.persistence.EntityManagerFactoryUtil;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Shares out the packages of a scan among several nodes that mount the same paths, through the SCAN_LEASES table (see
+ * {@link com.rhad.filescanner.model.ScanLease}) of the database the rows are persisted to. Every node lists the packages, and leases
+ * them one at a time: a package is only submitted to the {@link com.rhad.filescanner.RootScheduler} of the node that inserted its
+ * lease, or that took over a lease its holder let expire. Leases are renewed while their packages are scanned, and once a package
+ * has been scanned and its rows have reached the database its lease is marked as completed, so that no other node scans it again
+ * within the same run. The lease of a package whose scan failed is released, for another node to try.
+ * <p>
+ * A node never holds more than a few leases at once, so that the packages are spread over the nodes as they become idle rather than
+ * all taken by the first one started. Nodes whose process dies stop renewing their leases, and their packages are scanned again by
+ * the others once the leases expire: the rows emitted twice are merged by the upserts. Expiration dates are computed by every node
+ * on its own clock, which must not drift by more than a small fraction of the lease duration.
+ * @author Roberto Fabrizi
+ */
+public final class ShardCoordinator implements RootScheduler.PackageListener {
+
+    private static final Logger LOGGER = Logger.getLogger(ShardCoordinator.class);
+    private static final String INSERT = "INSERT INTO ORAP8.SCAN_LEASES (RUN_ID, SHARD, OWNER, EXPIRES) VALUES (?, ?, ?, ?)";
+    private static final String TAKE_OVER = "UPDATE ORAP8.SCAN_LEASES SET OWNER = ?, EXPIRES = ? WHERE RUN_ID = ? AND SHARD = ? AND COMPLETED IS NULL AND EXPIRES < ?";
+    private static final String STATE = "SELECT OWNER, COMPLETED FROM ORAP8.SCAN_LEASES WHERE RUN_ID = ? AND SHARD = ?";
+    private static final String RENEW = "UPDATE ORAP8.SCAN_LEASES SET EXPIRES = ? WHERE RUN_ID = ? AND SHARD = ? AND OWNER = ? AND COMPLETED IS NULL";
+    private static final String COMPLETE = "UPDATE ORAP8.SCAN_LEASES SET COMPLETED = ?, EXPIRES = ? WHERE RUN_ID = ? AND SHARD = ? AND OWNER = ?";
+    private static final String RELEASE = "UPDATE ORAP8.SCAN_LEASES SET EXPIRES = ? WHERE RUN_ID = ? AND SHARD = ? AND OWNER = ? AND COMPLETED IS NULL";
+    // the SQLSTATE class of the integrity constraint violations, i.e. the lease inserted by another node
+    private static final String CONSTRAINT_VIOLATION = "23";
+    private final String run;
+    private final String node;
+    private final long leaseMillis;
+    private final int maxLeases;
+    private final PacchettiSink sink;
+    private final BatchWriter writer;
+    // not synchronized, which would pin the virtual threads that end the packages to their carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = this.lock.newCondition();
+    private final Set<Path> leased = new HashSet<Path>();
+    private int completed = 0;
+    private int failed = 0;
+    private int takenOver = 0;
+    private ScheduledExecutorService renewer;
+
+    /**
+     * The state of a lease, as seen by this node when trying to take it.
+     */
+    private enum Lease {
+        /** This node holds the lease. */
+        TAKEN,
+        /** Another node holds the lease, and it hasn't expired. */
+        HELD,
+        /** The package has already been scanned in this run. */
+        COMPLETED
+    }
+
+    /**
+     * Creates a <code>ShardCoordinator</code>. The {@link com.rhad.filescanner.persistence.EntityManagerFactoryUtil} must have been created.
+     * @param run the name of the run, the same on all the nodes that share out the packages
+     * @param node the name of this node, unique among the nodes of the run
+     * @param leaseSeconds the number of seconds a lease lasts unless it is renewed
+     * @param maxLeases the maximum number of leases this node holds at once
+     * @param sink the sink the rows of the packages are emitted to, flushed before a lease is marked as completed
+     * @param writer the database writer, whose failed rows keep the leases of their packages from being marked as completed, or null
+     */
+    public ShardCoordinator(String run, String node, long leaseSeconds, int maxLeases, PacchettiSink sink, BatchWriter writer) {
+        if(leaseSeconds<1 || maxLeases<1){
+            throw new IllegalArgumentException("leaseSeconds and maxLeases must be positive.");
+        }
+        this.run = run;
+        this.node = node;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+        this.maxLeases = maxLeases;
+        this.sink = sink;
+        this.writer = writer;
+    }
+
+    /**
+     * Leases and submits the packages of the passed paths until every package has been scanned, by this node or by the others, and
+     * waits for the packages leased by this node. Packages held by other nodes are checked again every third of the lease
+     * duration, and taken over once their leases expire.
+     * @param scheduler the scheduler the leased packages are submitted to, created with this coordinator as its last listener
+     * @param roots the paths to scan
+     * @throws IOException if a path cannot be listed, or a package cannot be submitted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run(RootScheduler scheduler, List<Path> roots) throws IOException, InterruptedException {
+        Set<Path> pending = new LinkedHashSet<Path>();
+        for(Path root : roots){
+            pending.addAll(scheduler.list(root));
+        }
+        LOGGER.info("Node "+this.node+" sharing out "+pending.size()+" packages of run "+this.run);
+        this.startRenewing();
+        try {
+            while(!pending.isEmpty()){
+                for(Iterator<Path> it = pending.iterator(); it.hasNext();){
+                    Path packageDir = it.next();
+                    this.awaitLeases(this.maxLeases-1);
+                    Lease lease = this.take(packageDir);
+                    if(lease==Lease.HELD){
+                        continue;
+                    }
+                    // a package this node scanned is not tried again, even if it failed
+                    it.remove();
+                    if(lease==Lease.TAKEN){
+                        this.lock.lock();
+                        try {
+                            this.leased.add(packageDir);
+                        } finally {
+                            this.lock.unlock();
+                        }
+                        scheduler.submitPackage(packageDir);
+                    }
+                }
+                if(!pending.isEmpty()){
+                    LOGGER.debug(pending.size()+" packages are leased by other nodes");
+                    Thread.sleep(this.leaseMillis/3);
+                }
+            }
+            this.awaitLeases(0);
+        } finally {
+            this.stopRenewing();
+        }
+        LOGGER.info("Node "+this.node+" done with run "+this.run+": "+this.completed+" packages completed ("+this.takenOver+" taken over from other nodes), "+this.failed+" released");
+    }
+
+    @Override
+    public void packageStarted(Path packageDir) {
+    }
+
+    @Override
+    public void packageScanned(Path packageDir, Throwable failure) {
+        boolean succeeded = failure==null;
+        try {
+            if(succeeded){
+                // the package is only completed once its rows are safe
+                this.sink.flush();
+                succeeded = this.writer==null || this.writer.getFailed(packageDir.getFileName().toString())==0;
+            }
+            long now = System.currentTimeMillis();
+            int updated;
+            if(succeeded){
+                updated = this.update(COMPLETE, new Timestamp(now), new Timestamp(now), this.run, packageDir.toString(), this.node);
+            } else {
+                // expired at once, for another node to try
+                updated = this.update(RELEASE, new Timestamp(0L), this.run, packageDir.toString(), this.node);
+            }
+            if(updated==0){
+                LOGGER.warn("The lease of "+packageDir+" was taken over by another node");
+            }
+        } catch(IOException ioe) {
+            succeeded = false;
+            LOGGER.error("Could not flush the rows of "+packageDir, ioe);
+        } catch(InterruptedException ie) {
+            succeeded = false;
+            LOGGER.warn("Interrupted before completing the lease of "+packageDir);
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException e) {
+            // the lease expires by itself
+            LOGGER.error("Could not update the lease of "+packageDir, e);
+        } finally {
+            this.lock.lock();
+            try {
+                this.leased.remove(packageDir);
+                if(succeeded){
+                    this.completed++;
+                } else {
+                    this.failed++;
+                }
+                this.released.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Tries to take the lease of a package: by inserting it, or by taking over the expired lease of another node.
+     */
+    private Lease take(Path packageDir) {
+        String shard = packageDir.toString();
+        long now = System.currentTimeMillis();
+        Timestamp expires = new Timestamp(now+this.leaseMillis);
+        if(this.insert(shard, expires)){
+            return Lease.TAKEN;
+        }
+        if(this.update(TAKE_OVER, this.node, expires, this.run, shard, new Timestamp(now))==1){
+            LOGGER.info("Took over the expired lease of "+packageDir);
+            this.lock.lock();
+            try {
+                this.takenOver++;
+            } finally {
+                this.lock.unlock();
+            }
+            return Lease.TAKEN;
+        }
+        return this.isCompleted(shard) ? Lease.COMPLETED : Lease.HELD;
+    }
+
+    private boolean insert(final String shard, final Timestamp expires) {
+        final boolean[] inserted = new boolean[1];
+        this.execute(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+                    statement.setString(1, run);
+                    statement.setString(2, shard);
+                    statement.setString(3, node);
+                    statement.setTimestamp(4, expires);
+                    inserted[0] = statement.executeUpdate()==1;
+                } catch(SQLException e) {
+                    if(e.getSQLState()==null || !e.getSQLState().startsWith(CONSTRAINT_VIOLATION)){
+                        throw e;
+                    }
+                }
+            }
+        });
+        return inserted[0];
+    }
+
+    private boolean isCompleted(final String shard) {
+        final boolean[] completed = new boolean[1];
+        this.execute(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                try (PreparedStatement statement = connection.prepareStatement(STATE)) {
+                    statement.setString(1, run);
+                    statement.setString(2, shard);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        completed[0] = rs.next() && rs.getTimestamp(2)!=null;
+                    }
+                }
+            }
+        });
+        return completed[0];
+    }
+
+    private int update(final String sql, final Object... parameters) {
+        final int[] updated = new int[1];
+        this.execute(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for(int i=0; i<parameters.length; i++){
+                        statement.setObject(i+1, parameters[i]);
+                    }
+                    updated[0] = statement.executeUpdate();
+                }
+            }
+        });
+        return updated[0];
+    }
+
+    /**
+     * Runs the passed work in a transaction of its own, committed at once.
+     */
+    private void execute(Work work) {
+        EntityManager entityManager = null;
+        EntityTransaction tx = null;
+        try {
+            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
+            tx = entityManager.getTransaction();
+            tx.begin();
+            ((Session) entityManager.getDelegate()).doWork(work);
+            tx.commit();
+        } finally {
+            if(tx!=null && tx.isActive()){
+                try {
+                    tx.rollback();
+                } catch(Exception e) {
+                    LOGGER.error("Could not rollback the current transaction", e);
+                }
+            }
+            if(entityManager!=null && entityManager.isOpen()){
+                entityManager.close();
+            }
+        }
+    }
+
+    /**
+     * Waits until this node holds at most the passed number of leases.
+     */
+    private void awaitLeases(int leases) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while(this.leased.size()>leases){
+                this.released.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isLeased(Path packageDir) {
+        this.lock.lock();
+        try {
+            // the package may have been completed meanwhile
+            return this.leased.contains(packageDir);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void startRenewing() {
+        this.renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ShardCoordinator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = this.leaseMillis/3;
+        this.renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renew();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopRenewing() throws InterruptedException {
+        this.renewer.shutdown();
+        this.renewer.awaitTermination(1L, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Renews the leases held by this node. A lease that can no longer be renewed was taken over by another node, which is now
+     * scanning the same package.
+     */
+    private void renew() {
+        List<Path> packageDirs;
+        this.lock.lock();
+        try {
+            packageDirs = new ArrayList<Path>(this.leased);
+        } finally {
+            this.lock.unlock();
+        }
+        Timestamp expires = new Timestamp(System.currentTimeMillis()+this.leaseMillis);
+        for(Path packageDir : packageDirs){
+            try {
+                if(this.update(RENEW, expires, this.run, packageDir.toString(), this.node)==0 && this.isLeased(packageDir)){
+                    LOGGER.warn("Could not renew the lease of "+packageDir+", another node took it over");
+                }
+            } catch(RuntimeException e) {
+                // i.e. a database outage: the lease is renewed at the next round, if it hasn't expired by then
+                LOGGER.error("Could not renew the lease of "+packageDir, e);
+            }
+        }
+    }
+}
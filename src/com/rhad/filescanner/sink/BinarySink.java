@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.model.FileRecord;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A {@link FileSink} that writes a compact binary file, the cheapest format to produce and to parse. The file starts with the magic
+ * number <code>0x46535041</code> and a version, followed by the records. Every record is prefixed by its length in bytes, so that
+ * readers can skip it, and holds, big-endian: the operation (<code>W</code> or <code>R</code>), the package name, the file name and
+ * the path of the file inside its package (UTF-8, prefixed by their length as an unsigned short), the size (-1 if unknown) and
+ * the last modification date in milliseconds since the epoch (-1 if unknown), and the hexadecimal digest of the content (prefixed
+ * by its length, empty if not hashed). A record with a string longer than 65535 bytes is skipped, and counted as an error.
+ * @author Roberto Fabrizi
+ */
+public class BinarySink extends FileSink {
+
+    /** The magic number the file starts with. */
+    public static final int MAGIC = 0x46535041;
+    /** The version of the format. */
+    public static final short VERSION = 3;
+
+    /**
+     * Creates a <code>BinarySink</code>, replacing the passed file if it exists.
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public BinarySink(Path file) throws IOException {
+        super(file);
+    }
+
+    @Override
+    protected void writeHeader(ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+    }
+
+    @Override
+    protected void encode(FileRecord record, boolean removed, ByteBuffer out) {
+        int start = out.position();
+        // the length is patched once the record is encoded
+        out.putInt(0);
+        out.put((byte) (removed ? 'R' : 'W'));
+        this.putShortString(out, record.getPackageName());
+        this.putShortString(out, record.getFileName());
+        this.putShortString(out, record.getFilePath());
+        out.putLong(record.getFileSize());
+        out.putLong(record.getLastModified());
+        this.putShortString(out, record.getContentHash());
+        out.putInt(start, out.position()-start-4);
+    }
+
+    private void putShortString(ByteBuffer out, String value) {
+        int start = out.position();
+        // the length is patched once the string is encoded
+        out.putShort((short) 0);
+        if(value!=null){
+            this.putChars(out, value);
+        }
+        int length = out.position()-start-2;
+        if(length>0xFFFF){
+            throw new IllegalArgumentException("Name too long for the binary format: "+value);
+        }
+        out.putShort(start, (short) length);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.model.FileRecord;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A {@link FileSink} that writes a CSV file with a header line, ready to be loaded with SQL*Loader. Text fields are always quoted,
+ * dates are formatted as <code>yyyy-MM-dd HH:mm:ss</code>, CONTENT_HASH is empty unless hashing is enabled, and the OPERATION column is <code>W</code> for the files found and
+ * <code>R</code> for the ones that no longer exist, whose size and date are empty.
+ * @author Roberto Fabrizi
+ */
+public class CsvSink extends FileSink {
+
+    private static final String HEADER = "PACKAGE_NAME,FILE_NAME,FILE_PATH,FILE_SIZE,LAST_MODIFIED,CONTENT_HASH,OPERATION\n";
+    // only used while holding the lock of the sink
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Date date = new Date();
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Creates a <code>CsvSink</code>, replacing the passed file if it exists.
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public CsvSink(Path file) throws IOException {
+        super(file);
+    }
+
+    @Override
+    protected void writeHeader(ByteBuffer out) {
+        PutString(out, HEADER);
+    }
+
+    @Override
+    protected void encode(FileRecord record, boolean removed, ByteBuffer out) {
+        StringBuilder sb = this.line;
+        sb.setLength(0);
+        Quote(sb, record.getPackageName());
+        sb.append(',');
+        Quote(sb, record.getFileName());
+        sb.append(',');
+        Quote(sb, record.getFilePath());
+        sb.append(',');
+        if(record.getFileSize()!=FileRecord.UNKNOWN){
+            sb.append(record.getFileSize());
+        }
+        sb.append(',');
+        if(record.getLastModified()!=FileRecord.UNKNOWN){
+            this.date.setTime(record.getLastModified());
+            sb.append(this.dateFormat.format(this.date));
+        }
+        sb.append(',');
+        if(record.getContentHash()!=null){
+            sb.append(record.getContentHash());
+        }
+        sb.append(',').append(removed ? 'R' : 'W').append('\n');
+        this.putChars(out, sb);
+    }
+
+    private static void Quote(StringBuilder sb, String value) {
+        sb.append('"');
+        if(value!=null){
+            for(int i=0; i<value.length(); i++){
+                char c = value.charAt(i);
+                if(c=='"'){
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.model.FileRecord;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that dumps the {@link com.rhad.filescanner.model.FileRecord}s to a file, to be bulk loaded (i.e. with SQL*Loader) without
+ * paying the per-row cost of JPA. Records are encoded in a large direct buffer, which is written to a {@link java.nio.channels.FileChannel}
+ * whenever it is full, so the file is written sequentially at disk speed. Subclasses define the format of the records, and encode
+ * them under the lock of the sink, so they can reuse their scratch objects instead of allocating new ones for every record.
+ * @author Roberto Fabrizi
+ */
+public abstract class FileSink implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(FileSink.class);
+    private static final int BUFFER_SIZE = 1 << 20;
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // not synchronized, which would pin the virtual threads waiting for the disk to their carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private long records = 0L;
+    // the records encoded in the buffer and not yet written
+    private int buffered = 0;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+    // only used while holding the lock
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Creates a <code>FileSink</code>, replacing the passed file if it exists.
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    protected FileSink(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void write(FileRecord record) {
+        this.append(record, false);
+    }
+
+    @Override
+    public void remove(FileRecord record) {
+        this.append(record, true);
+    }
+
+    private void append(FileRecord record, boolean removed) {
+        this.lock.lock();
+        try {
+            if(this.closed){
+                throw new IllegalStateException("The sink of "+this.file+" has already been closed.");
+            }
+            this.ensureHeader();
+            int position = this.buffer.position();
+            try {
+                try {
+                    this.encode(record, removed, this.buffer);
+                } catch(BufferOverflowException boe) {
+                    // the record doesn't fit in what's left of the buffer: write the buffer out and encode it again
+                    this.buffer.position(position);
+                    this.drain();
+                    position = 0;
+                    this.encode(record, removed, this.buffer);
+                }
+            } catch(IllegalArgumentException iae) {
+                // the format can't hold this record: only this file is skipped, not the rest of its package
+                this.buffer.position(position);
+                LOGGER.warn("Skipped a record that cannot be written to "+this.file+": "+iae.getMessage());
+                ScanMetrics.GetInstance().error();
+                return;
+            }
+            this.records++;
+            this.buffered++;
+        } catch(BufferOverflowException boe) {
+            throw new UncheckedIOException(new IOException("A record is bigger than the buffer: "+record));
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.lock.lock();
+        try {
+            this.ensureHeader();
+            this.drain();
+            this.channel.force(false);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if(this.closed){
+                return;
+            }
+            try {
+                this.flush();
+            } finally {
+                this.closed = true;
+                this.channel.close();
+            }
+            LOGGER.info(this.records+" records written to "+this.file);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void ensureHeader() {
+        if(!this.headerWritten){
+            this.writeHeader(this.buffer);
+            this.headerWritten = true;
+        }
+    }
+
+    private void drain() throws IOException {
+        long start = System.nanoTime();
+        this.buffer.flip();
+        while(this.buffer.hasRemaining()){
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+        if(this.buffered>0){
+            ScanMetrics.GetInstance().batchPersisted(this.buffered, System.nanoTime()-start);
+            this.buffered = 0;
+        }
+    }
+
+    /**
+     * Writes the header of the file, if the format has one. Called once, before the first record.
+     * @param out the empty buffer to encode the header in
+     */
+    protected void writeHeader(ByteBuffer out) {
+    }
+
+    /**
+     * Encodes a record in the passed buffer, while holding the lock of the sink. Implementations must not keep any state between
+     * calls, as the same record is encoded again, in an empty buffer, if it doesn't fit.
+     * @param record the file to encode
+     * @param removed whether the file no longer exists
+     * @param out the buffer to encode the record in
+     * @throws BufferOverflowException if the record doesn't fit in the remaining space of the buffer
+     * @throws IllegalArgumentException if the format can't hold the record, which is then skipped and counted as an error
+     */
+    protected abstract void encode(FileRecord record, boolean removed, ByteBuffer out);
+
+    /**
+     * Encodes a string in UTF-8 in the passed buffer.
+     * @param out the buffer
+     * @param value the string to encode
+     * @throws BufferOverflowException if the string doesn't fit in the remaining space of the buffer
+     */
+    protected static void PutString(ByteBuffer out, String value) {
+        out.put(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes characters in UTF-8 straight in the passed buffer, without the intermediate <code>String</code> and byte array of
+     * {@link #PutString(ByteBuffer, String)}. Must only be called while encoding a record or the header.
+     * @param out the buffer
+     * @param value the characters to encode
+     * @throws BufferOverflowException if the characters don't fit in the remaining space of the buffer
+     */
+    protected final void putChars(ByteBuffer out, CharSequence value) {
+        this.encoder.reset();
+        CoderResult result = this.encoder.encode(CharBuffer.wrap(value), out, true);
+        if(!result.isOverflow()){
+            result = this.encoder.flush(out);
+        }
+        if(result.isOverflow()){
+            throw new BufferOverflowException();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.model.FileRecord;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A {@link FileSink} that writes one JSON object per line. Dates are written as milliseconds since the epoch, and the files that no
+ * longer exist have <code>"removed":true</code> and no size or date. The <code>contentHash</code> is only written if hashing is enabled.
+ * @author Roberto Fabrizi
+ */
+public class JsonLinesSink extends FileSink {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // only used while holding the lock of the sink
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Creates a <code>JsonLinesSink</code>, replacing the passed file if it exists.
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public JsonLinesSink(Path file) throws IOException {
+        super(file);
+    }
+
+    @Override
+    protected void encode(FileRecord record, boolean removed, ByteBuffer out) {
+        StringBuilder sb = this.line;
+        sb.setLength(0);
+        sb.append("{\"packageName\":");
+        Quote(sb, record.getPackageName());
+        sb.append(",\"fileName\":");
+        Quote(sb, record.getFileName());
+        sb.append(",\"filePath\":");
+        Quote(sb, record.getFilePath());
+        if(record.getFileSize()!=FileRecord.UNKNOWN){
+            sb.append(",\"fileSize\":").append(record.getFileSize());
+        }
+        if(record.getLastModified()!=FileRecord.UNKNOWN){
+            sb.append(",\"lastModified\":").append(record.getLastModified());
+        }
+        if(record.getContentHash()!=null){
+            sb.append(",\"contentHash\":");
+            Quote(sb, record.getContentHash());
+        }
+        sb.append(",\"removed\":").append(removed).append("}\n");
+        this.putChars(out, sb);
+    }
+
+    private static void Quote(StringBuilder sb, String value) {
+        if(value==null){
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for(int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            if(c=='"' || c=='\\'){
+                sb.append('\\').append(c);
+            } else if(c<0x20){
+                sb.append("\\u00").append(HEX[c>>4]).append(HEX[c&0xF]);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
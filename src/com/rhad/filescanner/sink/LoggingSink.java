@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.model.FileRecord;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that simply prints out the results, used in debug mode.
+ * @author Roberto Fabrizi
+ */
+public class LoggingSink implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(LoggingSink.class);
+
+    @Override
+    public void write(FileRecord record) {
+        LOGGER.info("Found: "+record);
+    }
+
+    @Override
+    public void remove(FileRecord record) {
+        LOGGER.info("Removed: "+record);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
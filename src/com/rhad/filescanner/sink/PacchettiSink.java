@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.sink;
+
+import com.rhad.filescanner.model.FileRecord;
+import java.io.IOException;
+
+/**
+ * The destination of the files emitted by a scan: the database, a dump file, or the log. Files are handed over as
+ * {@link com.rhad.filescanner.model.FileRecord}s, and only the sinks that persist entities turn them into
+ * {@link com.rhad.filescanner.model.Pacchetti}s. Implementations are called concurrently by all the scanner threads, and must be thread safe.
+ * @author Roberto Fabrizi
+ */
+public interface PacchettiSink {
+
+    /**
+     * Records a file that is new or changed since the previous scan.
+     * @param record the file
+     * @throws InterruptedException if interrupted while waiting for the sink to accept the file
+     * @throws java.io.UncheckedIOException if the sink can no longer be written
+     */
+    void write(FileRecord record) throws InterruptedException;
+
+    /**
+     * Records a file that no longer exists.
+     * @param record the file, identified by its package name and path
+     * @throws InterruptedException if interrupted while waiting for the sink to accept the removal
+     * @throws java.io.UncheckedIOException if the sink can no longer be written
+     */
+    void remove(FileRecord record) throws InterruptedException;
+
+    /**
+     * Waits until everything recorded so far has reached its destination.
+     * @throws IOException if the sink cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void flush() throws IOException, InterruptedException;
+
+    /**
+     * Flushes everything recorded so far and releases the resources of the sink. Closing an already closed sink has no effect.
+     * @throws IOException if the sink cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close() throws IOException, InterruptedException;
+}
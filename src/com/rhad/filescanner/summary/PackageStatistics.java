@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.summary;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * The aggregates of the files of a package, updated by all the threads that scan it: the totals of the package and the ones of
+ * every file extention. Counters are striped ({@link java.util.concurrent.atomic.LongAdder}), so that the threads never contend on
+ * a single memory location, and finding the aggregates of an extention neither locks nor allocates once the extention was seen.
+ * @author Roberto Fabrizi
+ */
+public final class PackageStatistics {
+
+    private static final Extention[] NO_EXTENTIONS = new Extention[0];
+    private final String packageName;
+    private final Aggregate total = new Aggregate();
+    private final Aggregate noExtention = new Aggregate();
+    // copied on write, a package has a handful of extentions
+    private volatile Extention[] extentions = NO_EXTENTIONS;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean incomplete = false;
+
+    /**
+     * Creates the <code>PackageStatistics</code> of a package.
+     * @param packageName the name of the package
+     */
+    public PackageStatistics(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Adds a file to the aggregates.
+     * @param fileName the name of the file
+     * @param size the size of the file, in bytes
+     * @param lastModified the last modification date of the file, in milliseconds since the epoch
+     */
+    public void add(String fileName, long size, long lastModified) {
+        this.total.add(size, lastModified);
+        this.extention(fileName).add(size, lastModified);
+    }
+
+    /**
+     * Records that some files of the package could not be added, so that its aggregates are not trusted.
+     */
+    public void markIncomplete() {
+        this.incomplete = true;
+    }
+
+    /**
+     * Returns whether some files of the package could not be added.
+     * @return whether some files of the package could not be added
+     */
+    public boolean isIncomplete() {
+        return this.incomplete;
+    }
+
+    /**
+     * Returns the name of the package.
+     * @return the name of the package
+     */
+    public String getPackageName() {
+        return this.packageName;
+    }
+
+    /**
+     * Returns the aggregates of all the files of the package.
+     * @return the aggregates of all the files of the package
+     */
+    public Aggregate getTotal() {
+        return this.total;
+    }
+
+    /**
+     * Returns the aggregates of the files without extention.
+     * @return the aggregates of the files without extention
+     */
+    public Aggregate getNoExtention() {
+        return this.noExtention;
+    }
+
+    /**
+     * Returns the extentions seen so far, in no particular order.
+     * @return the extentions seen so far
+     */
+    public String[] getExtentions() {
+        Extention[] extentions = this.extentions;
+        String[] names = new String[extentions.length];
+        for(int i=0; i<extentions.length; i++){
+            names[i] = extentions[i].name;
+        }
+        return names;
+    }
+
+    /**
+     * Returns the aggregates of the passed extention, or null if no file has it.
+     * @param extention the file extention, without the dot
+     * @return the aggregates of the passed extention, or null
+     */
+    public Aggregate getExtention(String extention) {
+        for(Extention e : this.extentions){
+            if(e.name.equals(extention)){
+                return e.aggregate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the aggregates of the extention of the passed file, as the {@link com.rhad.filescanner.filter.FileNameFilter} finds it:
+     * the text after the last dot, unless the dot is the first character.
+     */
+    private Aggregate extention(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if(dot<=0 || dot==fileName.length()-1){
+            return this.noExtention;
+        }
+        int start = dot+1;
+        int length = fileName.length()-start;
+        Extention[] extentions = this.extentions;
+        for(Extention e : extentions){
+            if(e.name.length()==length && fileName.regionMatches(start, e.name, 0, length)){
+                return e.aggregate;
+            }
+        }
+        this.lock.lock();
+        try {
+            // another thread may have added it meanwhile
+            for(Extention e : this.extentions){
+                if(e.name.length()==length && fileName.regionMatches(start, e.name, 0, length)){
+                    return e.aggregate;
+                }
+            }
+            Extention added = new Extention(fileName.substring(start));
+            Extention[] copy = Arrays.copyOf(this.extentions, this.extentions.length+1);
+            copy[copy.length-1] = added;
+            this.extentions = copy;
+            return added.aggregate;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The aggregates of a set of files: their number and total size, the oldest and newest modification dates, and how many of them
+     * fall in every size class.
+     */
+    public static final class Aggregate {
+
+        /** The upper bounds (exclusive) of the size classes but the last: 1 KiB, 1 MiB and 1 GiB. */
+        public static final long[] SIZE_CLASSES = {1L<<10, 1L<<20, 1L<<30};
+        private static final LongBinaryOperator MIN = new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long left, long right) {
+                return Math.min(left, right);
+            }
+        };
+        private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+            }
+        };
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator oldest = new LongAccumulator(MIN, Long.MAX_VALUE);
+        private final LongAccumulator newest = new LongAccumulator(MAX, Long.MIN_VALUE);
+        private final LongAdder[] sizes = new LongAdder[SIZE_CLASSES.length+1];
+
+        private Aggregate() {
+            for(int i=0; i<this.sizes.length; i++){
+                this.sizes[i] = new LongAdder();
+            }
+        }
+
+        private void add(long size, long lastModified) {
+            this.files.increment();
+            this.bytes.add(size);
+            this.oldest.accumulate(lastModified);
+            this.newest.accumulate(lastModified);
+            int sizeClass = 0;
+            while(sizeClass<SIZE_CLASSES.length && size>=SIZE_CLASSES[sizeClass]){
+                sizeClass++;
+            }
+            this.sizes[sizeClass].increment();
+        }
+
+        /**
+         * Returns the number of files.
+         * @return the number of files
+         */
+        public long getFiles() {
+            return this.files.sum();
+        }
+
+        /**
+         * Returns the total size of the files, in bytes.
+         * @return the total size of the files, in bytes
+         */
+        public long getBytes() {
+            return this.bytes.sum();
+        }
+
+        /**
+         * Returns the last modification date of the oldest file, in milliseconds since the epoch, or -1 if there are no files.
+         * @return the last modification date of the oldest file, or -1 if there are no files
+         */
+        public long getOldest() {
+            return this.getFiles()==0 ? -1L : this.oldest.get();
+        }
+
+        /**
+         * Returns the last modification date of the newest file, in milliseconds since the epoch, or -1 if there are no files.
+         * @return the last modification date of the newest file, or -1 if there are no files
+         */
+        public long getNewest() {
+            return this.getFiles()==0 ? -1L : this.newest.get();
+        }
+
+        /**
+         * Returns the number of files in a size class.
+         * @param sizeClass the size class, from 0 (below 1 KiB) to 3 (1 GiB or more)
+         * @return the number of files in the size class
+         */
+        public long getFiles(int sizeClass) {
+            return this.sizes[sizeClass].sum();
+        }
+    }
+
+    /**
+     * A file extention and its aggregates.
+     */
+    private static final class Extention {
+
+        private final String name;
+        private final Aggregate aggregate = new Aggregate();
+
+        private Extention(String name) {
+            this.name = name;
+        }
+    }
+}
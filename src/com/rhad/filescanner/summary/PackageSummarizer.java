@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.summary;
+
+import com.rhad.filescanner.RootScheduler;
+import com.rhad.filescanner.model.PacchettiSummary;
+import com.rhad.filescanner.persistence.EntityManagerFactoryUtil;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the {@link PackageStatistics} of every package while it is scanned, and writes them out once the package has been
+ * completely scanned: to the PACCHETTI_SUMMARY table (see {@link com.rhad.filescanner.model.PacchettiSummary}), replacing the rows of
+ * the previous scan, or to the log when the files aren't persisted to the database. The aggregates only cover the files that match
+ * the file name filter. The statistics of a package that could not be completely scanned are discarded, and its previous rows kept.
+ * @author Roberto Fabrizi
+ */
+public final class PackageSummarizer implements RootScheduler.PackageListener {
+
+    private static final Logger LOGGER = Logger.getLogger(PackageSummarizer.class);
+    private final boolean database;
+    private final ConcurrentMap<Path, PackageStatistics> packages = new ConcurrentHashMap<Path, PackageStatistics>();
+    private final AtomicInteger summarized = new AtomicInteger();
+    private final AtomicInteger discarded = new AtomicInteger();
+
+    /**
+     * Creates a <code>PackageSummarizer</code>.
+     * @param database whether the summaries are written to the database, whose {@link com.rhad.filescanner.persistence.EntityManagerFactoryUtil} must have been created, or to the log
+     */
+    public PackageSummarizer(boolean database) {
+        this.database = database;
+    }
+
+    @Override
+    public void packageStarted(Path packageDir) {
+        // the same name the records of the package carry
+        this.packages.put(packageDir, new PackageStatistics(packageDir.getFileName().toString().intern()));
+    }
+
+    @Override
+    public void packageScanned(Path packageDir, Throwable failure) {
+        PackageStatistics statistics = this.packages.remove(packageDir);
+        if(statistics==null){
+            return;
+        }
+        if(failure!=null || statistics.isIncomplete()){
+            LOGGER.warn("The summary of "+packageDir+" is not written, the package was not completely scanned");
+            this.discarded.incrementAndGet();
+            return;
+        }
+        List<PacchettiSummary> rows = Rows(statistics, new Date());
+        try {
+            if(this.database){
+                this.persist(statistics.getPackageName(), rows);
+            } else {
+                for(PacchettiSummary row : rows){
+                    LOGGER.info("Summary: "+row);
+                }
+            }
+            this.summarized.incrementAndGet();
+        } catch(RuntimeException e) {
+            this.discarded.incrementAndGet();
+            LOGGER.error("Could not write the summary of "+packageDir, e);
+        }
+    }
+
+    /**
+     * Returns the statistics of a package being scanned.
+     * @param packageDir the package directory
+     * @return the statistics of the package, or null if it isn't being scanned
+     */
+    public PackageStatistics get(Path packageDir) {
+        return this.packages.get(packageDir);
+    }
+
+    /**
+     * Returns the number of packages whose summary was written so far.
+     * @return the number of packages whose summary was written so far
+     */
+    public int getSummarized() {
+        return this.summarized.get();
+    }
+
+    /**
+     * Returns the number of packages whose summary was discarded so far.
+     * @return the number of packages whose summary was discarded so far
+     */
+    public int getDiscarded() {
+        return this.discarded.get();
+    }
+
+    /**
+     * Returns the rows of a package: the totals, then one per extention.
+     * @param statistics the statistics of the package
+     * @param scanned when the package was scanned
+     * @return the rows of the package
+     */
+    private static List<PacchettiSummary> Rows(PackageStatistics statistics, Date scanned) {
+        List<PacchettiSummary> rows = new ArrayList<PacchettiSummary>();
+        rows.add(Row(statistics.getPackageName(), PacchettiSummary.ALL_EXTENTIONS, statistics.getTotal(), scanned));
+        if(statistics.getNoExtention().getFiles()>0){
+            rows.add(Row(statistics.getPackageName(), PacchettiSummary.NO_EXTENTION, statistics.getNoExtention(), scanned));
+        }
+        for(String extention : statistics.getExtentions()){
+            if(extention.length()>64){
+                // longer than the column, and hardly an extention
+                LOGGER.debug("Extention too long for the summary of "+statistics.getPackageName()+": "+extention);
+                continue;
+            }
+            rows.add(Row(statistics.getPackageName(), extention, statistics.getExtention(extention), scanned));
+        }
+        return rows;
+    }
+
+    private static PacchettiSummary Row(String packageName, String extention, PackageStatistics.Aggregate aggregate, Date scanned) {
+        PacchettiSummary row = new PacchettiSummary(packageName, extention);
+        row.setFileCount(aggregate.getFiles());
+        row.setTotalSize(aggregate.getBytes());
+        if(aggregate.getFiles()>0){
+            row.setOldestModified(new Date(aggregate.getOldest()));
+            row.setNewestModified(new Date(aggregate.getNewest()));
+        }
+        row.setFilesUnder1K(aggregate.getFiles(0));
+        row.setFilesUnder1M(aggregate.getFiles(1));
+        row.setFilesUnder1G(aggregate.getFiles(2));
+        row.setFilesOver1G(aggregate.getFiles(3));
+        row.setScanned(scanned);
+        return row;
+    }
+
+    /**
+     * Replaces the rows of a package in a single transaction.
+     */
+    private void persist(String packageName, List<PacchettiSummary> rows) {
+        EntityManager entityManager = null;
+        EntityTransaction tx = null;
+        try {
+            entityManager = EntityManagerFactoryUtil.GetEntityManagerFactory().createEntityManager();
+            tx = entityManager.getTransaction();
+            tx.begin();
+            entityManager.createQuery("delete from PacchettiSummary s where s.key.packageName = :packageName")
+                    .setParameter("packageName", packageName)
+                    .executeUpdate();
+            for(PacchettiSummary row : rows){
+                entityManager.persist(row);
+            }
+            tx.commit();
+        } finally {
+            if(tx!=null && tx.isActive()){
+                try {
+                    tx.rollback();
+                } catch(Exception e) {
+                    LOGGER.error("Could not rollback the current transaction", e);
+                }
+            }
+            if(entityManager!=null && entityManager.isOpen()){
+                entityManager.close();
+            }
+        }
+    }
+}
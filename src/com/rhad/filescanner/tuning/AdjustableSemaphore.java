@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.tuning;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link java.util.concurrent.Semaphore} whose number of permits can be changed while it is in use, and which counts the
+ * acquisitions that had to wait for a permit: the signal the {@link ConcurrencyController} grows the limit on. Lowering the limit
+ * never takes a permit away from its holder, the permits in excess are simply not given out again once released.
+ * @author Roberto Fabrizi
+ */
+public final class AdjustableSemaphore extends Semaphore {
+
+    private static final long serialVersionUID = 1L;
+    private final LongAdder waits = new LongAdder();
+    private volatile int limit;
+
+    /**
+     * Creates an <code>AdjustableSemaphore</code>.
+     * @param permits the initial number of permits
+     */
+    public AdjustableSemaphore(int permits) {
+        super(permits);
+        this.limit = permits;
+    }
+
+    /**
+     * Acquires a permit, waiting if none is available, and counts the wait.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void acquire() throws InterruptedException {
+        if(!this.tryAcquire()){
+            this.waits.increment();
+            super.acquire();
+        }
+    }
+
+    /**
+     * Changes the number of permits. Only one thread at a time may call this method.
+     * @param limit the new number of permits, positive
+     */
+    public void setLimit(int limit) {
+        if(limit<1){
+            throw new IllegalArgumentException("limit must be positive.");
+        }
+        int delta = limit-this.limit;
+        if(delta>0){
+            this.release(delta);
+        } else if(delta<0){
+            this.reducePermits(-delta);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the number of permits.
+     * @return the number of permits
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Returns the number of acquisitions that had to wait for a permit since this semaphore was created.
+     * @return the number of acquisitions that had to wait for a permit
+     */
+    public long getWaits() {
+        return this.waits.sum();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.tuning;
+
+import com.rhad.filescanner.metrics.LatencyHistogram;
+import com.rhad.filescanner.metrics.ScanMetrics;
+import com.rhad.filescanner.persistence.BatchWriter;
+import java.util.Locale;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+/**
+ * Resizes the traversal and the persistence stages of the scan while it runs, so that neither the file server nor the connection
+ * pool are left idle or overloaded. At a fixed interval it compares the rates and latencies of the last interval, from the
+ * {@link com.rhad.filescanner.metrics.ScanMetrics}, and applies an additive increase / multiplicative decrease to:
+ * <ul>
+ * <li>the permits to access the file system: doubled while nothing is congested (as the slow start of TCP), then grown by a step
+ * while scanner threads wait for them, and cut by a quarter as soon as listing a directory takes more than twice the fastest
+ * listing seen so far. They are left alone while the queue of the database is nearly full, as a faster traversal would only
+ * fill it faster.</li>
+ * <li>the writers of the {@link com.rhad.filescanner.persistence.BatchWriter}: one more while the queue keeps filling up, half of
+ * them as soon as a batch takes more than twice the fastest batch seen so far, or waits for a connection of the pool more than a
+ * quarter of the time it takes to persist it.</li>
+ * </ul>
+ * The baselines follow the latencies up slowly, so that a file server or a database that got slower for good is not treated as
+ * congested forever. Every change is logged with the measures it was decided on.
+ * @author Roberto Fabrizi
+ */
+public final class ConcurrencyController {
+
+    private static final Logger LOGGER = Logger.getLogger(ConcurrencyController.class);
+    // a latency over twice the baseline is congestion
+    private static final double CONGESTION = 2d;
+    // how fast the baselines follow the latencies up, per interval
+    private static final double BASELINE_DRIFT = 0.05d;
+    // the traversal doesn't grow while the queue is fuller than this, the writers grow while it is fuller than that
+    private static final double QUEUE_FULL = 0.9d;
+    private static final double QUEUE_BACKLOG = 0.5d;
+    private final AdjustableSemaphore ioPermits;
+    private final int minIo;
+    private final int maxIo;
+    private final BatchWriter writer;
+    private final long intervalSeconds;
+    private ScheduledExecutorService executor;
+    private boolean slowStart = true;
+    private double listingBaseline = Double.NaN;
+    private double batchBaseline = Double.NaN;
+    // the totals at the end of the previous interval
+    private long lastListings;
+    private long lastListingNanos;
+    private long lastFiles;
+    private long lastWaits;
+    private long lastBatches;
+    private long lastBatchNanos;
+    private long lastConnections;
+    private long lastConnectionNanos;
+
+    /**
+     * Creates a <code>ConcurrencyController</code>. The file system permits are set to their initial number, and the writers to one.
+     * @param ioPermits the permits to access the file system
+     * @param minIo the minimum number of permits
+     * @param maxIo the maximum number of permits
+     * @param startIo the initial number of permits, between minIo and maxIo
+     * @param writer the writer of the rows, or null if the files aren't persisted to the database
+     * @param intervalSeconds the number of seconds between two adjustments
+     */
+    public ConcurrencyController(AdjustableSemaphore ioPermits, int minIo, int maxIo, int startIo, BatchWriter writer, long intervalSeconds) {
+        if(minIo<1 || maxIo<minIo || startIo<minIo || startIo>maxIo || intervalSeconds<1){
+            throw new IllegalArgumentException("minIo must be positive, startIo between minIo and maxIo, intervalSeconds positive.");
+        }
+        this.ioPermits = ioPermits;
+        this.minIo = minIo;
+        this.maxIo = maxIo;
+        this.writer = writer;
+        this.intervalSeconds = intervalSeconds;
+        this.ioPermits.setLimit(startIo);
+        if(this.writer!=null){
+            // the writers start as one, and grow while the database keeps up
+            this.writer.setActiveWriters(1);
+        }
+    }
+
+    /**
+     * Starts adjusting the concurrency at a fixed interval.
+     */
+    public synchronized void start() {
+        if(this.executor!=null){
+            return;
+        }
+        this.snapshot();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConcurrencyController");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust();
+                } catch(RuntimeException e) {
+                    // the scan goes on with the current limits
+                    LOGGER.error("Could not adjust the concurrency", e);
+                }
+            }
+        }, this.intervalSeconds, this.intervalSeconds, TimeUnit.SECONDS);
+        LOGGER.info("Concurrency adjusted every "+this.intervalSeconds+"s, file system permits between "+this.minIo+" and "+this.maxIo
+                +" starting at "+this.ioPermits.getLimit()+(this.writer!=null ? ", writers between 1 and "+this.writer.getWriters() : ""));
+    }
+
+    /**
+     * Stops adjusting the concurrency, leaving the current limits in place.
+     */
+    public synchronized void stop() {
+        if(this.executor!=null){
+            this.executor.shutdownNow();
+            this.executor = null;
+            LOGGER.info("Concurrency left at "+this.ioPermits.getLimit()+" file system permits"+(this.writer!=null ? " and "+this.writer.getActiveWriters()+" writers" : ""));
+        }
+    }
+
+    private synchronized void adjust() {
+        ScanMetrics metrics = ScanMetrics.GetInstance();
+        LatencyHistogram listing = metrics.getListingLatency();
+        LatencyHistogram persist = metrics.getPersistLatency();
+        LatencyHistogram connection = metrics.getConnectionWait();
+        long listings = listing.getCount()-this.lastListings;
+        double listingMillis = listings>0 ? (listing.getTotalNanos()-this.lastListingNanos)/1e6/listings : 0d;
+        double filesPerSecond = (metrics.getFilesSeen()-this.lastFiles)/(double) this.intervalSeconds;
+        long waits = this.ioPermits.getWaits()-this.lastWaits;
+        long batches = persist.getCount()-this.lastBatches;
+        double batchMillis = batches>0 ? (persist.getTotalNanos()-this.lastBatchNanos)/1e6/batches : 0d;
+        long connections = connection.getCount()-this.lastConnections;
+        double connectionMillis = connections>0 ? (connection.getTotalNanos()-this.lastConnectionNanos)/1e6/connections : 0d;
+        int capacity = metrics.getQueueCapacity();
+        double queueFill = capacity>0 ? metrics.getQueueDepth()/(double) capacity : 0d;
+        this.snapshot();
+
+        int io = this.ioPermits.getLimit();
+        int newIo = io;
+        String ioReason = "idle";
+        if(listings>0){
+            this.listingBaseline = Baseline(this.listingBaseline, listingMillis);
+            if(queueFill>=QUEUE_FULL){
+                ioReason = "the database is the bottleneck";
+            } else if(listingMillis>CONGESTION*this.listingBaseline){
+                newIo = Math.max(this.minIo, io-Math.max(io/4, 1));
+                this.slowStart = false;
+                ioReason = "listing is over "+CONGESTION+" times slower than the baseline";
+            } else if(waits>0){
+                newIo = Math.min(this.maxIo, this.slowStart ? io*2 : io+Math.max(this.maxIo/16, 1));
+                ioReason = waits+" waits for a permit";
+            } else {
+                ioReason = "no thread waited for a permit";
+            }
+        }
+        int active = 0;
+        int newActive = 0;
+        String writerReason = null;
+        if(this.writer!=null){
+            active = this.writer.getActiveWriters();
+            newActive = active;
+            writerReason = "idle";
+            if(batches>0){
+                this.batchBaseline = Baseline(this.batchBaseline, batchMillis);
+                if(batchMillis>CONGESTION*this.batchBaseline){
+                    newActive = Math.max(1, active/2);
+                    writerReason = "batches are over "+CONGESTION+" times slower than the baseline";
+                } else if(connectionMillis>batchMillis/4d){
+                    newActive = Math.max(1, active/2);
+                    writerReason = "batches wait for a connection of the pool";
+                } else if(queueFill>=QUEUE_BACKLOG){
+                    newActive = Math.min(this.writer.getWriters(), active+1);
+                    writerReason = "the queue is filling up";
+                } else {
+                    writerReason = "the queue keeps up";
+                }
+            }
+        }
+        if(newIo!=io){
+            this.ioPermits.setLimit(newIo);
+        }
+        if(newActive!=active){
+            this.writer.setActiveWriters(newActive);
+        }
+        String decision = String.format(Locale.ROOT, "file system permits %d -> %d (%s), %.0f files/s, listing %.2fms (baseline %.2fms)",
+                io, newIo, ioReason, filesPerSecond, listingMillis, Double.isNaN(this.listingBaseline) ? 0d : this.listingBaseline);
+        if(this.writer!=null){
+            decision+=String.format(Locale.ROOT, "; writers %d -> %d (%s), queue %.0f%% full, batch %.1fms (baseline %.1fms), connection wait %.1fms",
+                    active, newActive, writerReason, queueFill*100d, batchMillis, Double.isNaN(this.batchBaseline) ? 0d : this.batchBaseline, connectionMillis);
+        }
+        if(newIo!=io || newActive!=active){
+            LOGGER.info("Concurrency changed: "+decision);
+        } else {
+            LOGGER.debug("Concurrency unchanged: "+decision);
+        }
+    }
+
+    private void snapshot() {
+        ScanMetrics metrics = ScanMetrics.GetInstance();
+        this.lastListings = metrics.getListingLatency().getCount();
+        this.lastListingNanos = metrics.getListingLatency().getTotalNanos();
+        this.lastFiles = metrics.getFilesSeen();
+        this.lastWaits = this.ioPermits.getWaits();
+        this.lastBatches = metrics.getPersistLatency().getCount();
+        this.lastBatchNanos = metrics.getPersistLatency().getTotalNanos();
+        this.lastConnections = metrics.getConnectionWait().getCount();
+        this.lastConnectionNanos = metrics.getConnectionWait().getTotalNanos();
+    }
+
+    /**
+     * Returns the new baseline of a latency: the fastest seen, drifting slowly towards the current one when slower.
+     */
+    private static double Baseline(double baseline, double latency) {
+        if(Double.isNaN(baseline) || latency<baseline){
+            return latency;
+        }
+        return baseline+(latency-baseline)*BASELINE_DRIFT;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.wal;
+
+import com.rhad.filescanner.model.FileRecord;
+import com.rhad.filescanner.model.Pacchetti;
+import com.rhad.filescanner.persistence.BatchWriter;
+import com.rhad.filescanner.sink.PacchettiSink;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * A sink that appends the files to a {@link WriteAheadLog} on the local disk, and replays the log into a {@link BatchWriter} on
+ * a thread of its own. The scanner threads never wait for the database: when it is slow or can't be reached the log grows on
+ * the disk instead of the queue of the writer filling up, and the writer retries until the database is back. What was logged and
+ * not yet persisted when the process stops is replayed by the next run, so a row can be persisted twice: the writer must upsert.
+ * <p>
+ * The log is committed up to what the writer persisted or dropped. A batch the writer drops after its attempts, i.e. with a value
+ * the table can't hold, would fail the same way in every later run, so it is left to the log of the writer and committed past.
+ * Only if the writer drops rows because the database can't be reached does the replay stop, and the log is kept from the last
+ * commit on, for the next run to replay: the scan goes on appending to it, but the flushes fail from then on. The files whose
+ * names or path are too long for the table are not appended, and are counted as lost by the writer.
+ * @author Roberto Fabrizi
+ */
+public class WalSink implements PacchettiSink {
+
+    private static final Logger LOGGER = Logger.getLogger(WalSink.class);
+    // the records replayed between two commits of the log
+    private static final int COMMIT_EVERY = 10000;
+    private final WriteAheadLog log;
+    private final BatchWriter writer;
+    private final long flushInterval;
+    private final Thread replayer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committedChanged = this.lock.newCondition();
+    // guarded by the lock
+    private WriteAheadLog.Position committed;
+    private Throwable failure;
+    // only used by the replayer thread
+    private long failedRows;
+    private long unreachableRows;
+    private volatile WriteAheadLog.Position closedAt;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a <code>WalSink</code> and starts replaying the log, beginning with what the previous runs left in it.
+     * @param log the log the files are appended to
+     * @param writer the started writer the log is replayed into, which should retry the batches that fail
+     * @param flushInterval the maximum number of milliseconds a file waits in the buffer of the log before it is replayed
+     */
+    public WalSink(WriteAheadLog log, BatchWriter writer, long flushInterval) {
+        this.log = log;
+        this.writer = writer;
+        this.flushInterval = flushInterval;
+        this.failedRows = writer.getFailed();
+        this.unreachableRows = writer.getFailedUnreachable();
+        this.replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "WalSink-replayer");
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+        LOGGER.info("WalSink started");
+    }
+
+    /**
+     * Appends the file to the log. This method never touches the database.
+     * @param record the file
+     * @throws UncheckedIOException if the log cannot be written, i.e. the disk is full
+     * @throws IllegalStateException if this sink has already been closed
+     */
+    @Override
+    public void write(FileRecord record) {
+        this.append(record, false);
+    }
+
+    /**
+     * Appends the removal of the file to the log. This method never touches the database.
+     * @param record the file, identified by its package name and file name
+     * @throws UncheckedIOException if the log cannot be written, i.e. the disk is full
+     * @throws IllegalStateException if this sink has already been closed
+     */
+    @Override
+    public void remove(FileRecord record) {
+        this.append(record, true);
+    }
+
+    private void append(FileRecord record, boolean removed) {
+        if(this.closed){
+            throw new IllegalStateException("The WalSink has already been closed.");
+        }
+        if(!Pacchetti.Fits(record)){
+            // it would fail its batch at every replay
+            LOGGER.error("The names or the path of the file are too long for the table, it is not logged: "+record);
+            this.writer.lost(record);
+            return;
+        }
+        try {
+            if(!this.log.append(record, removed)){
+                this.writer.lost(record);
+            }
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Forces the log to the disk and waits until everything appended so far has been replayed and persisted, which takes as long
+     * as the database can't be reached.
+     * @throws IOException if the log cannot be written, or the replay has stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        WriteAheadLog.Position target = this.log.sync();
+        this.lock.lock();
+        try {
+            while(this.committed==null || this.committed.compareTo(target)<0){
+                if(this.failure!=null){
+                    throw new IOException("The replay of the log has stopped", this.failure);
+                }
+                if(!this.replayer.isAlive()){
+                    throw new IOException("The replay of the log has stopped");
+                }
+                this.committedChanged.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new files, replays what is left of the log and closes the writer. If the database can't be reached the
+     * writer is aborted instead, and what is left of the log is replayed by the next run. Closing an already closed sink has no effect.
+     * @throws IOException if the log cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public synchronized void close() throws IOException, InterruptedException {
+        if(this.closed){
+            return;
+        }
+        this.closed = true;
+        try {
+            this.closedAt = this.log.sync();
+            boolean aborted = false;
+            while(this.replayer.isAlive()){
+                this.replayer.join(this.flushInterval);
+                if(this.replayer.isAlive() && this.writer.isUnreachable()){
+                    LOGGER.warn("The database can't be reached, the files left in the log will be persisted by the next run");
+                    this.replayer.interrupt();
+                    this.replayer.join();
+                    this.writer.abort();
+                    aborted = true;
+                }
+            }
+            if(!aborted){
+                this.writer.close();
+            }
+        } finally {
+            this.log.close();
+        }
+        LOGGER.info("WalSink closed");
+    }
+
+    private void replay() {
+        long sinceCommit = 0L;
+        try (WriteAheadLog.Cursor cursor = this.log.cursor()) {
+            while(true){
+                if(cursor.next()){
+                    if(cursor.isRemoved()){
+                        this.writer.remove(cursor.getRecord());
+                    } else {
+                        this.writer.write(cursor.getRecord());
+                    }
+                    if(++sinceCommit>=COMMIT_EVERY){
+                        this.commit(cursor.getPosition());
+                        sinceCommit = 0L;
+                    }
+                    continue;
+                }
+                // caught up with the log
+                WriteAheadLog.Position position = cursor.getPosition();
+                if(this.committed==null || this.committed.compareTo(position)<0){
+                    this.commit(position);
+                    sinceCommit = 0L;
+                }
+                WriteAheadLog.Position end = this.closedAt;
+                if(end!=null && position.compareTo(end)>=0){
+                    break;
+                }
+                this.log.awaitWritten(position, this.flushInterval);
+            }
+        } catch(InterruptedException ie) {
+            LOGGER.info("The replay of the log has been interrupted");
+        } catch(IOException | RuntimeException e) {
+            LOGGER.error("The replay of the log has stopped, the files left in it will be persisted by the next run", e);
+            this.lock.lock();
+            try {
+                this.failure = e;
+            } finally {
+                this.lock.unlock();
+            }
+        } finally {
+            this.lock.lock();
+            try {
+                this.committedChanged.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until the writer has persisted what was replayed so far, then records in the log that it no longer has to be replayed.
+     * @throws IOException if the log cannot be written, or some of the rows replayed since the last commit were dropped because
+     * the database couldn't be reached
+     */
+    private void commit(WriteAheadLog.Position position) throws IOException, InterruptedException {
+        this.writer.flush();
+        long unreachable = this.writer.getFailedUnreachable();
+        if(unreachable>this.unreachableRows){
+            // the dropped rows are still in the log after the last commit
+            throw new IOException((unreachable-this.unreachableRows)+" rows could not be persisted as the database can't be reached, the log is kept from its last commit");
+        }
+        long failed = this.writer.getFailed();
+        if(failed>this.failedRows){
+            // they would fail again at every replay
+            LOGGER.warn((failed-this.failedRows)+" rows could not be persisted since the last commit of the log, which is committed past them");
+            this.failedRows = failed;
+        }
+        this.log.commit(position);
+        this.lock.lock();
+        try {
+            this.committed = position;
+            this.committedChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright 2014 Roberto Fabrizi.
+ *
+ * This work is licensed under the Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+ *
+ * To view a copy of this license, visit http://creativecommons.org/licenses/by-nc-nd/3.0/ or send a letter to:
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ *
+ */
+package com.rhad.filescanner.wal;
+
+import com.rhad.filescanner.model.FileRecord;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of the {@link com.rhad.filescanner.model.FileRecord}s on their way to the database, split in numbered segment
+ * files (<code>wal-&lt;number&gt;.seg</code>) of a given size. Records are encoded in a large buffer and written sequentially, and
+ * every record is framed by its length and a CRC32 of its content, so that a record torn by a crash is recognized and ignored.
+ * <p>
+ * A single {@link Cursor} reads the records back, following the writes, and the position up to which they have been persisted is
+ * committed to the <code>wal.offset</code> file: the segments before it are deleted, and the log opened by the next run starts from
+ * it. The records are appended and read by different threads.
+ * @author Roberto Fabrizi
+ */
+public final class WriteAheadLog implements Closeable {
+
+    /**
+     * When the log is forced to the disk.
+     */
+    public enum Fsync {
+        /** After every write of the buffer, the records are lost only if they were still in the buffer. */
+        ALWAYS,
+        /** When the sink is flushed, and when a segment is full. */
+        FLUSH,
+        /** Never: the operating system writes the log back, which survives a crash of the process but not of the machine. */
+        NEVER
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class);
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".seg";
+    private static final String OFFSET = "wal.offset";
+    private static final int BUFFER_SIZE = 1 << 20;
+    // the length and the CRC32 of the record
+    private static final int FRAME = 8;
+    private static final byte WRITTEN = 'W';
+    private static final byte REMOVED = 'R';
+    private final Path dir;
+    private final long segmentSize;
+    private final Fsync fsync;
+    // not synchronized, which would pin the virtual threads waiting for the disk to their carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writtenChanged = this.lock.newCondition();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CRC32 crc = new CRC32();
+    private final Position committedAtOpen;
+    private long segment;
+    private FileChannel channel;
+    // the bytes of the segment written to the channel
+    private long offset = 0L;
+    private volatile Position written;
+    private boolean closed = false;
+
+    private WriteAheadLog(Path dir, long segmentSize, Fsync fsync, Position committed, long segment) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.committedAtOpen = committed;
+        this.segment = segment;
+        this.channel = FileChannel.open(this.segmentFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.written = new Position(segment, 0L);
+    }
+
+    /**
+     * Opens the log of the passed directory, creating it if needed. The segments left by a previous run, from its last committed
+     * position on, are read again before the records appended from now on, which go to a new segment.
+     * @param dir the directory of the segments
+     * @param segmentSize the size in bytes after which a new segment is started
+     * @param fsync when the log is forced to the disk
+     * @return the opened log
+     * @throws IOException if the directory cannot be read or the new segment cannot be created
+     */
+    public static WriteAheadLog Open(Path dir, long segmentSize, Fsync fsync) throws IOException {
+        if(segmentSize<BUFFER_SIZE){
+            throw new IllegalArgumentException("segmentSize must be at least "+BUFFER_SIZE+" bytes.");
+        }
+        Files.createDirectories(dir);
+        TreeSet<Long> segments = new TreeSet<Long>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX+"*"+SUFFIX)) {
+            for(Path file : stream){
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length())));
+                } catch(NumberFormatException nfe) {
+                    LOGGER.warn("Not a segment of the log, ignored: "+file);
+                }
+            }
+        }
+        Position committed = null;
+        Path offsetFile = dir.resolve(OFFSET);
+        if(Files.exists(offsetFile)){
+            String[] fields = new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim().split(" ");
+            committed = new Position(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+        }
+        if(committed==null || (!segments.isEmpty() && committed.segment<segments.first())){
+            committed = new Position(segments.isEmpty() ? 1L : segments.first(), 0L);
+        }
+        long next = Math.max(segments.isEmpty() ? 1L : segments.last()+1L, committed.segment+1L);
+        if(!segments.isEmpty() && segments.last()>=committed.segment){
+            LOGGER.info("Resuming the log of "+dir+" from segment "+committed.segment+" at offset "+committed.offset+", "
+                    +segments.tailSet(committed.segment).size()+" segments left by the previous run");
+        }
+        WriteAheadLog log = new WriteAheadLog(dir, segmentSize, fsync, segments.tailSet(committed.segment).isEmpty() ? new Position(next, 0L) : committed, next);
+        log.deleteBefore(log.committedAtOpen.segment);
+        return log;
+    }
+
+    /**
+     * Appends a record to the log. It becomes visible to the {@link Cursor} once the buffer is written, when full or when {@link #sync()}
+     * or {@link #publish()} are called.
+     * @param record the file
+     * @param removed whether the file no longer exists
+     * @return whether the record was appended, false if the format of the log can't hold it
+     * @throws IOException if the log cannot be written
+     */
+    public boolean append(FileRecord record, boolean removed) throws IOException {
+        this.lock.lock();
+        try {
+            if(this.closed){
+                throw new IllegalStateException("The log of "+this.dir+" has already been closed.");
+            }
+            int position = this.buffer.position();
+            try {
+                try {
+                    this.encode(record, removed);
+                } catch(BufferOverflowException boe) {
+                    // the record doesn't fit in what's left of the buffer: write the buffer out and encode it again
+                    this.buffer.position(position);
+                    this.drain();
+                    position = 0;
+                    this.encode(record, removed);
+                }
+            } catch(IllegalArgumentException iae) {
+                // a half encoded frame would stop the cursor: only this record is skipped
+                this.buffer.position(position);
+                LOGGER.warn("Skipped a record that cannot be written to the log of "+this.dir+": "+iae.getMessage());
+                return false;
+            } catch(BufferOverflowException boe) {
+                this.buffer.position(0);
+                throw new IOException("A record is bigger than the buffer: "+record);
+            }
+            if(this.offset+this.buffer.position()>=this.segmentSize){
+                this.roll();
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records, making them visible to the {@link Cursor}, without forcing them to the disk unless the policy is {@link Fsync#ALWAYS}.
+     * @throws IOException if the log cannot be written
+     */
+    public void publish() throws IOException {
+        this.lock.lock();
+        try {
+            if(!this.closed){
+                this.drain();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records and, unless the policy is {@link Fsync#NEVER}, forces them to the disk.
+     * @return the position right after the last appended record
+     * @throws IOException if the log cannot be written
+     */
+    public Position sync() throws IOException {
+        this.lock.lock();
+        try {
+            if(!this.closed){
+                this.drain();
+                if(this.fsync!=Fsync.NEVER){
+                    this.channel.force(false);
+                }
+            }
+            return this.written;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the position right after the last record written out of the buffer.
+     * @return the position right after the last record visible to the {@link Cursor}
+     */
+    public Position getWritten() {
+        return this.written;
+    }
+
+    /**
+     * Waits until records after the passed position are written out of the buffer, at most the passed time. If none is, the
+     * buffered records are written before returning, so that a trickle of records is not left in the buffer.
+     * @param after the position the reader is at
+     * @param millis the maximum number of milliseconds to wait
+     * @throws IOException if the log cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitWritten(Position after, long millis) throws IOException, InterruptedException {
+        this.lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            while(this.written.compareTo(after)<=0 && !this.closed){
+                if(nanos<=0L){
+                    this.drain();
+                    return;
+                }
+                nanos = this.writtenChanged.awaitNanos(nanos);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that everything before the passed position has been persisted, and deletes the segments no longer needed.
+     * @param position the position of the first record not yet persisted
+     * @throws IOException if the offset file cannot be written
+     */
+    public void commit(Position position) throws IOException {
+        Path offsetFile = this.dir.resolve(OFFSET);
+        Path temporary = this.dir.resolve(OFFSET+".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap((position.segment+" "+position.offset+"\n").getBytes(StandardCharsets.US_ASCII)));
+            if(this.fsync!=Fsync.NEVER){
+                out.force(true);
+            }
+        }
+        Files.move(temporary, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.deleteBefore(position.segment);
+    }
+
+    /**
+     * Returns a cursor that reads the records from the position committed by the previous run, or from the first record appended
+     * by this one.
+     * @return a cursor on the records not yet persisted
+     */
+    public Cursor cursor() {
+        return new Cursor(this.committedAtOpen);
+    }
+
+    /**
+     * Writes the buffered records, forces them to the disk unless the policy is {@link Fsync#NEVER}, and closes the current segment.
+     * Closing an already closed log has no effect.
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if(this.closed){
+                return;
+            }
+            try {
+                this.sync();
+            } finally {
+                this.closed = true;
+                this.channel.close();
+                // wakes up the reader
+                this.writtenChanged.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void encode(FileRecord record, boolean removed) {
+        int start = this.buffer.position();
+        // the frame is patched once the record is encoded
+        this.buffer.putLong(0L);
+        this.buffer.put(removed ? REMOVED : WRITTEN);
+        this.putString(record.getPackageName());
+        this.putString(record.getDirectory());
+        this.putString(record.getFileName());
+        this.buffer.putLong(record.getFileSize());
+        this.buffer.putLong(record.getLastModified());
+        this.putString(record.getContentHash());
+        int end = this.buffer.position();
+        ByteBuffer content = this.buffer.duplicate();
+        content.position(start+FRAME);
+        content.limit(end);
+        this.crc.reset();
+        this.crc.update(content);
+        this.buffer.putInt(start, end-start-FRAME);
+        this.buffer.putInt(start+4, (int) this.crc.getValue());
+    }
+
+    private void putString(String value) {
+        int start = this.buffer.position();
+        // the length is patched once the string is encoded, -1 for null
+        this.buffer.putShort((short) 0);
+        if(value==null){
+            this.buffer.putShort(start, (short) -1);
+            return;
+        }
+        this.encoder.reset();
+        CoderResult result = this.encoder.encode(CharBuffer.wrap(value), this.buffer, true);
+        if(!result.isOverflow()){
+            result = this.encoder.flush(this.buffer);
+        }
+        if(result.isOverflow()){
+            throw new BufferOverflowException();
+        }
+        int length = this.buffer.position()-start-2;
+        if(length>=0xFFFF){
+            throw new IllegalArgumentException("Name too long for the log: "+value);
+        }
+        this.buffer.putShort(start, (short) length);
+    }
+
+    private void drain() throws IOException {
+        if(this.buffer.position()==0){
+            return;
+        }
+        this.buffer.flip();
+        while(this.buffer.hasRemaining()){
+            this.offset+=this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+        if(this.fsync==Fsync.ALWAYS){
+            this.channel.force(false);
+        }
+        this.written = new Position(this.segment, this.offset);
+        this.writtenChanged.signalAll();
+    }
+
+    private void roll() throws IOException {
+        this.drain();
+        if(this.fsync!=Fsync.NEVER){
+            this.channel.force(false);
+        }
+        this.channel.close();
+        this.segment++;
+        this.channel = FileChannel.open(this.segmentFile(this.segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.offset = 0L;
+        this.written = new Position(this.segment, 0L);
+        this.writtenChanged.signalAll();
+    }
+
+    private void deleteBefore(long segment) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir, PREFIX+"*"+SUFFIX)) {
+            for(Path file : stream){
+                String name = file.getFileName().toString();
+                try {
+                    if(Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length()))<segment){
+                        Files.deleteIfExists(file);
+                    }
+                } catch(NumberFormatException nfe) {
+                    // not a segment, already logged when the log was opened
+                }
+            }
+        }
+    }
+
+    private Path segmentFile(long segment) {
+        return this.dir.resolve(String.format(Locale.ROOT, "%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    /**
+     * A position in the log: a segment and the offset of a record within it. Positions are ordered as the records.
+     */
+    public static final class Position implements Comparable<Position> {
+
+        private final long segment;
+        private final long offset;
+
+        private Position(long segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            int bySegment = Long.compare(this.segment, other.segment);
+            return bySegment!=0 ? bySegment : Long.compare(this.offset, other.offset);
+        }
+
+        @Override
+        public String toString() {
+            return this.segment+":"+this.offset;
+        }
+    }
+
+    /**
+     * Reads the records of the log in order, from one segment to the next, never beyond what has been written out of the buffer.
+     * A cursor is used by a single thread.
+     */
+    public final class Cursor implements Closeable {
+
+        private final ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 check = new CRC32();
+        private long segment;
+        // the offset in the segment of the first byte of the chunk
+        private long chunkOffset;
+        private FileChannel in;
+        private FileRecord record;
+        private boolean removed;
+
+        private Cursor(Position from) {
+            this.segment = from.segment;
+            this.chunkOffset = from.offset;
+            this.chunk.limit(0);
+        }
+
+        /**
+         * Moves to the next record, if one has been written.
+         * @return whether there was a next record
+         * @throws IOException if the segments cannot be read
+         */
+        public boolean next() throws IOException {
+            while(true){
+                Position limit = WriteAheadLog.this.written;
+                boolean sealed = this.segment<limit.segment;
+                if(this.segment>limit.segment){
+                    return false;
+                }
+                if(this.in==null){
+                    Path file = WriteAheadLog.this.segmentFile(this.segment);
+                    if(!Files.exists(file)){
+                        if(!sealed){
+                            return false;
+                        }
+                        // a segment left empty by a crash right after it was started
+                        this.nextSegment();
+                        continue;
+                    }
+                    this.in = FileChannel.open(file, StandardOpenOption.READ);
+                }
+                long end = sealed ? this.in.size() : limit.offset;
+                if(this.decode(end)){
+                    return true;
+                }
+                if(!sealed){
+                    return false;
+                }
+                long position = this.chunkOffset+this.chunk.position();
+                if(position<end){
+                    LOGGER.warn("The last "+(end-position)+" bytes of segment "+this.segment+" of "+WriteAheadLog.this.dir+" are torn or corrupt and are ignored");
+                }
+                this.nextSegment();
+            }
+        }
+
+        /**
+         * Returns the record the cursor is on.
+         * @return the record the cursor is on
+         */
+        public FileRecord getRecord() {
+            return this.record;
+        }
+
+        /**
+         * Returns whether the file of the record the cursor is on no longer exists.
+         * @return whether the file of the record no longer exists
+         */
+        public boolean isRemoved() {
+            return this.removed;
+        }
+
+        /**
+         * Returns the position right after the record the cursor is on, which is where the next run starts from once committed.
+         * @return the position right after the record the cursor is on
+         */
+        public Position getPosition() {
+            return new Position(this.segment, this.chunkOffset+this.chunk.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(this.in!=null){
+                this.in.close();
+                this.in = null;
+            }
+        }
+
+        private void nextSegment() throws IOException {
+            this.close();
+            this.segment++;
+            this.chunkOffset = 0L;
+            this.chunk.clear();
+            this.chunk.limit(0);
+        }
+
+        /**
+         * Decodes the next record if it is entirely before the passed offset, reading more of the segment as needed.
+         */
+        private boolean decode(long end) throws IOException {
+            if(this.chunk.remaining()<FRAME && !this.fill(end, FRAME)){
+                return false;
+            }
+            int length = this.chunk.getInt(this.chunk.position());
+            if(length<=0 || length>BUFFER_SIZE-FRAME){
+                return false;
+            }
+            if(this.chunk.remaining()<FRAME+length && !this.fill(end, FRAME+length)){
+                return false;
+            }
+            int start = this.chunk.position();
+            int crc = this.chunk.getInt(start+4);
+            this.check.reset();
+            this.check.update(this.chunk.array(), this.chunk.arrayOffset()+start+FRAME, length);
+            if((int) this.check.getValue()!=crc){
+                return false;
+            }
+            this.chunk.position(start+FRAME);
+            this.removed = this.chunk.get()==REMOVED;
+            String packageName = this.getString();
+            String directory = this.getString();
+            String fileName = this.getString();
+            long fileSize = this.chunk.getLong();
+            long lastModified = this.chunk.getLong();
+            String contentHash = this.getString();
+            this.chunk.position(start+FRAME+length);
+            if(this.removed){
+                this.record = FileRecord.Removed(packageName, directory, fileName);
+            } else {
+                // the path is only needed to hash the file, which is done before it is logged
+                this.record = new FileRecord(packageName, directory, fileName, fileSize, lastModified, null);
+                this.record.setContentHash(contentHash);
+            }
+            return true;
+        }
+
+        /**
+         * Reads the segment until at least the passed number of bytes are in the chunk, without going beyond the passed offset.
+         */
+        private boolean fill(long end, int needed) throws IOException {
+            this.chunkOffset+=this.chunk.position();
+            this.chunk.compact();
+            while(this.chunk.position()<needed){
+                long position = this.chunkOffset+this.chunk.position();
+                if(position>=end){
+                    break;
+                }
+                int max = (int) Math.min(this.chunk.remaining(), end-position);
+                ByteBuffer window = this.chunk.duplicate();
+                window.limit(window.position()+max);
+                int read = this.in.read(window, position);
+                if(read<0){
+                    break;
+                }
+                this.chunk.position(this.chunk.position()+read);
+            }
+            this.chunk.flip();
+            return this.chunk.remaining()>=needed;
+        }
+
+        private String getString() {
+            int length = this.chunk.getShort();
+            if(length==-1){
+                return null;
+            }
+            length&=0xFFFF;
+            String value = new String(this.chunk.array(), this.chunk.arrayOffset()+this.chunk.position(), length, StandardCharsets.UTF_8);
+            this.chunk.position(this.chunk.position()+length);
+            return value;
+        }
+    }
+}